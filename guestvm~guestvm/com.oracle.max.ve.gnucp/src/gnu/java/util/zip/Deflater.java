@@ -170,8 +170,8 @@ public class Deflater {
         else if (lvl < NO_COMPRESSION || lvl > BEST_COMPRESSION)
             throw new IllegalArgumentException();
 
-        pending = new DeflaterPending();
-        engine = new DeflaterEngine(pending);
+        engine = DeflaterEngine.get();
+        pending = engine.getPending();
         this.noHeader = nowrap;
         setStrategy(DEFAULT_STRATEGY);
         setLevel(lvl);
@@ -190,11 +190,13 @@ public class Deflater {
     }
 
     /**
-     * Frees all objects allocated by the compressor. There's no reason to call this, since you can just rely on garbage
-     * collection. Exists only for compatibility against Sun's JDK, where the compressor allocates native memory. If you
-     * call any method (even reset) afterwards the behaviour is <i>undefined</i>.
+     * Frees all objects allocated by the compressor. The window and buffers are returned to a small pool, from which
+     * the next deflater created takes them. If you call any method (even reset) afterwards the behaviour is
+     * <i>undefined</i>.
      */
     public void end() {
+        if (engine != null)
+            engine.release();
         engine = null;
         pending = null;
         state = CLOSED_STATE;
@@ -37,26 +37,33 @@ exception statement from your version. */
 
 package gnu.java.util.zip;
 
+import java.util.Arrays;
 import java.util.zip.Adler32;
 
 class DeflaterEngine implements DeflaterConstants {
 
     private static final int TOO_FAR = 4096;
 
+    /**
+     * Engines released by {@link Deflater#end}, kept for reuse so that short lived deflaters (one per gzip stream
+     * or zip entry) do not each allocate and clear the window, hash tables and pending buffer.
+     */
+    private static final DeflaterEngine[] pool = new DeflaterEngine[4];
+    private static int poolSize;
+
     private int ins_h;
 
     /**
      * Hashtable, hashing three characters to an index for window, so that window[index]..window[index+2] have this hash
-     * code. Note that the array should really be unsigned short, so you need to and the values with 0xffff.
+     * code. The array is a char array so that the values are unsigned.
      */
-    private short[] head;
+    private final char[] head;
 
     /**
      * prev[index & WMASK] points to the previous index that has the same hash code as the string starting at index.
-     * This way entries with the same hash code are in a linked list. Note that the array should really be unsigned
-     * short, so you need to and the values with 0xffff.
+     * This way entries with the same hash code are in a linked list.
      */
-    private short[] prev;
+    private final char[] prev;
 
     private int matchStart, matchLen;
     private boolean prevAvailable;
@@ -77,7 +84,7 @@ class DeflaterEngine implements DeflaterConstants {
      * This array contains the part of the uncompressed stream that is of relevance. The current character is indexed by
      * strstart.
      */
-    private byte[] window;
+    private final byte[] window;
 
     private int strategy, max_chain, max_lazy, niceLength, goodLength;
 
@@ -112,7 +119,9 @@ class DeflaterEngine implements DeflaterConstants {
      * corresponding index in window of the last string with this hash. The prev array implements a linked list of
      * matches with the same hash: prev[index & WMASK] points to the previous index with the same hash.
      *
-     *
+     * The chain search is bounded by the per level MAX_CHAIN, and cut short once a match of NICE_LENGTH is found or,
+     * by a factor of four, once the previous match is at least GOOD_LENGTH. Levels 1 to 4 use the greedy deflateFast,
+     * which takes the longest match at each position; higher levels use the lazy deflateSlow.
      */
 
     DeflaterEngine(DeflaterPending pending) {
@@ -121,8 +130,8 @@ class DeflaterEngine implements DeflaterConstants {
         adler = new Adler32();
 
         window = new byte[2 * WSIZE];
-        head = new short[HASH_SIZE];
-        prev = new short[WSIZE];
+        head = new char[HASH_SIZE];
+        prev = new char[WSIZE];
 
         /*
          * We start at index 1, to avoid a implementation deficiency, that we cannot build a repeat pattern at index 0.
@@ -130,6 +139,44 @@ class DeflaterEngine implements DeflaterConstants {
         blockStart = strstart = 1;
     }
 
+    /**
+     * Returns an engine, with its own pending buffer, that is set to level 0 and the default strategy, and must be
+     * {@link #reset} before use.
+     */
+    static DeflaterEngine get() {
+        synchronized (pool) {
+            if (poolSize > 0) {
+                DeflaterEngine engine = pool[--poolSize];
+                pool[poolSize] = null;
+                return engine;
+            }
+        }
+        return new DeflaterEngine(new DeflaterPending());
+    }
+
+    /**
+     * Returns this engine to the pool. It must not be used by the caller afterwards.
+     */
+    void release() {
+        inputBuf = null;
+        inputOff = inputEnd = 0;
+        strategy = Deflater.DEFAULT_STRATEGY;
+        comprFunc = DEFLATE_STORED;
+        goodLength = max_lazy = niceLength = max_chain = 0;
+        synchronized (pool) {
+            if (poolSize < pool.length)
+                pool[poolSize++] = this;
+        }
+    }
+
+    final DeflaterPending getPending() {
+        return pending;
+    }
+
+    /**
+     * Resets the engine for a new stream. The window and prev need not be cleared: prev[index & WMASK] is always
+     * written when the string at index is inserted, before any chain can lead to it.
+     */
     public void reset() {
         huffman.reset();
         adler.reset();
@@ -138,10 +185,7 @@ class DeflaterEngine implements DeflaterConstants {
         totalIn = 0;
         prevAvailable = false;
         matchLen = MIN_MATCH - 1;
-        for (int i = 0; i < HASH_SIZE; i++)
-            head[i] = 0;
-        for (int i = 0; i < WSIZE; i++)
-            prev[i] = 0;
+        Arrays.fill(head, (char) 0);
     }
 
     public final void resetAdler() {
@@ -209,7 +253,7 @@ class DeflaterEngine implements DeflaterConstants {
      * Inserts the current string in the head hash and returns the previous value for this hash.
      */
     private int insertString() {
-        short match;
+        char match;
         int hash = ((ins_h << HASH_SHIFT) ^ window[strstart + (MIN_MATCH - 1)]) & HASH_MASK;
 
         if (DEBUGGING) {
@@ -218,9 +262,9 @@ class DeflaterEngine implements DeflaterConstants {
         }
 
         prev[strstart & WMASK] = match = head[hash];
-        head[hash] = (short) strstart;
+        head[hash] = (char) strstart;
         ins_h = hash;
-        return match & 0xffff;
+        return match;
     }
 
     private void slideWindow() {
@@ -232,18 +276,16 @@ class DeflaterEngine implements DeflaterConstants {
         /*
          * Slide the hash table (could be avoided with 32 bit values at the expense of memory usage).
          */
-        for (int i = 0; i < HASH_SIZE; i++) {
-            int m = head[i] & 0xffff;
-            head[i] = m >= WSIZE ? (short) (m - WSIZE) : 0;
-        }
+        char[] head = this.head;
+        for (int i = 0; i < HASH_SIZE; i++)
+            head[i] = (char) Math.max(head[i] - WSIZE, 0);
 
         /*
          * Slide the prev table.
          */
-        for (int i = 0; i < WSIZE; i++) {
-            int m = prev[i] & 0xffff;
-            prev[i] = m >= WSIZE ? (short) (m - WSIZE) : 0;
-        }
+        char[] prev = this.prev;
+        for (int i = 0; i < WSIZE; i++)
+            prev[i] = (char) Math.max(prev[i] - WSIZE, 0);
     }
 
     /**
@@ -288,19 +330,19 @@ class DeflaterEngine implements DeflaterConstants {
      * @param curMatch
      */
     private boolean findLongestMatch(int curMatch) {
+        byte[] window = this.window;
         int chainLength = this.max_chain;
         int niceLength = this.niceLength;
-        short[] prev = this.prev;
+        char[] prev = this.prev;
         int scan = this.strstart;
-        int match;
-        int best_end = this.strstart + matchLen;
         int best_len = Math.max(matchLen, MIN_MATCH - 1);
 
         int limit = Math.max(strstart - MAX_DIST, 0);
 
-        int strend = scan + MAX_MATCH - 1;
-        byte scan_end1 = window[best_end - 1];
-        byte scan_end = window[best_end];
+        byte scan_end1 = window[scan + best_len - 1];
+        byte scan_end = window[scan + best_len];
+        byte scan_start0 = window[scan];
+        byte scan_start1 = window[scan + 1];
 
         /* Do not waste too much time if we already have a good match: */
         if (best_len >= this.goodLength)
@@ -318,34 +360,27 @@ class DeflaterEngine implements DeflaterConstants {
         do {
             if (DeflaterConstants.DEBUGGING && curMatch >= strstart)
                 throw new InternalError("future match");
-            if (window[curMatch + best_len] != scan_end || window[curMatch + best_len - 1] != scan_end1 || window[curMatch] != window[scan] || window[curMatch + 1] != window[scan + 1])
+            if (window[curMatch + best_len] != scan_end || window[curMatch + best_len - 1] != scan_end1 || window[curMatch] != scan_start0 || window[curMatch + 1] != scan_start1)
                 continue;
 
-            match = curMatch + 2;
-            scan += 2;
-
             /*
-             * We check for insufficient lookahead only every 8th comparison; the 256th check will be made at
-             * strstart+258.
+             * A plain counted loop, which the compiler can unroll without a bounds check per byte given the
+             * precondition.
              */
-            while (window[++scan] == window[++match] && window[++scan] == window[++match] && window[++scan] == window[++match] && window[++scan] == window[++match] &&
-                            window[++scan] == window[++match] && window[++scan] == window[++match] && window[++scan] == window[++match] && window[++scan] == window[++match] && scan < strend)
-                ;
+            int len = 2;
+            while (len < MAX_MATCH && window[scan + len] == window[curMatch + len])
+                len++;
 
-            if (scan > best_end) {
-// if (DeflaterConstants.DEBUGGING && ins_h == 0)
-// System.err.println("Found match: "+curMatch+"-"+(scan-strstart));
+            if (len > best_len) {
                 matchStart = curMatch;
-                best_end = scan;
-                best_len = scan - strstart;
-                if (best_len >= niceLength)
+                best_len = len;
+                if (len >= niceLength)
                     break;
 
-                scan_end1 = window[best_end - 1];
-                scan_end = window[best_end];
+                scan_end1 = window[scan + len - 1];
+                scan_end = window[scan + len];
             }
-            scan = strstart;
-        } while ((curMatch = (prev[curMatch & WMASK] & 0xffff)) > limit && --chainLength != 0);
+        } while ((curMatch = prev[curMatch & WMASK]) > limit && --chainLength != 0);
 
         matchLen = Math.min(best_len, lookahead);
         return matchLen >= MIN_MATCH;
@@ -404,10 +439,18 @@ class DeflaterEngine implements DeflaterConstants {
         return true;
     }
 
+    /**
+     * The greedy strategy, for levels 1 to 4: emits the longest match found at each position, inserting the strings
+     * within a match only if it is no longer than max_lazy. The hash insertion is done inline.
+     */
     private boolean deflateFast(boolean flush, boolean finish) {
         if (lookahead < MIN_LOOKAHEAD && !flush)
             return false;
 
+        final byte[] window = this.window;
+        final char[] head = this.head;
+        final char[] prev = this.prev;
+        final boolean matching = strategy != Deflater.HUFFMAN_ONLY;
         while (lookahead >= MIN_LOOKAHEAD || flush) {
             if (lookahead == 0) {
                 /* We are flushing everything */
@@ -424,8 +467,16 @@ class DeflaterEngine implements DeflaterConstants {
                 slideWindow();
             }
 
-            int hashHead;
-            if (lookahead >= MIN_MATCH && (hashHead = insertString()) != 0 && strategy != Deflater.HUFFMAN_ONLY && strstart - hashHead <= MAX_DIST && findLongestMatch(hashHead)) {
+            int hashHead = 0;
+            if (lookahead >= MIN_MATCH) {
+                /* insertString(), inline */
+                int hash = ((ins_h << HASH_SHIFT) ^ window[strstart + (MIN_MATCH - 1)]) & HASH_MASK;
+                hashHead = head[hash];
+                prev[strstart & WMASK] = (char) hashHead;
+                head[hash] = (char) strstart;
+                ins_h = hash;
+            }
+            if (hashHead != 0 && matching && strstart - hashHead <= MAX_DIST && findLongestMatch(hashHead)) {
                 /* longestMatch sets matchStart and matchLen */
                 if (DeflaterConstants.DEBUGGING) {
                     for (int i = 0; i < matchLen; i++) {
@@ -437,11 +488,16 @@ class DeflaterEngine implements DeflaterConstants {
 
                 lookahead -= matchLen;
                 if (matchLen <= max_lazy && lookahead >= MIN_MATCH) {
-                    while (--matchLen > 0) {
-                        strstart++;
-                        insertString();
+                    int str = strstart;
+                    int hash = ins_h;
+                    for (int n = matchLen - 1; n > 0; n--) {
+                        str++;
+                        hash = ((hash << HASH_SHIFT) ^ window[str + (MIN_MATCH - 1)]) & HASH_MASK;
+                        prev[str & WMASK] = head[hash];
+                        head[hash] = (char) str;
                     }
-                    strstart++;
+                    ins_h = hash;
+                    strstart = str + 1;
                 } else {
                     strstart += matchLen;
                     if (lookahead >= MIN_MATCH - 1)
@@ -497,7 +553,8 @@ class DeflaterEngine implements DeflaterConstants {
             int prevLen = matchLen;
             if (lookahead >= MIN_MATCH) {
                 int hashHead = insertString();
-                if (strategy != Deflater.HUFFMAN_ONLY && hashHead != 0 && strstart - hashHead <= MAX_DIST && findLongestMatch(hashHead)) {
+                /* as zlib, do not look for a better match if the previous one is already long enough */
+                if (strategy != Deflater.HUFFMAN_ONLY && hashHead != 0 && prevLen < max_lazy && strstart - hashHead <= MAX_DIST && findLongestMatch(hashHead)) {
                     /* longestMatch sets matchStart and matchLen */
 
                     /* Discard match if too small and too far away */
@@ -439,6 +439,21 @@ class DeflaterHuffman {
     private static short staticDCodes[];
     private static byte staticDLength[];
 
+    /** The literal/length code for each match length - 3. */
+    private static final short[] LENGTH_CODE = new short[256];
+
+    /**
+     * The distance code for each distance - 1: the first 256 entries are indexed by the distance, the last 256 by
+     * the distance >> 7 (see {@link #distCode}).
+     */
+    private static final byte[] DIST_CODE = new byte[512];
+
+    /** The number of extra bits following each literal/length code from 257. */
+    private static final byte[] LENGTH_EXTRA_BITS = new byte[LITERAL_NUM - 257];
+
+    /** The number of extra bits following each distance code. */
+    private static final byte[] DIST_EXTRA_BITS = new byte[DIST_NUM];
+
     /**
      * Reverse the bits of a 16 bit value.
      */
@@ -476,6 +491,16 @@ class DeflaterHuffman {
             staticDCodes[i] = bitReverse(i << 11);
             staticDLength[i] = 5;
         }
+
+        for (i = 0; i < 256; i++) {
+            LENGTH_CODE[i] = (short) l_code(i);
+            DIST_CODE[i] = (byte) d_code(i);
+            DIST_CODE[256 + i] = (byte) d_code(i << 7);
+        }
+        for (i = 265; i < 285; i++)
+            LENGTH_EXTRA_BITS[i - 257] = (byte) ((i - 261) / 4);
+        for (i = 4; i < DIST_NUM; i++)
+            DIST_EXTRA_BITS[i] = (byte) (i / 2 - 1);
     }
 
     public DeflaterHuffman(DeflaterPending pending) {
@@ -497,7 +522,7 @@ class DeflaterHuffman {
         blTree.reset();
     }
 
-    private int l_code(int len) {
+    private static int l_code(int len) {
         if (len == 255)
             return 285;
 
@@ -509,7 +534,7 @@ class DeflaterHuffman {
         return code + len;
     }
 
-    private int d_code(int distance) {
+    private static int d_code(int distance) {
         int code = 0;
         while (distance >= 4) {
             code += 2;
@@ -518,6 +543,13 @@ class DeflaterHuffman {
         return code + distance;
     }
 
+    /**
+     * Returns the distance code for distance - 1, which must be less than 32768.
+     */
+    private static int distCode(int dist) {
+        return DIST_CODE[dist < 256 ? dist : 256 + (dist >> 7)];
+    }
+
     public void sendAllTrees(int blTreeCodes) {
         blTree.buildCodes();
         literalTree.buildCodes();
@@ -533,37 +565,77 @@ class DeflaterHuffman {
             blTree.checkEmpty();
     }
 
+    /**
+     * Writes the tallied symbols of the current block. The codes are accumulated in a local 64 bit buffer that is
+     * written to the pending buffer 32 bits at a time; a length or a distance, each with its extra bits, takes at
+     * most 28 bits, so the buffer never overflows.
+     */
     public void compressBlock() {
+        final short[] lCodes = literalTree.codes;
+        final byte[] lLength = literalTree.length;
+        final short[] dCodes = distTree.codes;
+        final byte[] dLength = distTree.length;
+        final byte[] out = pending.buf;
+        long bits = pending.bits;
+        int bitCount = pending.bitCount;
+        int end = pending.end;
         for (int i = 0; i < last_lit; i++) {
             int litlen = l_buf[i] & 0xff;
-            int dist = d_buf[i];
+            int dist = d_buf[i] & 0xffff;
             if (dist-- != 0) {
                 if (DeflaterConstants.DEBUGGING)
                     System.err.print("[" + (dist + 1) + "," + (litlen + 3) + "]: ");
 
-                int lc = l_code(litlen);
-                literalTree.writeSymbol(lc);
-
-                int bits = (lc - 261) / 4;
-                if (bits > 0 && bits <= 5)
-                    pending.writeBits(litlen & ((1 << bits) - 1), bits);
-
-                int dc = d_code(dist);
-                distTree.writeSymbol(dc);
+                int lc = LENGTH_CODE[litlen];
+                bits |= (long) (lCodes[lc] & 0xffff) << bitCount;
+                bitCount += lLength[lc];
+                int extra = LENGTH_EXTRA_BITS[lc - 257];
+                bits |= (long) (litlen & ((1 << extra) - 1)) << bitCount;
+                bitCount += extra;
+                if (bitCount >= 32) {
+                    out[end] = (byte) bits;
+                    out[end + 1] = (byte) (bits >>> 8);
+                    out[end + 2] = (byte) (bits >>> 16);
+                    out[end + 3] = (byte) (bits >>> 24);
+                    end += 4;
+                    bits >>>= 32;
+                    bitCount -= 32;
+                }
 
-                bits = dc / 2 - 1;
-                if (bits > 0)
-                    pending.writeBits(dist & ((1 << bits) - 1), bits);
+                int dc = distCode(dist);
+                bits |= (long) (dCodes[dc] & 0xffff) << bitCount;
+                bitCount += dLength[dc];
+                extra = DIST_EXTRA_BITS[dc];
+                bits |= (long) (dist & ((1 << extra) - 1)) << bitCount;
+                bitCount += extra;
+                if (DeflaterConstants.DEBUGGING) {
+                    literalTree.freqs[lc]--;
+                    distTree.freqs[dc]--;
+                }
             } else {
                 if (DeflaterConstants.DEBUGGING) {
                     if (litlen > 32 && litlen < 127)
                         System.err.print("(" + (char) litlen + "): ");
                     else
                         System.err.print("{" + litlen + "}: ");
+                    literalTree.freqs[litlen]--;
                 }
-                literalTree.writeSymbol(litlen);
+                bits |= (long) (lCodes[litlen] & 0xffff) << bitCount;
+                bitCount += lLength[litlen];
+            }
+            if (bitCount >= 32) {
+                out[end] = (byte) bits;
+                out[end + 1] = (byte) (bits >>> 8);
+                out[end + 2] = (byte) (bits >>> 16);
+                out[end + 3] = (byte) (bits >>> 24);
+                end += 4;
+                bits >>>= 32;
+                bitCount -= 32;
             }
         }
+        pending.bits = bits;
+        pending.bitCount = bitCount;
+        pending.end = end;
         if (DeflaterConstants.DEBUGGING)
             System.err.print("EOF: ");
         literalTree.writeSymbol(EOF_SYMBOL);
@@ -660,15 +732,11 @@ class DeflaterHuffman {
         d_buf[last_lit] = (short) dist;
         l_buf[last_lit++] = (byte) (len - 3);
 
-        int lc = l_code(len - 3);
+        int lc = LENGTH_CODE[len - 3];
         literalTree.freqs[lc]++;
-        if (lc >= 265 && lc < 285)
-            extra_bits += (lc - 261) / 4;
-
-        int dc = d_code(dist - 1);
+        int dc = distCode(dist - 1);
         distTree.freqs[dc]++;
-        if (dc >= 4)
-            extra_bits += dc / 2 - 1;
+        extra_bits += LENGTH_EXTRA_BITS[lc - 257] + DIST_EXTRA_BITS[dc];
         return last_lit == BUFSIZE;
     }
 }
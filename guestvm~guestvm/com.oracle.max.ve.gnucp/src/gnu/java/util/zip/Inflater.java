@@ -37,6 +37,7 @@ exception statement from your version. */
 
 package gnu.java.util.zip;
 
+import java.nio.ByteBuffer;
 import java.util.zip.Adler32;
 import java.util.zip.DataFormatException;
 
@@ -64,6 +65,12 @@ import java.util.zip.DataFormatException;
  * Once the first output byte is produced, a dictionary will not be
  * needed at a later stage.
  *
+ * Huffman codes are decoded by table lookup (see {@link InflaterHuffmanTree})
+ * from a 64-bit bit buffer. While at least eight bytes of input remain, the
+ * inner loop decodes a complete literal or length/distance pair from a
+ * single refill of the bit buffer, without checking for the end of the input;
+ * the tail of the input is handled by the resumable state machine.
+ *
  * @author John Leuner, Jochen Hoenicke
  * @author Tom Tromey
  * @date May 17, 1999
@@ -159,6 +166,8 @@ public class Inflater
 
   private StreamManipulator input;
   private OutputWindow outputWindow;
+  /** Staging buffer for input from a direct ByteBuffer, reused across calls. */
+  private byte[] directInput;
   private InflaterDynHeader dynHeader;
   private InflaterHuffmanTree litlenTree, distTree;
   private Adler32 adler;
@@ -207,6 +216,7 @@ protected void finalize ()
   public void end ()
   {
     outputWindow = null;
+    directInput = null;
     input = null;
     dynHeader = null;
     litlenTree = null;
@@ -349,6 +359,35 @@ protected void finalize ()
     return count;
   }
 
+  /**
+   * Inflates the compressed stream into a buffer, which may be direct.
+   * The output is copied straight from the inflater window into the buffer
+   * and the buffer's position is advanced by the number of bytes written.
+   * @param buf the output buffer.
+   * @return the number of bytes written to the buffer, 0 if no further
+   * output can be produced.
+   * @exception DataFormatException if deflated stream is invalid.
+   */
+  public int inflate (ByteBuffer buf) throws DataFormatException
+  {
+    int count = 0;
+    int more;
+    do
+      {
+        if (mode != DECODE_CHKSUM)
+          {
+            more = outputWindow.copyOutput(buf, adler);
+            count += more;
+            totalOut += more;
+            if (!buf.hasRemaining())
+              return count;
+          }
+      }
+    while (decode() || (outputWindow.getAvailable() > 0
+                        && mode != DECODE_CHKSUM));
+    return count;
+  }
+
   /**
    * Returns true, if a preset dictionary is needed to inflate the input.
    */
@@ -452,6 +491,34 @@ protected void finalize ()
     totalIn += len;
   }
 
+  /**
+   * Sets the input from a buffer.  This should only be called, if needsInput()
+   * returns true.  All the remaining bytes of the buffer are taken and its position
+   * is advanced to its limit.  As with <code>setInput(byte[])</code>, the bytes of
+   * a heap buffer are used in place and must not be changed until needsInput()
+   * returns true; the bytes of a direct buffer are copied.
+   * @param buf the input.
+   * @exception IllegalStateException if no input is needed.
+   */
+  public void setInput (ByteBuffer buf)
+  {
+    int len = buf.remaining();
+    if (buf.hasArray())
+      {
+        setInput(buf.array(), buf.arrayOffset() + buf.position(), len);
+        buf.position(buf.limit());
+      }
+    else
+      {
+        if (!input.needsInput())
+          throw new IllegalStateException("Old input was not completely processed");
+        if (directInput == null || directInput.length < len)
+          directInput = new byte[Math.max(len, 8192)];
+        buf.get(directInput, 0, len);
+        setInput(directInput, 0, len);
+      }
+  }
+
   /**
    * Decodes the deflate header.
    * @return false if more input is needed.
@@ -524,7 +591,14 @@ protected void finalize ()
         switch (mode)
           {
           case DECODE_HUFFMAN:
-            /* This is the inner loop so it is optimized a bit */
+            if (input.window_end - input.window_start >= 8)
+              {
+                free -= decodeHuffmanFast(free);
+                if (mode != DECODE_HUFFMAN)
+                  return true;
+                continue;
+              }
+            /* Near the end of the input, decode symbol by symbol */
             while (((symbol = litlenTree.getSymbol(input)) & ~0xff) == 0)
               {
                 outputWindow.write(symbol);
@@ -602,6 +676,105 @@ protected void finalize ()
     return true;
   }
 
+  /**
+   * The inner loop of the decoder, used while at least eight bytes of input
+   * are available.  Each iteration refills the bit buffer to at least 48 bits,
+   * which is enough for the longest literal/length code, its extra bits, the
+   * longest distance code and its extra bits.
+   * @param free the free space in the output window, at least 258.
+   * @return the number of bytes written to the output window.
+   * @exception DataFormatException if deflated stream is invalid.
+   */
+  private int decodeHuffmanFast (int free) throws DataFormatException
+  {
+    final StreamManipulator in = input;
+    final OutputWindow out = outputWindow;
+    final byte[] ow = out.window;
+    int outEnd = out.window_end;
+    final int[] litlen = litlenTree.table;
+    final int[] dist = distTree.table;
+    final byte[] w = in.window;
+    final int end = in.window_end - 8;
+    int start = in.window_start;
+    long buffer = in.buffer;
+    int bits = in.bits_in_buffer;
+    int written = 0;
+
+    while (free - written >= 258 && start <= end)
+      {
+        if (bits < 48)
+          {
+            long word = (w[start] & 0xffL) | (w[start + 1] & 0xffL) << 8
+              | (w[start + 2] & 0xffL) << 16 | (w[start + 3] & 0xffL) << 24
+              | (w[start + 4] & 0xffL) << 32 | (w[start + 5] & 0xffL) << 40
+              | (w[start + 6] & 0xffL) << 48 | (w[start + 7] & 0xffL) << 56;
+            buffer |= word << bits;
+            start += (63 - bits) >>> 3;
+            bits |= 56;
+          }
+        int entry = litlen[(int) buffer & InflaterHuffmanTree.PRIMARY_MASK];
+        if ((entry & InflaterHuffmanTree.LINK) != 0)
+          entry = litlen[(entry >>> 16) + ((int) (buffer >>> InflaterHuffmanTree.PRIMARY_BITS) & ((1 << (entry & InflaterHuffmanTree.LENGTH_MASK)) - 1))];
+        int n = entry & InflaterHuffmanTree.LENGTH_MASK;
+        if (n == 0)
+          throw new DataFormatException("Illegal literal/length code");
+        buffer >>>= n;
+        bits -= n;
+        int symbol = entry >>> 16;
+        if (symbol < 256)
+          {
+            ow[outEnd] = (byte) symbol;
+            outEnd = (outEnd + 1) & OutputWindow.WINDOW_MASK;
+            written++;
+            continue;
+          }
+        if (symbol == 256)
+          {
+            /* end of block */
+            distTree = null;
+            litlenTree = null;
+            mode = DECODE_BLOCKS;
+            break;
+          }
+        symbol -= 257;
+        if (symbol >= CPLENS.length)
+          throw new DataFormatException("Illegal rep length code");
+        n = CPLEXT[symbol];
+        int length = CPLENS[symbol] + ((int) buffer & ((1 << n) - 1));
+        buffer >>>= n;
+        bits -= n;
+
+        entry = dist[(int) buffer & InflaterHuffmanTree.PRIMARY_MASK];
+        if ((entry & InflaterHuffmanTree.LINK) != 0)
+          entry = dist[(entry >>> 16) + ((int) (buffer >>> InflaterHuffmanTree.PRIMARY_BITS) & ((1 << (entry & InflaterHuffmanTree.LENGTH_MASK)) - 1))];
+        n = entry & InflaterHuffmanTree.LENGTH_MASK;
+        if (n == 0)
+          throw new DataFormatException("Illegal distance code");
+        buffer >>>= n;
+        bits -= n;
+        symbol = entry >>> 16;
+        if (symbol >= CPDIST.length)
+          throw new DataFormatException("Illegal rep dist code");
+        n = CPDEXT[symbol];
+        int distance = CPDIST[symbol] + ((int) buffer & ((1 << n) - 1));
+        buffer >>>= n;
+        bits -= n;
+
+        out.window_end = outEnd;
+        out.repeat(length, distance);
+        out.window_filled -= length;
+        outEnd = out.window_end;
+        written += length;
+      }
+
+    in.window_start = start;
+    in.buffer = buffer;
+    in.bits_in_buffer = bits;
+    out.window_end = outEnd;
+    out.window_filled += written;
+    return written;
+  }
+
   /**
    * Decodes the adler checksum after the deflate stream.
    * @return false if more input is needed.
@@ -39,11 +39,27 @@ package gnu.java.util.zip;
 
 import java.util.zip.DataFormatException;
 
+/**
+ * A table driven Huffman decoder. The code is looked up with the next {@link #PRIMARY_BITS} bits of input
+ * in a primary table; codes that are longer are resolved through a second level table that is
+ * indexed by the remaining bits. Each table entry is an int:
+ * <ul>
+ * <li>for a symbol, {@code (symbol << 16) | codeLength}</li>
+ * <li>for a link to a second level table, {@code (tableOffset << 16) | LINK | secondLevelBits}</li>
+ * <li>zero for an unused code in an incomplete tree</li>
+ * </ul>
+ * {@link Inflater} decodes directly from the table in its fast path; {@link #getSymbol} is used
+ * for the remainder, when the input may end in the middle of a code.
+ */
 class InflaterHuffmanTree {
 
     private static final int MAX_BITLEN = 15;
+    static final int PRIMARY_BITS = 9;
+    static final int PRIMARY_MASK = (1 << PRIMARY_BITS) - 1;
+    static final int LINK = 0x8000;
+    static final int LENGTH_MASK = 0x1f;
 
-    private short[] tree;
+    final int[] table;
 
     static InflaterHuffmanTree defLitLenTree, defDistTree;
 
@@ -78,10 +94,14 @@ class InflaterHuffmanTree {
      *                the array of code lengths
      */
     InflaterHuffmanTree(byte[] codeLengths) throws DataFormatException {
-        buildTree(codeLengths);
+        table = buildTable(codeLengths);
     }
 
-    private void buildTree(byte[] codeLengths) throws DataFormatException {
+    private static int reverse(int code, int bits) {
+        return DeflaterHuffman.bitReverse(code << (16 - bits)) & 0xffff;
+    }
+
+    private static int[] buildTable(byte[] codeLengths) throws DataFormatException {
         int[] blCount = new int[MAX_BITLEN + 1];
         int[] nextCode = new int[MAX_BITLEN + 1];
         for (int i = 0; i < codeLengths.length; i++) {
@@ -90,34 +110,45 @@ class InflaterHuffmanTree {
                 blCount[bits]++;
         }
 
+        /* An incomplete code is allowed (e.g. a distance tree with one code), an over-subscribed one is not. */
         int code = 0;
-        int treeSize = 512;
         for (int bits = 1; bits <= MAX_BITLEN; bits++) {
+            code = (code + blCount[bits - 1]) << 1;
             nextCode[bits] = code;
-            code += blCount[bits] << (16 - bits);
-            if (bits >= 10) {
-                /* We need an extra table for bit lengths >= 10. */
-                int start = nextCode[bits] & 0x1ff80;
-                int end = code & 0x1ff80;
-                treeSize += (end - start) >> (16 - bits);
+        }
+        int left = 1;
+        for (int bits = 1; bits <= MAX_BITLEN; bits++) {
+            left = (left << 1) - blCount[bits];
+            if (left < 0)
+                throw new DataFormatException("Code lengths don't add up properly.");
+        }
+
+        /* Size the second level tables: each primary prefix gets enough bits for its longest code. */
+        int[] codes = new int[codeLengths.length];
+        int[] subBits = new int[1 << PRIMARY_BITS];
+        for (int i = 0; i < codeLengths.length; i++) {
+            int bits = codeLengths[i];
+            if (bits == 0)
+                continue;
+            int rev = reverse(nextCode[bits]++, bits);
+            codes[i] = rev;
+            if (bits > PRIMARY_BITS) {
+                int prefix = rev & PRIMARY_MASK;
+                if (bits - PRIMARY_BITS > subBits[prefix])
+                    subBits[prefix] = bits - PRIMARY_BITS;
             }
         }
-        if (code != 65536)
-            throw new DataFormatException("Code lengths don't add up properly.");
-
-        /*
-         * Now create and fill the extra tables from longest to shortest bit len. This way the sub trees will be
-         * aligned.
-         */
-        tree = new short[treeSize];
-        int treePtr = 512;
-        for (int bits = MAX_BITLEN; bits >= 10; bits--) {
-            int end = code & 0x1ff80;
-            code -= blCount[bits] << (16 - bits);
-            int start = code & 0x1ff80;
-            for (int i = start; i < end; i += 1 << 7) {
-                tree[DeflaterHuffman.bitReverse(i)] = (short) ((-treePtr << 4) | bits);
-                treePtr += 1 << (bits - 9);
+        int size = 1 << PRIMARY_BITS;
+        for (int prefix = 0; prefix < subBits.length; prefix++) {
+            if (subBits[prefix] > 0)
+                size += 1 << subBits[prefix];
+        }
+        int[] table = new int[size];
+        int offset = 1 << PRIMARY_BITS;
+        for (int prefix = 0; prefix < subBits.length; prefix++) {
+            if (subBits[prefix] > 0) {
+                table[prefix] = (offset << 16) | LINK | subBits[prefix];
+                offset += 1 << subBits[prefix];
             }
         }
 
@@ -125,24 +156,32 @@ class InflaterHuffmanTree {
             int bits = codeLengths[i];
             if (bits == 0)
                 continue;
-            code = nextCode[bits];
-            int revcode = DeflaterHuffman.bitReverse(code);
-            if (bits <= 9) {
-                do {
-                    tree[revcode] = (short) ((i << 4) | bits);
-                    revcode += 1 << bits;
-                } while (revcode < 512);
+            int entry = (i << 16) | bits;
+            int rev = codes[i];
+            if (bits <= PRIMARY_BITS) {
+                for (int j = rev; j < 1 << PRIMARY_BITS; j += 1 << bits)
+                    table[j] = entry;
             } else {
-                int subTree = tree[revcode & 511];
-                int treeLen = 1 << (subTree & 15);
-                subTree = -(subTree >> 4);
-                do {
-                    tree[subTree | (revcode >> 9)] = (short) ((i << 4) | bits);
-                    revcode += 1 << bits;
-                } while (revcode < treeLen);
+                int link = table[rev & PRIMARY_MASK];
+                int base = link >>> 16;
+                int tableBits = link & LENGTH_MASK;
+                int step = 1 << (bits - PRIMARY_BITS);
+                for (int j = rev >>> PRIMARY_BITS; j < 1 << tableBits; j += step)
+                    table[base + j] = entry;
             }
-            nextCode[bits] = code + (1 << (16 - bits));
         }
+        return table;
+    }
+
+    /**
+     * Returns the table entry for the code at the start of {@code bits}, which must hold
+     * at least {@link #MAX_BITLEN} bits (or be zero padded).
+     */
+    final int lookup(long bits) {
+        int entry = table[(int) bits & PRIMARY_MASK];
+        if ((entry & LINK) != 0)
+            entry = table[(entry >>> 16) + ((int) (bits >>> PRIMARY_BITS) & ((1 << (entry & LENGTH_MASK)) - 1))];
+        return entry;
     }
 
     /**
@@ -153,37 +192,18 @@ class InflaterHuffmanTree {
      * @return the next symbol, or -1 if not enough input is available.
      */
     int getSymbol(StreamManipulator input) throws DataFormatException {
-        int lookahead, symbol;
-        if ((lookahead = input.peekBits(9)) >= 0) {
-            if ((symbol = tree[lookahead]) >= 0) {
-                input.dropBits(symbol & 15);
-                return symbol >> 4;
-            }
-            int subtree = -(symbol >> 4);
-            int bitlen = symbol & 15;
-            if ((lookahead = input.peekBits(bitlen)) >= 0) {
-                symbol = tree[subtree | (lookahead >> 9)];
-                input.dropBits(symbol & 15);
-                return symbol >> 4;
-            } else {
-                int bits = input.getAvailableBits();
-                lookahead = input.peekBits(bits);
-                symbol = tree[subtree | (lookahead >> 9)];
-                if ((symbol & 15) <= bits) {
-                    input.dropBits(symbol & 15);
-                    return symbol >> 4;
-                } else
-                    return -1;
-            }
-        } else {
-            int bits = input.getAvailableBits();
-            lookahead = input.peekBits(bits);
-            symbol = tree[lookahead];
-            if (symbol >= 0 && (symbol & 15) <= bits) {
-                input.dropBits(symbol & 15);
-                return symbol >> 4;
-            } else
+        int available = input.ensureBits(MAX_BITLEN);
+        int entry = lookup(input.peekAvailable());
+        int bits = entry & LENGTH_MASK;
+        if (bits == 0) {
+            /* an unused code, unless more input completes it */
+            if (available < MAX_BITLEN)
                 return -1;
+            throw new DataFormatException("Illegal Huffman code");
         }
+        if (bits > available)
+            return -1;
+        input.dropBits(bits);
+        return entry >>> 16;
     }
 }
@@ -37,6 +37,9 @@ exception statement from your version. */
 
 package gnu.java.util.zip;
 
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+
 /**
  * Contains the output from the Inflation process.
  *
@@ -47,12 +50,13 @@ package gnu.java.util.zip;
  */
 class OutputWindow {
 
-    private static final int WINDOW_SIZE = 1 << 15;
-    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+    static final int WINDOW_SIZE = 1 << 15;
+    static final int WINDOW_MASK = WINDOW_SIZE - 1;
 
-    private byte[] window = new byte[WINDOW_SIZE]; // The window is 2^15 bytes
-    private int window_end = 0;
-    private int window_filled = 0;
+    /* accessed directly by the inner loop of Inflater */
+    final byte[] window = new byte[WINDOW_SIZE]; // The window is 2^15 bytes
+    int window_end = 0;
+    int window_filled = 0;
 
     public void write(int abyte) {
         if (window_filled++ == WINDOW_SIZE)
@@ -74,18 +78,23 @@ class OutputWindow {
             throw new IllegalStateException("Window full");
 
         int rep_start = (window_end - dist) & WINDOW_MASK;
-        int border = WINDOW_SIZE - len;
-        if (rep_start <= border && window_end < border) {
+        if (rep_start + len <= WINDOW_SIZE && window_end + len <= WINDOW_SIZE) {
             if (len <= dist) {
                 System.arraycopy(window, rep_start, window, window_end, len);
-                window_end += len;
             } else {
                 /*
-                 * We have to copy manually, since the repeat pattern overlaps.
+                 * The repeat pattern overlaps. The bytes from rep_start to dst are periodic with period dist,
+                 * so each copy can take everything written so far, doubling the chunk size each time.
                  */
-                while (len-- > 0)
-                    window[window_end++] = window[rep_start++];
+                int dst = window_end;
+                int end = window_end + len;
+                while (dst < end) {
+                    int n = Math.min(end - dst, dst - rep_start);
+                    System.arraycopy(window, rep_start, window, dst, n);
+                    dst += n;
+                }
             }
+            window_end = (window_end + len) & WINDOW_MASK;
         } else
             slowRepeat(rep_start, len, dist);
     }
@@ -149,10 +158,27 @@ class OutputWindow {
         return copied;
     }
 
+    /**
+     * Copies as much output as fits into {@code output}, updating {@code adler} with the bytes copied.
+     * The bytes go straight from the window into the buffer, which may be direct.
+     */
+    public int copyOutput(ByteBuffer output, Adler32 adler) {
+        int len = Math.min(output.remaining(), window_filled);
+        int start = (window_end - window_filled) & WINDOW_MASK;
+        int copied = 0;
+        while (copied < len) {
+            int n = Math.min(len - copied, WINDOW_SIZE - start);
+            if (adler != null)
+                adler.update(window, start, n);
+            output.put(window, start, n);
+            start = (start + n) & WINDOW_MASK;
+            copied += n;
+        }
+        window_filled -= copied;
+        return copied;
+    }
+
     public void reset() {
         window_filled = window_end = 0;
     }
 }
-
-
-
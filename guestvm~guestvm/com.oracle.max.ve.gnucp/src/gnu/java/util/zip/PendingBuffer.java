@@ -54,7 +54,11 @@ class PendingBuffer {
     int start;
     int end;
 
-    int bits;
+    /**
+     * Bits not yet written to buf, least significant first. At most 31 are held between calls, except
+     * transiently within {@link DeflaterHuffman#compressBlock}.
+     */
+    long bits;
     int bitCount;
 
     public PendingBuffer() {
@@ -67,6 +71,7 @@ class PendingBuffer {
 
     public final void reset() {
         start = end = bitCount = 0;
+        bits = 0;
     }
 
     public final void writeByte(int b) {
@@ -105,10 +110,10 @@ class PendingBuffer {
     public final void alignToByte() {
         if (DeflaterConstants.DEBUGGING && start != 0)
             throw new IllegalStateException();
-        if (bitCount > 0) {
+        while (bitCount > 0) {
             buf[end++] = (byte) bits;
-            if (bitCount > 8)
-                buf[end++] = (byte) (bits >>> 8);
+            bits >>>= 8;
+            bitCount -= 8;
         }
         bits = 0;
         bitCount = 0;
@@ -119,13 +124,16 @@ class PendingBuffer {
             throw new IllegalStateException();
         if (DeflaterConstants.DEBUGGING)
             System.err.println("writeBits(" + Integer.toHexString(b) + "," + count + ")");
-        bits |= b << bitCount;
+        bits |= (long) b << bitCount;
         bitCount += count;
-        if (bitCount >= 16) {
-            buf[end++] = (byte) bits;
-            buf[end++] = (byte) (bits >>> 8);
-            bits >>>= 16;
-            bitCount -= 16;
+        if (bitCount >= 32) {
+            buf[end] = (byte) bits;
+            buf[end + 1] = (byte) (bits >>> 8);
+            buf[end + 2] = (byte) (bits >>> 16);
+            buf[end + 3] = (byte) (bits >>> 24);
+            end += 4;
+            bits >>>= 32;
+            bitCount -= 32;
         }
     }
 
@@ -154,7 +162,7 @@ class PendingBuffer {
      *                    if offset or length are invalid.
      */
     public final int flush(byte[] output, int offset, int length) {
-        if (bitCount >= 8) {
+        while (bitCount >= 8) {
             buf[end++] = (byte) bits;
             bits >>>= 8;
             bitCount -= 8;
@@ -40,39 +40,77 @@ package gnu.java.util.zip;
 /**
  * This class allows us to retrieve a specified amount of bits from the input buffer, as well as copy big byte blocks.
  *
- * It uses an int buffer to store up to 31 bits for direct manipulation. This guarantees that we can get at least 16
- * bits, but we only need at most 15, so this is all safe.
+ * It uses a long buffer to store up to 63 bits for direct manipulation. The buffer is refilled a word at a time
+ * when at least eight bytes of input are available, so the decoder can get a complete literal/length and
+ * distance code, with their extra bits, from a single refill.
  *
- * There are some optimizations in this class, for example, you must never peek more then 8 bits more than needed, and
- * you must first peek bits before you may drop them. This is not a general purpose class but optimized for the
- * behaviour of the Inflater.
+ * There are some optimizations in this class, for example, you must first peek bits before you may drop them.
+ * This is not a general purpose class but optimized for the behaviour of the Inflater, which also
+ * accesses the fields directly in its inner loop.
  *
  * @author John Leuner, Jochen Hoenicke
  */
 
 class StreamManipulator {
 
-    private byte[] window;
-    private int window_start = 0;
-    private int window_end = 0;
+    byte[] window;
+    int window_start = 0;
+    int window_end = 0;
 
-    private int buffer = 0;
-    private int bits_in_buffer = 0;
+    long buffer = 0;
+    int bits_in_buffer = 0;
 
     /**
-     * Get the next n bits but don't increase input pointer. n must be less or equal 16 and if you if this call
-     * succeeds, you must drop at least n-8 bits in the next call.
+     * Refills the bit buffer so that it holds at least 56 bits. There must be at least 8 bytes of input available.
+     * Whole bytes are consumed; the byte that only partially fits is read again by the next refill.
+     */
+    final void refill() {
+        final byte[] w = window;
+        final int s = window_start;
+        final long word = (w[s] & 0xffL) | (w[s + 1] & 0xffL) << 8 | (w[s + 2] & 0xffL) << 16 | (w[s + 3] & 0xffL) << 24
+                        | (w[s + 4] & 0xffL) << 32 | (w[s + 5] & 0xffL) << 40 | (w[s + 6] & 0xffL) << 48 | (w[s + 7] & 0xffL) << 56;
+        buffer |= word << bits_in_buffer;
+        window_start = s + ((63 - bits_in_buffer) >>> 3);
+        bits_in_buffer |= 56;
+    }
+
+    /**
+     * Loads input into the bit buffer until it holds at least n bits (n <= 56) or the input is exhausted.
+     *
+     * @return the number of bits in the buffer.
+     */
+    final int ensureBits(int n) {
+        if (bits_in_buffer < n) {
+            if (window_end - window_start >= 8) {
+                refill();
+            } else {
+                while (bits_in_buffer <= 56 && window_start < window_end) {
+                    buffer |= (window[window_start++] & 0xffL) << bits_in_buffer;
+                    bits_in_buffer += 8;
+                }
+            }
+        }
+        return bits_in_buffer;
+    }
+
+    /**
+     * Returns the bit buffer, of which only {@link #getAvailableBits()} bits are valid; the remainder are
+     * either zero or the bits of the next input bytes.
+     */
+    final long peekAvailable() {
+        return buffer;
+    }
+
+    /**
+     * Get the next n bits but don't increase input pointer. n must be less or equal 56.
      *
      * @return the value of the bits, or -1 if not enough bits available.
      */
     public final int peekBits(int n) {
-        if (bits_in_buffer < n) {
-            if (window_start == window_end)
-                return -1;
-            buffer |= (window[window_start++] & 0xff | (window[window_start++] & 0xff) << 8) << bits_in_buffer;
-            bits_in_buffer += 16;
+        if (ensureBits(n) < n) {
+            return -1;
         }
-        return buffer & ((1 << n) - 1);
+        return (int) buffer & ((1 << n) - 1);
     }
 
     /*
@@ -120,7 +158,7 @@ class StreamManipulator {
      * Skips to the next byte boundary.
      */
     public void skipToByteBoundary() {
-        buffer >>= (bits_in_buffer & 7);
+        buffer >>>= (bits_in_buffer & 7);
         bits_in_buffer &= ~7;
     }
 
@@ -137,7 +175,6 @@ class StreamManipulator {
         if (length < 0)
             throw new IllegalArgumentException("length negative");
         if ((bits_in_buffer & 7) != 0)
-            /* bits_in_buffer may only be 0 or 8 */
             throw new IllegalStateException("Bit buffer is not aligned!");
 
         int count = 0;
@@ -150,18 +187,14 @@ class StreamManipulator {
         }
         if (length == 0)
             return count;
+        /* the buffer is empty, but may still hold bits of the bytes we are about to copy */
+        buffer = 0;
 
         int avail = window_end - window_start;
         if (length > avail)
             length = avail;
         System.arraycopy(window, window_start, output, offset, length);
         window_start += length;
-
-        if (((window_start - window_end) & 1) != 0) {
-            /* We always want an even number of bytes in input, see peekBits */
-            buffer = (window[window_start++] & 0xff);
-            bits_in_buffer = 8;
-        }
         return count + length;
     }
 
@@ -169,7 +202,8 @@ class StreamManipulator {
     }
 
     public void reset() {
-        window_start = window_end = buffer = bits_in_buffer = 0;
+        window_start = window_end = bits_in_buffer = 0;
+        buffer = 0;
     }
 
     public void setInput(byte[] buf, int off, int len) {
@@ -185,15 +219,8 @@ class StreamManipulator {
         if (0 > off || off > end || end > buf.length)
             throw new ArrayIndexOutOfBoundsException();
 
-        if ((len & 1) != 0) {
-            /* We always want an even number of bytes in input, see peekBits */
-            buffer |= (buf[off++] & 0xff) << bits_in_buffer;
-            bits_in_buffer += 8;
-        }
-
         window = buf;
         window_start = off;
         window_end = end;
     }
 }
-
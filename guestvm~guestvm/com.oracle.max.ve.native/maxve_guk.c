@@ -215,6 +215,8 @@ void *guk_dlsym(const char * symbol) {
   else if (strcmp(symbol, "guk_dump_page_pool_state") == 0) return guk_dump_page_pool_state;
   else if (strcmp(symbol, "guk_allocate_2mb_machine_pages") == 0) return guk_allocate_2mb_machine_pages;
   else if (strcmp(symbol, "guk_netfront_xmit")  == 0) return guk_netfront_xmit;
+  else if (strcmp(symbol, "guk_netfront_xmit_offload")  == 0) return guk_netfront_xmit_offload;
+  else if (strcmp(symbol, "guk_netfront_features")  == 0) return guk_netfront_features;
   else if (strcmp(symbol, "guk_register_is_crashing_method")  == 0) return guk_register_is_crashing_method;
   else if (strcmp(symbol, "guk_domain_id")  == 0) return guk_domain_id;
   else if (strcmp(symbol, "guk_get_cpu_running_time")  == 0) return guk_get_cpu_running_time;
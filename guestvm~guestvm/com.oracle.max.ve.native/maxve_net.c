@@ -42,7 +42,7 @@ static unsigned char nic_name[32];
 static int net_available = 0;
 static int net_started = 0;
 
-typedef void (*GUKNetDeviceCopyPacketMethod)(void *p, int len, long ts);
+typedef void (*GUKNetDeviceCopyPacketMethod)(void *p, int len, long ts, int flags);
 static GUKNetDeviceCopyPacketMethod copy_packet_method;
 
 /*
@@ -71,11 +71,12 @@ void guk_net_app_main(unsigned char *mac, char *nic) {
  * Note that packets may arrive before the Guest VM driver is set up - they are ignored.
  * We mark the interrupted thread as needing rescheduling to get the packet
  * handling thread running with minimal latency (the scheduler may override this).
+ * The flags (GUK_NETIF_RX_xxx) are passed through to the Java handler.
  */
-void guk_netif_rx(unsigned char* data, int len) {
+void guk_netif_rx(unsigned char* data, int len, int flags) {
   if (net_started) {
 	  struct thread *current;
-    (*copy_packet_method)(data, len, NOW());
+    (*copy_packet_method)(data, len, NOW(), flags);
     current = guk_not_idle_or_stepped();
     if (current != NULL) {
     	set_need_resched(current);
@@ -55,15 +55,23 @@ import com.sun.max.tele.MaxThreadState;
 import com.sun.max.tele.channel.TeleChannelDataIOProtocol;
 import com.sun.max.tele.debug.dump.ThreadAccess;
 import com.sun.max.tele.debug.maxve.xen.X86_64Registers;
+import com.sun.max.unsafe.Address;
 
 /**
  * Accesses the GUK thread list to support the gathering of threads by the Inspector.
  *
+ * The thread structs are small and tend to be allocated close together, so the walk reads each one together with
+ * the pages that follow it. When the protocol is the one behind {@link MaxVEXenDBChannel} and that caches its reads,
+ * the walk prefetches through the channel's cache, so the pages are shared with the Inspector's other reads
+ * until the target next runs. Otherwise it reads through a {@link MaxVEPageCache} private to the walk.
+ *
  * @author Mick Jordan
  *
  */
 public class GUKThreadListAccess extends ThreadAccess {
     private final static int MAXINE_THREAD_ID = 40;
+    private final static int CACHE_PAGES = 256;
+    private final static int READ_AHEAD_PAGES = 3;
     private long threadListAddress;
 
     static class GUKThreadInfo implements ThreadInfo {
@@ -134,14 +142,16 @@ public class GUKThreadListAccess extends ThreadAccess {
 
     @Override
     public void gatherOSThreads(List<ThreadInfo> threadList) {
+        final MaxVEPageCache cache = MaxVEXenDBChannel.isCaching(protocol) ? null :
+            new MaxVEPageCache(protocol, CACHE_PAGES, (READ_AHEAD_PAGES + 1) * MaxVEPageCache.PAGE_SIZE, READ_AHEAD_PAGES);
         final ByteBuffer listHeadBuffer = ByteBuffer.allocate(STRUCT_LIST_HEAD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
-        int n = protocol.readBytes(threadListAddress, listHeadBuffer.array(), 0, STRUCT_LIST_HEAD_SIZE);
+        int n = read(cache, threadListAddress, listHeadBuffer);
         assert n == STRUCT_LIST_HEAD_SIZE;
         long threadStructAddress = listHeadBuffer.getLong(NEXT_OFFSET);
         final ByteBuffer threadStructBuffer = ByteBuffer.allocate(STRUCT_THREAD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
         while (threadStructAddress != threadListAddress) {
             threadStructAddress -= THREAD_LIST_OFFSET;
-            n = protocol.readBytes(threadStructAddress, threadStructBuffer.array(), 0, STRUCT_THREAD_SIZE);
+            n = read(cache, threadStructAddress, threadStructBuffer);
             assert n == STRUCT_THREAD_SIZE;
             final int flags = threadStructBuffer.getInt(FLAGS_OFFSET);
             final int id = threadStructBuffer.getShort(ID_OFFSET);
@@ -175,6 +185,19 @@ public class GUKThreadListAccess extends ThreadAccess {
         }
     }
 
+    /**
+     * Reads a struct into the whole of {@code buffer}, through {@code cache} or, if that is null, through the
+     * channel's cache after prefetching the struct together with the read-ahead pages in one batch.
+     */
+    private static int read(MaxVEPageCache cache, long address, ByteBuffer buffer) {
+        final int length = buffer.capacity();
+        if (cache != null) {
+            return cache.read(address, buffer.array(), 0, length);
+        }
+        MaxVEXenDBChannel.prefetch(new long[] {address, address + length}, new int[] {length, READ_AHEAD_PAGES * MaxVEPageCache.PAGE_SIZE});
+        return MaxVEXenDBChannel.readBytes(Address.fromLong(address), buffer, 0, length);
+    }
+
     /**
      * Gets the cpu the thread is currently running on.
      * @param id
@@ -32,11 +32,10 @@ import com.sun.max.tele.TeleVM;
 import com.sun.max.tele.channel.TeleChannelProtocol;
 import com.sun.max.tele.channel.iostream.TeleChannelDataIOProtocolAdaptor;
 import com.sun.max.tele.debug.ProcessState;
-import com.sun.max.tele.debug.maxve.xen.PageTableAccess;
 import com.sun.max.tele.debug.maxve.xen.dump.CoreDumpPageTableAccess;
 import com.sun.max.tele.debug.maxve.xen.dump.GuestContext;
+import com.sun.max.tele.debug.maxve.xen.dump.PagesSection;
 import com.sun.max.tele.debug.maxve.xen.dump.XenCoreDumpELFReader;
-import com.sun.max.unsafe.Address;
 import com.sun.max.ve.guk.x64.X64VM;
 import com.sun.max.vm.runtime.FatalError;
 /**
@@ -48,7 +47,7 @@ public class MaxVEDumpTeleChannelProtocol extends TeleChannelDataIOProtocolAdapt
 
     private ImageFileHandler imageFileHandler;
     private XenCoreDumpELFReader xenReader = null;
-    private PageTableAccess pageTableAccess;
+    private CoreDumpPageTableAccess pageTableAccess;
     private int threadLocalsAreaSize;
     /**
      * Creates an instance of {@link TeleChannelProtocol} that can read from Xen core dumps.
@@ -128,15 +127,24 @@ public class MaxVEDumpTeleChannelProtocol extends TeleChannelDataIOProtocolAdapt
 
     @Override
     public int readBytes(long src, byte[] dst, int dstOffset, int length) {
-        //Resolve the address
+        // Resolve the address a page at a time, since consecutive virtual pages need not be physically contiguous
+        int n = 0;
         try {
-            Address l1pte = pageTableAccess.getAddressForPte(pageTableAccess.getPteForAddress(Address.fromLong(src)));
-            long physicalAddr = l1pte.toLong() + (src & (X64VM.L0_ENTRIES-1));
-            return xenReader.getPagesSection().readBytes(physicalAddr, dst, dstOffset, length);
+            final PagesSection pagesSection = xenReader.getPagesSection();
+            while (n < length) {
+                final long address = src + n;
+                final long physicalAddr = pageTableAccess.getPhysicalAddress(address);
+                final int count = (int) Math.min(length - n, X64VM.PAGE_SIZE - (address & X64VM.PAGE_OFFSET_MASK));
+                final int result = pagesSection.readBytes(physicalAddr, dst, dstOffset + n, count);
+                if (result <= 0) {
+                    break;
+                }
+                n += result;
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return 0;
+        return n;
     }
 
     @Override
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.tele.debug.maxve;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sun.max.tele.channel.TeleChannelDataIOProtocol;
+
+/**
+ * A page-granular cache of target memory in front of a {@link TeleChannelDataIOProtocol}, so that the many small
+ * reads the Inspector makes when refreshing its views become copies from whole pages that are each read once.
+ *
+ * The cache knows nothing of the target's execution. The owner must call {@link #invalidate()} whenever the
+ * target runs or stops, e.g. on resume, single step or suspend, and {@link #invalidate(long, int)} when it writes to target memory.
+ *
+ * A miss reads the page together with up to {@code readAhead} following pages that are not cached, in as few
+ * transfers as the protocol allows, and {@link #prefetch(long[], int[])} reads the missing pages of several regions
+ * with adjacent pages coalesced into single transfers. Neither reads more pages than the cache holds, so the pages
+ * that were asked for cannot be discarded by the same read. A multi-page read that fails, e.g. because a page is
+ * not mapped, falls back to reading a page at a time, and an unreadable page is not cached.
+ *
+ * Transfers always read into the start of a scratch array, since the native protocols ignore the array offset.
+ *
+ * @author Mick Jordan
+ *
+ */
+final class MaxVEPageCache {
+
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final long PAGE_OFFSET_MASK = PAGE_SIZE - 1;
+
+    private final TeleChannelDataIOProtocol protocol;
+    private final int maxPages;
+    private final int maxTransfer;
+    private final int readAhead;
+    private final Map<Long, byte[]> pages;
+    private final byte[] transferBuffer;
+
+    private long hits;
+    private long misses;
+    private long transfers;
+
+    /**
+     * @param protocol the protocol used to read target memory
+     * @param maxPages the maximum number of pages to cache, least recently used pages being discarded first
+     * @param maxTransfer the maximum number of bytes the protocol can read in one call
+     * @param readAhead the number of pages to read beyond a missing page
+     */
+    MaxVEPageCache(TeleChannelDataIOProtocol protocol, int maxPages, int maxTransfer, int readAhead) {
+        this.protocol = protocol;
+        this.maxPages = Math.max(1, maxPages);
+        this.maxTransfer = Math.max(1, Math.min(maxTransfer, 64 * PAGE_SIZE));
+        this.readAhead = readAhead;
+        this.pages = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > MaxVEPageCache.this.maxPages;
+            }
+        };
+        this.transferBuffer = new byte[this.maxTransfer];
+    }
+
+    /**
+     * Reads target memory through the cache.
+     *
+     * @return {@code length} or -1 if some of the memory could not be read
+     */
+    int read(long src, byte[] dst, int dstOffset, int length) {
+        int n = 0;
+        while (n < length) {
+            final long address = src + n;
+            final int pageOffset = (int) (address & PAGE_OFFSET_MASK);
+            final int count = Math.min(length - n, PAGE_SIZE - pageOffset);
+            final byte[] page = getPage(address >>> PAGE_SHIFT);
+            if (page == null) {
+                return -1;
+            }
+            System.arraycopy(page, pageOffset, dst, dstOffset + n, count);
+            n += count;
+        }
+        return length;
+    }
+
+    /**
+     * Reads the pages covering the given regions that are not already cached, coalescing adjacent pages.
+     * If more pages are missing than the cache holds, only the lowest are read.
+     *
+     * @param addresses start addresses of the regions
+     * @param lengths lengths of the regions
+     */
+    void prefetch(long[] addresses, int[] lengths) {
+        int count = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            if (lengths[i] > 0) {
+                count += (int) (((addresses[i] + lengths[i] - 1) >>> PAGE_SHIFT) - (addresses[i] >>> PAGE_SHIFT) + 1);
+            }
+        }
+        final long[] missing = new long[count];
+        int m = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            if (lengths[i] > 0) {
+                final long last = (addresses[i] + lengths[i] - 1) >>> PAGE_SHIFT;
+                for (long pageNumber = addresses[i] >>> PAGE_SHIFT; pageNumber <= last; pageNumber++) {
+                    if (!pages.containsKey(pageNumber)) {
+                        missing[m++] = pageNumber;
+                    }
+                }
+            }
+        }
+        Arrays.sort(missing, 0, m);
+        m = Math.min(m, maxPages);
+        final int maxRun = Math.max(1, maxTransfer >> PAGE_SHIFT);
+        int i = 0;
+        while (i < m) {
+            final long first = missing[i];
+            int run = 1;
+            int j = i + 1;
+            while (j < m && run < maxRun && missing[j] <= first + run) {
+                if (missing[j] == first + run) {
+                    run++;
+                }
+                j++;
+            }
+            fill(first, run);
+            i = j;
+        }
+    }
+
+    /**
+     * Discards all cached pages.
+     */
+    void invalidate() {
+        pages.clear();
+    }
+
+    /**
+     * Discards the cached pages covering the given region.
+     */
+    void invalidate(long address, int length) {
+        if (length <= 0) {
+            return;
+        }
+        final long last = (address + length - 1) >>> PAGE_SHIFT;
+        for (long pageNumber = address >>> PAGE_SHIFT; pageNumber <= last; pageNumber++) {
+            pages.remove(pageNumber);
+        }
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    long transfers() {
+        return transfers;
+    }
+
+    private byte[] getPage(long pageNumber) {
+        byte[] page = pages.get(pageNumber);
+        if (page != null) {
+            hits++;
+            return page;
+        }
+        misses++;
+        int run = 1;
+        final int maxRun = Math.min(Math.min(1 + readAhead, maxPages), Math.max(1, maxTransfer >> PAGE_SHIFT));
+        while (run < maxRun && !pages.containsKey(pageNumber + run)) {
+            run++;
+        }
+        fill(pageNumber, run);
+        return pages.get(pageNumber);
+    }
+
+    /**
+     * Reads {@code count} consecutive pages into the cache, or as many of them as are readable.
+     */
+    private void fill(long firstPage, int count) {
+        if (count > 1) {
+            final byte[] run = new byte[count * PAGE_SIZE];
+            if (readFully(firstPage << PAGE_SHIFT, run)) {
+                for (int i = 0; i < count; i++) {
+                    pages.put(firstPage + i, Arrays.copyOfRange(run, i * PAGE_SIZE, (i + 1) * PAGE_SIZE));
+                }
+                return;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            final byte[] page = new byte[PAGE_SIZE];
+            if (readFully((firstPage + i) << PAGE_SHIFT, page)) {
+                pages.put(firstPage + i, page);
+            }
+        }
+    }
+
+    private boolean readFully(long src, byte[] dst) {
+        int n = 0;
+        while (n < dst.length) {
+            final int toDo = Math.min(dst.length - n, maxTransfer);
+            transfers++;
+            final int r = protocol.readBytes(src + n, transferBuffer, 0, toDo);
+            if (r != toDo) {
+                return false;
+            }
+            System.arraycopy(transferBuffer, 0, dst, n, toDo);
+            n += toDo;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "pages " + pages.size() + ", hits " + hits + ", misses " + misses + ", transfers " + transfers;
+    }
+}
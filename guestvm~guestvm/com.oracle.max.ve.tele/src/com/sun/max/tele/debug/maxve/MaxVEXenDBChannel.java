@@ -28,6 +28,7 @@ import java.util.List;
 
 import com.sun.max.tele.MaxWatchpoint.WatchpointSettings;
 import com.sun.max.tele.TeleVM;
+import com.sun.max.tele.channel.TeleChannelDataIOProtocol;
 import com.sun.max.tele.debug.*;
 import com.sun.max.tele.memory.TeleFixedMemoryRegion;
 import com.sun.max.unsafe.Address;
@@ -38,13 +39,29 @@ import com.sun.max.vm.runtime.FatalError;
  * This class encapsulates all interaction with the Xen db communication channel and ensures
  * that access is single-threaded.
  *
+ * Reads of target memory go through a {@link MaxVEPageCache}, which is invalidated whenever the target runs,
+ * i.e., on resume and single step, whenever it stops, i.e., on suspend and when {@link #waitUntilStopped} returns,
+ * and for the region written by {@link #writeBytes}. The number of cached pages
+ * is set by the {@value #PAGE_CACHE_PROPERTY} property, zero disabling the cache. Several regions can be read
+ * in one call, which fetches the missing pages of all of them before copying any, so that adjacent pages are
+ * read together.
+ *
  * @author Mick Jordan
  *
  */
 public final class MaxVEXenDBChannel {
+    public static final String PAGE_CACHE_PROPERTY = "max.ve.tele.pagecache.pages";
+    private static final int DEFAULT_PAGE_CACHE_PAGES = 8192;
+    private static final int READ_AHEAD_PAGES = 1;
+
     private static MaxVETeleDomain teleDomain;
     private static MaxVETeleChannelProtocol channelProtocol;
     private static int maxByteBufferSize;
+    private static MaxVEPageCache pageCache;
+    /**
+     * Set by {@link #suspendAll}, which cannot take the lock to invalidate the cache itself.
+     */
+    private static volatile boolean pageCacheStale;
 
     public static synchronized void attach(MaxVETeleDomain teleDomain, int domId) {
         MaxVEXenDBChannel.teleDomain = teleDomain;
@@ -61,6 +78,10 @@ public final class MaxVEXenDBChannel {
         }
         channelProtocol.attach(domId);
         maxByteBufferSize = channelProtocol.maxByteBufferSize();
+        final int cachePages = Integer.getInteger(PAGE_CACHE_PROPERTY, DEFAULT_PAGE_CACHE_PAGES);
+        if (cachePages > 0) {
+            pageCache = new MaxVEPageCache(channelProtocol, cachePages, maxByteBufferSize, READ_AHEAD_PAGES);
+        }
     }
 
     public static synchronized Pointer getBootHeapStart() {
@@ -81,6 +102,12 @@ public final class MaxVEXenDBChannel {
     }
 
     public static synchronized int readBytes(Address src, ByteBuffer dst, int dstOffset, int length) {
+        if (pageCache != null) {
+            if (pageCacheStale) {
+                invalidateCache();
+            }
+            return readCached(src.toLong(), dst, dstOffset, length);
+        }
         int lengthLeft = length;
         int localOffset = dstOffset;
         long localAddress = src.toLong();
@@ -97,6 +124,71 @@ public final class MaxVEXenDBChannel {
         return length;
     }
 
+    /**
+     * Reads several regions of target memory, reading the pages of all the regions that are not cached
+     * before copying any, so that adjacent pages are fetched together.
+     *
+     * @param srcs start addresses of the regions
+     * @param dsts destination buffers, which receive each region at offset zero
+     * @param lengths lengths of the regions
+     * @return the number of regions read, which stops at the first region that cannot be read
+     */
+    public static synchronized int readBytes(Address[] srcs, ByteBuffer[] dsts, int[] lengths) {
+        if (pageCache != null) {
+            final long[] addresses = new long[srcs.length];
+            for (int i = 0; i < srcs.length; i++) {
+                addresses[i] = srcs[i].toLong();
+            }
+            prefetch(addresses, lengths);
+        }
+        for (int i = 0; i < srcs.length; i++) {
+            if (readBytes(srcs[i], dsts[i], 0, lengths[i]) != lengths[i]) {
+                return i;
+            }
+        }
+        return srcs.length;
+    }
+
+    /**
+     * Reads the pages covering the given regions into the cache, if there is one, without copying them.
+     */
+    static synchronized void prefetch(long[] addresses, int[] lengths) {
+        if (pageCache != null) {
+            if (pageCacheStale) {
+                invalidateCache();
+            }
+            pageCache.prefetch(addresses, lengths);
+        }
+    }
+
+    /**
+     * Determines whether reads through this channel are cached reads from the given protocol.
+     */
+    static synchronized boolean isCaching(TeleChannelDataIOProtocol protocol) {
+        return pageCache != null && protocol == channelProtocol;
+    }
+
+    private static int readCached(long src, ByteBuffer dst, int dstOffset, int length) {
+        if (dst.hasArray()) {
+            return pageCache.read(src, dst.array(), dst.arrayOffset() + dstOffset, length);
+        }
+        final byte[] bytes = new byte[length];
+        final int n = pageCache.read(src, bytes, 0, length);
+        if (n == length) {
+            final ByteBuffer d = dst.duplicate();
+            d.position(dstOffset);
+            d.put(bytes);
+        }
+        return n;
+    }
+
+    private static void invalidateCache() {
+        pageCacheStale = false;
+        if (pageCache != null) {
+            pageCache.invalidate();
+        }
+    }
+
     private static int writeBytes0(long dst, ByteBuffer src, int srcOffset, int length) {
         assert src.limit() - srcOffset >= length;
         if (src.isDirect()) {
@@ -108,6 +200,9 @@ public final class MaxVEXenDBChannel {
     }
 
     public static synchronized int writeBytes(ByteBuffer buffer, int offset, int length, Address address) {
+        if (pageCache != null) {
+            pageCache.invalidate(address.toLong(), length);
+        }
         int lengthLeft = length;
         int localOffset = offset;
         long localAddress = address.toLong();
@@ -129,11 +224,14 @@ public final class MaxVEXenDBChannel {
     }
 
     public static synchronized boolean resume(int domainId) {
+        invalidateCache();
         return channelProtocol.resume(0);
     }
 
     public static synchronized ProcessState waitUntilStopped() {
-        return channelProtocol.waitUntilStopped();
+        final ProcessState state = channelProtocol.waitUntilStopped();
+        invalidateCache();
+        return state;
     }
 
     public static synchronized boolean setInstructionPointer(int threadId, long ip) {
@@ -146,6 +244,7 @@ public final class MaxVEXenDBChannel {
     }
 
     public static synchronized boolean singleStep(int threadId) {
+        invalidateCache();
         return channelProtocol.singleStep(threadId);
     }
 
@@ -155,11 +254,15 @@ public final class MaxVEXenDBChannel {
      * @return
      */
     public static boolean suspendAll() {
-        return channelProtocol.suspendAll();
+        final boolean result = channelProtocol.suspendAll();
+        pageCacheStale = true;
+        return result;
     }
 
     public static synchronized boolean suspend(int threadId) {
-        return channelProtocol.suspend(threadId);
+        final boolean result = channelProtocol.suspend(threadId);
+        invalidateCache();
+        return result;
     }
 
     public static synchronized boolean activateWatchpoint(int domainId, VmWatchpoint teleWatchpoint) {
@@ -26,15 +26,31 @@ import java.io.IOException;
 
 import com.sun.max.tele.debug.maxve.xen.AbstractX64PageTableAccess;
 import com.sun.max.unsafe.Address;
+import com.sun.max.ve.guk.x64.X64VM;
 
 
 /**
+ * Page table access for a Xen core dump. Since the dump cannot change, completed virtual to physical
+ * page translations are cached in a direct-mapped software TLB, which saves the four level page table walk
+ * for the repeated reads of the same pages that the inspector makes.
+ *
  * @author Puneeet Lakhina
  *
  */
 public class CoreDumpPageTableAccess extends AbstractX64PageTableAccess {
 
+    private static final int TLB_SIZE = 4096;
+
     private XenCoreDumpELFReader dumpReader;
+    /**
+     * Virtual page number plus one of each TLB entry, zero if the entry is empty.
+     */
+    private final long[] tlbTags = new long[TLB_SIZE];
+    /**
+     * Physical address of the page for each TLB entry.
+     */
+    private final long[] tlbPages = new long[TLB_SIZE];
+
     public CoreDumpPageTableAccess(XenCoreDumpELFReader dumpReader) {
         this.dumpReader = dumpReader;
     }
@@ -47,7 +63,7 @@ public class CoreDumpPageTableAccess extends AbstractX64PageTableAccess {
     public long getMfnForPfn(long pfn) throws IOException {
         // Pfn starts at 0
         if (pfn < getNoOfPages()) {
-            return dumpReader.getPagesSection().getPageInfoForPfn(pfn).getGmfn();
+            return dumpReader.getPagesSection().getMfnForPfn(pfn);
         } else {
             throw new IndexOutOfBoundsException("page frame index " + pfn + " is out of range");
         }
@@ -83,7 +99,31 @@ public class CoreDumpPageTableAccess extends AbstractX64PageTableAccess {
      */
     @Override
     public long getPfnForMfn(long mfn)throws IOException {
-        return dumpReader.getPagesSection().getPageInfoForMfn(mfn).getPfn();
+        final long pfn = dumpReader.getPagesSection().getPfnForMfn(mfn);
+        if (pfn == -1) {
+            throw new RuntimeException("Mfn "+Long.toHexString(mfn) + " not found");
+        }
+        return pfn;
+    }
+
+    /**
+     * Translate a virtual address to its physical address, i.e. its offset in the pages section of the dump.
+     * @param address virtual address
+     * @return physical address
+     * @throws com.sun.max.tele.debug.maxve.xen.PteNotPresentException if the address is not mapped
+     */
+    public synchronized long getPhysicalAddress(long address) throws IOException {
+        final long vpn = address >>> X64VM.PAGE_SHIFT;
+        final int index = (int) vpn & (TLB_SIZE - 1);
+        long page;
+        if (tlbTags[index] == vpn + 1) {
+            page = tlbPages[index];
+        } else {
+            page = getAddressForPte(getPteForAddress(Address.fromLong(address))).toLong();
+            tlbTags[index] = vpn + 1;
+            tlbPages[index] = page;
+        }
+        return page + (address & X64VM.PAGE_OFFSET_MASK);
     }
 
 }
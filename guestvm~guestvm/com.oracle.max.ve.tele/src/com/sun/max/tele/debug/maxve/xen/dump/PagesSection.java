@@ -24,95 +24,218 @@ package com.sun.max.tele.debug.maxve.xen.dump;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
-import com.oracle.max.elf.ELFDataInputStream;
 import com.oracle.max.elf.ELFHeader;
 import com.oracle.max.elf.ELFSectionHeaderTable;
 
 
 /**
+ * Access to the page contents and the p2m table of a Xen core dump.
+ *
+ * Both sections are memory-mapped, in {@link #MAP_CHUNK_SIZE} chunks since a single mapping is limited to 2GB,
+ * so reads are memory accesses rather than a seek and read of the file. The p2m table is indexed once, on first use,
+ * into an array from pfn to mfn and an open addressing hash table from mfn to pfn, holding primitive values.
+ *
  * @author Puneeet Lakhina
  *
  */
 public class PagesSection {
 
-    private RandomAccessFile raf;
+    private static final int MAP_CHUNK_SHIFT = 30;
+    static final long MAP_CHUNK_SIZE = 1L << MAP_CHUNK_SHIFT;
+    private static final int P2M_ENTRY_SIZE = 16;
+    private static final long INVALID = ~0L;
+
     private ELFSectionHeaderTable.Entry pageSectionHeader;
     private ELFSectionHeaderTable.Entry p2mSectionHeader;
-    private ELFHeader elfHeader;
     private long noOfPages;
-    private Map<Long, PageInfo> mfnPageInfoMap = new HashMap<Long, PageInfo>();
     private long pageSize;
+    private ByteBuffer[] pageMaps;
+    private ByteBuffer[] p2mMaps;
+    /**
+     * The mfn for each pfn, {@link #INVALID} if none.
+     */
+    private long[] pfnToMfn;
+    /**
+     * Open addressing hash table of mfn keys, with the corresponding pfns in {@link #mfnToPfnValues}.
+     */
+    private long[] mfnToPfnKeys;
+    private long[] mfnToPfnValues;
 
-    public PagesSection(RandomAccessFile raf,ELFSectionHeaderTable.Entry pageSectionHeader,ELFSectionHeaderTable.Entry p2mSectionHeader, ELFHeader elfHeader,long noOfPages,long pageSize) {
-        this.raf = raf;
+    public PagesSection(RandomAccessFile raf,ELFSectionHeaderTable.Entry pageSectionHeader,ELFSectionHeaderTable.Entry p2mSectionHeader, ELFHeader elfHeader,long noOfPages,long pageSize) throws IOException {
         this.pageSectionHeader = pageSectionHeader;
         this.p2mSectionHeader = p2mSectionHeader;
-        this.elfHeader=elfHeader;
         this.noOfPages = noOfPages;
         this.pageSize = pageSize;
+        final ByteOrder order = elfHeader.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        final FileChannel channel = raf.getChannel();
+        pageMaps = map(channel, pageSectionHeader.getOffset(), pageSectionHeader.getSize(), order);
+        p2mMaps = map(channel, p2mSectionHeader.getOffset(), p2mSectionHeader.getSize(), order);
     }
 
-    public long getX64WordAtOffset(long sectionLocalOffset)throws IOException {
-        return getDataInputStream(sectionLocalOffset).read_Elf64_XWord();
+    private static ByteBuffer[] map(FileChannel channel, long offset, long size, ByteOrder order) throws IOException {
+        final ByteBuffer[] maps = new ByteBuffer[(int) ((size + MAP_CHUNK_SIZE - 1) >> MAP_CHUNK_SHIFT)];
+        for (int i = 0; i < maps.length; i++) {
+            final long chunkOffset = (long) i << MAP_CHUNK_SHIFT;
+            maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + chunkOffset, Math.min(MAP_CHUNK_SIZE, size - chunkOffset)).order(order);
+        }
+        return maps;
     }
-    private ELFDataInputStream getDataInputStream(long sectionLocalOffset) throws IOException {
-        raf.seek(pageSectionHeader.getOffset()+sectionLocalOffset);
-        return new ELFDataInputStream(elfHeader, raf);
+
+    private static long getLong(ByteBuffer[] maps, long offset) {
+        final int chunk = (int) (offset >> MAP_CHUNK_SHIFT);
+        final int chunkOffset = (int) (offset & (MAP_CHUNK_SIZE - 1));
+        if (chunkOffset <= MAP_CHUNK_SIZE - 8) {
+            return maps[chunk].getLong(chunkOffset);
+        }
+        // straddles two chunks, which cannot happen for aligned words
+        final ByteBuffer word = ByteBuffer.allocate(8).order(maps[0].order());
+        for (int i = 0; i < 8; i++) {
+            final long o = offset + i;
+            word.put(maps[(int) (o >> MAP_CHUNK_SHIFT)].get((int) (o & (MAP_CHUNK_SIZE - 1))));
+        }
+        return word.getLong(0);
+    }
+
+    public long getX64WordAtOffset(long sectionLocalOffset)throws IOException {
+        if (sectionLocalOffset < 0 || sectionLocalOffset + 8 > pageSectionHeader.getSize()) {
+            throw new IllegalArgumentException("Improper address:" + sectionLocalOffset + " Size is:" + pageSectionHeader.getSize());
+        }
+        return getLong(pageMaps, sectionLocalOffset);
     }
 
     public int readBytes(long address,byte[] dst, int dstOffset,int length)throws IOException {
-        if(address > pageSectionHeader.getSize()) {
-            throw new IllegalArgumentException("Improper address:" + address + " Size is:" + pageSectionHeader.getSize());
+        final long size = pageSectionHeader.getSize();
+        if(address > size) {
+            throw new IllegalArgumentException("Improper address:" + address + " Size is:" + size);
+        }
+        if (address == size) {
+            return -1;
+        }
+        final int total = (int) Math.min(length, size - address);
+        int n = 0;
+        while (n < total) {
+            final long offset = address + n;
+            final int chunkOffset = (int) (offset & (MAP_CHUNK_SIZE - 1));
+            final ByteBuffer map = pageMaps[(int) (offset >> MAP_CHUNK_SHIFT)].duplicate();
+            final int count = Math.min(total - n, map.capacity() - chunkOffset);
+            map.position(chunkOffset);
+            map.get(dst, dstOffset + n, count);
+            n += count;
         }
-        raf.seek(pageSectionHeader.getOffset() + address);
-        return raf.read(dst, dstOffset, length);
+        return n;
     }
+
+    /**
+     * Build the pfn and mfn indexes from the p2m table.
+     */
+    private synchronized void index() {
+        if (pfnToMfn != null) {
+            return;
+        }
+        final int entries = (int) Math.min(noOfPages, p2mSectionHeader.getSize() / P2M_ENTRY_SIZE);
+        final long[] pfns = new long[(int) noOfPages];
+        Arrays.fill(pfns, INVALID);
+        int capacity = 16;
+        while (capacity < entries * 2) {
+            capacity <<= 1;
+        }
+        final long[] keys = new long[capacity];
+        final long[] values = new long[capacity];
+        Arrays.fill(keys, INVALID);
+        for (int i = 0; i < entries; i++) {
+            final long pfn = getLong(p2mMaps, (long) i * P2M_ENTRY_SIZE);
+            final long mfn = getLong(p2mMaps, (long) i * P2M_ENTRY_SIZE + 8);
+            if (pfn == INVALID || mfn == INVALID) {
+                continue;
+            }
+            if (pfn >= 0 && pfn < noOfPages) {
+                pfns[(int) pfn] = mfn;
+            }
+            int slot = hash(mfn, capacity);
+            while (keys[slot] != INVALID && keys[slot] != mfn) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            keys[slot] = mfn;
+            values[slot] = pfn;
+        }
+        mfnToPfnKeys = keys;
+        mfnToPfnValues = values;
+        pfnToMfn = pfns;
+    }
+
+    private static int hash(long mfn, int capacity) {
+        final long h = mfn * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (capacity - 1);
+    }
+
+    /**
+     * Get the mfn corresponding to this pseudo physical pfn.
+     * @param pfn
+     * @return the mfn or -1 if the pfn is not valid in the dump
+     */
+    public long getMfnForPfn(long pfn) {
+        index();
+        if (pfn < 0 || pfn >= pfnToMfn.length) {
+            return INVALID;
+        }
+        return pfnToMfn[(int) pfn];
+    }
+
+    /**
+     * Get the pseudo physical pfn corresponding to this mfn.
+     * @param mfn
+     * @return the pfn or -1 if the mfn does not belong to the dumped domain
+     */
+    public long getPfnForMfn(long mfn) {
+        index();
+        final long[] keys = mfnToPfnKeys;
+        int slot = hash(mfn, keys.length);
+        while (true) {
+            final long key = keys[slot];
+            if (key == mfn) {
+                return mfnToPfnValues[slot];
+            } else if (key == INVALID) {
+                return INVALID;
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+    }
+
     /**
      * Get the page info corresponding to this pseudo physical pfn.
      * @param pfn
      * @return
      */
     public PageInfo getPageInfoForPfn(long pfn)throws IOException {
-        raf.seek(p2mSectionHeader.getOffset()+pfn * 16);
-        PageInfo pageInfo = new PageInfo();
-        ELFDataInputStream dataInputStream = new ELFDataInputStream(elfHeader,raf);
-        pageInfo.setPfn(dataInputStream.read_Elf64_Addr());
-        pageInfo.setGmfn(dataInputStream.read_Elf64_Addr());
-        if(!pageInfo.isValid()) {
+        final long mfn = getMfnForPfn(pfn);
+        if (mfn == INVALID) {
             return null;
         }
-        if(pageInfo.getPfn() != pfn) {
-            throw new RuntimeException("Improper read.The pfn at the offset doesnt match.");
-        }
-        return pageInfo;
+        return newPageInfo(pfn, mfn);
     }
 
     /**
-     * Get the page info corresponding to this pseudo physical pfn.
-     * @param pfn
+     * Get the page info corresponding to this mfn.
+     * @param mfn
      * @return
      */
     public PageInfo getPageInfoForMfn(long mfn)throws IOException {
-        if(mfnPageInfoMap.get(mfn) != null ) {
-            return mfnPageInfoMap.get(mfn);
+        final long pfn = getPfnForMfn(mfn);
+        if (pfn == INVALID) {
+            throw new RuntimeException("Mfn "+Long.toHexString(mfn) + " not found");
         }
-        raf.seek(p2mSectionHeader.getOffset() + mfnPageInfoMap.size() * 16);
-        ELFDataInputStream dataInputStream = new ELFDataInputStream(elfHeader,raf);
-        for(int i=mfnPageInfoMap.size();i<noOfPages;i++) {
-            PageInfo pageInfo = new PageInfo();
-            pageInfo.setPfn(dataInputStream.read_Elf64_XWord());
-            pageInfo.setGmfn(dataInputStream.read_Elf64_XWord());
-            if(!pageInfo.isValid()) {
-                continue;
-            }
-            mfnPageInfoMap.put(pageInfo.getGmfn(), pageInfo);
-            if(pageInfo.getGmfn() == mfn) {
-                return pageInfo;
-            }
-        }
-        throw new RuntimeException("Mfn "+Long.toHexString(mfn) + " not found");
+        return newPageInfo(pfn, mfn);
+    }
+
+    private static PageInfo newPageInfo(long pfn, long mfn) {
+        final PageInfo pageInfo = new PageInfo();
+        pageInfo.setPfn(pfn);
+        pageInfo.setGmfn(mfn);
+        return pageInfo;
     }
 }
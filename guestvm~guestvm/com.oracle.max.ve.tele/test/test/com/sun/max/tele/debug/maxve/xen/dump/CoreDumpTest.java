@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.com.sun.max.tele.debug.maxve.xen.dump;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import com.sun.max.tele.debug.maxve.xen.*;
+import com.sun.max.tele.debug.maxve.xen.dump.*;
+import com.sun.max.ve.guk.x64.*;
+
+/**
+ * Writes a synthetic Xen core dump and checks the translations made by {@link PagesSection} and
+ * {@link CoreDumpPageTableAccess} against the values used to construct it: pfn to mfn, mfn to pfn,
+ * word and byte reads of the pages section, and virtual to physical translation through a four level
+ * page table, including addresses that collide in the TLB and addresses that are not mapped.
+ *
+ * Pfn 0 is unused, pfns 1 to 11 hold the page tables and the remaining pages are mapped, in random order,
+ * at two virtual address ranges, each with its own level 1 tables. The second range maps page {@code n}
+ * to the frame that the first maps at page {@code n + 1}. The ranges are 4096 pages, the size of the TLB,
+ * apart, so each page of one collides in the TLB with the corresponding page of the other but translates
+ * to a different frame. Every 97th pfn has no mfn and its page is not mapped.
+ *
+ * Args:
+ * f file      write the dump to file rather than a temporary file, and keep it
+ * s n         random seed (default 1)
+ *
+ * @author Mick Jordan
+ */
+public class CoreDumpTest {
+
+    private static final int ELF_HEADER_SIZE = 64;
+    private static final int SECTION_HEADER_SIZE = 64;
+    private static final int SECTION_ALIGN = 4096;
+    private static final int NOTE_HEADER = 0x2000001;
+    private static final long PV_MAGIC = 0xF00FEBEDL;
+    private static final int CPU_CONTEXT_SIZE = 5168;
+    /**
+     * Offset of ctrlreg[3] in a cpu context, see GuestContext.
+     */
+    private static final int CR3_OFFSET = 512 + 8 + X86_64Registers.TOTAL_SIZE + 4264 + 3 * 8;
+
+    private static final int L1_TABLES = 4;
+    private static final int MAPPED_PAGES = L1_TABLES * X64VM.L1_ENTRIES;
+    private static final int FIRST_DATA_PFN = 4 + 2 * L1_TABLES;
+    private static final long INVALID = ~0L;
+    /**
+     * Base of the first mapped virtual range.
+     */
+    private static final long VBASE = 5L << X64VM.L3_SHIFT;
+    /**
+     * Offset of the second mapped range, the size of the TLB in CoreDumpPageTableAccess.
+     */
+    private static final long ALIAS = 4096L << X64VM.PAGE_SHIFT;
+
+    private static int _failures;
+
+    public static void main(String[] args) throws Exception {
+        String fileName = null;
+        long seed = 1;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("f")) {
+                fileName = args[++i];
+            } else if (arg.equals("s")) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        final int pages = FIRST_DATA_PFN + MAPPED_PAGES;
+        final Random random = new Random(seed);
+
+        final long[] mfns = new long[pages];
+        for (int pfn = 1; pfn < pages; pfn++) {
+            // scattered, distinct machine frames
+            mfns[pfn] = pfn % 97 == 0 ? INVALID : 0x100000L + pfn * 7919L;
+        }
+        mfns[0] = INVALID;
+
+        final byte[] data = new byte[pages * X64VM.PAGE_SIZE];
+        random.nextBytes(data);
+        final ByteBuffer pageData = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        // the page tables, L4 in pfn 1, L3 in pfn 2, L2 in pfn 3 and the L1 tables in pfns 4 .. 11
+        Arrays.fill(data, X64VM.PAGE_SIZE, FIRST_DATA_PFN * X64VM.PAGE_SIZE, (byte) 0);
+        putPte(pageData, 1, index(VBASE, X64VM.L4_SHIFT), mfns[2]);
+        putPte(pageData, 2, index(VBASE, X64VM.L3_SHIFT), mfns[3]);
+        for (int i = 0; i < L1_TABLES; i++) {
+            putPte(pageData, 3, index(VBASE, X64VM.L2_SHIFT) + i, mfns[4 + i]);
+            putPte(pageData, 3, index(VBASE + ALIAS, X64VM.L2_SHIFT) + i, mfns[4 + L1_TABLES + i]);
+        }
+        final int[] pfnOfPage = new int[MAPPED_PAGES];
+        final List<Integer> dataPfns = new ArrayList<Integer>();
+        for (int pfn = FIRST_DATA_PFN; pfn < pages; pfn++) {
+            dataPfns.add(pfn);
+        }
+        Collections.shuffle(dataPfns, random);
+        for (int page = 0; page < MAPPED_PAGES; page++) {
+            final int pfn = dataPfns.get(page);
+            pfnOfPage[page] = mfns[pfn] == INVALID ? -1 : pfn;
+            if (mfns[pfn] != INVALID) {
+                putPte(pageData, 4 + page / X64VM.L1_ENTRIES, page % X64VM.L1_ENTRIES, mfns[pfn]);
+            }
+        }
+        final int[] aliasPfnOfPage = new int[MAPPED_PAGES];
+        for (int page = 0; page < MAPPED_PAGES; page++) {
+            final int pfn = pfnOfPage[(page + 1) % MAPPED_PAGES];
+            aliasPfnOfPage[page] = pfn;
+            if (pfn >= 0) {
+                putPte(pageData, 4 + L1_TABLES + page / X64VM.L1_ENTRIES, page % X64VM.L1_ENTRIES, mfns[pfn]);
+            }
+        }
+
+        final File file = fileName == null ? File.createTempFile("coredump", ".core") : new File(fileName);
+        if (fileName == null) {
+            file.deleteOnExit();
+        }
+        writeDump(file, data, mfns, mfns[1] << X64VM.PAGE_SHIFT);
+
+        final XenCoreDumpELFReader reader = new XenCoreDumpELFReader(file);
+        final PagesSection pagesSection = reader.getPagesSection();
+        for (int pfn = 0; pfn < pages; pfn++) {
+            check(pagesSection.getMfnForPfn(pfn) == mfns[pfn], "pfn " + pfn + " to mfn");
+            if (mfns[pfn] != INVALID) {
+                check(pagesSection.getPfnForMfn(mfns[pfn]) == pfn, "mfn " + Long.toHexString(mfns[pfn]) + " to pfn");
+            }
+        }
+        check(pagesSection.getPfnForMfn(0x12345) == INVALID, "unknown mfn");
+        check(pagesSection.getMfnForPfn(pages) == INVALID, "pfn beyond the dump");
+        for (int i = 0; i < 10000; i++) {
+            final int offset = random.nextInt(data.length - 8) & ~7;
+            check(pagesSection.getX64WordAtOffset(offset) == pageData.getLong(offset), "word at " + offset);
+            final int address = random.nextInt(data.length);
+            final byte[] bytes = new byte[random.nextInt(3 * X64VM.PAGE_SIZE)];
+            final int n = pagesSection.readBytes(address, bytes, 0, bytes.length);
+            check(n == Math.min(bytes.length, data.length - address), "length of read at " + address);
+            for (int j = 0; j < n; j++) {
+                if (bytes[j] != data[address + j]) {
+                    check(false, "byte " + j + " of read at " + address);
+                    break;
+                }
+            }
+        }
+
+        final CoreDumpPageTableAccess access = new CoreDumpPageTableAccess(reader);
+        check(access.getMfnForPfn(5) == mfns[5], "page table access pfn to mfn");
+        check(access.getPfnForMfn(mfns[5]) == 5, "page table access mfn to pfn");
+        // the alternation makes each translation evict the other from the TLB; the repetition then hits
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 20000; i++) {
+                final int page = random.nextInt(MAPPED_PAGES);
+                final long offset = random.nextInt(X64VM.PAGE_SIZE);
+                final long address = ((long) page << X64VM.PAGE_SHIFT) + offset;
+                if ((i & 1) == 0) {
+                    checkTranslation(access, VBASE + address, pfnOfPage[page], offset);
+                } else {
+                    checkTranslation(access, VBASE + ALIAS + address, aliasPfnOfPage[page], offset);
+                }
+            }
+        }
+        // not mapped at level 2
+        checkTranslation(access, VBASE + ((long) MAPPED_PAGES << X64VM.PAGE_SHIFT), -1, 0);
+        checkTranslation(access, VBASE + ((long) MAPPED_PAGES << X64VM.PAGE_SHIFT), -1, 0);
+
+        System.out.println(pages + " pages, " + _failures + " failures");
+        if (_failures != 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void checkTranslation(CoreDumpPageTableAccess access, long address, int pfn, long offset) throws IOException {
+        try {
+            final long physical = access.getPhysicalAddress(address);
+            check(pfn >= 0, "translation of unmapped " + Long.toHexString(address));
+            check(physical == ((long) pfn << X64VM.PAGE_SHIFT) + offset, "translation of " + Long.toHexString(address));
+        } catch (PteNotPresentException ex) {
+            check(pfn < 0, "no translation of " + Long.toHexString(address));
+        }
+    }
+
+    private static int index(long address, int shift) {
+        return (int) (address >> shift) & 511;
+    }
+
+    private static void putPte(ByteBuffer pageData, int tablePfn, int index, long mfn) {
+        pageData.putLong(tablePfn * X64VM.PAGE_SIZE + index * 8, (mfn << X64VM.PAGE_SHIFT) | X64VM.PAGE_PRESENT | X64VM.PAGE_RW);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            if (_failures++ < 20) {
+                System.out.println("FAILED: " + what);
+            }
+        }
+    }
+
+    /**
+     * Writes a little endian ELF64 core file with the sections that {@link XenCoreDumpELFReader} uses.
+     */
+    private static void writeDump(File file, byte[] data, long[] mfns, long cr3) throws IOException {
+        final int pages = mfns.length;
+        final ByteBuffer notes = buffer(12 + 4 + 32);
+        notes.putInt(4).putInt(32).putInt(NOTE_HEADER).put("Xen\0".getBytes());
+        notes.putLong(PV_MAGIC).putLong(1).putLong(pages).putLong(X64VM.PAGE_SIZE);
+        final ByteBuffer context = buffer(CPU_CONTEXT_SIZE);
+        context.putLong(CR3_OFFSET, cr3);
+        final ByteBuffer p2m = buffer(pages * 16);
+        for (int pfn = 0; pfn < pages; pfn++) {
+            p2m.putLong(pfn).putLong(mfns[pfn]);
+        }
+        final String[] names = {"", ".note.Xen", ".xen_prstatus", ".xen_pages", ".xen_p2m", ".shstrtab"};
+        final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        final int[] nameOffsets = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            nameOffsets[i] = strings.size();
+            strings.write(names[i].getBytes());
+            strings.write(0);
+        }
+        final byte[][] contents = {new byte[0], notes.array(), context.array(), data, p2m.array(), strings.toByteArray()};
+        final long[] offsets = new long[names.length];
+        long offset = ELF_HEADER_SIZE + names.length * SECTION_HEADER_SIZE;
+        for (int i = 1; i < names.length; i++) {
+            offset = (offset + SECTION_ALIGN - 1) & ~(SECTION_ALIGN - 1);
+            offsets[i] = offset;
+            offset += contents[i].length;
+        }
+
+        final ByteBuffer header = buffer(ELF_HEADER_SIZE + names.length * SECTION_HEADER_SIZE);
+        header.put(new byte[] {0x7f, 'E', 'L', 'F', 2, 1, 1, 0}).put(new byte[8]);
+        header.putShort((short) 4);                        // e_type ET_CORE
+        header.putShort((short) 62);                       // e_machine EM_X86_64
+        header.putInt(1);                                  // e_version
+        header.putLong(0);                                 // e_entry
+        header.putLong(0);                                 // e_phoff
+        header.putLong(ELF_HEADER_SIZE);                   // e_shoff
+        header.putInt(0);                                  // e_flags
+        header.putShort((short) ELF_HEADER_SIZE);          // e_ehsize
+        header.putShort((short) 56);                       // e_phentsize
+        header.putShort((short) 0);                        // e_phnum
+        header.putShort((short) SECTION_HEADER_SIZE);      // e_shentsize
+        header.putShort((short) names.length);             // e_shnum
+        header.putShort((short) (names.length - 1));       // e_shstrndx
+        for (int i = 0; i < names.length; i++) {
+            header.putInt(nameOffsets[i]);
+            header.putInt(i == 0 ? 0 : i == 1 ? 7 : i == names.length - 1 ? 3 : 1); // NULL, NOTE, STRTAB or PROGBITS
+            header.putLong(0);                             // sh_flags
+            header.putLong(0);                             // sh_addr
+            header.putLong(offsets[i]);
+            header.putLong(contents[i].length);
+            header.putInt(0);                              // sh_link
+            header.putInt(0);                              // sh_info
+            header.putLong(i == 0 ? 0 : 8);                // sh_addralign
+            header.putLong(0);                             // sh_entsize
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(header.array());
+            for (int i = 1; i < names.length; i++) {
+                raf.seek(offsets[i]);
+                raf.write(contents[i]);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.tools.trace;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes traces in a compact binary form, typically less than half the size of the text form produced
+ * by the GUK tracer. The GUK tracer writes text to the console, so a binary trace is produced by converting
+ * a captured text trace once, see {@link TraceMain}.
+ *
+ * The file starts with the bytes "GUKT" followed by a version byte. It then contains a sequence of records, each
+ * introduced by a tag byte:
+ * <ul>
+ * <li>{@link #NAME_RECORD}: id, UTF string. Defines an entry in the name table, which holds trace names and
+ * any arguments that are not numbers. Ids are assigned densely from zero in order of definition and a name
+ * is always defined before its first use.
+ * <li>{@link #TRACE_RECORD}: name id, timestamp delta from the previous trace, cpu, thread, argument count,
+ * and then for each argument a type byte followed by the value.
+ * </ul>
+ * All integers are unsigned LEB128 variable length values; signed values (timestamp delta, thread, decimal
+ * arguments) are zig-zag encoded first. Arguments are encoded so that they decode to exactly the original text,
+ * so the existing {@link TraceKind} parsing applies unchanged to both forms.
+ *
+ * @author Mick Jordan
+ *
+ */
+public class BinaryTraceWriter implements Closeable {
+
+    static final byte[] MAGIC = {'G', 'U', 'K', 'T'};
+    static final int VERSION = 1;
+
+    static final int NAME_RECORD = 1;
+    static final int TRACE_RECORD = 2;
+
+    static final int ARG_DECIMAL = 0;
+    static final int ARG_HEX = 1;
+    static final int ARG_STRING = 2;
+
+    private final DataOutputStream _out;
+    private final Map<String, Integer> _names = new HashMap<String, Integer>();
+    private long _timestamp;
+
+    public BinaryTraceWriter(OutputStream out) throws IOException {
+        _out = new DataOutputStream(new BufferedOutputStream(out, TraceReader.BUFFER_SIZE));
+        _out.write(MAGIC);
+        _out.write(VERSION);
+    }
+
+    /**
+     * Writes one trace.
+     * @param parts the tokens of the trace, "Timestamp CPU Thread Command args"
+     */
+    public void write(String[] parts) throws IOException {
+        if (parts.length <= TraceKind.TKX) {
+            throw new IOException("malformed trace: " + Arrays.toString(parts));
+        }
+        final int nameId = defineName(parts[TraceKind.TKX]);
+        for (int i = TraceKind.TKX + 1; i < parts.length; i++) {
+            if (argType(parts[i]) == ARG_STRING) {
+                defineName(parts[i]);
+            }
+        }
+        final long timestamp = Long.parseLong(parts[0]);
+        _out.write(TRACE_RECORD);
+        writeVarLong(nameId);
+        writeVarLong(zigZagEncode(timestamp - _timestamp));
+        writeVarLong(Integer.parseInt(parts[1]) & 0xFFFFFFFFL);
+        writeVarLong(zigZagEncode(Integer.parseInt(parts[2])));
+        writeVarLong(parts.length - TraceKind.TKX - 1);
+        for (int i = TraceKind.TKX + 1; i < parts.length; i++) {
+            final String arg = parts[i];
+            final int type = argType(arg);
+            _out.write(type);
+            switch (type) {
+                case ARG_DECIMAL:
+                    writeVarLong(zigZagEncode(Long.parseLong(arg)));
+                    break;
+                case ARG_HEX:
+                    writeVarLong(parseHex(arg));
+                    break;
+                default:
+                    writeVarLong(_names.get(arg));
+            }
+        }
+        _timestamp = timestamp;
+    }
+
+    public void close() throws IOException {
+        _out.close();
+    }
+
+    /**
+     * Converts a trace file, in either form, to the binary form.
+     */
+    public static void convert(String inFile, String outFile) throws IOException {
+        final TraceIterator iter = TraceReader.open(inFile);
+        BinaryTraceWriter writer = null;
+        try {
+            writer = new BinaryTraceWriter(new FileOutputStream(outFile));
+            while (iter.hasNext()) {
+                writer.write(iter.nextParts());
+            }
+        } finally {
+            iter.close();
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private int defineName(String name) throws IOException {
+        Integer id = _names.get(name);
+        if (id == null) {
+            id = _names.size();
+            _names.put(name, id);
+            _out.write(NAME_RECORD);
+            writeVarLong(id);
+            _out.writeUTF(name);
+        }
+        return id;
+    }
+
+    /**
+     * Chooses the encoding of an argument such that decoding reproduces the original text.
+     */
+    private static int argType(String arg) {
+        if (isCanonicalDecimal(arg)) {
+            return ARG_DECIMAL;
+        } else if (isCanonicalHex(arg)) {
+            return ARG_HEX;
+        }
+        return ARG_STRING;
+    }
+
+    private static boolean isCanonicalDecimal(String s) {
+        final int length = s.length();
+        final int start = length > 0 && s.charAt(0) == '-' ? 1 : 0;
+        if (length == start || length - start > 19 || (s.charAt(start) == '0' && length > 1)) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            final char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        try {
+            Long.parseLong(s);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isCanonicalHex(String s) {
+        final int length = s.length();
+        if (length == 0 || length > 16 || (s.charAt(0) == '0' && length > 1)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final char ch = s.charAt(i);
+            if (!((ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String s) {
+        long result = 0;
+        for (int i = 0; i < s.length(); i++) {
+            result = (result << 4) | Character.digit(s.charAt(i), 16);
+        }
+        return result;
+    }
+
+    private static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            _out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        _out.write((int) value);
+    }
+}
@@ -22,6 +22,9 @@
  */
 package com.sun.max.ve.tools.trace;
 
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class CommandHelper {
 
@@ -52,4 +55,71 @@ public class CommandHelper {
     protected void checkTimeFormat(String[] args) {
         _timeFormat = TimeFormat.checkFormat(args);
     }
+
+    /**
+     * Runs a {@link StreamingCommand} over a trace that has already been read into a list.
+     */
+    public static void visitAll(StreamingCommand command, List<TraceElement> traces, String[] args) throws Exception {
+        command.begin(args);
+        for (TraceElement traceElement : traces) {
+            command.visit(traceElement);
+        }
+        command.end();
+    }
+
+    /**
+     * The analysis of one partition (thread or CPU) of a trace.
+     */
+    public interface PartitionTask {
+        /**
+         * Analyze the partition identified by {@code id}, writing the results to {@code out}.
+         * Must not modify shared state.
+         */
+        void process(int id, PrintStream out);
+    }
+
+    /**
+     * Runs {@code task} for each of {@code ids}, in parallel on up to {@link TraceMain#threadsOption()} threads.
+     * The output of each partition is buffered and printed in the order of {@code ids}.
+     */
+    public static void processPartitions(List<Integer> ids, final PartitionTask task) throws Exception {
+        final int threads = Math.min(TraceMain.threadsOption(), ids.size());
+        if (threads <= 1) {
+            for (int id : ids) {
+                task.process(id, System.out);
+            }
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<String>> results = new ArrayList<Future<String>>(ids.size());
+            for (final int id : ids) {
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() {
+                        final ByteArrayOutputStream bs = new ByteArrayOutputStream();
+                        final PrintStream out = new PrintStream(bs);
+                        task.process(id, out);
+                        out.flush();
+                        return bs.toString();
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                System.out.print(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The ids of all the threads created in the trace.
+     */
+    public static List<Integer> threadIds() {
+        final List<Integer> result = new ArrayList<Integer>();
+        for (CreateThreadTraceElement te : CreateThreadTraceElement.getThreadIterable()) {
+            result.add(te.getId());
+        }
+        return result;
+    }
 }
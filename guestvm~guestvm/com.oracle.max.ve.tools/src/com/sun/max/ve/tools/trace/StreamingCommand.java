@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.tools.trace;
+
+/**
+ * A command that can be computed in a single pass over the trace. {@link TraceMain} feeds such commands
+ * directly from the {@link TraceReader} stream, so the trace is never held in memory as a whole.
+ *
+ * @author Mick Jordan
+ *
+ */
+public interface StreamingCommand extends Command, TraceVisitor {
+    /**
+     * Called before the first trace element is visited.
+     */
+    void begin(String[] args) throws Exception;
+
+    /**
+     * Called after the last trace element has been visited.
+     */
+    void end() throws Exception;
+}
@@ -95,18 +95,24 @@ public class TimeFormat {
         return divNd(a, b, 3);
     }
 
-    private static final DecimalFormat[] formats = new DecimalFormat[10];
-
-    static {
-        final StringBuilder format = new StringBuilder("###,###,###.");
-        for (int i = 0; i < formats.length; i++) {
-            formats[i] = new DecimalFormat(format.toString());
-            format.append('#');
+    /**
+     * {@link DecimalFormat} is not thread safe and commands may format times in parallel.
+     */
+    private static final ThreadLocal<DecimalFormat[]> formats = new ThreadLocal<DecimalFormat[]>() {
+        @Override
+        protected DecimalFormat[] initialValue() {
+            final DecimalFormat[] result = new DecimalFormat[10];
+            final StringBuilder format = new StringBuilder("###,###,###.");
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new DecimalFormat(format.toString());
+                format.append('#');
+            }
+            return result;
         }
-    }
+    };
 
     public static String divNd(long a, long b, int n) {
-        return formats[n].format((double) a / (double) b);
+        return formats.get()[n].format((double) a / (double) b);
     }
 
 }
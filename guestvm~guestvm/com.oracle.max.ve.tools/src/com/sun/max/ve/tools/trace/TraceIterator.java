@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.tools.trace;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An iterator over the elements of a trace file that reads the file lazily. The raw form of each
+ * trace, the array of tokens "Timestamp CPU Thread Command args", is available through {@link #nextParts}.
+ *
+ * @author Mick Jordan
+ *
+ */
+public abstract class TraceIterator implements Iterator<TraceElement>, Closeable {
+
+    private String[] _nextParts;
+
+    public boolean hasNext() {
+        if (_nextParts == null) {
+            try {
+                _nextParts = readParts();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        return _nextParts != null;
+    }
+
+    public TraceElement next() {
+        return TraceReader.createTraceElement(nextParts());
+    }
+
+    public String[] nextParts() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final String[] result = _nextParts;
+        _nextParts = null;
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Reads the tokens of the next trace.
+     * @return the tokens or {@code null} at end of file
+     */
+    protected abstract String[] readParts() throws IOException;
+
+    static class Text extends TraceIterator {
+        private final BufferedReader _reader;
+
+        Text(InputStream in) {
+            _reader = new BufferedReader(new InputStreamReader(in), TraceReader.BUFFER_SIZE);
+        }
+
+        @Override
+        protected String[] readParts() throws IOException {
+            while (true) {
+                final String line = _reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+                if (line.length() != 0) {
+                    return line.split(" ");
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            _reader.close();
+        }
+    }
+
+    static class Binary extends TraceIterator {
+        private final DataInputStream _in;
+        private final List<String> _names = new ArrayList<String>();
+        private long _timestamp;
+
+        Binary(InputStream in) throws IOException {
+            _in = new DataInputStream(in);
+            for (int i = 0; i < BinaryTraceWriter.MAGIC.length; i++) {
+                if (_in.read() != BinaryTraceWriter.MAGIC[i]) {
+                    throw new IOException("not a binary trace file");
+                }
+            }
+            final int version = _in.read();
+            if (version != BinaryTraceWriter.VERSION) {
+                throw new IOException("unsupported binary trace version " + version);
+            }
+        }
+
+        @Override
+        protected String[] readParts() throws IOException {
+            while (true) {
+                final int tag = _in.read();
+                if (tag < 0) {
+                    return null;
+                }
+                if (tag == BinaryTraceWriter.NAME_RECORD) {
+                    final int id = (int) readVarLong();
+                    if (id != _names.size()) {
+                        throw new IOException("name " + id + " defined out of order");
+                    }
+                    _names.add(_in.readUTF());
+                } else if (tag == BinaryTraceWriter.TRACE_RECORD) {
+                    return readTrace();
+                } else {
+                    throw new IOException("invalid binary trace record tag " + tag);
+                }
+            }
+        }
+
+        private String[] readTrace() throws IOException {
+            final String name = name(readVarLong());
+            _timestamp += zigZagDecode(readVarLong());
+            final int cpu = (int) readVarLong();
+            final int thread = (int) zigZagDecode(readVarLong());
+            final int argc = (int) readVarLong();
+            final String[] result = new String[TraceKind.TKX + 1 + argc];
+            result[0] = Long.toString(_timestamp);
+            result[1] = Integer.toString(cpu);
+            result[2] = Integer.toString(thread);
+            result[TraceKind.TKX] = name;
+            for (int i = TraceKind.TKX + 1; i < result.length; i++) {
+                final int type = _in.read();
+                switch (type) {
+                    case BinaryTraceWriter.ARG_DECIMAL:
+                        result[i] = Long.toString(zigZagDecode(readVarLong()));
+                        break;
+                    case BinaryTraceWriter.ARG_HEX:
+                        result[i] = Long.toHexString(readVarLong());
+                        break;
+                    case BinaryTraceWriter.ARG_STRING:
+                        result[i] = name(readVarLong());
+                        break;
+                    default:
+                        throw new IOException("invalid binary trace argument type " + type);
+                }
+            }
+            return result;
+        }
+
+        private String name(long id) throws IOException {
+            if (id < 0 || id >= _names.size()) {
+                throw new IOException("undefined name " + id);
+            }
+            return _names.get((int) id);
+        }
+
+        private long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = _in.read();
+                if (b < 0) {
+                    throw new EOFException("truncated binary trace");
+                }
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed variable length value");
+        }
+
+        private static long zigZagDecode(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public void close() throws IOException {
+            _in.close();
+        }
+    }
+}
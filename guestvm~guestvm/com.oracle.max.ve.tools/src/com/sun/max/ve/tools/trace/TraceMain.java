@@ -35,6 +35,10 @@ public class TraceMain {
     public static final Option<Integer> CPU = _options.newIntegerOption("cpu", -1, "cpu number");
     public static final Option<Boolean> ABSTIME = _options.newBooleanOption("abstime", false, "Report timestamps as absolute values");
     private static final Option<String> COMMAND = _options.newStringOption("command", null, "analysis command to execute");
+    private static final Option<String> TO_BINARY = _options.newStringOption("tobinary", null,
+        "convert the trace file to the compact binary form in the given file");
+    private static final Option<Integer> THREADS = _options.newIntegerOption("threads", Runtime.getRuntime().availableProcessors(),
+        "number of threads used by commands that analyze threads or CPUs in parallel");
 
     public static void main(String[] args) {
         final String[] extraArgs = _options.parseArguments(args).getArguments();
@@ -42,8 +46,11 @@ public class TraceMain {
             if (ABSTIME.getValue()) {
                 TraceElement.setUseAbsTimestamp(true);
             }
-            final List<TraceElement> traces = TraceReader.readTrace();
-            doStuff(traces, extraArgs);
+            final String binaryFile = TO_BINARY.getValue();
+            if (binaryFile != null) {
+                BinaryTraceWriter.convert(getTraceFileName(), binaryFile);
+            }
+            doStuff(extraArgs);
         } catch (Exception ex) {
             System.err.println(ex);
         }
@@ -57,18 +64,30 @@ public class TraceMain {
         return CPU.getValue();
     }
 
+    public static int threadsOption() {
+        return THREADS.getValue();
+    }
+
     public static String getTraceFileName() {
         return TRACE_FILE.getValue();
     }
 
-    private static void doStuff(List<TraceElement> traces, String[] args) throws Exception {
+    private static void doStuff(String[] args) throws Exception {
         final String commandName = COMMAND.getValue();
         if (commandName == null) {
             return;
         }
         final Class<?> klass = Class.forName("com.sun.max.ve.tools.trace.cmds." + commandName + "Command");
         final Command command = (Command) klass.newInstance();
-        command.doIt(traces, args);
+        if (command instanceof StreamingCommand) {
+            final StreamingCommand streamingCommand = (StreamingCommand) command;
+            streamingCommand.begin(args);
+            TraceReader.streamTrace(streamingCommand);
+            streamingCommand.end();
+        } else {
+            final List<TraceElement> traces = TraceReader.readTrace();
+            command.doIt(traces, args);
+        }
     }
 
 
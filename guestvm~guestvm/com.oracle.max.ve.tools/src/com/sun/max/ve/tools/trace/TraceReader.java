@@ -28,6 +28,10 @@ package com.sun.max.ve.tools.trace;
  *
  * Timestamp CPU Thread Command args
  *
+ * The trace file may also be in the binary form written by {@link BinaryTraceWriter}; the form is
+ * detected from the start of the file. Traces can either be read into a list, or streamed
+ * to a {@link TraceVisitor} without retaining them.
+ *
  * @author Mick Jordan
  *
  */
@@ -37,64 +41,80 @@ import java.util.*;
 
 public class TraceReader {
 
+    static final int BUFFER_SIZE = 1024 * 1024;
+
     private static final Map<String, TraceKind> _traceKindMap = new HashMap<String, TraceKind>();
     private static TraceElement _last;
-     /**
-     * @param args
-     */
-    public static List<TraceElement> readTrace() throws Exception {
-        java.io.BufferedReader reader = null;
-        try {
-            reader =  new BufferedReader(new FileReader(TraceMain.getTraceFileName()));
-            initialize();
-            return processTrace(reader);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException ex) {
-                }
-            }
+
+    static {
+        for (TraceKind traceKind : TraceKind.values()) {
+            _traceKindMap.put(traceKind.name(), traceKind);
         }
     }
 
-    private static List<TraceElement> processTrace(BufferedReader reader) throws Exception {
+    public static List<TraceElement> readTrace() throws Exception {
         final List<TraceElement> result = new ArrayList<TraceElement>();
-        int lineCount = 0;
-        while (true) {
-            final String line = reader.readLine();
-            lineCount++;
-            if (line == null) {
-                break;
+        streamTrace(new TraceVisitor() {
+            public void visit(TraceElement traceElement) {
+                result.add(traceElement);
             }
-            if (line.length() == 0) {
-                continue;
-            }
-            final String[] parts = line.split(" ");
-            final String traceName = parts[TraceKind.TKX];
-            final TraceKind traceKind = _traceKindMap.get(traceName);
+        });
+        return result;
+    }
 
-            TraceElement traceElement;
-            if (traceKind == null) {
-                traceElement = TraceKind.USER.process(parts);
-            } else {
-                traceElement = traceKind.process(parts);
+    /**
+     * Reads the trace file, passing each element to {@code visitor} as it is read.
+     */
+    public static void streamTrace(TraceVisitor visitor) throws Exception {
+        final TraceIterator iter = open(TraceMain.getTraceFileName());
+        try {
+            while (iter.hasNext()) {
+                visitor.visit(iter.next());
+            }
+        } finally {
+            try {
+                iter.close();
+            } catch (IOException ex) {
             }
-            result.add(traceElement);
-            _last = traceElement;
         }
-        return result;
     }
 
-    public static TraceElement lastTrace() {
-        return _last;
+    /**
+     * Opens a trace file in either the text or the binary form.
+     */
+    public static TraceIterator open(String fileName) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE);
+        try {
+            in.mark(BinaryTraceWriter.MAGIC.length);
+            boolean binary = true;
+            for (int i = 0; i < BinaryTraceWriter.MAGIC.length; i++) {
+                if (in.read() != BinaryTraceWriter.MAGIC[i]) {
+                    binary = false;
+                    break;
+                }
+            }
+            in.reset();
+            return binary ? new TraceIterator.Binary(in) : new TraceIterator.Text(in);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
     }
 
-    private static void initialize() {
-        for (TraceKind traceKind : TraceKind.values()) {
-            _traceKindMap.put(traceKind.name(), traceKind);
+    static TraceElement createTraceElement(String[] parts) {
+        final TraceKind traceKind = _traceKindMap.get(parts[TraceKind.TKX]);
+        TraceElement traceElement;
+        if (traceKind == null) {
+            traceElement = TraceKind.USER.process(parts);
+        } else {
+            traceElement = traceKind.process(parts);
         }
+        _last = traceElement;
+        return traceElement;
+    }
 
+    public static TraceElement lastTrace() {
+        return _last;
     }
 
 }
@@ -22,6 +22,7 @@
  */
 package com.sun.max.ve.tools.trace.cmds.cpu;
 
+import java.io.*;
 import java.util.*;
 
 import com.sun.max.ve.tools.trace.CPUState;
@@ -39,21 +40,27 @@ public class CPUTimeLineCommand extends CommandHelper implements Command {
     private static final String SUMMARY = "summary";
 
     @Override
-    public void doIt(List<TraceElement> traces, String[] args) throws Exception {
+    public void doIt(final List<TraceElement> traces, String[] args) throws Exception {
         final boolean summary = booleanArgValue(args, SUMMARY);
         final int cpu = TraceMain.CPU.getValue();
         checkTimeFormat(args);
         if (cpu < 0) {
+            final List<Integer> cpus = new ArrayList<Integer>();
             for (int c = 0; c < TraceElement.getCpus(); c++) {
-                process(traces, c, summary);
+                cpus.add(c);
             }
+            processPartitions(cpus, new PartitionTask() {
+                public void process(int c, PrintStream out) {
+                    CPUTimeLineCommand.this.process(traces, c, summary, out);
+                }
+            });
         } else {
-            process(traces, cpu, summary);
+            process(traces, cpu, summary, System.out);
         }
 
     }
 
-    private void process(List<TraceElement> traces, int id, boolean summary) {
+    private void process(List<TraceElement> traces, int id, boolean summary, PrintStream out) {
         final List<CPUStateDuration> history = new ArrayList<CPUStateDuration>();
         CPUStateDuration current = null;
         for (TraceElement trace : traces) {
@@ -83,17 +90,17 @@ public class CPUTimeLineCommand extends CommandHelper implements Command {
             totals[i] = 0;
         }
 
-        System.out.println("Timeline for CPU " + id);
+        out.println("Timeline for CPU " + id);
         for (CPUStateDuration sd : history) {
             if (!summary) {
-                System.out.print(sd.getState().name());
-                System.out.println(" " + sd.getStart() + " " + sd.getStop() + " (" + (sd.getStop() - sd.getStart()) + ")");
+                out.print(sd.getState().name());
+                out.println(" " + sd.getStart() + " " + sd.getStop() + " (" + (sd.getStop() - sd.getStart()) + ")");
             }
             totals[sd.getState().ordinal()] += sd.getStop() - sd.getStart();
         }
-        System.out.print("Summary:");
-        System.out.print(" RUNNING " + TimeFormat.byKind(totals[CPUState.RUNNING.ordinal()], _timeFormat));
-        System.out.println(" IDLE " + TimeFormat.byKind(totals[CPUState.IDLE.ordinal()], _timeFormat));
+        out.print("Summary:");
+        out.print(" RUNNING " + TimeFormat.byKind(totals[CPUState.RUNNING.ordinal()], _timeFormat));
+        out.println(" IDLE " + TimeFormat.byKind(totals[CPUState.IDLE.ordinal()], _timeFormat));
     }
 
     private CPUStateDuration newCPUStateDuration(CPUStateDuration oldCPUStateDuration, CPUState state, TraceElement traceElement, List<CPUStateDuration> history) {
@@ -25,24 +25,33 @@ package com.sun.max.ve.tools.trace.cmds.memory;
 import java.util.List;
 
 import com.sun.max.ve.tools.trace.AllocPagesTraceElement;
-import com.sun.max.ve.tools.trace.Command;
 import com.sun.max.ve.tools.trace.CommandHelper;
+import com.sun.max.ve.tools.trace.StreamingCommand;
 import com.sun.max.ve.tools.trace.TraceElement;
 
 
-public class PagePoolCommand extends CommandHelper implements Command {
+public class PagePoolCommand extends CommandHelper implements StreamingCommand {
+    private int maxHwm;
 
     @Override
     public void doIt(List<TraceElement> traces, String[] args) throws Exception {
-        int maxHwm = 0;
-        for (TraceElement te : traces) {
-            if (te instanceof AllocPagesTraceElement) {
-                final AllocPagesTraceElement apte = (AllocPagesTraceElement) te;
-                if (apte.getHwmAllocPage() > maxHwm) {
-                    maxHwm = apte.getHwmAllocPage();
-                }
+        visitAll(this, traces, args);
+    }
+
+    public void begin(String[] args) {
+        maxHwm = 0;
+    }
+
+    public void visit(TraceElement te) {
+        if (te instanceof AllocPagesTraceElement) {
+            final AllocPagesTraceElement apte = (AllocPagesTraceElement) te;
+            if (apte.getHwmAllocPage() > maxHwm) {
+                maxHwm = apte.getHwmAllocPage();
             }
         }
+    }
+
+    public void end() {
         System.out.println("max hwm " + maxHwm);
     }
 
@@ -25,21 +25,27 @@ package com.sun.max.ve.tools.trace.cmds.misc;
 import java.io.*;
 import java.util.List;
 
-import com.sun.max.ve.tools.trace.Command;
 import com.sun.max.ve.tools.trace.CommandHelper;
+import com.sun.max.ve.tools.trace.StreamingCommand;
 import com.sun.max.ve.tools.trace.TraceElement;
 import com.sun.max.ve.tools.trace.TraceMain;
 
-public class SplitCommand extends CommandHelper implements Command {
+public class SplitCommand extends CommandHelper implements StreamingCommand {
     private static final String OUT_TRACE_FILE = "outfile=";
+    private int cpu;
+    private PrintStream wr;
 
     @Override
     public void doIt(List<TraceElement> traces, String[] args) throws Exception {
-        final int cpu = TraceMain.cpuOption();
+        visitAll(this, traces, args);
+    }
+
+    public void begin(String[] args) {
+        cpu = TraceMain.cpuOption();
+        wr = null;
         if (cpu < 0) {
             // TODO split all CPUs
         } else {
-            PrintStream wr = null;
             final String outFile = outFile(args);
             try {
                 if (outFile == null) {
@@ -47,21 +53,24 @@ public class SplitCommand extends CommandHelper implements Command {
                 } else {
                     wr = new PrintStream(new FileOutputStream(outFile));
                 }
-                for (TraceElement traceElement : traces) {
-                    if (cpu == traceElement.getCpu()) {
-                        wr.println(traceElement);
-                    }
-                }
             } catch (Exception ex) {
                 System.err.println(ex);
-            } finally {
-                if (wr != null && wr != System.out) {
-                    wr.close();
-                }
             }
         }
     }
 
+    public void visit(TraceElement traceElement) {
+        if (wr != null && cpu == traceElement.getCpu()) {
+            wr.println(traceElement);
+        }
+    }
+
+    public void end() {
+        if (wr != null && wr != System.out) {
+            wr.close();
+        }
+    }
+
     private String outFile(String[] args) {
         return stringArgValue(args, OUT_TRACE_FILE);
     }
@@ -24,8 +24,8 @@ package com.sun.max.ve.tools.trace.cmds.misc;
 
 import java.util.*;
 
-import com.sun.max.ve.tools.trace.Command;
 import com.sun.max.ve.tools.trace.CommandHelper;
+import com.sun.max.ve.tools.trace.StreamingCommand;
 import com.sun.max.ve.tools.trace.TimeFormat;
 import com.sun.max.ve.tools.trace.TraceElement;
 import com.sun.max.ve.tools.trace.TraceKind;
@@ -39,34 +39,46 @@ import com.sun.max.ve.tools.trace.UserTraceElement;
  *
  */
 
-public class UserElementTimeCommand extends CommandHelper implements Command {
+public class UserElementTimeCommand extends CommandHelper implements StreamingCommand {
     private static final String USER_TRACE = "user=";
 
+    private List<Long> durations;
+    private TimeFormat.Kind kind;
+    private String enterName;
+    private String exitName;
+    private long start;
+
     @Override
     public void doIt(List<TraceElement> traces, String[] args) throws Exception {
-        final List<Long> durations = new ArrayList<Long>();
+        visitAll(this, traces, args);
+    }
+
+    public void begin(String[] args) throws Exception {
+        durations = new ArrayList<Long>();
         final String userTrace = stringArgValue(args, USER_TRACE);
         if (userTrace == null) {
             throw new Exception("user trace name missing");
         }
-        final TimeFormat.Kind kind = TimeFormat.checkFormat(args);
-        final String enterName = userTrace + "_ENTER";
-        final String exitName = userTrace + "_EXIT";
+        kind = TimeFormat.checkFormat(args);
+        enterName = userTrace + "_ENTER";
+        exitName = userTrace + "_EXIT";
+        start = 0;
+    }
 
+    public void visit(TraceElement trace) {
         // This does not handle nesting.
-        long start = 0;
-        for (TraceElement trace : traces) {
-            if (trace.getTraceKind() == TraceKind.USER) {
-                final UserTraceElement utrace = (UserTraceElement) trace;
-                if (utrace.getName().equals(enterName)) {
-                    start = utrace.getTimestamp();
-                } else if (utrace.getName().equals(exitName)) {
-                    durations.add(utrace.getTimestamp() - start);
-                    start = 0;
-                }
+        if (trace.getTraceKind() == TraceKind.USER) {
+            final UserTraceElement utrace = (UserTraceElement) trace;
+            if (utrace.getName().equals(enterName)) {
+                start = utrace.getTimestamp();
+            } else if (utrace.getName().equals(exitName)) {
+                durations.add(utrace.getTimestamp() - start);
+                start = 0;
             }
         }
+    }
 
+    public void end() {
         long sum = 0;
         long max = 0;
         long min = Long.MAX_VALUE;
@@ -24,39 +24,51 @@ package com.sun.max.ve.tools.trace.cmds.sched;
 
 import java.util.List;
 
-import com.sun.max.ve.tools.trace.Command;
 import com.sun.max.ve.tools.trace.CommandHelper;
+import com.sun.max.ve.tools.trace.StreamingCommand;
 import com.sun.max.ve.tools.trace.ThreadSwitchTraceElement;
 import com.sun.max.ve.tools.trace.TimeFormat;
 import com.sun.max.ve.tools.trace.TraceElement;
 import com.sun.max.ve.tools.trace.TraceKind;
 
 
-public class SchedStatsCommand extends CommandHelper implements Command {
+public class SchedStatsCommand extends CommandHelper implements StreamingCommand {
+    private long max;
+    private long min;
+    private long sum;
+    private int calls;
+    private ThreadSwitchTraceElement mts;
 
     @Override
     public void doIt(List<TraceElement> traces, String[] args) throws Exception {
+        visitAll(this, traces, args);
+    }
+
+    public void begin(String[] args) {
         checkTimeFormat(args);
-        long max = 0;
-        long min = Long.MAX_VALUE;
-        long sum = 0;
-        int calls = 0;
-        ThreadSwitchTraceElement mts = null;
-        for (TraceElement t : traces) {
-            if (t.getTraceKind() == TraceKind.TS) {
-                final ThreadSwitchTraceElement ts = (ThreadSwitchTraceElement) t;
-                calls++;
-                final long schedTime = ts.getSchedTime();
-                sum += schedTime;
-                if (schedTime > max) {
-                    max = schedTime;
-                    mts = ts;
-                } else if (schedTime < min) {
-                    min = schedTime;
-                }
+        max = 0;
+        min = Long.MAX_VALUE;
+        sum = 0;
+        calls = 0;
+        mts = null;
+    }
+
+    public void visit(TraceElement t) {
+        if (t.getTraceKind() == TraceKind.TS) {
+            final ThreadSwitchTraceElement ts = (ThreadSwitchTraceElement) t;
+            calls++;
+            final long schedTime = ts.getSchedTime();
+            sum += schedTime;
+            if (schedTime > max) {
+                max = schedTime;
+                mts = ts;
+            } else if (schedTime < min) {
+                min = schedTime;
             }
         }
+    }
 
+    public void end() {
         System.out.println("Schedule stats: calls: " + calls + ", avg: " + TimeFormat.byKind(sum / calls, _timeFormat) +
                         ", min: " + TimeFormat.byKind(min, _timeFormat) + ", max: " + TimeFormat.byKind(max, _timeFormat));
         System.out.println("max element: " + mts);
@@ -22,6 +22,7 @@
  */
 package com.sun.max.ve.tools.trace.cmds.thread;
 
+import java.io.*;
 import java.util.List;
 
 import com.sun.max.ve.tools.trace.Command;
@@ -44,18 +45,20 @@ public class ThreadLifeTimeCommand extends CommandHelper implements Command {
     private static final String THREAD_ID = "id=";
 
     @Override
-    public void doIt(List<TraceElement> traces, String[] args) throws Exception {
+    public void doIt(final List<TraceElement> traces, String[] args) throws Exception {
         final String id = stringArgValue(args, THREAD_ID);
         if (id == null) {
-            for (CreateThreadTraceElement te : CreateThreadTraceElement.getThreadIterable()) {
-                process(traces, te.getId());
-            }
+            processPartitions(threadIds(), new PartitionTask() {
+                public void process(int threadId, PrintStream out) {
+                    ThreadLifeTimeCommand.this.process(traces, threadId, out);
+                }
+            });
         } else {
-            process(traces, Integer.parseInt(id));
+            process(traces, Integer.parseInt(id), System.out);
         }
     }
 
-    private void process(List<TraceElement> traces, int id) {
+    private void process(List<TraceElement> traces, int id, PrintStream out) {
         long createTime = -1;
         long exitTime = -1;
         long destroyTime = -1;
@@ -84,20 +87,20 @@ public class ThreadLifeTimeCommand extends CommandHelper implements Command {
         }
 
         if (createTime >= 0) {
-            System.out.print("Thread " + id + " (" + name + ") created at " + createTime + ", on cpu " + cpu);
+            out.print("Thread " + id + " (" + name + ") created at " + createTime + ", on cpu " + cpu);
             if (exitTime < 0) {
-                System.out.println(" not exited");
+                out.println(" not exited");
             } else {
-                System.out.print(" exited at " + exitTime + ", lifetime " + (exitTime - createTime));
+                out.print(" exited at " + exitTime + ", lifetime " + (exitTime - createTime));
                 if (destroyTime > 0) {
-                    System.out.print(", reaped at " + destroyTime);
+                    out.print(", reaped at " + destroyTime);
                 } else {
-                    System.out.print(", not reaped");
+                    out.print(", not reaped");
                 }
-                System.out.println();
+                out.println();
             }
         } else {
-            System.out.println("thread " + id + " not found");
+            out.println("thread " + id + " not found");
         }
     }
 }
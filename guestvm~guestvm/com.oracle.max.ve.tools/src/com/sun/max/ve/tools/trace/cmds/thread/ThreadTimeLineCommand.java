@@ -22,11 +22,11 @@
  */
 package com.sun.max.ve.tools.trace.cmds.thread;
 
+import java.io.*;
 import java.util.*;
 
 import com.sun.max.ve.tools.trace.Command;
 import com.sun.max.ve.tools.trace.CommandHelper;
-import com.sun.max.ve.tools.trace.CreateThreadTraceElement;
 import com.sun.max.ve.tools.trace.ThreadState;
 import com.sun.max.ve.tools.trace.ThreadStateInterval;
 import com.sun.max.ve.tools.trace.TimeFormat;
@@ -47,47 +47,49 @@ public class ThreadTimeLineCommand extends CommandHelper implements Command {
     private static final String SUMMARY = "summary";
 
     @Override
-    public void doIt(List<TraceElement> traces, String[] args) throws Exception {
+    public void doIt(final List<TraceElement> traces, String[] args) throws Exception {
         final String id = stringArgValue(args, THREAD_ID);
         final boolean summary = booleanArgValue(args, SUMMARY);
         checkTimeFormat(args);
         if (id == null) {
-            for (CreateThreadTraceElement te : CreateThreadTraceElement.getThreadIterable()) {
-                process(traces, te.getId(), summary);
-            }
+            processPartitions(threadIds(), new PartitionTask() {
+                public void process(int threadId, PrintStream out) {
+                    ThreadTimeLineCommand.this.process(traces, threadId, summary, out);
+                }
+            });
         } else {
-            process(traces, Integer.parseInt(id), summary);
+            process(traces, Integer.parseInt(id), summary, System.out);
         }
     }
 
-    private void process(List<TraceElement> traces, int id, boolean summary) {
+    private void process(List<TraceElement> traces, int id, boolean summary, PrintStream out) {
         final List<ThreadStateInterval> history = ThreadStateInterval.createIntervals(traces, id);
         final long[] totals = new long[ThreadState.values().length];
         for (int i = 0; i < totals.length; i++) {
             totals[i] = 0;
         }
         if (!summary) {
-            System.out.println("\nTimeline for thread " + id);
+            out.println("\nTimeline for thread " + id);
         }
         for (ThreadStateInterval threadStateInterval : history) {
             if (!summary) {
-                System.out.print(threadStateInterval.getState().name());
+                out.print(threadStateInterval.getState().name());
                 if (threadStateInterval.getState() == ThreadState.ONCPU) {
-                    System.out.print(" " + threadStateInterval.getCpu());
+                    out.print(" " + threadStateInterval.getCpu());
                 }
-                System.out.println(" " + threadStateInterval.getStart() + " " + threadStateInterval.getEnd() + " (" + (threadStateInterval.getEnd() - threadStateInterval.getStart()) + ")");
+                out.println(" " + threadStateInterval.getStart() + " " + threadStateInterval.getEnd() + " (" + (threadStateInterval.getEnd() - threadStateInterval.getStart()) + ")");
             }
             totals[threadStateInterval.getState().ordinal()] += threadStateInterval.getEnd() - threadStateInterval.getStart();
         }
-        System.out.print("Totals for thread " + id);
-        System.out.print(": TOTAL " + TimeFormat.byKind(ThreadStateInterval.intervalLength(history), _timeFormat));
-        System.out.print(", ONCPU " + TimeFormat.byKind(totals[ThreadState.ONCPU.ordinal()], _timeFormat));
-        System.out.print(", OFFCPU " + TimeFormat.byKind(totals[ThreadState.OFFCPU.ordinal()], _timeFormat));
-        System.out.print(", BLOCKED " + TimeFormat.byKind(totals[ThreadState.BLOCKED.ordinal()], _timeFormat));
-        System.out.println(", INSCHED " + TimeFormat.byKind(totals[ThreadState.INSCHED.ordinal()], _timeFormat));
+        out.print("Totals for thread " + id);
+        out.print(": TOTAL " + TimeFormat.byKind(ThreadStateInterval.intervalLength(history), _timeFormat));
+        out.print(", ONCPU " + TimeFormat.byKind(totals[ThreadState.ONCPU.ordinal()], _timeFormat));
+        out.print(", OFFCPU " + TimeFormat.byKind(totals[ThreadState.OFFCPU.ordinal()], _timeFormat));
+        out.print(", BLOCKED " + TimeFormat.byKind(totals[ThreadState.BLOCKED.ordinal()], _timeFormat));
+        out.println(", INSCHED " + TimeFormat.byKind(totals[ThreadState.INSCHED.ordinal()], _timeFormat));
         final long extra = unaccounted(totals, ThreadStateInterval.intervalLength(history));
         if (extra != 0) {
-            System.out.println("** UNACCOUNTED: " + extra);
+            out.println("** UNACCOUNTED: " + extra);
         }
     }
 
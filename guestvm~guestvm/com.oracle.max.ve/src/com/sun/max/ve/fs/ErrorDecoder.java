@@ -38,7 +38,9 @@ public class ErrorDecoder {
         EBADF(9, "Bad file number"),
         EAGAIN(11, "Resource temporarily unavailable"),
         EACCES(13, "Permission denied"),
+        EMFILE(24, "Too many open files"),
         EISDIR(21, "Is a directory"),
+        EFBIG(27, "File too large"),
         EROFS(30, "Read only file system"),
         EPIPE(32, "Broken pipe");
 
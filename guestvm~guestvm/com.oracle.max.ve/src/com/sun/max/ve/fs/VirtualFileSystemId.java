@@ -36,16 +36,38 @@ import com.sun.max.annotate.*;
  * The file descriptors 0, 1 and 2 are predefined globally; therefore the first entry in the table
  * must be the file system that supports these standard descriptors.
  *
+ * A file system may return file descriptors above {@link #MAX_FD}, using the bits above it, up to
+ * {@link #MAX_TAG}, as a tag, e.g., to detect the use of a stale file descriptor. The tag is held in the
+ * bits of the unique fd above the file system instance id, up to but excluding the sign bit, and is
+ * restored by {@link #getFd(int)}, so the file system sees the tagged file descriptor it returned.
+ *
  * @author Mick Jordan
  *
  */
 
 public final class VirtualFileSystemId {
 
-    private static VirtualFileSystem[] _fsTable = new VirtualFileSystem[16];
+    /**
+     * The maximum number of file system instances.
+     */
+    public static final int MAX_VFS = 16;
+    /**
+     * The largest fd that a file system may return, excluding any tag.
+     */
+    public static final int MAX_FD = 0xFFFF;
+    /**
+     * The position of the tag in a unique fd.
+     */
+    public static final int TAG_SHIFT = 20;
+    /**
+     * The largest tag that a file system may use.
+     */
+    public static final int MAX_TAG = 0x7FF;
+
+    private static VirtualFileSystem[] _fsTable = new VirtualFileSystem[MAX_VFS];
     private static int _nextFreeIndex = 0;
 
-    private static int getVfsId(VirtualFileSystem fs) {
+    private static synchronized int getVfsId(VirtualFileSystem fs) {
         for (int i = 0; i < _nextFreeIndex; i++) {
             if (_fsTable[i] == fs) {
                 return i;
@@ -56,29 +78,37 @@ public final class VirtualFileSystemId {
     }
 
     public static int getUniqueFd(VirtualFileSystem fs, int fd) {
-        return (getVfsId(fs) << 16) | fd;
+        return (((fd >> 16) & MAX_TAG) << TAG_SHIFT) | (getVfsId(fs) << 16) | (fd & MAX_FD);
     }
 
     public static VirtualFileSystem getVfs(int uniqueFd)  throws IOException {
         if (uniqueFd < 0) {
             throw new IOException(ErrorDecoder.Code.EBADF.getMessage());
         }
-        return _fsTable[uniqueFd >> 16];
+        return _fsTable[getVfsId(uniqueFd)];
     }
 
     @INLINE
     public static VirtualFileSystem getVfsUnchecked(int uniqueFd) {
-        return _fsTable[uniqueFd >> 16];
+        return _fsTable[getVfsId(uniqueFd)];
     }
 
+    /**
+     * Returns the file system's own file descriptor, including any tag.
+     */
     @INLINE
     public static int getFd(int uniqueFd) {
-        return uniqueFd & 0xFFFF;
+        return (getTag(uniqueFd) << 16) | (uniqueFd & MAX_FD);
     }
 
     @INLINE
     public static int getVfsId(int uniqueFd) {
-        return uniqueFd >> 16;
+        return (uniqueFd >> 16) & (MAX_VFS - 1);
+    }
+
+    @INLINE
+    public static int getTag(int uniqueFd) {
+        return (uniqueFd >> TAG_SHIFT) & MAX_TAG;
     }
 
     private VirtualFileSystemId() {
@@ -22,53 +22,76 @@
  */
 package com.sun.max.ve.fs;
 
-import java.util.*;
+import java.util.concurrent.atomic.*;
 import com.sun.max.annotate.*;
 
 /**
  * Common support for handling the fileoffset value in an open file.
  *
+ * Offsets are held in a table indexed directly by the unique fd, i.e., by {@link VirtualFileSystemId#getVfsId(int) vfs id}
+ * and then {@link VirtualFileSystemId#getFd(int) fd}, less any tag. The per-vfs part is divided into fixed size segments that are
+ * created on first use and never moved, so lookups need no locking and updates are atomic.
+ *
  * @author Mick Jordan
  *
  */
 public class VirtualFileSystemOffset {
 
-    private static Map<Integer, Value> _table = new HashMap<Integer, Value>();
+    private static final int SEGMENT_SHIFT = 8;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int SEGMENTS = (VirtualFileSystemId.MAX_FD + 1) >> SEGMENT_SHIFT;
+
+    private static final AtomicLongArray[][] _table = new AtomicLongArray[VirtualFileSystemId.MAX_VFS][];
 
     public static long get(int fd) {
-        return getValue(fd)._offset;
+        return getSegment(fd).get(fd & SEGMENT_MASK);
     }
 
     public static void inc(int fd) {
-        getValue(fd)._offset++;
+        getSegment(fd).incrementAndGet(fd & SEGMENT_MASK);
     }
 
-    // Checkstyle: stop indentation check
     public static void add(int fd, long incr) {
-        getValue(fd)._offset += incr;
+        getSegment(fd).addAndGet(fd & SEGMENT_MASK, incr);
     }
 
     public static void set(int fd, long offset) {
-        getValue(fd)._offset = offset;
+        getSegment(fd).set(fd & SEGMENT_MASK, offset);
     }
-    // Checkstyle: resume indentation check
 
+    /**
+     * Resets the offset for a closed fd, so that it starts at zero when the fd is reused.
+     */
     public static void remove(int fd) {
-        _table.remove(fd);
+        getSegment(fd).set(fd & SEGMENT_MASK, 0);
     }
 
     @INLINE
-    static Value getValue(int fd) {
-        Value v = _table.get(fd);
-        if (v == null) {
-            v = new Value();
-            _table.put(fd, v);
+    private static AtomicLongArray getSegment(int fd) {
+        final AtomicLongArray[] segments = _table[VirtualFileSystemId.getVfsId(fd)];
+        if (segments != null) {
+            final AtomicLongArray segment = segments[(fd & VirtualFileSystemId.MAX_FD) >> SEGMENT_SHIFT];
+            if (segment != null) {
+                return segment;
+            }
         }
-        return v;
+        return createSegment(fd);
     }
 
-    static class Value {
-
-        long _offset;
+    private static synchronized AtomicLongArray createSegment(int fd) {
+        final int vfsId = VirtualFileSystemId.getVfsId(fd);
+        AtomicLongArray[] segments = _table[vfsId];
+        if (segments == null) {
+            segments = new AtomicLongArray[SEGMENTS];
+            _table[vfsId] = segments;
+        }
+        final int index = (fd & VirtualFileSystemId.MAX_FD) >> SEGMENT_SHIFT;
+        AtomicLongArray segment = segments[index];
+        if (segment == null) {
+            segment = new AtomicLongArray(SEGMENT_SIZE);
+            segments[index] = segment;
+        }
+        return segment;
     }
 }
@@ -22,6 +22,8 @@
  */
 package com.sun.max.ve.fs.exec;
 
+import java.nio.ByteBuffer;
+
 import com.sun.max.ve.fs.VirtualFileSystem;
 import com.sun.max.ve.guk.GUKExec;
 
@@ -65,4 +67,14 @@ public class ExecFileSystem extends ExecHelperFileSystem implements VirtualFileS
     public int writeBytes(int fd, byte[] bytes, int offset, int length, long fileOffset) {
         return GUKExec.writeBytes(fd, bytes, offset, length, fileOffset);
     }
+
+    @Override
+    public int readBytes(int fd, ByteBuffer bb, long fileOffset) {
+        return GUKExec.readBytes(fd, bb, fileOffset);
+    }
+
+    @Override
+    public int writeBytes(int fd, ByteBuffer bb, long fileOffset) {
+        return GUKExec.writeBytes(fd, bb, fileOffset);
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.fs.heap;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.sun.max.memory.*;
+import com.sun.max.unsafe.*;
+import com.sun.max.ve.guk.*;
+
+/**
+ * A fixed size extent of a {@link HeapFileSystem} file, either a Java byte array or a run of pages from the
+ * {@link GUKPagePool}. Offsets are relative to the start of the chunk and callers never cross a chunk boundary.
+ * Bytes that have never been written read as zero.
+ *
+ * Chunks are allocated and freed through the static methods, which keep the space accounting. Pages cannot be
+ * returned to the page pool, so freed page chunks are kept on a free list for reuse.
+ *
+ * @author Mick Jordan
+ *
+ */
+abstract class Chunk {
+
+    static final int SHIFT = 14;
+    static final int SIZE = 1 << SHIFT;
+    static final int MASK = SIZE - 1;
+
+    static final String OFF_HEAP_PROPERTY = "max.ve.fs.heap.offheap";
+
+    private static boolean _initialized;
+    private static boolean _offHeap;
+    private static final List<PageChunk> _freePages = new ArrayList<PageChunk>();
+    /**
+     * Bytes allocated to chunks in use.
+     */
+    private static long _allocated;
+
+    /**
+     * Allocates a chunk that will be written at {@code [0, capacity)}.
+     */
+    static synchronized Chunk allocate(int capacity) {
+        if (!_initialized) {
+            _offHeap = System.getProperty(OFF_HEAP_PROPERTY) != null;
+            _initialized = true;
+        }
+        Chunk result = null;
+        if (_offHeap) {
+            final int n = _freePages.size();
+            if (n > 0) {
+                final PageChunk chunk = _freePages.remove(n - 1);
+                chunk.clear(0, SIZE);
+                result = chunk;
+            } else {
+                final Pointer pages = GUKPagePool.allocatePages(SIZE / GUKPagePool.PAGE_SIZE, VirtualMemory.Type.DATA);
+                if (!pages.isZero()) {
+                    result = new PageChunk(pages);
+                    result.clear(0, SIZE);
+                }
+            }
+        }
+        if (result == null) {
+            // heap chunks start small, so that small files stay small
+            result = new HeapChunk(capacity);
+        }
+        _allocated += result.capacity();
+        return result;
+    }
+
+    static synchronized void free(Chunk chunk) {
+        _allocated -= chunk.capacity();
+        if (chunk instanceof PageChunk) {
+            _freePages.add((PageChunk) chunk);
+        }
+    }
+
+    static synchronized void grown(int delta) {
+        _allocated += delta;
+    }
+
+    static synchronized long allocated() {
+        return _allocated;
+    }
+
+    /**
+     * Bytes of off-heap memory held on the free list.
+     */
+    static synchronized long freeOffHeap() {
+        return (long) _freePages.size() * SIZE;
+    }
+
+    static boolean offHeap() {
+        return _offHeap;
+    }
+
+    /**
+     * The number of bytes of storage currently held.
+     */
+    abstract int capacity();
+
+    abstract int get(int offset);
+
+    abstract void put(int offset, int b);
+
+    abstract void read(int offset, byte[] bytes, int bytesOffset, int length);
+
+    abstract void write(int offset, byte[] bytes, int bytesOffset, int length);
+
+    /**
+     * Copies {@code length} bytes at {@code offset} to {@code bb}, advancing its position.
+     */
+    abstract void read(int offset, ByteBuffer bb, int length);
+
+    /**
+     * Copies {@code length} bytes from {@code bb}, advancing its position, to {@code offset}.
+     */
+    abstract void write(int offset, ByteBuffer bb, int length);
+
+    /**
+     * Sets {@code length} bytes at {@code offset} to zero.
+     */
+    abstract void clear(int offset, int length);
+
+    static final byte[] ZEROES = new byte[SIZE];
+
+    /**
+     * Puts {@code length} zero bytes to {@code bb}.
+     */
+    static void putZeroes(ByteBuffer bb, int length) {
+        bb.put(ZEROES, 0, length);
+    }
+}
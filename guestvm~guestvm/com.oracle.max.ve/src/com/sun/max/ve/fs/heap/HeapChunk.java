@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.fs.heap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A chunk held in a Java byte array. The array starts at the size of the first write, rounded up,
+ * and grows up to {@link Chunk#SIZE} as the chunk is written.
+ *
+ * @author Mick Jordan
+ *
+ */
+final class HeapChunk extends Chunk {
+
+    private static final int MIN_CAPACITY = 512;
+
+    private byte[] _data;
+
+    HeapChunk(int capacity) {
+        _data = new byte[roundUp(capacity)];
+    }
+
+    private static int roundUp(int capacity) {
+        int n = MIN_CAPACITY;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        return n > SIZE ? SIZE : n;
+    }
+
+    private void ensureCapacity(int end) {
+        if (end > _data.length) {
+            final int newLength = roundUp(end);
+            Chunk.grown(newLength - _data.length);
+            _data = Arrays.copyOf(_data, newLength);
+        }
+    }
+
+    /**
+     * The number of bytes from {@code offset} that are backed by the array.
+     */
+    private int backed(int offset, int length) {
+        final int n = _data.length - offset;
+        return n <= 0 ? 0 : (n < length ? n : length);
+    }
+
+    @Override
+    int capacity() {
+        return _data.length;
+    }
+
+    @Override
+    int get(int offset) {
+        return offset < _data.length ? _data[offset] & 0xFF : 0;
+    }
+
+    @Override
+    void put(int offset, int b) {
+        ensureCapacity(offset + 1);
+        _data[offset] = (byte) b;
+    }
+
+    @Override
+    void read(int offset, byte[] bytes, int bytesOffset, int length) {
+        final int n = backed(offset, length);
+        if (n > 0) {
+            System.arraycopy(_data, offset, bytes, bytesOffset, n);
+        }
+        if (n < length) {
+            Arrays.fill(bytes, bytesOffset + n, bytesOffset + length, (byte) 0);
+        }
+    }
+
+    @Override
+    void write(int offset, byte[] bytes, int bytesOffset, int length) {
+        ensureCapacity(offset + length);
+        System.arraycopy(bytes, bytesOffset, _data, offset, length);
+    }
+
+    @Override
+    void read(int offset, ByteBuffer bb, int length) {
+        final int n = backed(offset, length);
+        if (n > 0) {
+            bb.put(_data, offset, n);
+        }
+        if (n < length) {
+            putZeroes(bb, length - n);
+        }
+    }
+
+    @Override
+    void write(int offset, ByteBuffer bb, int length) {
+        ensureCapacity(offset + length);
+        bb.get(_data, offset, length);
+    }
+
+    @Override
+    void clear(int offset, int length) {
+        final int n = backed(offset, length);
+        if (n > 0) {
+            Arrays.fill(_data, offset, offset + n, (byte) 0);
+        }
+    }
+}
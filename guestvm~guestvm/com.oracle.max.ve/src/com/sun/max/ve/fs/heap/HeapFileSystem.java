@@ -23,14 +23,24 @@
 package com.sun.max.ve.fs.heap;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import com.sun.max.ve.fs.*;
+import com.sun.max.ve.guk.*;
 import com.sun.max.ve.jdk.*;
 
 /**
  * A heap-based file system for /tmp.
- * Single global lock protects everything accessed through public methods.
+ *
+ * File data is held in {@link Chunk chunks} of {@link Chunk#SIZE} bytes, indexed by file offset, so that
+ * access is constant time at any offset and files may exceed 2GB. Chunks that have never been written are
+ * not allocated and read as zero. If the property {@value Chunk#OFF_HEAP_PROPERTY} is set, chunks are
+ * allocated from the page pool rather than the Java heap.
+ *
+ * The file system lock protects the directory hierarchy and the open file table. Reads and writes look up
+ * the open file without it, since the table is replaced rather than updated in place, and then synchronize
+ * only on the file itself, so access to different files proceeds in parallel.
  */
 
 public final class HeapFileSystem extends UnimplementedFileSystemImpl implements VirtualFileSystem {
@@ -40,9 +50,15 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
     private String _mountPath;
     private int _mountPathPrefixIndex;
     private SubDirEntry _root = new SubDirEntry(null);
-    private List<FileEntry> _openFiles = new ArrayList<FileEntry>();
+    /**
+     * Open files indexed by fd. Never updated in place; a changed copy is made under the file system lock and then published.
+     */
+    private volatile FileEntry[] _openFiles = new FileEntry[16];
     private static final int READ_WRITE = S_IREAD | S_IWRITE;
-    private static int _tmpSize;
+    /**
+     * Limit on file size imposed by the chunk index.
+     */
+    private static final long MAX_FILE_SIZE = (long) Integer.MAX_VALUE << Chunk.SHIFT;
 
     abstract static  class DirEntry {
         int _mode = READ_WRITE;
@@ -63,14 +79,17 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
 
     static class FileEntry extends DirEntry {
         static long _nextId = 0;
-        static final int FILE_BLOCK_SIZE = 1024;
-        static final int DIV_FILE_BLOCK_SIZE = 10;
-        static final int MOD_FILE_BLOCK_SIZE = FILE_BLOCK_SIZE - 1;
-        final List<byte[]> _blocks = new ArrayList<byte[]>();
-        long _size;
-        long _maxSize;
-        int _nextIndex;
+        /**
+         * Chunk {@code i} holds the bytes at {@code [i << Chunk.SHIFT, (i + 1) << Chunk.SHIFT)}; {@code null} reads as zero.
+         */
+        private Chunk[] _chunks = new Chunk[4];
+        volatile long _size;
         long _id;
+        /*
+         * These two are protected by the file system lock.
+         */
+        int _openCount;
+        boolean _unlinked;
 
         FileEntry() {
             _mode |= S_IFREG;
@@ -82,67 +101,164 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
             return true;
         }
 
-        void addCapacity(long fileOffset) {
-            while (fileOffset >= _maxSize) {
-                _blocks.add(_nextIndex++, new byte[FILE_BLOCK_SIZE]);
-                _maxSize += FILE_BLOCK_SIZE;
-                _tmpSize += FILE_BLOCK_SIZE;
+        private Chunk getChunk(int index) {
+            return index < _chunks.length ? _chunks[index] : null;
+        }
+
+        /**
+         * Returns the chunk at {@code index}, allocating it if necessary.
+         * @param end offset in the chunk of the end of the pending write
+         */
+        private Chunk ensureChunk(int index, int end) {
+            if (index >= _chunks.length) {
+                int newLength = _chunks.length << 1;
+                while (newLength <= index) {
+                    newLength <<= 1;
+                    if (newLength < 0) {
+                        newLength = Integer.MAX_VALUE;
+                    }
+                }
+                _chunks = Arrays.copyOf(_chunks, newLength);
+            }
+            Chunk chunk = _chunks[index];
+            if (chunk == null) {
+                chunk = Chunk.allocate(end);
+                _chunks[index] = chunk;
             }
+            return chunk;
         }
 
-        void write(int b, long fileOffset) {
-            final int index = (int) fileOffset >> DIV_FILE_BLOCK_SIZE;
-            final int offset = (int) fileOffset & MOD_FILE_BLOCK_SIZE;
-            // Checkstyle: stop indentation check
-            _blocks.get(index)[offset] = (byte) b;
-            // Checkstyle: resume indentation check
-            _size++;
+        private void written(long end) {
+            if (end > _size) {
+                _size = end;
+            }
+            _modified = System.currentTimeMillis();
         }
 
-        void writeBytes(byte[] bytes, int offset, int length, long fileOffset) {
-            int index = (int) fileOffset >> DIV_FILE_BLOCK_SIZE;
-            int blockoffset = (int) fileOffset & MOD_FILE_BLOCK_SIZE;
-            byte[] block = _blocks.get(index);
-            for (int i = 0; i < length; i++) {
-                if (blockoffset == FILE_BLOCK_SIZE) {
-                    blockoffset = 0;
-                    index++;
-                    block = _blocks.get(index);
-                }
-                block[blockoffset++] = bytes[offset + i];
+        synchronized int read(long fileOffset) {
+            if (fileOffset >= _size) {
+                return -1;
             }
-            _size += length;
+            final Chunk chunk = getChunk((int) (fileOffset >>> Chunk.SHIFT));
+            return chunk == null ? 0 : chunk.get((int) fileOffset & Chunk.MASK);
         }
 
-        int read(long fileOffset) {
+        synchronized int readBytes(byte[] bytes, int offset, int length, long fileOffset) {
             if (fileOffset >= _size) {
                 return -1;
-            } else {
-                final int index = (int) fileOffset >> DIV_FILE_BLOCK_SIZE;
-                final int offset = (int) fileOffset & MOD_FILE_BLOCK_SIZE;
-                return (int) _blocks.get(index)[offset] & 0xFF;
             }
+            final int result = (int) Math.min(length, _size - fileOffset);
+            long position = fileOffset;
+            int done = 0;
+            while (done < result) {
+                final int chunkOffset = (int) position & Chunk.MASK;
+                final int n = Math.min(result - done, Chunk.SIZE - chunkOffset);
+                final Chunk chunk = getChunk((int) (position >>> Chunk.SHIFT));
+                if (chunk == null) {
+                    Arrays.fill(bytes, offset + done, offset + done + n, (byte) 0);
+                } else {
+                    chunk.read(chunkOffset, bytes, offset + done, n);
+                }
+                done += n;
+                position += n;
+            }
+            return result;
         }
 
-        int readBytes(byte[] bytes, int offset, int length, long fileOffset) {
-            int index = (int) fileOffset >> DIV_FILE_BLOCK_SIZE;
-            int blockoffset = (int) fileOffset & MOD_FILE_BLOCK_SIZE;
-            if (index >= _blocks.size()) {
+        synchronized int readBytes(ByteBuffer bb, long fileOffset) {
+            if (fileOffset >= _size) {
                 return 0;
             }
-            byte[] block = _blocks.get(index);
-            for (int i = 0; i < length; i++) {
-                if (blockoffset == FILE_BLOCK_SIZE) {
-                    blockoffset = 0;
+            final int result = (int) Math.min(bb.remaining(), _size - fileOffset);
+            long position = fileOffset;
+            int done = 0;
+            while (done < result) {
+                final int chunkOffset = (int) position & Chunk.MASK;
+                final int n = Math.min(result - done, Chunk.SIZE - chunkOffset);
+                final Chunk chunk = getChunk((int) (position >>> Chunk.SHIFT));
+                if (chunk == null) {
+                    Chunk.putZeroes(bb, n);
+                } else {
+                    chunk.read(chunkOffset, bb, n);
+                }
+                done += n;
+                position += n;
+            }
+            return result;
+        }
+
+        synchronized void write(int b, long fileOffset) {
+            final int chunkOffset = (int) fileOffset & Chunk.MASK;
+            ensureChunk((int) (fileOffset >>> Chunk.SHIFT), chunkOffset + 1).put(chunkOffset, b);
+            written(fileOffset + 1);
+        }
+
+        synchronized void writeBytes(byte[] bytes, int offset, int length, long fileOffset) {
+            if (length == 0) {
+                return;
+            }
+            final long end = fileOffset + length;
+            long position = fileOffset;
+            int done = 0;
+            while (done < length) {
+                final int chunkOffset = (int) position & Chunk.MASK;
+                final int n = Math.min(length - done, Chunk.SIZE - chunkOffset);
+                ensureChunk((int) (position >>> Chunk.SHIFT), chunkOffset + n).write(chunkOffset, bytes, offset + done, n);
+                done += n;
+                position += n;
+            }
+            written(end);
+        }
+
+        synchronized int writeBytes(ByteBuffer bb, long fileOffset) {
+            final int length = bb.remaining();
+            if (length == 0) {
+                return 0;
+            }
+            final long end = fileOffset + length;
+            long position = fileOffset;
+            int done = 0;
+            while (done < length) {
+                final int chunkOffset = (int) position & Chunk.MASK;
+                final int n = Math.min(length - done, Chunk.SIZE - chunkOffset);
+                ensureChunk((int) (position >>> Chunk.SHIFT), chunkOffset + n).write(chunkOffset, bb, n);
+                done += n;
+                position += n;
+            }
+            written(end);
+            return length;
+        }
+
+        /**
+         * Sets the size of the file. Growing leaves a hole; shrinking frees the chunks beyond the new end
+         * and zeroes the remainder of the last one, so that a later extension reads as zero.
+         */
+        synchronized void setLength(long length) {
+            if (length < _size) {
+                int index = (int) (length >>> Chunk.SHIFT);
+                final int chunkOffset = (int) length & Chunk.MASK;
+                if (chunkOffset != 0) {
+                    final Chunk chunk = getChunk(index);
+                    if (chunk != null) {
+                        chunk.clear(chunkOffset, Chunk.SIZE - chunkOffset);
+                    }
                     index++;
-                    if (index == _blocks.size()) {
-                        return i;
+                }
+                for (int i = index; i < _chunks.length; i++) {
+                    if (_chunks[i] != null) {
+                        Chunk.free(_chunks[i]);
+                        _chunks[i] = null;
                     }
-                    block = _blocks.get(index);
                 }
-                bytes[offset + i] = block[blockoffset++];
             }
-            return length;
+            _size = length;
+        }
+
+        /**
+         * Releases all the storage of a file that has been deleted and closed.
+         */
+        synchronized void free() {
+            setLength(0);
         }
     }
 
@@ -209,7 +325,17 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
 
     @Override
     public synchronized int close0(int fd) {
-        _openFiles.set(fd, null);
+        final FileEntry[] openFiles = _openFiles;
+        if (fd < 0 || fd >= openFiles.length || openFiles[fd] == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        final FileEntry fe = openFiles[fd];
+        final FileEntry[] newOpenFiles = openFiles.clone();
+        newOpenFiles[fd] = null;
+        _openFiles = newOpenFiles;
+        if (--fe._openCount == 0 && fe._unlinked) {
+            fe.free();
+        }
         return 0;
     }
 
@@ -243,7 +369,10 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
                     // TODO permissions
                     final FileEntry fdd = (FileEntry) dd;
                     m._d._contents.remove(m._tail);
-                    _tmpSize -= fdd._maxSize;
+                    fdd._unlinked = true;
+                    if (fdd._openCount == 0) {
+                        fdd.free();
+                    }
                     return true;
                 } else {
                     // check empty (but remember . and ..)
@@ -293,17 +422,24 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
     public synchronized long getSpace(String path, int t) {
         switch (t) {
             case SPACE_TOTAL:
-                return Runtime.getRuntime().freeMemory() + _tmpSize;
+                return freeSpace() + Chunk.allocated();
             case SPACE_USABLE:
             case SPACE_FREE:
-                return Runtime.getRuntime().freeMemory();
+                return freeSpace();
             case SPACE_USED:
-                return _tmpSize;
+                return Chunk.allocated();
             default:
                 return 0;
         }
     }
 
+    private static long freeSpace() {
+        if (Chunk.offHeap()) {
+            return GUKPagePool.getFreePages() * GUKPagePool.PAGE_SIZE + Chunk.freeOffHeap();
+        }
+        return Runtime.getRuntime().freeMemory();
+    }
+
     @Override
     public synchronized String[] list(String path) {
         final Match m = match(path, true);
@@ -351,7 +487,7 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
                 // do we need to truncate?
                 if ((flags & O_TRUNC) != 0) {
                     ffe._modified = System.currentTimeMillis();
-                    ffe._size = 0;
+                    ffe.setLength(0);
                 }
             }
             return addFd((FileEntry) fe);
@@ -359,25 +495,30 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
     }
 
     @Override
-    public synchronized int read(int fd, long fileOffset) {
-        final FileEntry fe = _openFiles.get(fd);
+    public int read(int fd, long fileOffset) {
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
         return fe.read(fileOffset);
     }
 
     @Override
-    public synchronized int readBytes(int fd, byte[] bytes, int offset, int length,
-            long fileOffset) {
-        final FileEntry fe = _openFiles.get(fd);
-        if ((int) fileOffset >= fe._size) {
-            return -1;
-        }
-        if (length > (int) (fe._size - fileOffset)) {
-            // CheckStyle: stop parameter assignment check
-            length = (int) (fe._size - fileOffset);
-            // CheckStyle: resume parameter assignment check
-        }
-        fe.readBytes(bytes, offset, length, fileOffset);
-        return length;
+    public int readBytes(int fd, byte[] bytes, int offset, int length, long fileOffset) {
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        return fe.readBytes(bytes, offset, length, fileOffset);
+    }
+
+    @Override
+    public int readBytes(int fd, ByteBuffer bb, long fileOffset) {
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        return fe.readBytes(bb, fileOffset);
     }
 
     @Override
@@ -428,55 +569,75 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
     }
 
     @Override
-    public synchronized int write(int fd, int b, long fileOffset) {
-        final FileEntry fe = _openFiles.get(fd);
-        if (fileOffset >= fe._maxSize) {
-            fe.addCapacity(fileOffset);
+    public int write(int fd, int b, long fileOffset) {
+        if (fileOffset >= MAX_FILE_SIZE) {
+            return -ErrorDecoder.Code.EFBIG.getCode();
+        }
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
         }
         fe.write(b, fileOffset);
         return 1;
     }
 
     @Override
-    public synchronized int writeBytes(int fd, byte[] bytes, int offset, int length,
-            long fileOffset) {
-        final FileEntry fe = _openFiles.get(fd);
-        if (fileOffset + length > fe._maxSize) {
-            fe.addCapacity(fileOffset + length);
+    public int writeBytes(int fd, byte[] bytes, int offset, int length, long fileOffset) {
+        if (fileOffset + length > MAX_FILE_SIZE) {
+            return -ErrorDecoder.Code.EFBIG.getCode();
+        }
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
         }
         fe.writeBytes(bytes, offset, length, fileOffset);
         return length;
     }
 
+    @Override
+    public int writeBytes(int fd, ByteBuffer bb, long fileOffset) {
+        if (fileOffset + bb.remaining() > MAX_FILE_SIZE) {
+            return -ErrorDecoder.Code.EFBIG.getCode();
+        }
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        return fe.writeBytes(bb, fileOffset);
+    }
+
     @Override
     public long getLength(int fd) {
-        final FileEntry fe = _openFiles.get(fd);
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
         return fe._size;
     }
 
     @Override
     public int setLength(int fd, long length) {
-        final FileEntry fe = _openFiles.get(fd);
-        if (fe._size == length) {
-            return 0;
-        } else if (fe._size < length) {
-            if (length >= fe._maxSize) {
-                fe.addCapacity(length);
-            }
-            return 0;
-        } else {
-            fe._size = length;
-            return 0;
+        if (length > MAX_FILE_SIZE) {
+            return -ErrorDecoder.Code.EFBIG.getCode();
+        }
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
         }
+        fe.setLength(length);
+        return 0;
     }
 
     @Override
     public int available(int fd, long fileOffset) {
-        final FileEntry fe = _openFiles.get(fd);
-        if ((int) fileOffset >= fe._size) {
-            return 0;
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
         }
         final long avail = fe._size - fileOffset;
+        if (avail <= 0) {
+            return 0;
+        }
         if (avail > Integer.MAX_VALUE) {
             return Integer.MAX_VALUE;
         }
@@ -491,7 +652,11 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
 
     @Override
     public long uniqueId(int fd) {
-        return _openFiles.get(fd)._id;
+        final FileEntry fe = getFileEntry(fd);
+        if (fe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        return fe._id;
     }
 
     /*
@@ -511,16 +676,29 @@ public final class HeapFileSystem extends UnimplementedFileSystemImpl implements
         }
     }
 
+    /**
+     * Returns the open file for {@code fd}, or {@code null} if {@code fd} is not open.
+     */
+    private FileEntry getFileEntry(int fd) {
+        final FileEntry[] openFiles = _openFiles;
+        return fd >= 0 && fd < openFiles.length ? openFiles[fd] : null;
+    }
+
+    /**
+     * Allocates a fd for an open file. Must be called with the file system lock held.
+     */
     private int addFd(FileEntry fe) {
-        final int size = _openFiles.size();
-        for (int i = 0; i < size; i++) {
-            if (_openFiles.get(i) == null) {
-                _openFiles.set(i, fe);
-                return i;
-            }
-        }
-        _openFiles.add(fe);
-        return size;
+        final FileEntry[] openFiles = _openFiles;
+        int fd = 0;
+        while (fd < openFiles.length && openFiles[fd] != null) {
+            fd++;
+        }
+        final FileEntry[] newOpenFiles = Arrays.copyOf(openFiles, fd == openFiles.length ? openFiles.length * 2 : openFiles.length);
+        newOpenFiles[fd] = fe;
+        fe._openCount++;
+        // the volatile write publishes the new table to unsynchronized readers
+        _openFiles = newOpenFiles;
+        return fd;
     }
 
     /**
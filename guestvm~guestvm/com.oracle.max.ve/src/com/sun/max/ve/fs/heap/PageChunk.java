@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.fs.heap;
+
+import java.nio.ByteBuffer;
+
+import sun.nio.ch.DirectBuffer;
+
+import com.sun.max.memory.*;
+import com.sun.max.unsafe.*;
+
+/**
+ * A chunk held in pages allocated from the {@link com.sun.max.ve.guk.GUKPagePool}, outside the Java heap.
+ *
+ * @author Mick Jordan
+ *
+ */
+final class PageChunk extends Chunk {
+
+    private final Pointer _base;
+
+    PageChunk(Pointer base) {
+        _base = base;
+    }
+
+    @Override
+    int capacity() {
+        return SIZE;
+    }
+
+    @Override
+    int get(int offset) {
+        return _base.readByte(offset) & 0xFF;
+    }
+
+    @Override
+    void put(int offset, int b) {
+        _base.writeByte(offset, (byte) b);
+    }
+
+    @Override
+    void read(int offset, byte[] bytes, int bytesOffset, int length) {
+        Memory.readBytes(_base.plus(offset), length, bytes, bytesOffset);
+    }
+
+    @Override
+    void write(int offset, byte[] bytes, int bytesOffset, int length) {
+        Memory.writeBytes(bytes, bytesOffset, length, _base.plus(offset));
+    }
+
+    @Override
+    void read(int offset, ByteBuffer bb, int length) {
+        final int pos = bb.position();
+        if (bb.hasArray()) {
+            Memory.readBytes(_base.plus(offset), length, bb.array(), bb.arrayOffset() + pos);
+        } else if (bb.isDirect()) {
+            copy(_base.plus(offset), Pointer.fromLong(((DirectBuffer) bb).address() + pos), length);
+        } else {
+            // a heap buffer whose array is not accessible
+            final byte[] bytes = new byte[length];
+            Memory.readBytes(_base.plus(offset), length, bytes, 0);
+            bb.put(bytes);
+            return;
+        }
+        bb.position(pos + length);
+    }
+
+    @Override
+    void write(int offset, ByteBuffer bb, int length) {
+        final int pos = bb.position();
+        if (bb.hasArray()) {
+            Memory.writeBytes(bb.array(), bb.arrayOffset() + pos, length, _base.plus(offset));
+        } else if (bb.isDirect()) {
+            copy(Pointer.fromLong(((DirectBuffer) bb).address() + pos), _base.plus(offset), length);
+        } else {
+            // a heap buffer whose array is not accessible, e.g., a read-only buffer
+            final byte[] bytes = new byte[length];
+            bb.get(bytes);
+            Memory.writeBytes(bytes, 0, length, _base.plus(offset));
+            return;
+        }
+        bb.position(pos + length);
+    }
+
+    @Override
+    void clear(int offset, int length) {
+        Memory.writeBytes(ZEROES, 0, length, _base.plus(offset));
+    }
+
+    /**
+     * Copies between native memory a word at a time.
+     */
+    private static void copy(Pointer from, Pointer to, int length) {
+        int i = 0;
+        for (; i <= length - 8; i += 8) {
+            to.writeLong(i, from.readLong(i));
+        }
+        for (; i < length; i++) {
+            to.writeByte(i, from.readByte(i));
+        }
+    }
+}
@@ -25,8 +25,6 @@ package com.sun.max.ve.fs.pipe;
 import java.nio.ByteBuffer;
 import java.util.*;
 import com.sun.max.annotate.*;
-import com.sun.max.lang.*;
-import com.sun.max.unsafe.*;
 import com.sun.max.ve.fs.DefaultReadWriteFileSystemImpl;
 import com.sun.max.ve.fs.ErrorDecoder;
 import com.sun.max.ve.fs.VirtualFileSystem;
@@ -35,43 +33,85 @@ import com.sun.max.ve.util.*;
 
 /**
  * Not really a file system, just supports NIO pipes.
+ *
+ * Each pipe has a ring buffer that starts small and grows on demand up to a limit, which can be set
+ * with the property {@value #PIPE_SIZE_PROPERTY} (default 64KB). Data is copied in bulk, and readers
+ * and writers wait on separate monitors, so that a writer only wakes readers and vice versa, and only
+ * when someone is actually waiting.
+ *
+ * The read end of a pipe has an even fd and the write end the next odd fd. The fd to pipe table is
+ * never updated in place; a changed copy is made and then published, so it is read without locking.
+ * The fds of a freed pipe are reused, so each fd is tagged (see {@link VirtualFileSystemId}) with a
+ * generation that is advanced on reuse, and an fd of a closed pipe yields EBADF rather than reaching
+ * the pipe that has since been given the same fds.
+ *
  * @author Mick Jordan
  *
  */
 
 public class PipeFileSystem extends DefaultReadWriteFileSystemImpl implements VirtualFileSystem {
+    private static final String PIPE_SIZE_PROPERTY = "max.ve.fs.pipe.size";
+    private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+    private static final int INITIAL_PIPE_SIZE = 4096;
+    /**
+     * The position of the generation in a tagged fd.
+     */
+    private static final int GENERATION_SHIFT = 16;
+
     private static PipeFileSystem _singleton;
     private static int _nextFd;
-    private static Map<Integer, Pipe> _pipes = Collections.synchronizedMap(new HashMap<Integer, Pipe>());
+    private static int _maxPipeSize;
+    /**
+     * Pipes indexed by fd, both ends referring to the same pipe. A changed copy is made when holding the
+     * {@link PipeFileSystem} lock, then published.
+     */
+    private static volatile Pipe[] _pipes = new Pipe[16];
+    /**
+     * Tagged read end fds of pipes that have been closed at both ends.
+     */
+    private static final List<Integer> _freeFds = new ArrayList<Integer>();
 
     private static class Pipe {
-        static final int BUFFER_SIZE = 128;
-        byte[] _buffer = new byte[BUFFER_SIZE];
+        /**
+         * Size is always a power of two.
+         */
+        byte[] _buffer;
+        final int _maxSize;
         int _readIndex;
         int _writeIndex;
         int _available;
         boolean _readClosed;
         boolean _writeClosed;
-        boolean _blocking;
-        Thread _waiter;
+        boolean _readBlocking;
+        boolean _writeBlocking;
+        /**
+         * Readers wait on this, for data or for the write end to close.
+         */
+        final Object _readWait = new Object();
+        /**
+         * Writers wait on this, for space or for the read end to close.
+         */
+        final Object _writeWait = new Object();
+        int _readWaiters;
+        int _writeWaiters;
+        final int _generation;
 
-        Pipe(boolean blocking) {
-            _blocking = blocking;
+        Pipe(boolean blocking, int maxSize, int generation) {
+            _generation = generation;
+            _readBlocking = blocking;
+            _writeBlocking = blocking;
+            _maxSize = maxSize;
+            _buffer = new byte[INITIAL_PIPE_SIZE < maxSize ? INITIAL_PIPE_SIZE : maxSize];
         }
 
         @INLINE
         final boolean full() {
-            return _available >= _buffer.length;
-        }
-
-        @INLINE
-        final boolean empty() {
-            return _available == 0;
+            return _available >= _maxSize;
         }
 
         @INLINE
         final int free() {
-            return BUFFER_SIZE - _available;
+            return _maxSize - _available;
         }
 
         @INLINE
@@ -84,41 +124,73 @@ public class PipeFileSystem extends DefaultReadWriteFileSystemImpl implements Vi
             return _readClosed;
         }
 
-        @INLINE
-        final void closeRead() {
-            _readClosed = true;
-        }
-
         @INLINE
         final boolean writeClosed() {
-            return _readClosed;
+            return _writeClosed;
         }
 
-        @INLINE
-        final void closeWrite() {
-            _readClosed = true;
-        }
-
-        @INLINE
-        final boolean blocking() {
-            return _blocking;
+        /**
+         * Moves up to {@code length} available bytes to {@code bb}.
+         * @return number of bytes moved
+         */
+        final int consume(ByteBuffer bb, int length) {
+            final int n = length < _available ? length : _available;
+            final int first = _buffer.length - _readIndex;
+            if (n <= first) {
+                bb.put(_buffer, _readIndex, n);
+            } else {
+                bb.put(_buffer, _readIndex, first);
+                bb.put(_buffer, 0, n - first);
+            }
+            _readIndex = (_readIndex + n) & (_buffer.length - 1);
+            _available -= n;
+            if (_available == 0) {
+                // keep subsequent transfers contiguous
+                _readIndex = 0;
+                _writeIndex = 0;
+            }
+            return n;
         }
 
-        @INLINE
-        final byte consumeOne() {
-            final byte result = _buffer[_readIndex];
-            //_readIndex = Unsigned.irem(_readIndex + 1, _buffer.length);
-            _readIndex = Address.fromUnsignedInt(_readIndex + 1).remainder(_buffer.length);
-            _available--;
-            return result;
+        /**
+         * Moves up to {@code length} bytes from {@code bb} into free space, growing the buffer if necessary.
+         * @return number of bytes moved
+         */
+        final int produce(ByteBuffer bb, int length) {
+            final int wanted = _available + length;
+            if (wanted > _buffer.length && _buffer.length < _maxSize) {
+                grow(wanted);
+            }
+            final int space = _buffer.length - _available;
+            final int n = length < space ? length : space;
+            final int first = _buffer.length - _writeIndex;
+            if (n <= first) {
+                bb.get(_buffer, _writeIndex, n);
+            } else {
+                bb.get(_buffer, _writeIndex, first);
+                bb.get(_buffer, 0, n - first);
+            }
+            _writeIndex = (_writeIndex + n) & (_buffer.length - 1);
+            _available += n;
+            return n;
         }
 
-        @INLINE
-        final void produceOne(byte b) {
-            _buffer[_writeIndex] = b;
-            //_writeIndex = Unsigned.irem(_writeIndex + 1, _buffer.length);
-            _writeIndex = Address.fromUnsignedInt(_writeIndex + 1).remainder(_buffer.length);
-            _available++;
+        private void grow(int wanted) {
+            int newSize = _buffer.length << 1;
+            while (newSize < wanted && newSize < _maxSize) {
+                newSize <<= 1;
+            }
+            final byte[] newBuffer = new byte[newSize];
+            final int first = _buffer.length - _readIndex;
+            if (_available <= first) {
+                System.arraycopy(_buffer, _readIndex, newBuffer, 0, _available);
+            } else {
+                System.arraycopy(_buffer, _readIndex, newBuffer, 0, first);
+                System.arraycopy(_buffer, 0, newBuffer, first, _available - first);
+            }
+            _buffer = newBuffer;
+            _readIndex = 0;
+            _writeIndex = _available;
         }
     }
 
@@ -134,163 +206,290 @@ public class PipeFileSystem extends DefaultReadWriteFileSystemImpl implements Vi
      * @param fds
      */
     public synchronized void createPipe(int[] fds, boolean blocking) {
-        final int fd = _nextFd;
-        fds[0] = VirtualFileSystemId.getUniqueFd(this, fd);
-        fds[1] = VirtualFileSystemId.getUniqueFd(this, fd + 1);
-        final Pipe pipe = new Pipe(blocking);
-        _pipes.put(fd, pipe);
-        _pipes.put(fd + 1, pipe);
-        _nextFd += 2;
+        if (_maxPipeSize == 0) {
+            _maxPipeSize = maxPipeSize();
+        }
+        final Pipe[] pipes;
+        final int fd;
+        final int generation;
+        if (_freeFds.isEmpty()) {
+            fd = _nextFd;
+            _nextFd += 2;
+            generation = 0;
+            pipes = Arrays.copyOf(_pipes, fd + 1 >= _pipes.length ? _pipes.length * 2 : _pipes.length);
+        } else {
+            final int freeFd = _freeFds.remove(_freeFds.size() - 1);
+            fd = freeFd & VirtualFileSystemId.MAX_FD;
+            generation = ((freeFd >>> GENERATION_SHIFT) + 1) & VirtualFileSystemId.MAX_TAG;
+            pipes = _pipes.clone();
+        }
+        final Pipe pipe = new Pipe(blocking, _maxPipeSize, generation);
+        pipes[fd] = pipe;
+        pipes[fd + 1] = pipe;
+        _pipes = pipes;
+        fds[0] = VirtualFileSystemId.getUniqueFd(this, (generation << GENERATION_SHIFT) | fd);
+        fds[1] = VirtualFileSystemId.getUniqueFd(this, (generation << GENERATION_SHIFT) | (fd + 1));
+    }
+
+    /**
+     * The maximum pipe size, rounded up to a power of two.
+     */
+    private static int maxPipeSize() {
+        int size = DEFAULT_PIPE_SIZE;
+        final String prop = System.getProperty(PIPE_SIZE_PROPERTY);
+        if (prop != null) {
+            try {
+                size = Integer.parseInt(prop);
+            } catch (NumberFormatException ex) {
+                // use default
+            }
+        }
+        int result = 512;
+        while (result < size && result < (1 << 30)) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the pipe for a tagged fd, or {@code null} if the fd is not open.
+     */
+    private static Pipe getPipe(int fd) {
+        final Pipe[] pipes = _pipes;
+        final int index = fd & VirtualFileSystemId.MAX_FD;
+        final Pipe pipe = fd >= 0 && index < pipes.length ? pipes[index] : null;
+        return pipe != null && pipe._generation == fd >>> GENERATION_SHIFT ? pipe : null;
+    }
+
+    /**
+     * Releases the fds of a pipe that is closed at both ends.
+     */
+    private synchronized void freePipe(int fd) {
+        final int readFd = fd & VirtualFileSystemId.MAX_FD & ~1;
+        final Pipe[] pipes = _pipes.clone();
+        pipes[readFd] = null;
+        pipes[readFd + 1] = null;
+        _pipes = pipes;
+        _freeFds.add(fd & ~1);
+    }
+
+    @Override
+    public int readBytes(int fd, byte[] bytes, int offset, int length, long fileOffset) {
+        return readBytes(fd, ByteBuffer.wrap(bytes, offset, length), fileOffset);
+    }
+
+    @Override
+    public int writeBytes(int fd, byte[] bytes, int offset, int length, long fileOffset) {
+        return writeBytes(fd, ByteBuffer.wrap(bytes, offset, length), fileOffset);
     }
 
     @Override
     public int readBytes(int fd, ByteBuffer bb, long fileOffset) {
-        final Pipe pipe = _pipes.get(fd);
+        final Pipe pipe = getPipe(fd);
+        if (pipe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        final int length = bb.remaining();
+        // We check for a closed write end before waiting, which means that we never wait on
+        // a closed pipe. A close that happens while we are waiting notifies the readers.
         int read = 0;
-        final int length = bb.limit();
-        // If no data is available we check for a close write end first, which means that
-        // we never wait on a closed pipe. That means that a close that happens while
-        // we are waiting will terminate the wait (by the notify)
-        synchronized (pipe) {
-             // if no data available block
-            int available = pipe.available();
-            if (available == 0) {
-                if (pipe.writeClosed()) {
-                    return 0;  // EOF
-                }
-                try {
-                    pipe.wait();
-                    available = pipe.available();
-                    if (available == 0) {
-                        if (pipe.writeClosed()) {
-                            return 0;  // EOF
-                        }
+        int wakeWriters = 0;
+        synchronized (pipe._readWait) {
+            while (read == 0) {
+                synchronized (pipe) {
+                    if (pipe.available() > 0) {
+                        read = pipe.consume(bb, length);
+                        wakeWriters = pipe._writeWaiters;
+                        break;
+                    } else if (pipe.writeClosed()) {
+                        return 0; // EOF
+                    } else if (!pipe._readBlocking) {
                         return -ErrorDecoder.Code.EAGAIN.getCode();
                     }
+                    pipe._readWaiters++;
+                }
+                try {
+                    pipe._readWait.wait();
                 } catch (InterruptedException ex) {
                     return -ErrorDecoder.Code.EINTR.getCode();
+                } finally {
+                    synchronized (pipe) {
+                        pipe._readWaiters--;
+                    }
                 }
             }
-            // read what is available up to requested length
-            int toRead = available < length ? available : length;
-            while (toRead > 0) {
-                bb.put(pipe.consumeOne());
-                toRead--;
-                read++;
+        }
+        // writers are woken outside the reader monitor, as a writer holds its own monitor when it wakes readers
+        if (wakeWriters > 0) {
+            synchronized (pipe._writeWait) {
+                pipe._writeWait.notifyAll();
             }
-            pipe.notifyAll();
         }
         return read;
     }
 
     @Override
     public int writeBytes(int fd, ByteBuffer bb, long fileOffset) {
-        final Pipe pipe = _pipes.get(fd);
-        final int pos = bb.position();
-        final int lim = bb.limit();
-        final int length = pos <= lim ? lim - pos : 0;
+        final Pipe pipe = getPipe(fd);
+        if (pipe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        final int length = bb.remaining();
         int toDo = length;
-        // Writer blocks until all data is written or read end of the pipe is closed.
+        // A blocking writer waits until all data is written or the read end of the pipe is closed.
         // As per read a blocked write will be woken up by a close of the read end.
         // We are not precisely implementing POSIX semantics here regarding blocking,
-        // as we only write atomically the number of bytes given by pipe.free() and not PIPE_BUF.
-        while (toDo > 0) {
-            synchronized (pipe) {
-                if (pipe.readClosed()) {
-                    return -ErrorDecoder.Code.EPIPE.getCode();
+        // as we only write atomically the number of bytes that are free and not PIPE_BUF.
+        synchronized (pipe._writeWait) {
+            while (true) {
+                int wakeReaders = 0;
+                synchronized (pipe) {
+                    if (pipe.readClosed()) {
+                        return -ErrorDecoder.Code.EPIPE.getCode();
+                    }
+                    if (!pipe.full()) {
+                        toDo -= pipe.produce(bb, toDo);
+                        wakeReaders = pipe._readWaiters;
+                    }
+                    if (toDo > 0 && pipe._writeBlocking) {
+                        pipe._writeWaiters++;
+                    }
                 }
-                while (pipe.full()) {
-                    try {
-                        pipe.wait();
-                        if (pipe.readClosed()) {
-                            return -ErrorDecoder.Code.EPIPE.getCode();
-                        }
-                    } catch (InterruptedException ex) {
-                        return -ErrorDecoder.Code.EINTR.getCode();
+                if (wakeReaders > 0) {
+                    synchronized (pipe._readWait) {
+                        pipe._readWait.notifyAll();
                     }
                 }
-                // write as much as we can then notify readers and give up lock
-                int canWrite = pipe.free();
-                while (toDo > 0 && canWrite > 0) {
-                    pipe.produceOne(bb.get());
-                    toDo--;
-                    canWrite--;
+                if (toDo == 0) {
+                    return length;
+                }
+                if (!pipe._writeBlocking) {
+                    return toDo == length ? -ErrorDecoder.Code.EAGAIN.getCode() : length - toDo;
+                }
+                try {
+                    pipe._writeWait.wait();
+                } catch (InterruptedException ex) {
+                    return toDo == length ? -ErrorDecoder.Code.EINTR.getCode() : length - toDo;
+                } finally {
+                    synchronized (pipe) {
+                        pipe._writeWaiters--;
+                    }
                 }
-                pipe.notifyAll();
             }
         }
-        return length;
     }
 
     @Override
     public int close0(int fd) {
-        final Pipe pipe = _pipes.get(fd);
+        final Pipe pipe = getPipe(fd);
+        if (pipe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        boolean closed;
         synchronized (pipe) {
             if ((fd & 1) == 0) {
                 // read end
-                pipe.closeRead();
+                if (pipe._readClosed) {
+                    return -ErrorDecoder.Code.EBADF.getCode();
+                }
+                pipe._readClosed = true;
             } else {
                 // write end
-                pipe.closeWrite();
+                if (pipe._writeClosed) {
+                    return -ErrorDecoder.Code.EBADF.getCode();
+                }
+                pipe._writeClosed = true;
             }
-            // wake up any waiting readers or writers
-            pipe.notifyAll();
+            closed = pipe._readClosed && pipe._writeClosed;
+        }
+        // wake up any waiting readers or writers
+        synchronized (pipe._readWait) {
+            pipe._readWait.notifyAll();
+        }
+        synchronized (pipe._writeWait) {
+            pipe._writeWait.notifyAll();
+        }
+        if (closed) {
+            freePipe(fd);
         }
         return 0;
     }
 
     @Override
-    public int poll0(int fd, int eventOps, long timeout) {
-        final Pipe pipe = _pipes.get(fd);
+    public void configureBlocking(int fd, boolean blocking) {
+        final Pipe pipe = getPipe(fd);
+        if (pipe == null) {
+            return;
+        }
         synchronized (pipe) {
             if ((fd & 1) == 0) {
-                // read end, anything available?
-                if (pipe.available() > 0) {
-                    return VirtualFileSystem.POLLIN;
-                }
-                if (timeout == 0) {
-                    return 0;
-                }
-                final TimeLimitedProc timedProc = new TimeLimitedProc() {
-                    @Override
-                    protected int proc(long remaining) throws InterruptedException {
-                        pipe.wait(remaining);
-                        if (pipe.available() > 0) {
-                            return terminate(VirtualFileSystem.POLLIN);
-                        } else if (pipe.available() == 0) {
-                            if (pipe.writeClosed()) {
-                                return terminate(0); // EOF
-                            }
-                        }
-                        return 0;
-                    }
-                };
-                return timedProc.run(timeout);
+                pipe._readBlocking = blocking;
             } else {
-                // write end, can we write?
-                if (!pipe.full()) {
-                    return VirtualFileSystem.POLLOUT;
-                }
-                if (timeout == 0) {
-                    return 0;
-                }
-                final TimeLimitedProc timedProc = new TimeLimitedProc() {
-                    @Override
-                    protected int proc(long remaining) throws InterruptedException {
-                        pipe.wait(remaining);
-                        if (pipe.readClosed()) {
-                            return terminate(0);
+                pipe._writeBlocking = blocking;
+            }
+        }
+    }
+
+    /**
+     * The read end is ready if data is available or the write end is closed, so that a read will see EOF.
+     * The write end is ready if there is space or the read end is closed, so that a write will see EPIPE.
+     */
+    private static int ready(Pipe pipe, boolean readEnd) {
+        if (readEnd) {
+            return pipe.available() > 0 || pipe.writeClosed() ? VirtualFileSystem.POLLIN : 0;
+        } else {
+            return !pipe.full() || pipe.readClosed() ? VirtualFileSystem.POLLOUT : 0;
+        }
+    }
+
+    @Override
+    public int poll0(int fd, int eventOps, long timeout) {
+        final Pipe pipe = getPipe(fd);
+        if (pipe == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
+        final boolean readEnd = (fd & 1) == 0;
+        synchronized (pipe) {
+            final int result = ready(pipe, readEnd);
+            if (result != 0 || timeout == 0) {
+                return result;
+            }
+        }
+        final Object waitObject = readEnd ? pipe._readWait : pipe._writeWait;
+        synchronized (waitObject) {
+            final TimeLimitedProc timedProc = new TimeLimitedProc() {
+                @Override
+                protected int proc(long remaining) throws InterruptedException {
+                    synchronized (pipe) {
+                        final int result = ready(pipe, readEnd);
+                        if (result != 0) {
+                            return terminate(result);
                         }
-                        if (!pipe.full()) {
-                            return terminate(VirtualFileSystem.POLLOUT);
+                        if (readEnd) {
+                            pipe._readWaiters++;
+                        } else {
+                            pipe._writeWaiters++;
                         }
-                        return 0;
                     }
-                };
-                return timedProc.run(timeout);
-            }
+                    try {
+                        waitObject.wait(remaining);
+                    } finally {
+                        synchronized (pipe) {
+                            if (readEnd) {
+                                pipe._readWaiters--;
+                            } else {
+                                pipe._writeWaiters--;
+                            }
+                        }
+                    }
+                    synchronized (pipe) {
+                        final int result = ready(pipe, readEnd);
+                        return result != 0 ? terminate(result) : 0;
+                    }
+                }
+            };
+            return timedProc.run(timeout);
         }
-
     }
 
 }
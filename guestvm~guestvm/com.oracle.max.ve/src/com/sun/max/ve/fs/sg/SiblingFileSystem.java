@@ -23,6 +23,7 @@
 package com.sun.max.ve.fs.sg;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import com.sun.max.unsafe.*;
@@ -32,7 +33,7 @@ import com.sun.max.ve.error.VEError;
 import com.sun.max.ve.fs.*;
 import com.sun.max.ve.guk.x64.X64VM;
 import com.sun.max.ve.jdk.JDK_java_io_UnixFileSystem;
-import com.sun.max.vm.Intrinsics;
+import com.sun.max.ve.memory.NativeBufferPool;
 
 /**
  * This class represents the file system that is based on inter-domain communication to
@@ -195,29 +196,75 @@ public final class SiblingFileSystem extends UnimplementedFileSystemImpl impleme
     }
 
     // FileInputStream, FileOutputStream
-    // Max transfer size is one page
+    // The native read transfers any length, one page at a time; the native write is limited to one page.
+    // Transfers use a buffer from the NativeBufferPool, or the memory of a direct ByteBuffer.
 
     @Override
     public int read(int fd, long fileOffset) {
         return SiblingFileSystemNatives.read(_handle, fd, fileOffset);
     }
 
+    /**
+     * Reads up to {@code length} bytes to {@code buffer}, stopping early at end of file.
+     * @return number of bytes read, or negative errno if nothing was read
+     */
+    private int readNative(int fd, Pointer buffer, int length, long fileOffset) {
+        int done = 0;
+        while (done < length) {
+            final int toDo = length - done < NativeBufferPool.BUFFER_SIZE ? length - done : NativeBufferPool.BUFFER_SIZE;
+            final int result = SiblingFileSystemNatives.readBytes(_handle, fd, buffer.plus(done), toDo, fileOffset + done);
+            if (result < 0) {
+                return done == 0 ? result : done;
+            }
+            done += result;
+            if (result < toDo) {
+                break;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Writes {@code length} bytes from {@code buffer}, in page sized requests.
+     * @return {@code length}, or negative errno if nothing was written, otherwise the number written
+     */
+    private int writeNative(int fd, Pointer buffer, int length, long fileOffset) {
+        int done = 0;
+        while (done < length) {
+            final int toDo = length - done < X64VM.PAGE_SIZE ? length - done : X64VM.PAGE_SIZE;
+            final int result = SiblingFileSystemNatives.writeBytes(_handle, fd, buffer.plus(done), toDo, fileOffset + done);
+            if (result < 0) {
+                return done == 0 ? result : done;
+            }
+            done += result;
+            if (result < toDo) {
+                break;
+            }
+        }
+        return done;
+    }
+
     @Override
     public int readBytes(int fd, byte[] bytes, int offset, int length, long fileOffset) {
-        final Pointer nativeBytes = Intrinsics.alloca(4096, false /* ??? TODO */);
-        int left = length;
-        while (left > 0) {
-            final int toDo = left > X64VM.PAGE_SIZE ? X64VM.PAGE_SIZE : left;
-            final int result = SiblingFileSystemNatives.readBytes(_handle, fd, nativeBytes, toDo, fileOffset);
-            if (result != toDo) {
-                return -1;
+        final Pointer nativeBytes = NativeBufferPool.acquire();
+        int done = 0;
+        try {
+            while (done < length) {
+                final int toDo = length - done < NativeBufferPool.BUFFER_SIZE ? length - done : NativeBufferPool.BUFFER_SIZE;
+                final int result = readNative(fd, nativeBytes, toDo, fileOffset + done);
+                if (result < 0) {
+                    return done == 0 ? result : done;
+                }
+                Memory.readBytes(nativeBytes, result, bytes, offset + done);
+                done += result;
+                if (result < toDo) {
+                    break;
+                }
             }
-            Memory.readBytes(nativeBytes, toDo, bytes, offset);
-            left -= toDo;
-            offset += toDo;
-            fileOffset += toDo;
+        } finally {
+            NativeBufferPool.release(nativeBytes);
         }
-        return length;
+        return done == 0 && length > 0 ? -1 : done;
     }
 
     @Override
@@ -227,20 +274,62 @@ public final class SiblingFileSystem extends UnimplementedFileSystemImpl impleme
 
     @Override
     public int writeBytes(int fd, byte[] bytes, int offset, int length, long fileOffset) {
-        final Pointer nativeBytes = Intrinsics.alloca(4096, false /* ??? TODO */);
-        int left = length;
-        while (left > 0) {
-            final int toDo = left > X64VM.PAGE_SIZE ? X64VM.PAGE_SIZE : left;
-            Memory.writeBytes(bytes, offset, toDo, nativeBytes);
-            final int result = SiblingFileSystemNatives.writeBytes(_handle, fd, nativeBytes, toDo, fileOffset);
-            if (result != toDo) {
-                return -1;
+        final Pointer nativeBytes = NativeBufferPool.acquire();
+        int done = 0;
+        try {
+            while (done < length) {
+                final int toDo = length - done < NativeBufferPool.BUFFER_SIZE ? length - done : NativeBufferPool.BUFFER_SIZE;
+                Memory.writeBytes(bytes, offset + done, toDo, nativeBytes);
+                final int result = writeNative(fd, nativeBytes, toDo, fileOffset + done);
+                if (result < 0) {
+                    return done == 0 ? result : done;
+                }
+                done += result;
+                if (result < toDo) {
+                    break;
+                }
+            }
+        } finally {
+            NativeBufferPool.release(nativeBytes);
+        }
+        return done;
+    }
+
+    @Override
+    public int readBytes(int fd, ByteBuffer bb, long fileOffset) {
+        final int result;
+        if (bb.isDirect()) {
+            result = readNative(fd, NativeBufferPool.address(bb), bb.remaining(), fileOffset);
+        } else {
+            result = readBytes(fd, bb.array(), bb.arrayOffset() + bb.position(), bb.remaining(), fileOffset);
+            if (result < 0) {
+                // EOF is 0 for a ByteBuffer
+                return result == -1 ? 0 : result;
             }
-            left -= toDo;
-            offset += toDo;
-            fileOffset += toDo;
         }
-        return length;
+        if (result > 0) {
+            bb.position(bb.position() + result);
+        }
+        return result;
+    }
+
+    @Override
+    public int writeBytes(int fd, ByteBuffer bb, long fileOffset) {
+        final int result;
+        if (bb.isDirect()) {
+            result = writeNative(fd, NativeBufferPool.address(bb), bb.remaining(), fileOffset);
+        } else if (bb.hasArray()) {
+            result = writeBytes(fd, bb.array(), bb.arrayOffset() + bb.position(), bb.remaining(), fileOffset);
+        } else {
+            // read-only heap buffer
+            final byte[] bytes = new byte[bb.remaining()];
+            bb.duplicate().get(bytes);
+            result = writeBytes(fd, bytes, 0, bytes.length, fileOffset);
+        }
+        if (result > 0) {
+            bb.position(bb.position() + result);
+        }
+        return result;
     }
 
     @Override
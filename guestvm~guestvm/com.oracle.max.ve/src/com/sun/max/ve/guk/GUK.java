@@ -106,6 +106,8 @@ public final class GUK {
         new CriticalNativeMethod(GUK.class, "guk_pagetable_base");
         new CriticalNativeMethod(GUK.class, "guk_allocate_2mb_machine_pages");
         new CriticalNativeMethod(GUK.class, "guk_netfront_xmit");
+        new CriticalNativeMethod(GUK.class, "guk_netfront_xmit_offload");
+        new CriticalNativeMethod(GUK.class, "guk_netfront_features");
         new CriticalNativeMethod(GUK.class, "guk_ttprintk0");
         new CriticalNativeMethod(GUK.class, "guk_ttprintk1");
         new CriticalNativeMethod(GUK.class, "guk_ttprintk2");
@@ -275,6 +277,10 @@ public final class GUK {
     @C_FUNCTION
     public static native void guk_netfront_xmit(Address buffer, int len);
     @C_FUNCTION
+    public static native int guk_netfront_xmit_offload(Address buffer, int len, int csumBlank, int gsoSize);
+    @C_FUNCTION
+    public static native int guk_netfront_features();
+    @C_FUNCTION
     static native int guk_get_cpu_running_time(int cpu);
     @C_FUNCTION
     static native long guk_nano_time();
@@ -22,12 +22,19 @@
  */
 package com.sun.max.ve.guk;
 
+import java.nio.ByteBuffer;
+
 import com.sun.max.unsafe.*;
 import com.sun.max.memory.Memory;
+import com.sun.max.ve.memory.NativeBufferPool;
 
 /**
  * An interface to creating separate processes (guests) via dom0.
  *
+ * Data is transferred through buffers from the {@link NativeBufferPool}, or directly to and from a
+ * direct {@link ByteBuffer}. The backend returns read data as a NUL-terminated string, so a read needs
+ * one more byte than it returns, and it limits a write to {@link #MAX_WRITE} bytes.
+ *
  * @author Mick Jordan
  *
  */
@@ -57,24 +64,108 @@ public class GUKExec {
         return GUK.guk_exec_wait(pid);
     }
 
+    private static final int MAX_WRITE = 1023;
+
+    /**
+     * Reads into {@code bytes}.
+     * @return number of bytes read, -1 on EOF or negative errno
+     */
     public static int readBytes(int pid, byte[] bytes, int offset, int length, long fileOffset) {
-        final Pointer nativeBytes = Memory.allocate(Size.fromInt(bytes.length));
-        final int result = GUK.guk_exec_read_bytes(pid, nativeBytes, length, fileOffset);
+        final Pointer nativeBytes = NativeBufferPool.acquire();
+        final int toDo = length < NativeBufferPool.BUFFER_SIZE ? length : NativeBufferPool.BUFFER_SIZE - 1;
+        final int result = GUK.guk_exec_read_bytes(pid, nativeBytes, toDo, fileOffset);
         if (result > 0) {
             Memory.readBytes(nativeBytes, result, bytes, offset);
         }
-        Memory.deallocate(nativeBytes);
+        NativeBufferPool.release(nativeBytes);
         return result == 0 ? -1 : result;
     }
 
-    public static int writeBytes(int pid, byte[] bytes, int offset, int length, long fileOffset) {
-        final Pointer nativeBytes = Memory.allocate(Size.fromInt(bytes.length));
-        Memory.writeBytes(bytes, offset, length, nativeBytes);
-        final int result = GUK.guk_exec_write_bytes(pid, nativeBytes, length, fileOffset);
-        Memory.deallocate(nativeBytes);
+    /**
+     * Reads into {@code bb}, advancing its position.
+     * @return number of bytes read, 0 on EOF or negative errno
+     */
+    public static int readBytes(int pid, ByteBuffer bb, long fileOffset) {
+        final int length = bb.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        if (bb.isDirect() && length > 1) {
+            // leave room for the terminator
+            final int result = GUK.guk_exec_read_bytes(pid, NativeBufferPool.address(bb), length - 1, fileOffset);
+            if (result > 0) {
+                bb.position(bb.position() + result);
+            }
+            return result;
+        }
+        final Pointer nativeBytes = NativeBufferPool.acquire();
+        final int toDo = length < NativeBufferPool.BUFFER_SIZE ? length : NativeBufferPool.BUFFER_SIZE - 1;
+        final int result = GUK.guk_exec_read_bytes(pid, nativeBytes, toDo, fileOffset);
+        if (result > 0) {
+            if (bb.hasArray()) {
+                Memory.readBytes(nativeBytes, result, bb.array(), bb.arrayOffset() + bb.position());
+                bb.position(bb.position() + result);
+            } else {
+                // a direct buffer with no room for the terminator
+                final byte[] bytes = new byte[result];
+                Memory.readBytes(nativeBytes, result, bytes, 0);
+                bb.put(bytes);
+            }
+        }
+        NativeBufferPool.release(nativeBytes);
         return result;
     }
 
+    public static int writeBytes(int pid, byte[] bytes, int offset, int length, long fileOffset) {
+        final Pointer nativeBytes = NativeBufferPool.acquire();
+        int done = 0;
+        while (done < length) {
+            final int toDo = length - done < MAX_WRITE ? length - done : MAX_WRITE;
+            Memory.writeBytes(bytes, offset + done, toDo, nativeBytes);
+            final int result = GUK.guk_exec_write_bytes(pid, nativeBytes, toDo, fileOffset + done);
+            if (result < 0) {
+                NativeBufferPool.release(nativeBytes);
+                return done == 0 ? result : done;
+            }
+            done += toDo;
+        }
+        NativeBufferPool.release(nativeBytes);
+        return length;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code bb}, advancing its position.
+     */
+    public static int writeBytes(int pid, ByteBuffer bb, long fileOffset) {
+        final int length = bb.remaining();
+        if (!bb.isDirect()) {
+            final int result;
+            if (bb.hasArray()) {
+                result = writeBytes(pid, bb.array(), bb.arrayOffset() + bb.position(), length, fileOffset);
+            } else {
+                // read-only heap buffer
+                final byte[] bytes = new byte[length];
+                bb.duplicate().get(bytes);
+                result = writeBytes(pid, bytes, 0, length, fileOffset);
+            }
+            if (result > 0) {
+                bb.position(bb.position() + result);
+            }
+            return result;
+        }
+        int done = 0;
+        while (done < length) {
+            final int toDo = length - done < MAX_WRITE ? length - done : MAX_WRITE;
+            final int result = GUK.guk_exec_write_bytes(pid, NativeBufferPool.address(bb), toDo, fileOffset + done);
+            if (result < 0) {
+                return done == 0 ? result : done;
+            }
+            bb.position(bb.position() + toDo);
+            done += toDo;
+        }
+        return length;
+    }
+
     public static int close(int pid) {
         return GUK.guk_exec_close(pid);
     }
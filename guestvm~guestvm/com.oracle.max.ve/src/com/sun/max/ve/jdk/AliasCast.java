@@ -43,5 +43,6 @@ final class AliasCast {
     @INTRINSIC(UNSAFE_CAST) static native JDK_java_net_NetworkInterface asJDK_java_net_NetworkInterface(Object obj);
     @INTRINSIC(UNSAFE_CAST) static native JDK_sun_nio_ch_FileChannelImpl asJDK_sun_nio_ch_FileChannelImpl(Object obj);
     @INTRINSIC(UNSAFE_CAST) static native JDK_sun_nio_ch_FileKey asJDK_sun_nio_ch_FileKey(Object obj);
+    @INTRINSIC(UNSAFE_CAST) static native JDK_sun_misc_MetaIndex asJDK_sun_misc_MetaIndex(Object obj);
 
 }
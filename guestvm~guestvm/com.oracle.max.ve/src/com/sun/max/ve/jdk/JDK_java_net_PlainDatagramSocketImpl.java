@@ -30,6 +30,7 @@ import java.net.*;
 import com.sun.max.annotate.*;
 import com.sun.max.ve.error.*;
 import com.sun.max.ve.logging.*;
+import com.sun.max.ve.net.Endpoint;
 import com.sun.max.ve.net.ip.IPAddress;
 import com.sun.max.ve.net.udp.*;
 
@@ -194,7 +195,11 @@ final class JDK_java_net_PlainDatagramSocketImpl {
         if (fdObj != null) {
             final int fd = JDK_java_io_FileDescriptor.getFd(fdObj);
             if (fd != -1) {
-                JavaNetUtil.setNull(fd);
+                final UDPEndpoint endpoint = JavaNetUtil.getU(fd);
+                if (endpoint != null) {
+                    endpoint.close(Endpoint.SHUT_RDWR);
+                    JavaNetUtil.free(fd);
+                }
                 JDK_java_io_FileDescriptor.setFd(fdObj, -1);
             }
         }
@@ -86,8 +86,7 @@ final class JDK_java_net_PlainSocketImpl {
     }
 
     private static TCPEndpoint getEndpoint(Object self) throws SocketException {
-        final FileDescriptor fdObj = checkOpen(self);
-        return (TCPEndpoint) JavaNetUtil.get(fdObj);
+        return getEndpoint(checkOpen(self));
     }
 
     /**
@@ -97,10 +96,11 @@ final class JDK_java_net_PlainSocketImpl {
      */
     static TCPEndpoint getEndpoint(FileDescriptor fdObj) throws SocketException {
         final int fd = JDK_java_io_FileDescriptor.getFd(fdObj);
-        if (fd < 0) {
+        final TCPEndpoint endpoint = fd < 0 ? null : JavaNetUtil.getT(fd);
+        if (endpoint == null) {
             throw new SocketException("socket closed");
         }
-        return  JavaNetUtil.getT(fd);
+        return endpoint;
 
     }
 
@@ -169,7 +169,11 @@ final class JDK_java_net_PlainSocketImpl {
         final FileDescriptor fdObj = checkOpen(this);
         final  int fd = JDK_java_io_FileDescriptor.getFd(fdObj);
         if (fd != -1) {
-            JavaNetUtil.getT(fd).close(Endpoint.SHUT_RDWR);
+            final TCPEndpoint endpoint = JavaNetUtil.getT(fd);
+            if (endpoint != null) {
+                endpoint.close(Endpoint.SHUT_RDWR);
+                JavaNetUtil.free(fd);
+            }
             JDK_java_io_FileDescriptor.setFd(fdObj, -1);
         }
     }
@@ -184,7 +188,7 @@ final class JDK_java_net_PlainSocketImpl {
         final TCPEndpoint endpoint = getEndpoint(this);
         switch (cmd) {
             case TCP_NODELAY:
-                endpoint.setNoDelay();
+                endpoint.setNoDelay(on);
                 break;
 
             case SO_TIMEOUT:
@@ -215,6 +219,9 @@ final class JDK_java_net_PlainSocketImpl {
                 return endpoint.getRecvBufferSize();
             case SO_SNDBUF:
                 return endpoint.getSendBufferSize();
+            case TCP_NODELAY:
+                // PlainSocketImpl treats -1 as false for boolean options
+                return endpoint.getNoDelay() ? 1 : -1;
             default:
                 _logger.warning("PlainSocketImpl.socketGetOption " + Integer.toHexString(opt) + " not implemented");
                 return 0;
@@ -29,6 +29,7 @@ package com.sun.max.ve.jdk;
 
 import java.util.zip.*;
 import com.sun.max.annotate.*;
+import com.sun.max.unsafe.*;
 
 /**
  * Substitutions for  @see java.util.zip.Adler.
@@ -40,19 +41,23 @@ import com.sun.max.annotate.*;
 @METHOD_SUBSTITUTIONS(Adler32.class)
 final class JDK_java_util_zip_Adler32 {
 
-    private static final long BASE = 65521;
+    private static final int BASE = 65521;
     private static final int NMAX = 5552;
     /* NMAX is the largest n such that 255n(n+1)/2 + (n+1)(BASE-1) <= 2^32-1 */
 
     @SUBSTITUTE
     private static int update(int adler, int b) {
-        long s1 = adler & 0xFFFF;
-        long s2 = (adler >> 16) & 0xFFFF;
-        s1 += b;
+        int s1 = adler & 0xFFFF;
+        int s2 = (adler >>> 16) & 0xFFFF;
+        s1 += b & 0xFF;
+        if (s1 >= BASE) {
+            s1 -= BASE;
+        }
         s2 += s1;
-        s1 %= BASE;
-        s2 %= BASE;
-        return (int) ((s2 << 16) | s1);
+        if (s2 >= BASE) {
+            s2 -= BASE;
+        }
+        return (s2 << 16) | s1;
     }
 
     @SUBSTITUTE
@@ -60,23 +65,77 @@ final class JDK_java_util_zip_Adler32 {
         if (b == null) {
             return adler;
         }
-        long s1 = adler & 0xFFFF;
-        long s2 = (adler >> 16) & 0xFFFF;
+        int s1 = adler & 0xFFFF;
+        int s2 = (adler >>> 16) & 0xFFFF;
 
-        int xoff = off;
-        while (len > 0) {
-            final int k = len < NMAX ? len : NMAX;
-            for (int i = 0; i < k; i++) {
-                s1 += (int) (b[xoff + i] & 0xFF);
+        int i = off;
+        int n = len;
+        while (n > 0) {
+            final int k = n < NMAX ? n : NMAX;
+            n -= k;
+            final int end = i + k;
+            // unrolled by eight; the sums only need reducing once per NMAX bytes, s2 is treated as unsigned
+            while (end - i >= 8) {
+                s1 += b[i] & 0xFF;
+                s2 += s1;
+                s1 += b[i + 1] & 0xFF;
+                s2 += s1;
+                s1 += b[i + 2] & 0xFF;
+                s2 += s1;
+                s1 += b[i + 3] & 0xFF;
+                s2 += s1;
+                s1 += b[i + 4] & 0xFF;
+                s2 += s1;
+                s1 += b[i + 5] & 0xFF;
+                s2 += s1;
+                s1 += b[i + 6] & 0xFF;
+                s2 += s1;
+                s1 += b[i + 7] & 0xFF;
+                s2 += s1;
+                i += 8;
+            }
+            while (i < end) {
+                s1 += b[i++] & 0xFF;
+                s2 += s1;
+            }
+            s1 %= BASE;
+            s2 = (int) ((s2 & 0xFFFFFFFFL) % BASE);
+        }
+        return (s2 << 16) | s1;
+    }
+
+    /**
+     * Direct buffer variant, used by {@code Adler32.update(ByteBuffer)} (not present in 1.6).
+     * Maxine VE only runs on x64, so words are read little-endian.
+     */
+    @SUBSTITUTE(optional=true)
+    private static int updateByteBuffer(int adler, long addr, int off, int len) {
+        final Pointer p = Pointer.fromLong(addr);
+        int s1 = adler & 0xFFFF;
+        int s2 = (adler >>> 16) & 0xFFFF;
+
+        int i = off;
+        int n = len;
+        while (n > 0) {
+            final int k = n < NMAX ? n : NMAX;
+            n -= k;
+            final int end = i + k;
+            while (end - i >= 8) {
+                long w = p.readLong(i);
+                for (int j = 0; j < 8; j++) {
+                    s1 += (int) w & 0xFF;
+                    s2 += s1;
+                    w >>>= 8;
+                }
+                i += 8;
+            }
+            while (i < end) {
+                s1 += p.readByte(i++) & 0xFF;
                 s2 += s1;
             }
-            // CheckStyle: stop parameter assignment check
-            len -= k;
-            // CheckStyle: resume parameter assignment check
-            xoff += k;
             s1 %= BASE;
-            s2 %= BASE;
+            s2 = (int) ((s2 & 0xFFFFFFFFL) % BASE);
         }
-        return (int) ((s2 << 16) | s1);
+        return (s2 << 16) | s1;
     }
 }
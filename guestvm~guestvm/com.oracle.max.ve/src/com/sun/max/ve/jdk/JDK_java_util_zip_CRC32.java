@@ -23,6 +23,7 @@
 package com.sun.max.ve.jdk;
 
 import com.sun.max.annotate.*;
+import com.sun.max.unsafe.*;
 import com.sun.max.vm.*;
 import java.util.zip.CRC32;
 
@@ -37,7 +38,7 @@ import java.util.zip.CRC32;
 @METHOD_SUBSTITUTIONS(CRC32.class)
 public class JDK_java_util_zip_CRC32 {
 
-    private static long[] _crcTable = {
+    private static final long[] _crcTable = {
         0x00000000L, 0x77073096L, 0xee0e612cL, 0x990951baL, 0x076dc419L,
         0x706af48fL, 0xe963a535L, 0x9e6495a3L, 0x0edb8832L, 0x79dcb8a4L,
         0xe0d5e91eL, 0x97d2d988L, 0x09b64c2bL, 0x7eb17cbdL, 0xe7b82d07L,
@@ -94,33 +95,102 @@ public class JDK_java_util_zip_CRC32 {
 
     private static final long MAXINT_MASK = 0xFFFFFFFFL;
 
+    /**
+     * The tables for the slice-by-8 algorithm, derived from {@link #_crcTable}. Table {@code k} occupies
+     * {@code [k * 256, (k + 1) * 256)} and gives the contribution of a byte that is followed by {@code k}
+     * further bytes, so eight bytes can be folded into the crc with eight independent lookups.
+     */
+    private static final int[] _sliceTable = new int[8 * 256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            _sliceTable[n] = (int) _crcTable[n];
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int n = 0; n < 256; n++) {
+                final int c = _sliceTable[(k - 1) * 256 + n];
+                _sliceTable[k * 256 + n] = _sliceTable[c & 0xFF] ^ (c >>> 8);
+            }
+        }
+    }
+
     @SUBSTITUTE
     private  static int update(int crc, int b) {
-        final byte[] buf = new byte[1];
-        buf[0] = (byte) b;
-        return (int) crc32(crc, buf, 0, 1);
+        final int c = ~crc;
+        return ~(_sliceTable[(c ^ b) & 0xFF] ^ (c >>> 8));
     }
 
     @SUBSTITUTE
     private static int updateBytes(int crcin, byte[] b, int off, int len) {
-        return (int) crc32(crcin, b, off, len);
+        return crc32(crcin, b, off, len);
+    }
+
+    /**
+     * Direct buffer variant, used by {@code CRC32.update(ByteBuffer)} (not present in 1.6).
+     * Maxine VE only runs on x64, so words are read little-endian.
+     */
+    @SUBSTITUTE(optional=true)
+    private static int updateByteBuffer(int crcin, long addr, int off, int len) {
+        final Pointer p = Pointer.fromLong(addr);
+        int c = ~crcin;
+        int i = off;
+        final int end = off + len;
+        while (i < end && ((addr + i) & 7) != 0) {
+            c = _sliceTable[(c ^ p.readByte(i)) & 0xFF] ^ (c >>> 8);
+            i++;
+        }
+        final int[] t = _sliceTable;
+        while (end - i >= 8) {
+            final long w = p.readLong(i);
+            final int one = c ^ (int) w;
+            final int two = (int) (w >>> 32);
+            c = t[7 * 256 + (one & 0xFF)] ^ t[6 * 256 + ((one >>> 8) & 0xFF)] ^
+                t[5 * 256 + ((one >>> 16) & 0xFF)] ^ t[4 * 256 + (one >>> 24)] ^
+                t[3 * 256 + (two & 0xFF)] ^ t[2 * 256 + ((two >>> 8) & 0xFF)] ^
+                t[256 + ((two >>> 16) & 0xFF)] ^ t[two >>> 24];
+            i += 8;
+        }
+        while (i < end) {
+            c = _sliceTable[(c ^ p.readByte(i)) & 0xFF] ^ (c >>> 8);
+            i++;
+        }
+        return ~c;
+    }
+
+    /**
+     * Computes the crc of {@code buf[off .. off + len - 1]} using slice-by-8, continuing from {@code crcin}.
+     */
+    static int crc32(int crcin, byte[] buf, int off, int len) {
+        int c = ~crcin;
+        int i = off;
+        final int end = off + len;
+        final int[] t = _sliceTable;
+        while (end - i >= 8) {
+            final int one = c ^ ((buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF) << 16 | buf[i + 3] << 24);
+            final int two = (buf[i + 4] & 0xFF) | (buf[i + 5] & 0xFF) << 8 | (buf[i + 6] & 0xFF) << 16 | buf[i + 7] << 24;
+            c = t[7 * 256 + (one & 0xFF)] ^ t[6 * 256 + ((one >>> 8) & 0xFF)] ^
+                t[5 * 256 + ((one >>> 16) & 0xFF)] ^ t[4 * 256 + (one >>> 24)] ^
+                t[3 * 256 + (two & 0xFF)] ^ t[2 * 256 + ((two >>> 8) & 0xFF)] ^
+                t[256 + ((two >>> 16) & 0xFF)] ^ t[two >>> 24];
+            i += 8;
+        }
+        while (i < end) {
+            c = t[(c ^ buf[i]) & 0xFF] ^ (c >>> 8);
+            i++;
+        }
+        return ~c;
     }
 
-    static long crc32(long crcin, byte[] buf, int off, int alen) {
-        // Our caller represents the crc as an int so it might show up sign extended
+    /**
+     * The original byte at a time algorithm, retained to check {@link #crc32}.
+     */
+    @HOSTED_ONLY
+    static long crc32Bytewise(long crcin, byte[] buf, int off, int alen) {
         long crc = (crcin & MAXINT_MASK) ^ MAXINT_MASK;
-        //Log.println("len=" + alen + ", crcin=0x" + Long.toHexString(crcin) + ", crc=0x" + Long.toHexString(crc));
-        int len = alen;
-        while (len > 0) {
-            // CheckStyle: stop parameter assignment check
-            crc = _crcTable[((int) crc ^ buf[off++]) & 0xFF] ^ (crc >> 8);
-            //System.out.println("crc=0x" + Long.toHexString(crc));
-            len--;
-            // CheckStyle: resume parameter assignment check
+        for (int i = off; i < off + alen; i++) {
+            crc = _crcTable[((int) crc ^ buf[i]) & 0xFF] ^ (crc >> 8);
         }
-        final long result = crc ^ MAXINT_MASK;
-        //Log.println("crc=0x" + Long.toHexString(crc) + ", crc^=0x" + Long.toHexString(result));
-        return result;
+        return crc ^ MAXINT_MASK;
     }
 
     /**
@@ -149,9 +219,15 @@ public class JDK_java_util_zip_CRC32 {
         for (int i = 0; i < test.length; i++) {
             test[i] = (byte) (i & 0xFF);
         }
-        final int crc = (int) crc32(0, test, 0, test.length);
+        final int crc = crc32(0, test, 0, test.length);
         System.out.println("crc=" + Integer.toHexString(crc));
-
+        for (int off = 0; off < 8; off++) {
+            for (int len = 0; len < test.length - off; len++) {
+                if (crc32(0x12345678, test, off, len) != (int) crc32Bytewise(0x12345678, test, off, len)) {
+                    System.out.println("mismatch at off=" + off + ", len=" + len);
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.jdk;
+
+import static com.sun.max.ve.jdk.AliasCast.*;
+
+import java.io.*;
+import java.util.*;
+
+import sun.misc.MetaIndex;
+
+import com.sun.max.annotate.*;
+import com.sun.max.ve.zip.*;
+import com.sun.max.vm.actor.holder.*;
+import com.sun.max.vm.heap.*;
+
+/**
+ * Substitutions for @see sun.misc.MetaIndex, through which the class path lookup in {@code sun.misc.URLClassPath}
+ * asks whether a jar may contain a class or resource before opening it. For a jar in the global name table of the
+ * {@link ZipIndex} we answer exactly from the table, so the jars that do not contain a name are neither opened
+ * nor probed. Other jars keep the JDK's meta-index, if any.
+ *
+ * @author Mick Jordan
+ *
+ */
+
+@SuppressWarnings("unused")
+
+@METHOD_SUBSTITUTIONS(MetaIndex.class)
+final class JDK_sun_misc_MetaIndex {
+
+    /*
+     * Marks the contents of a MetaIndex created here, which holds the marker (compared by identity) and the jar path.
+     */
+    private static final String INDEXED = new String("ZipIndex");
+
+    @ALIAS(declaringClass = MetaIndex.class)
+    private String[] contents;
+    @ALIAS(declaringClass = MetaIndex.class)
+    private boolean isClassOnlyJar;
+
+    @ALIAS(declaringClass = MetaIndex.class, name = "<init>")
+    private native void init(List<String> entries, boolean isClassOnlyJar);
+
+    @ALIAS(declaringClass = MetaIndex.class)
+    private static native Map<File, MetaIndex> getJarMap();
+
+    @SUBSTITUTE
+    public static MetaIndex forJar(File jar) {
+        final String path = jar.getPath();
+        if (ZipIndex.isIndexed(path)) {
+            final Object metaIndex = Heap.createTuple(ClassActor.fromJava(MetaIndex.class).dynamicHub());
+            asJDK_sun_misc_MetaIndex(metaIndex).init(Arrays.asList(INDEXED, path), false);
+            return (MetaIndex) metaIndex;
+        }
+        return getJarMap().get(jar);
+    }
+
+    @SUBSTITUTE
+    public boolean mayContain(String entry) {
+        final String[] conts = contents;
+        if (conts.length == 2 && conts[0] == INDEXED) {
+            return ZipIndex.mayContain(conts[1], entry);
+        }
+        if (isClassOnlyJar && !entry.endsWith(".class")) {
+            return false;
+        }
+        for (int i = 0; i < conts.length; i++) {
+            if (entry.startsWith(conts[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -88,12 +88,21 @@ final  class JDK_sun_nio_ch_Net {
 
     @SUBSTITUTE
     private static int getIntOption0(FileDescriptor fd, int opt) {
+        final Endpoint endpoint = JavaNetUtil.get(fd);
+        if (opt == SocketOptions.TCP_NODELAY && endpoint instanceof TCPEndpoint) {
+            return ((TCPEndpoint) endpoint).getNoDelay() ? 1 : 0;
+        }
         VEError.unimplemented("sun.nio.net.getIntOption0");
         return 0;
     }
 
     @SUBSTITUTE
     private static void setIntOption0(FileDescriptor fd, int opt, int arg) throws IOException {
+        final Endpoint endpoint = JavaNetUtil.get(fd);
+        if (opt == SocketOptions.TCP_NODELAY && endpoint instanceof TCPEndpoint) {
+            ((TCPEndpoint) endpoint).setNoDelay(arg != 0);
+            return;
+        }
         Logger.getLogger("sun.nio.ch.Net").warning("option: " + opt + " not implemented");
     }
 
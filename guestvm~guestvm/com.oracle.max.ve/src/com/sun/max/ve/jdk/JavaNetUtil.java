@@ -23,9 +23,10 @@
 package com.sun.max.ve.jdk;
 
 import java.io.FileDescriptor;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.SocketException;
+import java.util.concurrent.atomic.*;
 
+import com.sun.max.ve.fs.ErrorDecoder;
 import com.sun.max.ve.fs.VirtualFileSystemId;
 import com.sun.max.ve.net.Endpoint;
 import com.sun.max.ve.net.EndpointFileSystem;
@@ -37,6 +38,14 @@ import com.sun.max.ve.net.udp.UDPEndpoint;
  * In particular this class generates file descriptors for the network
  * classes and ensure that they are associated with the EndpointFileSystem.
  *
+ * The endpoints are held in a table of slots. The table is divided into fixed size segments that are created
+ * on first use and never moved, so lookups need no locking. Free slots are kept on a lock-free stack and reused,
+ * most recently freed first, which keeps the table no larger than the peak number of open endpoints.
+ * Each slot has a generation that is advanced when the slot is freed. The {@link EndpointFileSystem} fd is the slot
+ * tagged with its generation, which {@link VirtualFileSystemId} carries in the unique fd, so that a stale fd for
+ * a reused slot is detected, whether it is presented as a unique fd or to the file system, rather than silently
+ * resolving to, or freeing, another endpoint.
+ *
  * @author Mick Jordan
  *
  */
@@ -44,29 +53,64 @@ import com.sun.max.ve.net.udp.UDPEndpoint;
 
 public class JavaNetUtil {
 
-    private static List<Endpoint> _endpoints = new ArrayList<Endpoint>(16);
+    private static final int SEGMENT_SHIFT = 8;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int SEGMENTS = (VirtualFileSystemId.MAX_FD + 1) >> SEGMENT_SHIFT;
+    /**
+     * The position of the generation in an {@link EndpointFileSystem} fd.
+     */
+    private static final int GENERATION_SHIFT = 16;
+
+    private static final class Segment {
+        final AtomicReferenceArray<Endpoint> _endpoints = new AtomicReferenceArray<Endpoint>(SEGMENT_SIZE);
+        /**
+         * The current generation of each slot.
+         */
+        final AtomicIntegerArray _generations = new AtomicIntegerArray(SEGMENT_SIZE);
+        /**
+         * For a slot on the free stack, the next free slot plus one, or zero at the bottom of the stack.
+         */
+        final AtomicIntegerArray _next = new AtomicIntegerArray(SEGMENT_SIZE);
+    }
+
+    private static final AtomicReferenceArray<Segment> _segments = new AtomicReferenceArray<Segment>(SEGMENTS);
+    /**
+     * The top of the free stack, as the slot plus one in the low 32 bits (zero if empty), and
+     * a count of the updates in the high 32 bits, to avoid the ABA problem.
+     */
+    private static final AtomicLong _free = new AtomicLong();
+    /**
+     * The number of slots that have ever been used.
+     */
+    private static final AtomicInteger _limit = new AtomicInteger();
+    private static final AtomicInteger _open = new AtomicInteger();
+    private static final AtomicInteger _peak = new AtomicInteger();
+    private static final AtomicLong _allocations = new AtomicLong();
+    private static final AtomicInteger _staleLookups = new AtomicInteger();
     private static EndpointFileSystem _endpointFileSystem;
 
     /**
      * Return a file descriptor id to be associated with the given endpoint.
      * @param u
      * @return
+     * @throws SocketException if the table is full
      */
-    static int getFreeIndex(Endpoint u) {
-        int result;
-        synchronized (_endpoints) {
-            final int length = _endpoints.size();
-            for (int i = 0; i < length; i++) {
-                if (_endpoints.get(i) == null) {
-                    _endpoints.set(i, u);
-                    result = i;
-                    break;
-                }
-            }
-            _endpoints.add(u);
-            result = length;
+    static int getFreeIndex(Endpoint u) throws SocketException {
+        int slot = pop();
+        if (slot < 0) {
+            slot = extend();
+        }
+        final Segment segment = _segments.get(slot >> SEGMENT_SHIFT);
+        final int index = slot & SEGMENT_MASK;
+        segment._endpoints.set(index, u);
+        final int open = _open.incrementAndGet();
+        int peak = _peak.get();
+        while (open > peak && !_peak.compareAndSet(peak, open)) {
+            peak = _peak.get();
         }
-        return getUniqueFd(result);
+        _allocations.incrementAndGet();
+        return getUniqueFd((segment._generations.get(index) << GENERATION_SHIFT) | slot);
     }
 
     private static int getUniqueFd(int fd) {
@@ -76,6 +120,54 @@ public class JavaNetUtil {
         return VirtualFileSystemId.getUniqueFd(_endpointFileSystem, fd);
     }
 
+    /**
+     * Allocates a slot that has never been used, creating its segment if necessary.
+     */
+    private static int extend() throws SocketException {
+        int slot;
+        do {
+            slot = _limit.get();
+            if (slot > VirtualFileSystemId.MAX_FD) {
+                throw new SocketException(ErrorDecoder.Code.EMFILE.getMessage());
+            }
+        } while (!_limit.compareAndSet(slot, slot + 1));
+        if (_segments.get(slot >> SEGMENT_SHIFT) == null) {
+            createSegment(slot >> SEGMENT_SHIFT);
+        }
+        return slot;
+    }
+
+    private static synchronized void createSegment(int s) {
+        if (_segments.get(s) == null) {
+            _segments.set(s, new Segment());
+        }
+    }
+
+    private static int pop() {
+        while (true) {
+            final long top = _free.get();
+            final int slot = (int) top - 1;
+            if (slot < 0) {
+                return -1;
+            }
+            final int next = _segments.get(slot >> SEGMENT_SHIFT)._next.get(slot & SEGMENT_MASK);
+            if (_free.compareAndSet(top, (((top >>> 32) + 1) << 32) | next)) {
+                return slot;
+            }
+        }
+    }
+
+    private static void push(int slot) {
+        final Segment segment = _segments.get(slot >> SEGMENT_SHIFT);
+        while (true) {
+            final long top = _free.get();
+            segment._next.set(slot & SEGMENT_MASK, (int) top);
+            if (_free.compareAndSet(top, (((top >>> 32) + 1) << 32) | (slot + 1))) {
+                return;
+            }
+        }
+    }
+
     static UDPEndpoint getU(int index) {
         return (UDPEndpoint) getFromVfsId(index);
     }
@@ -88,16 +180,103 @@ public class JavaNetUtil {
         return getFromVfsId(JDK_java_io_FileDescriptor.getFd(fdObj));
     }
 
+    /**
+     * Return the endpoint associated with the given unique fd.
+     * @param index unique fd
+     * @return the endpoint or {@code null} if the fd has been freed
+     */
     public static Endpoint getFromVfsId(int index) {
-        return _endpoints.get(VirtualFileSystemId.getFd(index));
+        return getFromFd(VirtualFileSystemId.getFd(index));
     }
 
-    static void set(int index, Endpoint endpoint) {
-        _endpoints.set(VirtualFileSystemId.getFd(index), endpoint);
+    /**
+     * Return the endpoint associated with the given file system relative fd, as passed to {@link EndpointFileSystem}.
+     * @param fd file system relative fd
+     * @return the endpoint or {@code null} if the fd has been freed
+     */
+    public static Endpoint getFromFd(int fd) {
+        final int slot = fd & VirtualFileSystemId.MAX_FD;
+        final Segment segment = _segments.get(slot >> SEGMENT_SHIFT);
+        if (segment == null) {
+            return null;
+        }
+        final Endpoint endpoint = segment._endpoints.get(slot & SEGMENT_MASK);
+        // the generation is advanced before a freed slot can be reused, so checking it after reading
+        // the endpoint ensures that we do not return an endpoint that was stored by a later allocation
+        if (segment._generations.get(slot & SEGMENT_MASK) != fd >>> GENERATION_SHIFT) {
+            _staleLookups.incrementAndGet();
+            return null;
+        }
+        return endpoint;
+    }
+
+    /**
+     * Frees the slot associated with the given unique fd, so that it may be reused.
+     * Has no effect if the fd is stale or has already been freed.
+     * @param index unique fd
+     */
+    static void free(int index) {
+        freeFd(VirtualFileSystemId.getFd(index));
+    }
+
+    /**
+     * Frees the slot associated with the given file system relative fd, as passed to {@link EndpointFileSystem}.
+     * Has no effect if the fd is stale or has already been freed.
+     * @param fd file system relative fd
+     */
+    public static void freeFd(int fd) {
+        final int slot = fd & VirtualFileSystemId.MAX_FD;
+        final Segment segment = _segments.get(slot >> SEGMENT_SHIFT);
+        if (segment == null) {
+            return;
+        }
+        final int index = slot & SEGMENT_MASK;
+        final int generation = fd >>> GENERATION_SHIFT;
+        if (segment._endpoints.get(index) == null) {
+            return;
+        }
+        // only one of several concurrent frees of the same fd can advance the generation, and none of an fd
+        // whose slot has been freed and reused, since the slot's generation has then moved on
+        if (!segment._generations.compareAndSet(index, generation, (generation + 1) & VirtualFileSystemId.MAX_TAG)) {
+            _staleLookups.incrementAndGet();
+            return;
+        }
+        segment._endpoints.set(index, null);
+        _open.decrementAndGet();
+        push(slot);
+    }
+
+    /**
+     * The number of endpoints currently in the table.
+     */
+    public static int getOpenCount() {
+        return _open.get();
+    }
+
+    /**
+     * The largest number of endpoints that have been in the table at once.
+     */
+    public static int getPeakCount() {
+        return _peak.get();
+    }
+
+    /**
+     * The number of slots in use or on the free stack.
+     */
+    public static int getSlotCount() {
+        return _limit.get();
+    }
+
+    /**
+     * The number of lookups or frees that presented a stale fd.
+     */
+    public static int getStaleCount() {
+        return _staleLookups.get();
     }
 
-    static void setNull(int index) {
-        set(index, null);
+    public static void report(java.io.PrintStream out) {
+        out.print("Endpoints: open " + _open.get() + ", peak " + _peak.get() + ", slots " + _limit.get() + ", allocations " + _allocations.get() +
+                        ", stale " + _staleLookups.get() + "\n");
     }
 
 }
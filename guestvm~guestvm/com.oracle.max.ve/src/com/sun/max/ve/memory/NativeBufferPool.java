@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.memory;
+
+import java.nio.ByteBuffer;
+
+import sun.nio.ch.DirectBuffer;
+
+import com.sun.max.memory.Memory;
+import com.sun.max.unsafe.*;
+
+/**
+ * A pool of native memory buffers of {@link #BUFFER_SIZE} bytes for transfers to and from native code,
+ * saving an allocate and deallocate per transfer. A small number of released buffers are retained;
+ * any more are deallocated.
+ *
+ * @author Mick Jordan
+ *
+ */
+public final class NativeBufferPool {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RETAINED = 8;
+
+    /**
+     * Addresses of the retained buffers.
+     */
+    private static final long[] _free = new long[MAX_RETAINED];
+    private static int _freeCount;
+
+    private NativeBufferPool() {
+    }
+
+    public static Pointer acquire() {
+        synchronized (_free) {
+            if (_freeCount > 0) {
+                return Pointer.fromLong(_free[--_freeCount]);
+            }
+        }
+        return Memory.allocate(Size.fromInt(BUFFER_SIZE));
+    }
+
+    public static void release(Pointer buffer) {
+        synchronized (_free) {
+            if (_freeCount < MAX_RETAINED) {
+                _free[_freeCount++] = buffer.toLong();
+                return;
+            }
+        }
+        Memory.deallocate(buffer);
+    }
+
+    /**
+     * Returns the address of the current position of a direct buffer.
+     */
+    public static Pointer address(ByteBuffer bb) {
+        return Pointer.fromLong(((DirectBuffer) bb).address() + bb.position());
+    }
+}
@@ -42,30 +42,78 @@ import com.sun.max.vm.reference.*;
  * changes thread state by calling the SchedThread methods (which simply forward to the
  * uKernel scheduler if Java scheduling is not active).
  *
+ * A contended lock first spins while the holder is running on another CPU, since a short critical
+ * section is likely to end sooner than the two context switches that blocking costs. The spin limit
+ * adapts per mutex: it doubles when spinning acquires the lock and halves when it does not, between
+ * {@link #MIN_SPIN} and the maximum set by {@value #SPIN_PROPERTY} at image build time (zero disables spinning).
+ * A thread that gives up spinning blocks, and is then woken by {@link #unlock()} without the unlocking thread
+ * yielding to it.
+ *
+ * If {@value #HANDOFF_PROPERTY} is set at image build time, {@link #unlock()} passes ownership directly to
+ * the first blocked thread, which prevents spinning threads from starving it.
+ *
  * @author Mick Jordan
  * @author Harald Roeck
  */
 public final class JavaMutex extends Mutex {
 
+    /**
+     * Maximum spin iterations, or zero for no spinning.
+     */
+    public static final String SPIN_PROPERTY = "max.ve.mutex.spin";
+    /**
+     * Unlock hands the mutex to the first blocked thread.
+     */
+    public static final String HANDOFF_PROPERTY = "max.ve.mutex.handoff";
+
+    private static final int DEFAULT_MAX_SPIN = 4096;
+    private static final int MIN_SPIN = 16;
+    private static final int MAX_SPIN;
+    private static final boolean HANDOFF;
+
+    static {
+        final String spin = System.getProperty(SPIN_PROPERTY);
+        MAX_SPIN = spin == null ? DEFAULT_MAX_SPIN : Integer.parseInt(spin);
+        if (MAX_SPIN < 0) {
+            throw new IllegalArgumentException(SPIN_PROPERTY + " must not be negative: " + spin);
+        }
+        HANDOFF = System.getProperty(HANDOFF_PROPERTY) != null;
+    }
+
     private int _rcount;
-    private GUKVmThread _holder;
+    private volatile GUKVmThread _holder;
     private SpinLock _spinlock;
     private static Scheduler _scheduler;
+    private static boolean _multiCpu;
     /*
      * A list of threads that are waiting on this monitor.
      */
     private WaitList _waiters;
+    /*
+     * Current spin limit.
+     */
+    private int _spinLimit;
+
+    /*
+     * Contention statistics, updated without synchronization.
+     */
+    private long _contended;
+    private long _spinAcquires;
+    private long _blocks;
+    private long _handoffs;
 
     static void initialize() {
         assert MaxineVM.isPrimordial();
         GUKScheduler.initialize(MaxineVM.Phase.PRIMORDIAL);
         _scheduler = SchedulerFactory.scheduler();
+        _multiCpu = GUKScheduler.numCpus() > 1;
     }
 
     public JavaMutex() {
         _spinlock = SpinLockFactory.create();
         _rcount = 0;
         _waiters = new WaitList();
+        _spinLimit = MAX_SPIN;
     }
 
     @Override
@@ -86,16 +134,38 @@ public final class JavaMutex extends Mutex {
         if (_holder == current) {
             ++_rcount;
         } else {
+            _spinlock.lock();
+            if (_holder == null) {
+                _holder = current;
+                _rcount = 1;
+                _spinlock.unlock();
+                return true;
+            }
+            _contended++;
+            _spinlock.unlock();
+            if (MAX_SPIN > 0 && _multiCpu && spin(current)) {
+                _rcount = 1;
+                return true;
+            }
             _spinlock.lock();
             current.setMutexWait(true); // for debugging
-            while (_holder != null) {
+            while (_holder != current) {
+                if (_holder == null) {
+                    _holder = current;
+                    break;
+                }
+                _blocks++;
                 _waiters.put(current);
                 current.setSchedulable(false);
                 _spinlock.unlock();
                 _scheduler.schedule();
+                if (!HANDOFF && MAX_SPIN > 0 && _multiCpu && spin(current)) {
+                    current.setMutexWait(false);
+                    _rcount = 1;
+                    return true;
+                }
                 _spinlock.lock();
             }
-            _holder = current;
             _rcount = 1;
             current.setMutexWait(false);
             _spinlock.unlock();
@@ -103,6 +173,41 @@ public final class JavaMutex extends Mutex {
         return true;
     }
 
+    /**
+     * Spin while the holder is running on another cpu, trying to acquire the mutex when it is released,
+     * and adjust the spin limit according to the outcome.
+     *
+     * @param current the current thread
+     * @return true if the mutex was acquired
+     */
+    private boolean spin(GUKVmThread current) {
+        final int limit = _spinLimit;
+        for (int i = 0; i < limit; i++) {
+            final GUKVmThread holder = _holder;
+            if (holder == null) {
+                _spinlock.lock();
+                if (_holder == null) {
+                    _holder = current;
+                    _spinlock.unlock();
+                    _spinAcquires++;
+                    if (limit < MAX_SPIN) {
+                        _spinLimit = limit << 1;
+                    }
+                    return true;
+                }
+                _spinlock.unlock();
+            } else if (!holder.isRunning() || holder.getCpu() == current.getCpu()) {
+                // the holder will not release the mutex until it runs again
+                break;
+            }
+            Intrinsics.pause();
+        }
+        if (limit > MIN_SPIN) {
+            _spinLimit = limit >> 1;
+        }
+        return false;
+    }
+
     @Override
     public boolean unlock() {
         final GUKVmThread current = (GUKVmThread) VmThread.current();
@@ -110,12 +215,20 @@ public final class JavaMutex extends Mutex {
 
         if (--_rcount == 0) {
             _spinlock.lock();
-            _holder = null;
             final GUKVmThread next = _waiters.get();
+            if (HANDOFF && next != null) {
+                _holder = next;
+                _handoffs++;
+            } else {
+                _holder = null;
+            }
             _spinlock.unlock();
             if (next != null) {
                 next.setSchedulable(true);
-                _scheduler.schedule();
+                // without spinning, give the woken thread the chance to run before we barge the mutex again
+                if (!_multiCpu || MAX_SPIN == 0) {
+                    _scheduler.schedule();
+                }
             }
         }
         return true;
@@ -134,6 +247,41 @@ public final class JavaMutex extends Mutex {
         return rcount;
     }
 
+    /**
+     * The number of times {@link #lock()} found the mutex held by another thread.
+     */
+    public long contended() {
+        return _contended;
+    }
+
+    /**
+     * The number of contended acquisitions made by spinning.
+     */
+    public long spinAcquires() {
+        return _spinAcquires;
+    }
+
+    /**
+     * The number of times a thread blocked on this mutex.
+     */
+    public long blocks() {
+        return _blocks;
+    }
+
+    /**
+     * The number of times {@link #unlock()} passed ownership directly to a blocked thread.
+     */
+    public long handoffs() {
+        return _handoffs;
+    }
+
+    /**
+     * The current adaptive spin limit.
+     */
+    public int spinLimit() {
+        return _spinLimit;
+    }
+
     @Override
     public long logId() {
         return Reference.fromJava(_spinlock).toOrigin().toLong();
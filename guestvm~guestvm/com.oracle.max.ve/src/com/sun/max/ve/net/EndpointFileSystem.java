@@ -33,6 +33,9 @@ import com.sun.max.ve.jdk.JavaNetUtil;
  * parts of the java.nio package, which is heavily dependent on file descriptors and invokes
  * generic calls that require the underlying "file system" to be determinable.
  *
+ * The fds are allocated by {@link JavaNetUtil} and tagged with a generation, so an fd that has been closed
+ * yields {@code EBADF} rather than reaching an endpoint that has since been given the same slot.
+ *
  * @author Mick Jordan
  *
  */
@@ -49,20 +52,28 @@ public class EndpointFileSystem extends UnimplementedFileSystemImpl implements V
 
     @Override
     public void configureBlocking(int fd, boolean blocking) {
-        final Endpoint endpoint = JavaNetUtil.getFromVfsId(fd);
-        endpoint.configureBlocking(blocking);
+        final Endpoint endpoint = JavaNetUtil.getFromFd(fd);
+        if (endpoint != null) {
+            endpoint.configureBlocking(blocking);
+        }
     }
 
     @Override
     public int poll0(int fd, int eventOps, long timeout) {
-        final Endpoint endpoint = JavaNetUtil.getFromVfsId(fd);
+        final Endpoint endpoint = JavaNetUtil.getFromFd(fd);
+        if (endpoint == null) {
+            return -ErrorDecoder.Code.EBADF.getCode();
+        }
         return endpoint.poll(eventOps, timeout);
     }
 
     @Override
     public int writeBytes(int fd, ByteBuffer bb, long fileOffset) {
         try {
-            final Endpoint endpoint = JavaNetUtil.getFromVfsId(fd);
+            final Endpoint endpoint = JavaNetUtil.getFromFd(fd);
+            if (endpoint == null) {
+                return -ErrorDecoder.Code.EBADF.getCode();
+            }
             return endpoint.write(bb);
         } catch (IOException ex) {
             return -ErrorDecoder.Code.EIO.getCode();
@@ -72,7 +83,10 @@ public class EndpointFileSystem extends UnimplementedFileSystemImpl implements V
     @Override
     public int readBytes(int fd, ByteBuffer bb, long fileOffset) {
         try {
-            final Endpoint endpoint = JavaNetUtil.getFromVfsId(fd);
+            final Endpoint endpoint = JavaNetUtil.getFromFd(fd);
+            if (endpoint == null) {
+                return -ErrorDecoder.Code.EBADF.getCode();
+            }
             return endpoint.read(bb);
         } catch (IOException ex) {
             return -ErrorDecoder.Code.EIO.getCode();
@@ -82,8 +96,12 @@ public class EndpointFileSystem extends UnimplementedFileSystemImpl implements V
     @Override
     public int close0(int fd) {
         try {
-            final Endpoint endpoint = JavaNetUtil.getFromVfsId(fd);
+            final Endpoint endpoint = JavaNetUtil.getFromFd(fd);
+            if (endpoint == null) {
+                return -ErrorDecoder.Code.EBADF.getCode();
+            }
             endpoint.close(Endpoint.SHUT_RDWR);
+            JavaNetUtil.freeFd(fd);
             return 0;
         } catch (IOException ex) {
             return -ErrorDecoder.Code.EIO.getCode();
@@ -72,6 +72,11 @@ public class FragPacket extends Packet {
         return super.cksum(offset + _offset, len);
     }
 
+    @Override
+    public int cksum(int offset, int len, int dataSum) {
+        return super.cksum(offset + _offset, len, dataSum);
+    }
+
     @Override
     public byte getByteIgnoringHeaderOffset(int off) {
         return super.getByteIgnoringHeaderOffset(off + _offset);
@@ -109,6 +114,12 @@ public class FragPacket extends Packet {
         error("getBytes");
     }
 
+    @Override
+    public int getBytesAndSum(int srcOffset, byte[] dst, int dstOffset, int len) {
+        error("getBytesAndSum");
+        return 0;
+    }
+
     @Override
     public void putEthAddr(byte[] addr, int offset) {
         super.putEthAddr(addr, offset + _offset);
@@ -139,6 +150,11 @@ public class FragPacket extends Packet {
         super.putBytes(src, srcOffset, dstOffset + _offset, len);
     }
 
+    @Override
+    public int putBytesAndSum(byte[] src, int srcOffset, int dstOffset, int len) {
+        return super.putBytesAndSum(src, srcOffset, dstOffset + _offset, len);
+    }
+
     @Override
     public void putBytes(Packet pkt, int srcOffset, int dstOffset, int len) {
         error("putBytes");
@@ -29,6 +29,11 @@ package com.sun.max.ve.net;
  * into the image. This is done at image build time via a property that specifies a properties file
  * that contains the default settings. These can be overridden selectively at runtime.
  *
+ * The settings apply to the first network device. Each other device n is used for IP if the runtime property
+ * max.ve.net.ipaddress.n is set, with the netmask given by max.ve.net.netmask.n or, if that is not set,
+ * computed from the address; the route to its network is added automatically. Other routes are given by
+ * max.ve.net.routes, a comma separated list of prefix/length[:gateway][@n], e.g., 10.2.0.0/16:10.1.0.1 or 10.3.0.0/16@1.
+ *
  * @author Mick Jordan
  */
 
@@ -56,6 +61,7 @@ public class Init {
     private static final String NETMASK_PROPERTY = "max.ve.net.netmask";
     private static final String NAMESERVER_PROPERTY = "max.ve.net.nameserver";
     private static final String DOMAINNAME_PROPERTY = "max.ve.net.domainname";
+    private static final String ROUTES_PROPERTY = "max.ve.net.routes";
 
     private static String _defaultLocalAddress;
     private static String _defaultOwnGateway;
@@ -72,12 +78,13 @@ public class Init {
     private static IPAddress _localAddress;
     private static IPAddress _ownGateway;
     private static IPAddress _netMask;
-    private static IPAddress _nameServer;
+    private static IPAddress[] _nameServers;
     private static String _domainName;
     private static String _myHostname;
     private static NetDevice[] _netDevices;
     private static LoopbackDevice _loopbackDevice;
     private static Map<NetDevice, IPAddress> _ipMap = new HashMap<NetDevice, IPAddress>();
+    private static IPInterface[] _interfaces;    // indexed as nics, null if not configured
     private static Init _singleton;
 
     static {
@@ -161,14 +168,84 @@ public class Init {
         _ipMap.put(_netDevices[0], _localAddress);
         _ipMap.put(_netDevices[nics.length], IPAddress.loopback());
         IP.init(_localAddress.addressAsInt(), _netMask.addressAsInt());
+        configureInterfaces(nics);
         ProtocolStack.setRoute(_ownGateway.addressAsInt());
+        configureRoutes();
 
-        _dns = new DNS(_nameServer, _domainName);
+        _dns = new DNS(_nameServers, _domainName);
         _myHostname = _dns.reverseLookup(_localAddress);
 
         TCP.init();
     }
 
+    /**
+     * Configure IP on the devices other than the first that have an address.
+     */
+    private void configureInterfaces(NetDevice[] nics) {
+        _interfaces = new IPInterface[nics.length];
+        _interfaces[0] = IP.getInterfaces()[0];
+        for (int i = 1; i < nics.length; i++) {
+            final String ipAddressString = System.getProperty(IPADDRESS_PROPERTY + "." + i);
+            if (ipAddressString == null || !nics[i].active()) {
+                _ipMap.put(nics[i], new IPAddress(0));
+                continue;
+            }
+            final IPAddress ipAddress = IPAddress.parse(ipAddressString);
+            // as for the primary interface, a missing netmask is computed from the address
+            final String netMaskString = System.getProperty(NETMASK_PROPERTY + "." + i);
+            final int netMask = netMaskString == null ? IP.computeNetmask(ipAddress.addressAsInt()) : IPAddress.parse(netMaskString).addressAsInt();
+            final Ether ether = new Ether(nics[i]);
+            final ARP arp = ARP.getARP(ether);
+            ether.registerHandler(arp, "ARP");
+            ether.registerHandler(_ip, "IP");
+            _interfaces[i] = IP.addInterface(ether, arp);
+            IP.configure(_interfaces[i], ipAddress.addressAsInt(), netMask);
+            _ipMap.put(nics[i], ipAddress);
+            if (_identify) {
+                System.out.println("Guest VM domain IP address: " + ipAddress + " (" + nics[i].getNICName() + ")");
+            }
+        }
+    }
+
+    /**
+     * Add the routes given by the {@value #ROUTES_PROPERTY} property.
+     */
+    private static void configureRoutes() {
+        final String routes = System.getProperty(ROUTES_PROPERTY);
+        if (routes == null) {
+            return;
+        }
+        for (String route : routes.split(",")) {
+            try {
+                String spec = route.trim();
+                IPInterface iface = null;
+                int gateway = 0;
+                int ix = spec.indexOf('@');
+                if (ix > 0) {
+                    iface = _interfaces[Integer.parseInt(spec.substring(ix + 1))];
+                    if (iface == null) {
+                        throw new IllegalArgumentException("device not configured");
+                    }
+                    spec = spec.substring(0, ix);
+                }
+                ix = spec.indexOf(':');
+                if (ix > 0) {
+                    gateway = IPAddress.parse(spec.substring(ix + 1)).addressAsInt();
+                    spec = spec.substring(0, ix);
+                }
+                ix = spec.indexOf('/');
+                final int prefix = IPAddress.parse(spec.substring(0, ix)).addressAsInt();
+                final int prefixLength = Integer.parseInt(spec.substring(ix + 1));
+                if (iface == null && gateway == 0) {
+                    throw new IllegalArgumentException("no gateway or device");
+                }
+                IP.addRoute(prefix, prefixLength, gateway, iface);
+            } catch (Exception ex) {
+                VEError.unexpected("bad network route " + route + ": " + ex.getMessage());
+            }
+        }
+    }
+
     public static Init get() {
         return _singleton;
     }
@@ -195,13 +272,13 @@ public class Init {
             }
             _ownGateway = dhcp.gateway();
             _netMask = dhcp.netmask();
-            _nameServer = dhcp.resolver();
+            _nameServers = dhcp.resolvers();
             _domainName = dhcp.domainName();
         } else {
             _localAddress = getIPAddress(IPADDRESS_PROPERTY, _defaultLocalAddress);
             _ownGateway = getIPAddress(GATEWAY_PROPERTY, _defaultOwnGateway);
             _netMask = getIPAddress(NETMASK_PROPERTY, _defaultNetMask);
-            _nameServer = getIPAddress(NAMESERVER_PROPERTY, _defaultNameServer);
+            _nameServers = getIPAddresses(NAMESERVER_PROPERTY, _defaultNameServer);
             _domainName = getStringProperty(DOMAINNAME_PROPERTY, _defaultDomainName);
         }
         if (_identify) {
@@ -225,6 +302,21 @@ public class Init {
         return IPAddress.parse(ipAddressString);
     }
 
+    // a comma separated list of addresses
+    private static IPAddress[] getIPAddresses(String propertyName, String defaultValue) throws NumberFormatException {
+        String ipAddressString = System.getProperty(propertyName);
+        if (ipAddressString == null) {
+            checkDefault(propertyName, defaultValue);
+            ipAddressString = defaultValue;
+        }
+        final String[] ipAddressStrings = ipAddressString.split(",");
+        final IPAddress[] result = new IPAddress[ipAddressStrings.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = IPAddress.parse(ipAddressStrings[i].trim());
+        }
+        return result;
+    }
+
     private static String getStringProperty(String propertyName, String defaultValue) {
         String value = System.getProperty(propertyName);
         if (value == null) {
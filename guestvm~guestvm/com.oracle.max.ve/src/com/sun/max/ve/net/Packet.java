@@ -23,6 +23,9 @@
 package com.sun.max.ve.net;
 
 import com.sun.max.annotate.*;
+import com.sun.max.unsafe.*;
+import com.sun.max.vm.*;
+import com.sun.max.vm.reference.*;
 
 /**
  * A class that denotes a network packet.
@@ -56,6 +59,15 @@ public class Packet {
     private int _hdrOffset;          // the offset of the first byte after the "header", gets changed by protocol handlers
     private long _timeStamp;     // incoming packet: arrival time at network device, outgoing packet: undefined
 
+    // checksum and segmentation offload, see NetDevice.getFeatures
+    private boolean _csumValidated;  // incoming packet: the transport checksum was validated by the device
+    private boolean _csumBlank;       // outgoing packet: the transport checksum is to be completed by the device
+    private int _gsoSize;               // outgoing packet: if non-zero, the device splits the TCP data into segments of this size
+
+    private int _dataSum = -1;         // outgoing packet: if not -1, the ones' complement sum of the data after the header, see putBytesAndSum
+
+    private static final Offset _dataOffset = VMConfiguration.vmConfig().layoutScheme().byteArrayLayout.getElementOffsetFromOrigin(0);
+
     private Packet(int hlen, int dlen) {
         this(hlen, dlen, new byte[hlen + dlen]);
     }
@@ -99,6 +111,11 @@ public class Packet {
         _timeStamp = ts;
     }
 
+    @INLINE
+    public final void inlineSetChecksumValidated(boolean validated) {
+        _csumValidated = validated;
+    }
+
     protected Packet(int hlen, int dlen, byte[] buf) {
         _length = hlen + dlen;
         _hdrOffset = hlen;
@@ -143,6 +160,50 @@ public class Packet {
         return _buf;
     }
 
+    /**
+     * Returns true if the transport (TCP/UDP) checksum of this incoming packet has already been validated
+     * by the network device, or need not be, so the protocol layer may skip the check.
+     */
+    public boolean isChecksumValidated() {
+        return _csumValidated;
+    }
+
+    /**
+     * Returns true if the transport checksum field of this outgoing packet holds only the pseudo-header sum,
+     * and the network device must complete it.
+     */
+    public boolean isChecksumBlank() {
+        return _csumBlank;
+    }
+
+    public void setChecksumBlank(boolean blank) {
+        _csumBlank = blank;
+    }
+
+    /**
+     * Returns the size of the segments into which the network device must split the TCP data
+     * in this outgoing packet, or zero if the packet is to be sent as is.
+     */
+    public int getGsoSize() {
+        return _gsoSize;
+    }
+
+    public void setGsoSize(int size) {
+        _gsoSize = size;
+    }
+
+    /**
+     * Returns the sum, as returned by {@link #ocsum}, of the data in this outgoing packet that follows the
+     * transport header, if it was computed as the data was copied in, otherwise -1.
+     */
+    public int getDataSum() {
+        return _dataSum;
+    }
+
+    public void setDataSum(int sum) {
+        _dataSum = sum;
+    }
+
     /**
      * Create a copy of this packet.
      * Note that the actual buffer length is ignored, only the data up to @see length is copied.
@@ -175,23 +236,91 @@ public class Packet {
         return ~ocsum(_buf, _hdrOffset + offset, len)  & 0xFFFF;
     }
 
+    /**
+     * Perform an Internet checksum on the packet data from {@code offset} for {@code len} bytes, followed by data whose
+     * sum, as returned by {@link #ocsum}, is {@code dataSum}. {@code len} must be even.
+     */
+    public int cksum(int offset, int len, int dataSum) {
+        return ~ocsumAdd(ocsum(_buf, _hdrOffset + offset, len), dataSum) & 0xFFFF;
+    }
+
+    /**
+     * Returns the ones' complement sum of the 16-bit big-endian words in {@code buf[off .. off + len - 1]},
+     * folded to 16 bits, as used by the Internet checksum (RFC 1071).
+     *
+     * The sum is independent of byte order except for a final swap, so the data is read eight bytes at a time in
+     * the native (little-endian) order and the two 32-bit halves of each long are accumulated in a long, which cannot
+     * overflow for any packet.
+     */
     public static int ocsum(byte[] buf, int off, int len) {
-        int sum = 0;
+        final Reference ref = Reference.fromJava(buf);
+        long sum = 0;
+        int i = off;
+        final int end = off + len;
+        while (end - i >= 8) {
+            final long w = ref.readLong(_dataOffset.plus(i));
+            sum += (w & 0xFFFFFFFFL) + (w >>> 32);
+            i += 8;
+        }
+        return fold(sum + tail(buf, i, end - i));
+    }
+
+    /**
+     * Copies {@code len} bytes from {@code src} to {@code dst}, returning their sum as {@link #ocsum} would.
+     * The data is read and written as longs.
+     */
+    public static int copyAndSum(byte[] src, int srcOffset, byte[] dst, int dstOffset, int len) {
+        final Reference srcRef = Reference.fromJava(src);
+        final Reference dstRef = Reference.fromJava(dst);
+        long sum = 0;
         int i = 0;
-        while (len > 1) {
-            final int incr = ((buf[i + off] << 8) & 0xFF00) + (buf[i + off + 1] & 0xFF);
-            sum += incr;
-            i += 2;
-            len -= 2;
+        while (len - i >= 8) {
+            final long w = srcRef.readLong(_dataOffset.plus(srcOffset + i));
+            dstRef.writeLong(_dataOffset.plus(dstOffset + i), w);
+            sum += (w & 0xFFFFFFFFL) + (w >>> 32);
+            i += 8;
         }
-        if (len > 0) {
-            sum += (buf[i + off] << 8) & 0xFF00;
+        for (int j = i; j < len; j++) {
+            dst[dstOffset + j] = src[srcOffset + j];
         }
-        while ((sum >> 16) != 0) {
-            sum = (sum & 0xFFFF) + (sum >> 16);
+        return fold(sum + tail(src, srcOffset + i, len - i));
+    }
+
+    // the little-endian sum of the last (< 8) bytes
+    private static long tail(byte[] buf, int off, int len) {
+        long sum = 0;
+        for (int i = 0; i < len; i++) {
+            sum += (buf[off + i] & 0xFF) << ((i & 1) << 3);
         }
         return sum;
+    }
 
+    // fold a little-endian sum to 16 bits and swap to network byte order
+    private static int fold(long sum) {
+        sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        final int s = (int) ((sum & 0xFFFF) + (sum >>> 16));
+        return ((s & 0xFF) << 8) | (s >> 8);
+    }
+
+    /**
+     * Returns the ones' complement sum of two sums returned by {@link #ocsum}.
+     */
+    public static int ocsumAdd(int sum1, int sum2) {
+        final int sum = sum1 + sum2;
+        return (sum & 0xFFFF) + (sum >> 16);
+    }
+
+    /**
+     * Returns the sum of a block of data that follows a block of {@code length} bytes with sum {@code sum},
+     * given the sum {@code next} of the second block as returned by {@link #ocsum}.
+     */
+    public static int ocsumAppend(int sum, int length, int next) {
+        if ((length & 1) != 0) {
+            next = ((next & 0xFF) << 8) | (next >> 8);
+        }
+        return ocsumAdd(sum, next);
     }
 
     public void shiftHeader(int bytes) {
@@ -329,6 +458,20 @@ public class Packet {
     }
 
 
+    /**
+     * Copy data from supplied buffer to packet, returning its sum as {@link #ocsum} would.
+     */
+    public int putBytesAndSum(byte[] src, int srcOffset, int dstOffset, int len) {
+        return copyAndSum(src, srcOffset, _buf, dstOffset + _hdrOffset, len);
+    }
+
+    /**
+     * Copy data from packet to supplied buffer, returning its sum as {@link #ocsum} would.
+     */
+    public int getBytesAndSum(int srcOffset, byte[] dst, int dstOffset, int len) {
+        return copyAndSum(_buf, _hdrOffset + srcOffset, dst, dstOffset, len);
+    }
+
     // Copy the specified range from the given packet into this packet.
     public void putBytes(Packet pkt, int srcOffset, int dstOffset, int len) {
         pkt.getBytes(srcOffset, _buf, dstOffset + _hdrOffset, len);
@@ -22,15 +22,28 @@
  */
 package com.sun.max.ve.net;
 
+import com.sun.max.ve.net.ip.*;
+
+/**
+ * The default route, which is held in the {@link RouteTable}.
+ */
 public class ProtocolStack {
-    private static int  _route;
 
     public static int getRoute(int destip) {
-        return _route;
+        return IP.getGateway(destip);
     }
 
     public static void setRoute(int gateway) {
-        _route = gateway;
+        if (gateway == 0) {
+            IP.removeRoute(0, 0);
+            return;
+        }
+        try {
+            IP.addRoute(0, 0, gateway, null);
+        } catch (NetworkException ex) {
+            // the gateway is not on a local network, use the primary interface, as when there was only one
+            IP.getRouteTable().add(0, 0, gateway, IP.getInterfaces()[0]);
+        }
     }
 
 }
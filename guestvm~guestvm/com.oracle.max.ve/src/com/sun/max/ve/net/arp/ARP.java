@@ -28,18 +28,26 @@ package com.sun.max.ve.net.arp;
 
    notes:
 
-   The arp entries are stored in two arrays.  One array for ether
-   addresses, another for associated ip addresses.  Insert new
-   entries at index nextFree, wrapping around as necessary.
-
-   *** The ARP rfc specifies that entries have a lifetime of no
-   more than 30 minutes.  We don't implement that policy yet. ***
-
-   The sendPacket() code ensures that we don't send multiple ARP
-   requests for the same IP address.  The RFC says we should hold
-   on to the *latest* packet for transmission when an ARP reply
-   comes in.  Instead we currently hold on to the *first* packet for
-   transmission.  Might want to fix this.
+   The arp entries are held in an ARPCache, which can be searched
+   without locking as that is done for every packet sent.
+
+   Entries expire after _maxTicks reap intervals, 20 minutes by default,
+   in line with the RFC's limit of 30 minutes. An entry that has been
+   used since the last reap is refreshed, by a unicast ARP request to
+   the known address, shortly before it would expire, so that a busy
+   destination never has to be resolved again from scratch.
+
+   When the address is not known, the packet is queued on the entry,
+   a broadcast ARP request is sent, and the caller continues. As the RFC
+   recommends, the *latest* packets are held: when more than
+   _maxPending are queued the oldest is dropped. The queue is sent when
+   the reply comes in. Retries are driven by a single timer, so no
+   thread is created per resolution, and only one resolution is in
+   progress per address.
+
+   There is an instance, with its own cache, for each network device,
+   answering for the address of the IP interface of that device. The
+   instances share a timer.
 
    sritchie -- Oct 95
 
@@ -48,7 +56,6 @@ package com.sun.max.ve.net.arp;
 
 import java.util.*;
 
-import com.sun.max.program.*;
 import com.sun.max.ve.net.*;
 import com.sun.max.ve.net.debug.*;
 import com.sun.max.ve.net.device.*;
@@ -60,20 +67,25 @@ import com.sun.max.ve.net.protocol.ether.*;
  */
 public final class ARP extends TimerTask implements NetDevice.Handler {
 
-    private static ARP _singleton;
+    private static ARP _singleton;     // the instance for the first device
+    private static final List<ARP> _instances = new ArrayList<ARP>();
 
-    // used to timeout entries in the ARP cache
-    private Timer _timer;
+    // used to retry requests and to timeout and refresh entries in the ARP caches
+    private static Timer _timer;
     private static long _arpCacheReapInterval = 60000;     // tick every minute
     private static int _maxTicks = 20;                                 // 20 minute timeout for known entries
-    private static int _maxInProgressTicks = 3;                   // 3 minute timeout for in progress entries
+    private static int _maxInProgressTicks = 3;                   // 3 minute timeout for unresolved entries
 
     // ethernet driver we'll send packets to
     private Ether _ether  = null;
+    // the IP address of the device, 0 if the primary address is to be used
+    private volatile int _localAddress;
 
     private static final int ARP_TIMEOUT = 1000;
     private static final int DEFAULT_MAX_ARP_TIMEOUTS = 5;
     private int _maxTimeOuts = DEFAULT_MAX_ARP_TIMEOUTS;
+    private static final int DEFAULT_MAX_PENDING = 8;
+    private int _maxPending = DEFAULT_MAX_PENDING;
 
 
     private static final int ARPOP_REQUEST = 1;
@@ -94,10 +106,25 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
     private static final int DSTETH_OFFSET = 18; // target hardware address
     private static final int DSTIP_OFFSET  = 24; // target IP address
 
+    // statistics
+    private static int arpRequests;
+    private static int arpRefreshes;
+    private static int arpFailures;
+    private static int arpPendingDrops;
+
     public static class CacheEntry {
-        private int _ticks;
-        private int _ipAddr;
-        private long _ethAddress;
+        final int _ipAddr;
+        private volatile long _ethAddress;     // 0 until resolved
+        private volatile long _expires;         // when the entry is reaped
+        private volatile boolean _used;        // used since the last reap
+
+        // the following are protected by the lock on the entry
+        private boolean _resolving;             // an ARP request is outstanding
+        private int _tries;                         // requests sent by the current resolution
+        private int _maxTries;
+        private Packet _pendingHead;          // packets waiting for resolution, oldest first
+        private Packet _pendingTail;
+        private int _pendingCount;
 
         CacheEntry(int ipAddr, long ethAddress) {
             _ipAddr = ipAddr;
@@ -111,15 +138,49 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
         public IPAddress getIPAddress() {
             return new IPAddress(_ipAddr);
         }
+
+        // Queue a packet to be sent when resolved, returning the packet dropped to make room, if any.
+        private Packet addPending(Packet pkt, int maxPending) {
+            pkt._next = null;
+            if (_pendingTail == null) {
+                _pendingHead = pkt;
+            } else {
+                _pendingTail._next = pkt;
+            }
+            _pendingTail = pkt;
+            if (++_pendingCount > maxPending) {
+                final Packet dropped = _pendingHead;
+                _pendingHead = dropped._next;
+                dropped._next = null;
+                _pendingCount--;
+                return dropped;
+            }
+            return null;
+        }
+
+        private Packet takePending() {
+            final Packet result = _pendingHead;
+            _pendingHead = null;
+            _pendingTail = null;
+            _pendingCount = 0;
+            return result;
+        }
     }
 
-    private static Map<Integer, CacheEntry> _cache = Collections.synchronizedMap(new HashMap<Integer, CacheEntry>());
+    private final ARPCache _cache = new ARPCache();
 
-    public static ARP getARP(Ether ether) {
-        if (_singleton == null) {
-            _singleton = new ARP(ether);
+    /**
+     * Returns the instance for the given device, creating it if necessary.
+     */
+    public static synchronized ARP getARP(Ether ether) {
+        for (ARP arp : _instances) {
+            if (arp._ether == ether) {
+                return arp;
+            }
         }
-        return _singleton;
+        final ARP arp = new ARP(ether);
+        _instances.add(arp);
+        return arp;
     }
 
     private ARP(Ether ether) {
@@ -129,42 +190,91 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
         if (timeOutProperty != null) {
             _maxTimeOuts = Integer.parseInt(timeOutProperty);
         }
-        _timer = new Timer("ARP Cache Timer", true);
+        final String pendingProperty = System.getProperty("max.ve.net.arp.maxpending");
+        if (pendingProperty != null) {
+            _maxPending = Integer.parseInt(pendingProperty);
+        }
+        if (_timer == null) {
+            _timer = new Timer("ARP Timer", true);
+        }
         _timer.scheduleAtFixedRate(this, _arpCacheReapInterval, _arpCacheReapInterval);
 
-        _singleton = this;
+        if (_singleton == null) {
+            _singleton = this;
+        }
+    }
+
+    /**
+     * Set the IP address that this instance answers for and sends requests from.
+     */
+    public void setLocalAddress(int localAddress) {
+        _localAddress = localAddress;
+    }
+
+    private int localAddress() {
+        final int localAddress = _localAddress;
+        return localAddress != 0 ? localAddress : IP.getLocalAddress();
     }
 
-    private long resolve(int ipAddr, Packet pkt, boolean nonBlocking) {
-        long result = 0;
+    private long resolve(int ipAddr, Packet pkt, boolean nonBlocking, int maxTries) {
         // look for the IP address in our cache.
         CacheEntry entry = _cache.get(ipAddr);
-
-        if (entry == null) {
-            // We don't have the destination ethernet address so try to find it
-            // insert this IP addr into our cache as "in-progress"
-            entry = new CacheEntry(ipAddr, 0);
-            _cache.put(ipAddr, entry);
-            if (nonBlocking) {
-                new Thread(new ARPThread(ipAddr, pkt)).start();
-            } else {
-                if (doArp(pkt, ipAddr,  _maxTimeOuts)) {
-                    result = entry._ethAddress;
+        if (entry != null) {
+            final long ethAddress = entry._ethAddress;
+            if (ethAddress != 0) {
+                // we have the Ethernet address in our cache, so immediately
+                // return it to the caller.
+                if (!entry._used) {
+                    entry._used = true;
                 }
+                return ethAddress;
             }
         } else {
+            // insert this IP addr into our cache as unresolved
+            entry = _cache.getOrCreate(ipAddr);
+        }
+
+        boolean request = false;
+        Packet dropped = null;
+        synchronized (entry) {
+            // check again, a reply may have arrived
             if (entry._ethAddress != 0) {
-                // we have the Ethernet address in our cache, so immediately
-                // return it to the caller.
-                result = entry._ethAddress;
-            } else {
-                // We currently have an ARP request on the wire for this IP
-                // address, and we are not going to generate another.
-                // So we drop the packet.
-                // TODO: reconsider this
+                return entry._ethAddress;
+            }
+            if (!entry._resolving) {
+                entry._resolving = true;
+                entry._tries = 0;
+                entry._maxTries = maxTries;
+                entry._expires = System.currentTimeMillis() + _maxInProgressTicks * _arpCacheReapInterval;
+                request = true;
+            } else if (maxTries > entry._maxTries) {
+                entry._maxTries = maxTries;
+            }
+            if (pkt != null) {
+                dropped = entry.addPending(pkt, _maxPending);
             }
         }
-        return result;
+        if (dropped != null) {
+            arpPendingDrops++;
+            dprint("dropped pending packet for " + IPAddress.toString(ipAddr));
+        }
+        if (request) {
+            sendRequest(entry);
+        }
+        if (nonBlocking) {
+            return 0;
+        }
+
+        try {
+            synchronized (entry) {
+                while (entry._ethAddress == 0 && entry._resolving) {
+                    entry.wait();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return entry._ethAddress;
     }
 
     /**
@@ -176,20 +286,21 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
      * @return the ethernet address or 0 if not found
      */
     public long resolve(int ip_addr) {
-        return resolve(ip_addr, null, false);
+        return resolve(ip_addr, null, false, _maxTimeOuts);
     }
 
     /**
      * Get the ethernet address for the given IP address.
      * If we do not have the address in the cache,
-     * this method will spawn a thread to resolve the address
-     * and, if that is successful, will then send the original packet.
+     * this method will queue the packet, start resolving the address
+     * if that is not already in progress, and return.
+     * If the address is resolved, the queued packets will then be sent.
      * @param ip_addr IP address
-     * @param pkt packet to send
+     * @param pkt packet to send, or null if the packet cannot be held
      * @return the ethernet address or 0 if not found
      */
    public long nonBlockingResolve(int ip_addr, Packet pkt) {
-        return resolve(ip_addr, pkt, true);
+        return resolve(ip_addr, pkt, true, _maxTimeOuts);
     }
 
     public void handle(Packet pkt) {
@@ -231,32 +342,20 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
         // if we already have this IP/ether translation, update
         // our old copy of the ether address with the new one.
         CacheEntry entry = _cache.get(src_ip);
-        boolean updated = false;
         if (entry != null) {
             if (_debug) {
                 dprint("updating " + IPAddress.toString(src_ip) + " " + Long.toString(src_ethAddress, 16));
             }
-            updated = true;
-
-            long ethAddress = entry._ethAddress;
-            entry._ethAddress = src_ethAddress;
-
-            if (ethAddress == 0) {
-                // notify any waiting thread that a new mapping has arrived
-                synchronized (entry) {
-                    entry.notify();
-                }
-            }
+            update(entry, src_ethAddress);
         }
 
         // get target IP address and see if it's for us.
         int dest_ip = pkt.getInt(DSTIP_OFFSET);
-        if (dest_ip == IP.getLocalAddress()) {
+        if (dest_ip == localAddress()) {
             // this packet is for us.
-            if (updated == false) {
+            if (entry == null) {
                 // insert the new IP/ether mapping into our cache.
-                entry = new CacheEntry(dest_ip, src_ethAddress);
-                _cache.put(src_ip, entry);
+                update(_cache.getOrCreate(src_ip), src_ethAddress);
             }
 
             // get ARP packet type
@@ -277,29 +376,117 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
         }
     }
 
-    // Check the ARP cache and flush stale entries.
+    // Record the ethernet address for an entry, waking any waiting threads and sending any pending packets.
+    private void update(CacheEntry entry, long ethAddress) {
+        Packet pending;
+        synchronized (entry) {
+            entry._ethAddress = ethAddress;
+            entry._expires = System.currentTimeMillis() + _maxTicks * _arpCacheReapInterval;
+            entry._resolving = false;
+            pending = entry.takePending();
+            entry.notifyAll();
+        }
+        while (pending != null) {
+            final Packet next = pending._next;
+            pending._next = null;
+            if (_debug) {
+                dprint("sending pending packet to " + IPAddress.toString(entry._ipAddr) + " using " + Long.toString(ethAddress, 16));
+            }
+            _ether.transmit(ethAddress, ETHERTYPE_IP, pending);
+            pending = next;
+        }
+    }
+
+    // Send the next ARP request for an entry that is being resolved and schedule a retry,
+    // or give up if the maximum number has been sent.
+    private void sendRequest(CacheEntry entry) {
+        int tries;
+        boolean failed;
+        Packet pending = null;
+        synchronized (entry) {
+            if (!entry._resolving) {
+                return;
+            }
+            tries = ++entry._tries;
+            // _maxTries may be raised by a concurrent resolve, so decide here
+            failed = tries > entry._maxTries;
+            if (failed) {
+                entry._resolving = false;
+                pending = entry.takePending();
+                entry.notifyAll();
+            }
+        }
+        if (failed) {
+            arpFailures++;
+            while (pending != null) {
+                arpPendingDrops++;
+                pending = pending._next;
+            }
+            dprint("could not resolve " + IPAddress.toString(entry._ipAddr));
+            return;
+        }
+        if (_debug) {
+            dprint("sendArp: ip_addr " + IPAddress.toString(entry._ipAddr) + " try " + tries);
+        }
+        arpRequests++;
+        sendArp(entry._ipAddr, localAddress());
+        // back off as the tries increase
+        _timer.schedule(new RetryTask(entry), tries * ARP_TIMEOUT);
+    }
+
+    final class RetryTask extends TimerTask {
+        private final CacheEntry _entry;
+
+        RetryTask(CacheEntry entry) {
+            _entry = entry;
+        }
+
+        @Override
+        public void run() {
+            sendRequest(_entry);
+        }
+    }
+
+    // Check the ARP cache, refreshing entries in use that are about to expire and flushing stale entries.
     @Override
     public void run() {
-        Set<Map.Entry<Integer,CacheEntry>> values = _cache.entrySet();
-        synchronized (_cache) {
-            Iterator<Map.Entry<Integer,CacheEntry>> iter = values.iterator();
-            while (iter.hasNext()) {
-                Map.Entry<Integer,CacheEntry> mapEntry =  iter.next();
-                CacheEntry entry = mapEntry.getValue();
-                entry._ticks ++;
-                if ((entry._ethAddress != 0 && entry._ticks >= _maxTicks) || (entry._ethAddress == 0 && entry._ticks >= _maxInProgressTicks)) {
+        final long now = System.currentTimeMillis();
+        for (CacheEntry entry : _cache.entries()) {
+            final long ethAddress = entry._ethAddress;
+            if (ethAddress != 0) {
+                if (now >= entry._expires) {
+                    expire(entry);
+                } else if (entry._expires - now <= 2 * _arpCacheReapInterval && entry._used) {
+                    // confirm the address directly with the destination, whose reply will update the entry
+                    entry._used = false;
                     if (_debug) {
-                        dprint("cache entry " + IPAddress.toString(mapEntry.getKey())
-                                + " expired");
+                        dprint("refreshing " + IPAddress.toString(entry._ipAddr));
+                    }
+                    arpRefreshes++;
+                    sendArpRequest(entry._ipAddr, localAddress(), ethAddress);
+                } else {
+                    entry._used = false;
+                }
+            } else if (now >= entry._expires) {
+                synchronized (entry) {
+                    if (entry._resolving) {
+                        continue;
                     }
-                    iter.remove();
                 }
+                expire(entry);
             }
         }
     }
 
+    private void expire(CacheEntry entry) {
+        if (_debug) {
+            dprint("cache entry " + IPAddress.toString(entry._ipAddr) + " expired");
+        }
+        _cache.remove(entry);
+    }
+
     public CacheEntry[] getArpCache(){
-        Collection<CacheEntry> values = _cache.values();
+        final List<CacheEntry> values = _cache.entries();
         return values.toArray(new CacheEntry[values.size()]);
     }
 
@@ -309,6 +496,16 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
      * @param local_ip
      */
     private void sendArp(int ip_addr, int local_ip) {
+        sendArpRequest(ip_addr, local_ip, 0);
+    }
+
+    /**
+     *  Send an ARP request packet to the given ethernet address, or broadcast it if that is 0.
+     * @param ip_addr
+     * @param local_ip
+     * @param dest_eth
+     */
+    private void sendArpRequest(int ip_addr, int local_ip, long dest_eth) {
         Packet pkt = Packet.get(14, 28);
         // Build an ARP request packet.
 
@@ -322,9 +519,12 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
         pkt.putEthAddr(0, DSTETH_OFFSET); // unknown dest ether addr
         pkt.putInt(ip_addr, DSTIP_OFFSET); // dest IP addr
 
-        // broadcast this ARP packet
-
-        _ether.transmitARPBroadcast(pkt);
+        if (dest_eth == 0) {
+            // broadcast this ARP packet
+            _ether.transmitARPBroadcast(pkt);
+        } else {
+            _ether.transmit(dest_eth, Ether.PROTO_ARP, pkt);
+        }
         dprint("sendArp: ipaddr " + IPAddress.toString(ip_addr) + " local_ip "
                 + IPAddress.toString(local_ip));
     }
@@ -336,7 +536,7 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
      */
 
     void sendArpReply(long src_eth, int src_ip) {
-      sendGeneralArpReply(src_eth, src_ip, _ether.getMacAddress(), IP.getLocalAddress(), src_eth);
+      sendGeneralArpReply(src_eth, src_ip, _ether.getMacAddress(), localAddress(), src_eth);
     }
 
     /**
@@ -369,75 +569,6 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
         _ether.transmitARPBroadcast(p);
     }
 
-    /**
-     * Called from an ArpThread or checkForIP() to perform an ARP request.
-     *
-     * @param originalPkt
-     *            The original packet we're arping in order  to send. May
-     *            be null if all you care about is the return value of the
-     *            method.
-     * @param ip_addr
-     *            The IP address we're ARP'ing for
-     * @param local_ip
-     *            The source IP address for the ARP header
-     * @param maxTimeouts
-     *            How many times to send an ARP request
-     *
-     * @return True if address resolved
-     */
-    boolean doArp(Packet originalPkt, int ip_addr, int maxTimeouts) {
-        boolean found = false;
-        int timeouts;
-        CacheEntry entry = _cache.get(ip_addr);
-        if (entry == null) {
-            ProgramError.unexpected("doArp, no cache entry");
-        }
-
-        for (timeouts = 0; timeouts < maxTimeouts; timeouts++) {
-            // broadcast an ARP request packet
-            try {
-                if (_debug) {
-                    dprint("doArp: sendArp: ip_addr "
-                            + IPAddress.toString(ip_addr) + " local_ip "
-                            + IPAddress.toString(IP.getLocalAddress()));
-                }
-                sendArp(ip_addr, IP.getLocalAddress());
-                synchronized (entry) {
-                    entry.wait((timeouts + 1) * ARP_TIMEOUT);
-                }
-            } catch (InterruptedException e) {
-                    return false;
-            }
-
-            // check if we have received a response.
-            if (entry._ethAddress != 0) {
-                found = true;
-                if (_debug) {
-                  dprint("found " + IPAddress.toString(ip_addr) + " as " + Long.toString(entry._ethAddress, 16));
-                }
-
-                if (originalPkt != null) {
-                    // now we can send the packet
-                    if (_debug) {
-                        dprint("sending originalPkt: to "
-                                + IPAddress.toString(ip_addr) + " using "
-                                + Long.toString(entry._ethAddress, 16));
-                    }
-                    _ether.transmit(entry._ethAddress, ETHERTYPE_IP, originalPkt);
-                }
-                break;
-            }
-
-            // if we get here, then we don't yet have an answer
-            // to the ARP request. Loop around and try again.
-            if (_debug) {
-                dprint("timeout " + timeouts + " for " + IPAddress.toString(ip_addr));
-            }
-        }
-
-        return found;
-    }
-
     /**
      *  Check for the existence of given IP address.
      * @param addr
@@ -445,20 +576,7 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
      * @return Returns true if the host addr is found, false if we timeout.
      */
     public boolean checkForIP(int addr, int maxTimeouts) {
-
-        CacheEntry entry = _cache.get(addr);
-        if (entry != null) {
-            if (entry._ethAddress != 0) {
-                return true;
-            }
-            // TODO: in progress what to do?
-            return false;
-        } else {
-             // insert this IP addr into our cache as "in-progress"
-             _cache.put(addr, new CacheEntry(addr, 0));
-        }
-
-        return doArp(null, addr, maxTimeouts);
+        return resolve(addr, null, false, maxTimeouts) != 0;
     }
 
     public static void setCacheEntryTimeout(int ticks) {
@@ -469,20 +587,8 @@ public final class ARP extends TimerTask implements NetDevice.Handler {
         _arpCacheReapInterval = secs * 1000;
     }
 
-    private static int _threadCount;
-    class ARPThread extends Thread {
-        private Packet _pkt;
-        private int _ipAddr;
-        ARPThread(int ipAddr, Packet pkt) {
-            super("ARP" + _threadCount++);
-            _ipAddr = ipAddr;
-            _pkt = pkt;
-        }
-
-        @Override
-        public void run() {
-            doArp(_pkt, _ipAddr, _maxTimeOuts);
-        }
+    public static void report(java.io.PrintStream out) {
+        out.print("ARP requests " + arpRequests + ", refreshes " + arpRefreshes + ", failures " + arpFailures + ", pending packets dropped " + arpPendingDrops + "\n");
     }
 
     private static boolean _debug;
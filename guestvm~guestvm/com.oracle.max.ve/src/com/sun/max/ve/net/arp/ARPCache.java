@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.net.arp;
+
+import java.util.*;
+
+/**
+ * The ARP cache, a hash table keyed by IP address, using open addressing with linear probing.
+ *
+ * Lookups, which are made for every packet transmitted, take no lock. Entries are added and removed holding the lock
+ * on the cache, which is only necessary on a cache miss, an unsolicited reply, or when the cache is reaped. A removed
+ * entry leaves a marker in its slot, so that a concurrent lookup does not miss entries further along the probe
+ * sequence, and the markers are discarded when the table is rebuilt, which happens when it becomes too full. The table
+ * is replaced rather than modified in place when rebuilt, so a lookup always sees a consistent table.
+ *
+ * @author Mick Jordan
+ *
+ */
+final class ARPCache {
+
+    private static final int INITIAL_SIZE = 64;
+
+    private static final ARP.CacheEntry REMOVED = new ARP.CacheEntry(0, 0);
+
+    private volatile ARP.CacheEntry[] _table = new ARP.CacheEntry[INITIAL_SIZE];
+    private int _size;         // number of entries
+    private int _used;         // number of slots holding an entry or REMOVED
+
+    private static int hash(int ipAddr) {
+        final int h = ipAddr * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the entry for the given address, or null if there is none.
+     */
+    ARP.CacheEntry get(int ipAddr) {
+        final ARP.CacheEntry[] table = _table;
+        final int mask = table.length - 1;
+        int i = hash(ipAddr) & mask;
+        while (true) {
+            final ARP.CacheEntry entry = table[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry != REMOVED && entry._ipAddr == ipAddr) {
+                return entry;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the entry for the given address, creating an unresolved one if there is none.
+     */
+    synchronized ARP.CacheEntry getOrCreate(int ipAddr) {
+        ARP.CacheEntry entry = get(ipAddr);
+        if (entry == null) {
+            entry = new ARP.CacheEntry(ipAddr, 0);
+            add(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Adds the given entry, which must not already be present.
+     */
+    private void add(ARP.CacheEntry entry) {
+        if ((_used + 1) * 4 > _table.length * 3) {
+            rebuild();
+        }
+        final ARP.CacheEntry[] table = _table;
+        final int mask = table.length - 1;
+        int i = hash(entry._ipAddr) & mask;
+        while (table[i] != null && table[i] != REMOVED) {
+            i = (i + 1) & mask;
+        }
+        if (table[i] == null) {
+            _used++;
+        }
+        table[i] = entry;
+        _size++;
+    }
+
+    synchronized void remove(ARP.CacheEntry entry) {
+        final ARP.CacheEntry[] table = _table;
+        final int mask = table.length - 1;
+        int i = hash(entry._ipAddr) & mask;
+        while (table[i] != null) {
+            if (table[i] == entry) {
+                table[i] = REMOVED;
+                _size--;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // Replace the table with one without REMOVED markers, doubling its size if it is more than half full.
+    private void rebuild() {
+        final ARP.CacheEntry[] old = _table;
+        final int length = _size * 2 > old.length ? old.length * 2 : old.length;
+        final ARP.CacheEntry[] table = new ARP.CacheEntry[length];
+        final int mask = length - 1;
+        for (ARP.CacheEntry entry : old) {
+            if (entry != null && entry != REMOVED) {
+                int i = hash(entry._ipAddr) & mask;
+                while (table[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = entry;
+            }
+        }
+        _used = _size;
+        _table = table;
+    }
+
+    /**
+     * Returns the current entries.
+     */
+    List<ARP.CacheEntry> entries() {
+        final ARP.CacheEntry[] table = _table;
+        final List<ARP.CacheEntry> result = new ArrayList<ARP.CacheEntry>(_size);
+        for (ARP.CacheEntry entry : table) {
+            if (entry != null && entry != REMOVED) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+}
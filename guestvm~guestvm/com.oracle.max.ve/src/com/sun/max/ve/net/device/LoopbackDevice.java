@@ -51,6 +51,10 @@ public class LoopbackDevice implements NetDevice {
         return 0;
     }
 
+    public int getFeatures() {
+        return 0;
+    }
+
 
     public String getNICName() {
         // TODO Auto-generated method stub
@@ -29,6 +29,19 @@ public interface NetDevice {
     int RECEIVE_MODE_PROMISCOUS = 2;
     int RECEIVE_MODE_MULTICAST  = 3;
 
+    /**
+     * The device completes transport checksums for packets marked with {@link Packet#isChecksumBlank}.
+     */
+    int FEATURE_CSUM_OFFLOAD = 1;
+    /**
+     * The device segments TCP packets larger than the MTU that have a non-zero {@link Packet#getGsoSize}.
+     */
+    int FEATURE_TSO = 2;
+    /**
+     * The maximum length of an IP packet that may be passed to a device with {@link #FEATURE_TSO}.
+     */
+    int MAX_GSO_LENGTH = 65535;
+
     boolean active();
     void setReceiveMode(int mode);
     void transmit(Packet pkt);
@@ -36,6 +49,10 @@ public interface NetDevice {
     byte[] getMACAddress();
     String getNICName();
     int getMTU();
+    /**
+     * Returns the offload features, {@link #FEATURE_CSUM_OFFLOAD} etc., that the device supports for transmitted packets.
+     */
+    int getFeatures();
     void registerHandler(Handler handler);
     long dropCount();
     long truncateCount();
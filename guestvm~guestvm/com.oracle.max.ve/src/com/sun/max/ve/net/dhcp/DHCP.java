@@ -110,7 +110,7 @@ public final class DHCP implements UDPUpcall {
 
     private static IPAddress _gateway;
     private static IPAddress _netmask;
-    private static IPAddress _resolver;
+    private static IPAddress[] _resolvers;
 //    private static IPAddress _source;
     private static IPAddress _yours;
     @SuppressWarnings("unused")
@@ -130,7 +130,7 @@ public final class DHCP implements UDPUpcall {
         _debug = System.getProperty("max.ve.net.dhcp.debug") != null;
         _gateway = new IPAddress(0, 0, 0, 0);
         _netmask = new IPAddress(0, 0, 0, 0);
-        _resolver = new IPAddress(0, 0, 0, 0);
+        _resolvers = new IPAddress[] {new IPAddress(0, 0, 0, 0)};
         _random = new Random();
         _myHWaddr = hwaddr;
         _xid = _random.nextInt();
@@ -253,8 +253,13 @@ public final class DHCP implements UDPUpcall {
                         }
                         index = findOption(NAME_SERVER_OPTION, pkt);
                         if (index > 0) {
-                            _resolver = getIPAddressFromVendor(pkt, index);
-                            dhcpPrintln("name server: " + _resolver);
+                            // the option holds one or more addresses, in order of preference
+                            final int count = Math.max(pkt.getByte(index - 1) / 4, 1);
+                            _resolvers = new IPAddress[count];
+                            for (int i = 0; i < count; i++) {
+                                _resolvers[i] = getIPAddressFromVendor(pkt, index + 4 * i);
+                                dhcpPrintln("name server: " + _resolvers[i]);
+                            }
                         }
                         index = findOption(SERVER_IDENTIFIER_OPTION, pkt);
                         if (index > 0) {
@@ -379,7 +384,11 @@ public final class DHCP implements UDPUpcall {
     }
 
     public IPAddress resolver() {
-        return _resolver;
+        return _resolvers[0];
+    }
+
+    public IPAddress[] resolvers() {
+        return _resolvers;
     }
 
     public IPAddress gateway() {
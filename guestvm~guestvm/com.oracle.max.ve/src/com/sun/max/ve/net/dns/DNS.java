@@ -23,14 +23,25 @@
 package com.sun.max.ve.net.dns;
 
 /**
+ * A DNS resolver for A and PTR queries, with a cache.
+ *
+ * Answers are cached for the smallest TTL of the records in the answer, limited to {@value #DEFAULT_MAX_TTL}
+ * seconds or the value of the {@value #MAX_TTL_PROPERTY} property. A name that does not exist, or has no records of
+ * the type requested, is cached as a negative entry for the time given by the SOA record in the authority section,
+ * as described in RFC 2308, or {@value #DEFAULT_NEGATIVE_TTL} seconds if there is none, limited by the
+ * {@value #MAX_NEGATIVE_TTL_PROPERTY} property. A failure to get an answer is not cached.
+ *
+ * Concurrent lookups of the same name share a single query. When an entry is used in the last tenth of its lifetime,
+ * it is refreshed in the background, so that names in constant use do not expire.
+ *
+ * Queries are sent to the first of the configured name servers that has answered, failing over to the others in
+ * turn if it times out or reports a failure.
+ *
  * @author unknown, Mick Jordan (modifications)
  */
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 import com.sun.max.ve.net.Packet;
 import com.sun.max.ve.net.debug.Debug;
@@ -44,11 +55,11 @@ public class DNS implements UDPUpcall {
 
     // DNS Resource record type codes
     private static final int TYPE_A =  1;
+    private static final int TYPE_SOA =  6;
     private static final int TYPE_PTR = 12;
     /*
     private static final int TYPE_NS =  2;
     private static final int TYPE_CNAME =  5;
-    private static final int TYPE_SOA =  6;
     private static final int TYPE_HINFO = 13;
     private static final int TYPE_MX = 15;
     private static final int TYPE_TXT = 16;
@@ -72,63 +83,180 @@ public class DNS implements UDPUpcall {
     private static final int INPUT_PORT = 11213;
 
     // DNS response codes
-    /*
     private static final int NO_ERROR  = 0;
+    /*
     private static final int FORMAT_ERROR    1;
     private static final int SERVER_FAILURE = 2;
+    */
     private static final int NAME_ERROR  = 3;
+    /*
     private static final int NOT_IMPL  = 4;
     private static final int REFUSED  = 5;
     */
+    private static final int RCODE_MASK = 0xF;
 
     private static final short QR_BIT = (short) 0x8000;
     //private static final short AA_BIT = (short) 0x0400;
     //private static final short TC_BIT = (short) 0x0200;
     private static final short RD_BIT = (short) 0x0100;
     //private static final short RA_BIT = (short) 0x0080;
-    private static final byte COMPRESSED_NAME_FLAG = (byte) 0xC0;
-    private static final short COMPRESSED_NAME_MASK = (byte) 0x3FF;
+    private static final int COMPRESSED_NAME_FLAG = 0xC0;
+    private static final int COMPRESSED_NAME_MASK = 0x3FFF;
 
     private static final int  TIMEOUT = 2000;
     private static final int RETRY_COUNT = 3;
 
+    static final String MAX_TTL_PROPERTY = "max.ve.net.dns.maxttl";
+    static final String MAX_NEGATIVE_TTL_PROPERTY = "max.ve.net.dns.maxnegativettl";
+    static final String CACHE_SIZE_PROPERTY = "max.ve.net.dns.cachesize";
+    static final int DEFAULT_MAX_TTL = 86400;
+    static final int DEFAULT_NEGATIVE_TTL = 60;
+    static final int DEFAULT_MAX_NEGATIVE_TTL = 900;
+    static final int DEFAULT_CACHE_SIZE = 1024;
+    // entries with a shorter TTL are not refreshed in the background
+    private static final int PREFETCH_MIN_TTL = 10;
+
     private static final String IN_ADDR_ARPA = "in-addr.arpa";
 
     private static boolean _debug;
 
-    private static final Map<String, IPAddress[]> _dnsTable = Collections.synchronizedMap(new HashMap<String, IPAddress[]>());
-    private static final Map<IPAddress, String> _dnsReverseTable = Collections.synchronizedMap(new HashMap<IPAddress, String>());
-    private static final Map<Integer, Response> _results = Collections.synchronizedMap(new HashMap<Integer, Response>());
+    private final ConcurrentMap<String, Entry> _cache = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Pending> _inflight = new ConcurrentHashMap<String, Pending>();
+    private final ConcurrentMap<Integer, Response> _results = new ConcurrentHashMap<Integer, Response>();
 
-    private IPAddress _serverAddress;
+    private final IPAddress[] _servers;
+    private volatile int _preferred;   // index of the server that last answered
     private String _domainName;
     private boolean _initialized = false;
     private int _localPort;
     private int _destPort = DNS_PORT;
-    private short  _nextIdent;
+    private final Random _random = new Random();
+    private final Timer _timer;
+    private int _maxTtl = DEFAULT_MAX_TTL;
+    private int _maxNegativeTtl = DEFAULT_MAX_NEGATIVE_TTL;
+    private int _cacheSize = DEFAULT_CACHE_SIZE;
     private static DNS _singleton;
 
+    // statistics
+    private static int dnsLookups;
+    private static int dnsCacheHits;
+    private static int dnsNegativeHits;
+    private static int dnsCoalesced;
+    private static int dnsPrefetches;
+    private static int dnsQueries;
+    private static int dnsTimeouts;
+    private static int dnsServerFailures;
+
     static class Response {
+        final int _server;
         boolean _haveReply;
+        int _rcode;
+        int _ttl = Integer.MAX_VALUE;     // smallest TTL of the answers
+        int _negativeTtl = -1;                // from the SOA in the authority section, if any
         // union!
         IPAddress[] _ipAddresses;  // TYPE_A
         String _hostname;         // TYPE_PTR
+
+        Response(int server) {
+            _server = server;
+        }
+    }
+
+    /**
+     * A cached answer, which is negative if it has neither addresses nor a hostname.
+     */
+    static final class Entry {
+        final IPAddress[] _ipAddresses;
+        final String _hostname;
+        final long _expires;
+        final long _prefetch;       // the time after which use causes a refresh
+        volatile boolean _refreshing;
+
+        Entry(IPAddress[] ipAddresses, String hostname, int ttl) {
+            _ipAddresses = ipAddresses;
+            _hostname = hostname;
+            if (ttl == Integer.MAX_VALUE) {
+                _expires = Long.MAX_VALUE;
+                _prefetch = Long.MAX_VALUE;
+            } else {
+                final long now = System.currentTimeMillis();
+                _expires = now + ttl * 1000L;
+                _prefetch = ttl < PREFETCH_MIN_TTL ? Long.MAX_VALUE : _expires - ttl * 100L;
+            }
+        }
+
+        boolean isNegative() {
+            return _ipAddresses == null && _hostname == null;
+        }
+    }
+
+    // A query in progress, which other lookups of the same name wait for.
+    static final class Pending {
+        private boolean _done;
+        private Entry _entry;
+
+        synchronized void complete(Entry entry) {
+            _entry = entry;
+            _done = true;
+            notifyAll();
+        }
+
+        synchronized Entry await() {
+            while (!_done) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return _entry;
+        }
     }
 
     public DNS(IPAddress server, String domainName)  {
+        this(new IPAddress[] {server}, domainName);
+    }
+
+    public DNS(IPAddress[] servers, String domainName)  {
+        this(servers, DNS_PORT, domainName, INPUT_PORT);
+        _singleton = this;
+    }
+
+    /**
+     * Creates a resolver that sends queries to the given port on the given servers, receiving replies on the given
+     * local port, or an unused port if that is zero. Unlike the other constructors, this does not change the
+     * resolver returned by {@link #getDNS}.
+     */
+    public DNS(IPAddress[] servers, int serverPort, String domainName, int localPort)  {
         _debug = System.getProperty("max.ve.net.dns.debug") != null;
         if (_debug) {
-            dnsPrintln("server: " +  server);
+            dnsPrintln("servers: " +  Arrays.toString(servers));
         }
-        _serverAddress = server;
+        _maxTtl = getIntProperty(MAX_TTL_PROPERTY, _maxTtl);
+        _maxNegativeTtl = getIntProperty(MAX_NEGATIVE_TTL_PROPERTY, _maxNegativeTtl);
+        _cacheSize = getIntProperty(CACHE_SIZE_PROPERTY, _cacheSize);
+        _servers = servers.clone();
+        _destPort = serverPort;
         _domainName = domainName;
-        _localPort = UDP.register(this, INPUT_PORT, false);
-        _singleton = this;
-        _dnsTable.put("localhost", new IPAddress[] {IPAddress.loopback()});
-        _dnsReverseTable.put(IPAddress.loopback(), "localhost");
+        _localPort = UDP.register(this, localPort, false);
+        _timer = new Timer("DNS Prefetch", true);
+        _cache.put(key(TYPE_A, "localhost"), new Entry(new IPAddress[] {IPAddress.loopback()}, null, Integer.MAX_VALUE));
+        _cache.put(key(TYPE_PTR, reverseName(IPAddress.loopback())), new Entry(null, "localhost", Integer.MAX_VALUE));
         _initialized = true;
     }
 
+    private static int getIntProperty(String name, int defaultValue) {
+        final String value = System.getProperty(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+            }
+        }
+        return defaultValue;
+    }
+
     public static DNS getDNS() {
         return _singleton;
     }
@@ -140,8 +268,11 @@ public class DNS implements UDPUpcall {
      */
 
     public String reverseLookup(IPAddress ipAddress) {
-        final String reverse = IPAddress.toReverseString(ipAddress.addressAsInt());
-        return (String) lookup(reverse + "." + IN_ADDR_ARPA, true);
+        if (!_initialized) {
+            return null;
+        }
+        final Entry entry = resolve(reverseName(ipAddress), TYPE_PTR);
+        return entry == null ? null : entry._hostname;
     }
 
     /**
@@ -153,16 +284,11 @@ public class DNS implements UDPUpcall {
      */
 
     public String reverseLookup(String ipAddressName) {
-        String result = _dnsReverseTable.get(ipAddressName);
-        if (result == null) {
-            try {
-                final IPAddress ipAddress = IPAddress.parse(ipAddressName);
-                result = reverseLookup(ipAddress);
-                _dnsReverseTable.put(ipAddress, result);
-            } catch (NumberFormatException ex) {
-            }
+        try {
+            return reverseLookup(IPAddress.parse(ipAddressName));
+        } catch (NumberFormatException ex) {
+            return null;
         }
-        return result;
     }
 
     /**
@@ -188,49 +314,174 @@ public class DNS implements UDPUpcall {
     public IPAddress[] lookup(final String hostname) {
         IPAddress[] result = null;
         if (_initialized) {
-            result = (IPAddress[]) _dnsTable.get(hostname);
-            if (result != null) {
-                if (_debug) {
-                    dnsPrintln("lookup: cached " + hostname + " " + result);
+            // names that need no qualification, e.g., localhost, are in the cache as is
+            final String name = _cache.containsKey(key(TYPE_A, hostname)) ? hostname : qualify(hostname);
+            final Entry entry = resolve(name, TYPE_A);
+            if (entry != null && entry._ipAddresses != null && entry._ipAddresses.length > 0) {
+                result = entry._ipAddresses;
+            }
+        }
+        return result;
+    }
+
+    // Add the domain name to a partial host name.
+    private String qualify(String hostname) {
+        String xhostname = hostname;
+        // check for partial name
+        final int ix = xhostname.indexOf('.');
+        if (ix  > 0) {
+            final String tail = xhostname.substring(ix + 1) + ".";
+            if (_domainName.startsWith(tail)) {
+                xhostname += _domainName.substring(tail.length() - 1);
+            }
+        } else {
+            xhostname += "." + _domainName;
+        }
+        return xhostname;
+    }
+
+    private static String reverseName(IPAddress ipAddress) {
+        return IPAddress.toReverseString(ipAddress.addressAsInt()) + "." + IN_ADDR_ARPA;
+    }
+
+    private static String key(int type, String name) {
+        return (type == TYPE_A ? "A " : "PTR ") + name.toLowerCase();
+    }
+
+    /**
+     * Returns the answer for the given query from the cache, or by querying the name servers, or null if
+     * no answer could be obtained.
+     */
+    private Entry resolve(String name, int type) {
+        dnsLookups++;
+        final String key = key(type, name);
+        final Entry entry = _cache.get(key);
+        if (entry != null && entry._expires > System.currentTimeMillis()) {
+            return hit(entry, name, type);
+        }
+        return fetch(key, name, type);
+    }
+
+    private Entry hit(Entry entry, final String name, final int type) {
+        if (_debug) {
+            dnsPrintln("lookup: cached " + name);
+        }
+        dnsCacheHits++;
+        if (entry.isNegative()) {
+            dnsNegativeHits++;
+        }
+        if (System.currentTimeMillis() >= entry._prefetch && !entry._refreshing) {
+            // refresh in the background, the lookup of a name in frequent use should not have to wait
+            entry._refreshing = true;
+            dnsPrefetches++;
+            _timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    fetch(key(type, name), name, type);
                 }
-            } else {
-                String xhostname = hostname;
-                // check for partial name
-                final int ix = xhostname.indexOf('.');
-                if (ix  > 0) {
-                    final String tail = xhostname.substring(ix + 1) + ".";
-                    if (_domainName.startsWith(tail)) {
-                        xhostname += _domainName.substring(tail.length() - 1);
-                    }
-                } else {
-                    xhostname += "." + _domainName;
+            }, 0);
+        }
+        return entry;
+    }
+
+    // Query the name servers, unless a query for the same name is already in progress.
+    private Entry fetch(String key, String name, int type) {
+        final Pending pending = new Pending();
+        final Pending existing = _inflight.putIfAbsent(key, pending);
+        if (existing != null) {
+            dnsCoalesced++;
+            return existing.await();
+        }
+        Entry entry = null;
+        try {
+            entry = query(name, type);
+            if (entry != null && entry._expires > System.currentTimeMillis()) {
+                if (_cache.size() >= _cacheSize) {
+                    purge();
                 }
-                result = (IPAddress[]) lookup(xhostname, false);
-                if (result != null) {
-                    _dnsTable.put(xhostname, result);
+                _cache.put(key, entry);
+            }
+        } finally {
+            _inflight.remove(key);
+            pending.complete(entry);
+        }
+        return entry;
+    }
+
+    // Remove expired entries and, if that is not enough, a quarter of the others.
+    private void purge() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Entry> iter = _cache.values().iterator(); iter.hasNext();) {
+            final Entry entry = iter.next();
+            if (entry._expires <= now) {
+                iter.remove();
+            }
+        }
+        if (_cache.size() >= _cacheSize) {
+            int count = 0;
+            for (Iterator<Entry> iter = _cache.values().iterator(); iter.hasNext();) {
+                final Entry entry = iter.next();
+                if (entry._expires != Long.MAX_VALUE && count++ % 4 == 0) {
+                    iter.remove();
                 }
             }
         }
-        return result;
     }
 
-    private Object lookup(String hostname, boolean reverse) {
-        Object result = null;
-        int retries = 0;
-        short ident;
+    // Query the name servers, trying each in turn, starting with the one that last answered.
+    private Entry query(String hostname, int type) {
         if (_debug) {
             dnsPrintln("lookup: query " + hostname);
         }
-        do {
-            final Packet mp = Packet.get(14 + 20 + 8, requiresSpace());
+        for (int retries = 0; retries < RETRY_COUNT; retries++) {
+            final int preferred = _preferred;
+            for (int i = 0; i < _servers.length; i++) {
+                final int index = (preferred + i) % _servers.length;
+                final Response response = exchange(_servers[index].addressAsInt(), hostname, type);
+                if (response == null) {
+                    dnsTimeouts++;
+                    if (_debug) {
+                        dnsPrintln("lookup of " + hostname + " timed out on " + _servers[index]);
+                    }
+                } else if (response._rcode == NO_ERROR || response._rcode == NAME_ERROR) {
+                    _preferred = index;
+                    return toEntry(response, type);
+                } else {
+                    dnsServerFailures++;
+                    if (_debug) {
+                        dnsPrintln("lookup of " + hostname + " failed on " + _servers[index] + ", rcode " + response._rcode);
+                    }
+                }
+            }
+        }
+        return null;
+    }
 
-            synchronized (this) {
-                ident = ++_nextIdent;
+    private Entry toEntry(Response response, int type) {
+        if (response._rcode == NO_ERROR) {
+            final int ttl = Math.min(response._ttl, _maxTtl);
+            if (type == TYPE_A && response._ipAddresses.length > 0) {
+                return new Entry(response._ipAddresses, null, ttl);
+            } else if (type == TYPE_PTR && response._hostname != null) {
+                return new Entry(null, response._hostname, ttl);
             }
-            final Response response = new Response();
-            _results.put((int) ident, response);
+        }
+        // the name does not exist, or has no records of the type requested
+        final int ttl = response._negativeTtl >= 0 ? response._negativeTtl : DEFAULT_NEGATIVE_TTL;
+        return new Entry(null, null, Math.min(ttl, _maxNegativeTtl));
+    }
 
-            mp.putShort((short) ident, IDENT_OFFSET);
+    // Send a query to the given server and wait for the response, returning null if there is none.
+    private Response exchange(int server, String hostname, int type) {
+        final Packet mp = Packet.get(14 + 20 + 8, requiresSpace());
+        final Response response = new Response(server);
+        int ident;
+        do {
+            ident = _random.nextInt() & 0xFFFF;
+        } while (_results.putIfAbsent(ident, response) != null);
+
+        try {
+            mp.putShort(ident, IDENT_OFFSET);
             mp.putShort(RD_BIT, FLAGS_OFFSET);
             mp.putShort((short) 1, NUMQ_OFFSET);
             mp.putShort((short) 0, NUMANS_OFFSET);
@@ -238,29 +489,28 @@ public class DNS implements UDPUpcall {
 
             final byte[] name = encodeName(hostname);
             mp.putBytes(name, 0, DNS_HDR_SIZE, name.length);
-            mp.putShort((short) (reverse ? TYPE_PTR : TYPE_A), DNS_HDR_SIZE
-                    + name.length);
+            mp.putShort((short) type, DNS_HDR_SIZE + name.length);
             mp.putShort((short) CLASS_INTERNET, DNS_HDR_SIZE + name.length + 2);
 
-            UDP.output(mp, _localPort, _serverAddress.addressAsInt(),
-                    _destPort, DNS_HDR_SIZE + name.length + 4, 0);
+            dnsQueries++;
+            UDP.output(mp, _localPort, server, _destPort, DNS_HDR_SIZE + name.length + 4, 0);
             synchronized (response) {
-                try {
-                    response.wait(TIMEOUT);
-                } catch (InterruptedException ex) {
-                }
-            }
-            _results.remove(response);
-            if (response._haveReply) {
-                result = reverse ? response._hostname : response._ipAddresses;
-                break;
-            } else {
-                if (_debug) {
-                    dnsPrintln("lookup of " + hostname + " timed out");
+                final long deadline = System.currentTimeMillis() + TIMEOUT;
+                long remaining = TIMEOUT;
+                while (!response._haveReply && remaining > 0) {
+                    try {
+                        response.wait(remaining);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    remaining = deadline - System.currentTimeMillis();
                 }
+                return response._haveReply ? response : null;
             }
-        } while (++retries < RETRY_COUNT);
-        return result;
+        } finally {
+            _results.remove(ident);
+        }
     }
 
     @SuppressWarnings("unused")
@@ -269,72 +519,108 @@ public class DNS implements UDPUpcall {
             dnsPrintln("input");
         }
         final int flags = pkt.getShort(FLAGS_OFFSET);
-        if ((flags & QR_BIT) == 0) {
+        if ((flags & QR_BIT) == 0 || pkt.getSrcPort() != _destPort) {
+            return;
+        }
+        final int ident = pkt.getShort(IDENT_OFFSET);
+        final Response response = _results.get(ident);
+        // only the server the query was sent to may answer it
+        if (response == null || pkt.getSrcIP() != response._server) {
             return;
         }
 
         final int queries = pkt.getShort(NUMQ_OFFSET);
         final int answers = pkt.getShort(NUMANS_OFFSET);
-
-        if (answers != 0) {
-            final int ident = pkt.getShort(IDENT_OFFSET);
-            final Response response = _results.get(ident);
-            if (response != null) {
-                int offset = DNS_HDR_SIZE;
+        final int authorities = pkt.getShort(NUMAUTH_OFFSET);
+        final int length = pkt.dataLength();
+        if (_debug) {
+            dnsPrintln("queries " + queries + ", answers " + answers + ", authorities " + authorities);
+        }
+        int ttl = Integer.MAX_VALUE;
+        int negativeTtl = -1;
+        String hostname = null;
+        final List<IPAddress> ipAddressList = new ArrayList<IPAddress>();
+        int offset = DNS_HDR_SIZE;
+        for (int i = 0; i < queries + answers + authorities; i++) {
+            offset = skipName(pkt, offset, length);
+            if (offset < 0 || offset + 4 > length) {
+                return;
+            }
+            final int type = pkt.getShort(offset);
+            offset += 2;
+            // int clazz = pkt.getShort(offset);
+            offset += 2;
+            if (i >= queries) {
+                if (offset + 6 > length) {
+                    return;
+                }
+                final int recordTtl = pkt.getInt(offset) & Integer.MAX_VALUE;
+                offset += 4;
+                final int datalen = pkt.getShort(offset);
+                offset += 2;
+                if (offset + datalen > length) {
+                    return;
+                }
                 if (_debug) {
-                    dnsPrintln("queries " + queries + ", answers " + answers);
+                    dnsPrintln("type " + type + ", ttl " + recordTtl);
                 }
-                final List<IPAddress> ipAddressList = new ArrayList<IPAddress>();
-                for (int i = 0; i < queries + answers; i++) {
-                    int nameOffset = offset;
-                    int lenBytes = pkt.getByte(offset);
-                    if ((lenBytes & COMPRESSED_NAME_FLAG) != 0) {
-                        nameOffset = pkt.getShort(offset) & COMPRESSED_NAME_MASK;
-                        offset += 2;
-                    } else {
-                        while ((lenBytes = pkt.getByte(offset)) != 0) {
-                            offset += lenBytes + 1; // plus 1 for the actual length byte itself
-                        }
-                        offset++; /* skip over trailing zero */
+                if (i < queries + answers) {
+                    // the smallest TTL of the answer, which may include CNAME records, applies to the whole
+                    ttl = Math.min(ttl, recordTtl);
+                    if (type == TYPE_A && datalen == 4) {
+                        ipAddressList.add(new IPAddress(pkt.getInt(offset)));
+                    } else if (type == TYPE_PTR && hostname == null) {
+                        hostname = decodeName(pkt, offset);
                     }
-                    final int type = pkt.getShort(offset);
-                    offset += 2;
-                    // int clazz = pkt.getShort(offset);
-                    offset += 2;
-                    if (i >= queries) {
-                        // int ttl = pkt.getInt(offset);
-                        offset += 4;
-                        final int datalen = pkt.getShort(offset);
-                        offset += 2;
-                        if (_debug) {
-                            dnsPrintln("type " + type);
-                        }
-                        if (type == TYPE_A || type == TYPE_PTR) {
-                            response._haveReply = true;
-                            if (type == TYPE_A) {
-                                ipAddressList.add(new IPAddress(pkt.getInt(offset)));
-                            } else {
-                                response._hostname = decodeName(pkt, offset);
-                            }
-                        }
-                        // Don't process other types, just skip over data
-                        offset += datalen;
-                    }
-                }
-                response._ipAddresses = ipAddressList.toArray(new IPAddress[ipAddressList.size()]);
-                synchronized (response) {
-                    response.notify();
+                } else if (type == TYPE_SOA && datalen >= 20) {
+                    // RFC 2308: the negative TTL is the smaller of the SOA TTL and its MINIMUM field
+                    negativeTtl = Math.min(recordTtl, pkt.getInt(offset + datalen - 4) & Integer.MAX_VALUE);
                 }
+                // Don't process other types, just skip over data
+                offset += datalen;
+            }
+        }
+        synchronized (response) {
+            response._rcode = flags & RCODE_MASK;
+            response._ttl = ttl;
+            response._negativeTtl = negativeTtl;
+            response._ipAddresses = ipAddressList.toArray(new IPAddress[ipAddressList.size()]);
+            response._hostname = hostname;
+            response._haveReply = true;
+            response.notify();
+        }
+    }
+
+    // Returns the offset after the (possibly compressed) name at the given offset, or -1 if it is malformed.
+    private static int skipName(Packet pkt, int off, int length) {
+        int offset = off;
+        while (offset < length) {
+            final int lenBytes = pkt.getByte(offset);
+            if ((lenBytes & COMPRESSED_NAME_FLAG) == COMPRESSED_NAME_FLAG) {
+                return offset + 2;
+            } else if (lenBytes == 0) {
+                return offset + 1;
             }
+            offset += lenBytes + 1; // plus 1 for the actual length byte itself
         }
+        return -1;
     }
 
     private String decodeName(Packet pkt, int off) {
         int lenBytes;
         int offset = off;
+        int jumps = 0;
         boolean first = true;
         final StringBuilder result = new StringBuilder();
         while ((lenBytes = pkt.getByte(offset)) != 0) {
+            if ((lenBytes & COMPRESSED_NAME_FLAG) == COMPRESSED_NAME_FLAG) {
+                // follow the pointer, guarding against loops
+                if (++jumps > 16) {
+                    break;
+                }
+                offset = pkt.getShort(offset) & COMPRESSED_NAME_MASK;
+                continue;
+            }
             if (!first) {
                 result.append('.');
             } else {
@@ -349,6 +635,11 @@ public class DNS implements UDPUpcall {
         return result.toString();
     }
 
+    public static void report(java.io.PrintStream out) {
+        out.print("DNS lookups " + dnsLookups + ", cache hits " + dnsCacheHits + " (negative " + dnsNegativeHits + "), coalesced " + dnsCoalesced +
+                        ", prefetches " + dnsPrefetches + ", queries " + dnsQueries + ", timeouts " + dnsTimeouts + ", server failures " + dnsServerFailures + "\n");
+    }
+
     private void dnsPrintln(String message) {
         if (_debug) {
             Debug.println("DNS: " + message);
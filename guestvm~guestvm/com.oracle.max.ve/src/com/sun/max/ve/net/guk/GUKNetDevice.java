@@ -69,6 +69,13 @@ import com.sun.max.vm.classfile.constant.*;
  * This will causes network thread to run in preference to compute-bound threads
  * (modulo other policies imposed by the scheduler).
  *
+ * If the backend supports it, transmitted packets may leave the TCP/UDP checksum
+ * to be completed by the backend and TCP packets of up to 64KB may be passed down,
+ * to be segmented by the backend, see {@link NetDevice#getFeatures}. On receive, the
+ * backend indicates packets whose checksum has already been validated, which is
+ * recorded in the packet by {@link #copyPacket}. The offloads can be disabled
+ * by setting the "max.ve.net.device.offload" property to "false".
+ *
  * @author Mick Jordan
  *
  */
@@ -80,6 +87,10 @@ public final class GUKNetDevice implements NetDevice {
     private static final String RING_SIZE_PROPERTY = "max.ve.net.device.ringsize";
     private static final String DEBUG_PROPERTY = "max.ve.net.device.debug";
     private static final String MT_PROPERTY = "max.ve.net.device.mt";
+    private static final String OFFLOAD_PROPERTY = "max.ve.net.device.offload";
+    private static final int ETHER_HEADER_LENGTH = 14;
+    // must match GUK_NETIF_RX_CSUM_VALIDATED in guk/netfront.h
+    private static final int RX_CSUM_VALIDATED = 1;
     private static int _ringSize = DEFAULT_RING_SIZE;
     private static boolean _debug = false;
     private static GUKNetDevice _device;
@@ -90,6 +101,10 @@ public final class GUKNetDevice implements NetDevice {
     private static long _pktCount;
     private static long _truncateCount;
     private static Pointer _transmitBuffer;
+    private static int _transmitBufferLength;
+    private static int _features;
+    private static long _gsoCount;
+    private static long _transmitDropCount;
     private static boolean _deviceActive;
     // these fields allow the actual handler concurrency to be controlled at runtime
     private static int _maxActiveHandlers;
@@ -127,8 +142,6 @@ public final class GUKNetDevice implements NetDevice {
         if (mtProperty != null) {
             _maxActiveHandlers = Integer.parseInt(mtProperty);
         }
-        _transmitBuffer = Memory.allocate(Size.fromInt(MTU));
-
         for (int i = 0; i < _ringSize; i++) {
             final PacketHandler packetHandler = _ring[i];
             _ring[i]._self = Reference.fromJava(packetHandler).toOrigin();
@@ -143,6 +156,12 @@ public final class GUKNetDevice implements NetDevice {
         final ClassActor classActor = ClassActor.fromJava(getClass());
         final Word copyMethodAddress = classActor.findLocalStaticMethodActor(SymbolTable.makeSymbol("copyPacket")).makeTargetMethod().getEntryPoint(CallEntryPoint.C_ENTRY_POINT).toAddress();
         _deviceActive = maxve_netStart(copyMethodAddress);
+        if (_deviceActive && !"false".equals(System.getProperty(OFFLOAD_PROPERTY))) {
+            // the values of the GUK_NETFRONT_xxx features match NetDevice.FEATURE_xxx
+            _features = GUK.guk_netfront_features() & (FEATURE_CSUM_OFFLOAD | FEATURE_TSO);
+        }
+        _transmitBufferLength = (_features & FEATURE_TSO) != 0 ? ETHER_HEADER_LENGTH + MAX_GSO_LENGTH : MTU;
+        _transmitBuffer = Memory.allocate(Size.fromInt(_transmitBufferLength));
         _device = this;
     }
 
@@ -183,6 +202,10 @@ public final class GUKNetDevice implements NetDevice {
         return MTU;
     }
 
+    public int getFeatures() {
+        return _features;
+    }
+
     public void setReceiveMode(int mode) {
         ProgramError.unexpected("not implemented");
     }
@@ -198,13 +221,23 @@ public final class GUKNetDevice implements NetDevice {
         if (_debug) {
             dprintln("transmit " + length);
         }
-        if (length > MTU) {
-            length = MTU;
+        final int gsoSize = pkt.getGsoSize();
+        final int maxLength = gsoSize > 0 ? _transmitBufferLength : MTU;
+        if (length > maxLength) {
+            length = maxLength;
         }
         for (int i = 0; i < length; i++) {
             _transmitBuffer.writeByte(i, pkt.inlineGetByteIgnoringHeaderOffset(i));
         }
-        GUK.guk_netfront_xmit(_transmitBuffer, length);
+        if (_features == 0) {
+            GUK.guk_netfront_xmit(_transmitBuffer, length);
+        } else {
+            if (GUK.guk_netfront_xmit_offload(_transmitBuffer, length, pkt.isChecksumBlank() ? 1 : 0, gsoSize) != 0) {
+                _transmitDropCount++;
+            } else if (gsoSize > 0) {
+                _gsoCount++;
+            }
+        }
     }
 
     public void transmit1(Packet buf, int offset, int size) {
@@ -227,6 +260,20 @@ public final class GUKNetDevice implements NetDevice {
         return _truncateCount;
     }
 
+    /**
+     * Returns the number of packets larger than the MTU passed to the backend for segmentation.
+     */
+    public static long gsoCount() {
+        return _gsoCount;
+    }
+
+    /**
+     * Returns the number of transmitted packets dropped because the transmit ring was full.
+     */
+    public static long transmitDropCount() {
+        return _transmitDropCount;
+    }
+
     static class DeviceHandler implements Runnable {
         private PacketHandler _packetHandler;
         DeviceHandler(PacketHandler packetHandler) {
@@ -261,10 +308,11 @@ public final class GUKNetDevice implements NetDevice {
      * @param p address of the network packet
      * @param pktLength length of packet
      * @param ts time of this upcall
+     * @param flags GUK_NETIF_RX_xxx flags from the driver
      */
     @VM_ENTRY_POINT
     @NO_SAFEPOINT_POLLS("network packet copy must be atomic")
-    private static void copyPacket(Pointer p, int pktLength, long ts) {
+    private static void copyPacket(Pointer p, int pktLength, long ts, int flags) {
         int length = pktLength;
         PacketHandler packetHandler = null;
         // try to find a free handler
@@ -278,6 +326,7 @@ public final class GUKNetDevice implements NetDevice {
         if (packetHandler != null) {
             final Packet pkt = packetHandler._packet;
             pkt.inlineSetTimeStamp(ts);
+            pkt.inlineSetChecksumValidated((flags & RX_CSUM_VALIDATED) != 0);
             pkt.inlineReset();
             if (length > pkt.inlineLength()) {
                 length = pkt.inlineLength();
@@ -231,7 +231,7 @@ public class ICMP extends IP {
         int cksum = pkt.cksum(0, 8);
         pkt.putShort(cksum, 2);
 
-        pkt.putInt(IP.getLocalAddress(), -8);
+        pkt.putInt(IP.getSourceAddress(destination), -8);
         pkt.putInt(destination, -4);
 
         try {
@@ -280,7 +280,9 @@ public class ICMP extends IP {
         //    Util.hex(cksum));
 
         // store the source and destination IP addresses into IP header
-        reply.putInt(IP.getLocalAddress(), IP.SRCIP_OFFSET-20);
+        // reply from the address the request was sent to, unless it was a broadcast
+        final int dst_ip = pkt.getInt(IP.DSTIP_OFFSET-20);
+        reply.putInt(IP.isLocalAddress(dst_ip) ? dst_ip : IP.getSourceAddress(src_ip), IP.SRCIP_OFFSET-20);
         reply.putInt(src_ip, IP.DSTIP_OFFSET-20);
 
         output(reply, src_ip, length, (DEFAULT_TTL<<24) | (IP.IPPROTO_ICMP<<16), TOS);
@@ -512,7 +514,7 @@ public class ICMP extends IP {
         int cksum = pkt.cksum(0, 36);
         pkt.putShort(cksum, CKSUM_OFFSET);
 
-        pkt.putInt(IP.getLocalAddress(), -8);
+        pkt.putInt(IP.getSourceAddress(dest), -8);
         pkt.putInt(dest, -4);
 
         output(pkt, dest, 36, (DEFAULT_TTL << 24) | (IP.IPPROTO_ICMP << 16),
@@ -68,6 +68,12 @@ public class IP implements NetDevice.Handler {
     private static int ipFragCreates;
     private static int ipRoutingDiscards;
 
+    public static void report(java.io.PrintStream out) {
+        out.print("IP reassembly: requests " + ipReasmReqds + ", reassembled " + ipReasmOKs + ", failed " + IPReass.getipReasmFails() +
+                        ", timeouts " + IPReass.getipReasmTimeouts() + ", evictions " + IPReass.getipReasmEvictions() +
+                        ", duplicates " + IPReass.getipReasmDuplicates() + ", memory " + IPReass.getMemory() + "\n");
+    }
+
     public static int getStatistic(int index){
         switch(index){
         case 1:                // ipForwarding
@@ -95,7 +101,7 @@ public class IP implements NetDevice.Handler {
         case 12:
             return ipOutNoRoutes;
         case 13:        // ipReasmTimeout (seconds)
-            return 30;        // value of private IPReass.REASSEMBLY_TIMEOUT (30000 milliseconds)
+            return (int) (IPReass.REASSEMBLY_TIMEOUT / 1000);
         case 14:
             return ipReasmReqds;
         case 15:
@@ -117,10 +123,12 @@ public class IP implements NetDevice.Handler {
 
     private static IP _ip;
 
+    // the address of the primary interface, the first to be created
     private static int _localAddr;
-    private static int _localNetwork;   // contains (localAddr & netmask)
-    private static int _netmask;
-    private static int _netbits;        // contains ~netmask
+
+    // the interfaces, in order of creation, copied on change
+    private static volatile IPInterface[] _interfaces = new IPInterface[0];
+    private static final RouteTable _routes = new RouteTable();
 
     // identification field for each packet we send.
     private static int _ident;
@@ -160,13 +168,14 @@ public class IP implements NetDevice.Handler {
     protected static final int IP_MF = 0x2000;   // more fragments
     protected static final int IP_DF = 0x4000;   // don't fragment
 
-    private static Ether _ether      = null;
-    private static ARP _arp           = null;
     private static IP _singleton;
 
     protected IP() {
     }
 
+    /**
+     * Returns the IP instance, creating it, with the primary interface for the given device, if necessary.
+     */
     public static IP getIP(Ether ether, ARP a) {
         if (_singleton == null) {
             _singleton = new IP(ether, a);
@@ -175,12 +184,107 @@ public class IP implements NetDevice.Handler {
     }
 
     private IP(Ether ether, ARP a) {
-        if (_ether == null) {
-            _ether = ether;
-            _arp    = a;
-            _debug = System.getProperty("max.ve.net.ip.debug") != null;
-            _logErrors = System.getProperty("max.ve.net.ip.logerrors") != null;
+        _debug = System.getProperty("max.ve.net.ip.debug") != null;
+        _logErrors = System.getProperty("max.ve.net.ip.logerrors") != null;
+        addInterface(ether, a);
+    }
+
+    /**
+     * Create an interface for another device, which must have this instance registered as its IP handler.
+     * The interface has no address until it is {@link #configure configured}.
+     */
+    public static synchronized IPInterface addInterface(Ether ether, ARP a) {
+        final IPInterface[] interfaces = _interfaces;
+        final IPInterface iface = new IPInterface(interfaces.length, ether, a);
+        final IPInterface[] newInterfaces = new IPInterface[interfaces.length + 1];
+        System.arraycopy(interfaces, 0, newInterfaces, 0, interfaces.length);
+        newInterfaces[interfaces.length] = iface;
+        _interfaces = newInterfaces;
+        return iface;
+    }
+
+    public static IPInterface[] getInterfaces() {
+        return _interfaces.clone();
+    }
+
+    public static RouteTable getRouteTable() {
+        return _routes;
+    }
+
+    /**
+     * Set the address and netmask of an interface, replacing the route to its network.
+     */
+    public static synchronized void configure(IPInterface iface, int local, int mask) {
+        if (iface.getAddress() != 0) {
+            _routes.remove(iface.getNetwork(), RouteTable.prefixLength(iface.getNetmask()));
         }
+        iface.configure(local, mask);
+        if (iface.getIndex() == 0) {
+            _localAddr = local;
+        }
+        if (local != 0) {
+            _routes.add(local, RouteTable.prefixLength(mask), 0, iface);
+        }
+    }
+
+    /**
+     * Add a route to the addresses matching the given prefix, through the given gateway, or directly if that
+     * is zero. The interface is that whose network contains the gateway if iface is null.
+     */
+    public static void addRoute(int prefix, int prefixLength, int gateway, IPInterface iface) throws NetworkException {
+        IPInterface routeInterface = iface;
+        if (routeInterface == null) {
+            final RouteTable.Entry route = _routes.lookup(gateway);
+            if (gateway == 0 || route == null || route.getGateway() != 0) {
+                throw new NetworkException("Gateway " + IPAddress.toString(gateway) + " is not on a local network");
+            }
+            routeInterface = route.getInterface();
+        }
+        _routes.add(prefix, prefixLength, gateway, routeInterface);
+    }
+
+    public static void removeRoute(int prefix, int prefixLength) {
+        _routes.remove(prefix, prefixLength);
+    }
+
+    /**
+     * Returns the gateway for the given destination, or 0 if it is on a local network or there is no route to it.
+     */
+    public static int getGateway(int dst_ip) {
+        final RouteTable.Entry route = _routes.lookup(dst_ip);
+        return route == null ? 0 : route.getGateway();
+    }
+
+    /**
+     * Returns true if the given address is that of one of the interfaces.
+     */
+    public static boolean isLocalAddress(int addr) {
+        if (addr == 0) {
+            return false;
+        }
+        for (IPInterface iface : _interfaces) {
+            if (iface.getAddress() == addr) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the source address for packets sent to the given address, which is the address of the
+     * interface that the packets are routed through, or of the primary interface if there is no route.
+     */
+    public static int getSourceAddress(int dst_ip) {
+        if (isLocalAddress(dst_ip)) {
+            return dst_ip;
+        }
+        if (dst_ip != 0x7f000001 && (dst_ip & IP_CLASSD_MASK) != IP_CLASSD_ADDR && dst_ip != 0xffffffff) {
+            final RouteTable.Entry route = _routes.lookup(dst_ip);
+            if (route != null && route.getInterface().getAddress() != 0) {
+                return route.getInterface().getAddress();
+            }
+        }
+        return _localAddr;
     }
 
     public void handle(Packet pkt) {
@@ -193,40 +297,41 @@ public class IP implements NetDevice.Handler {
     }
 
     public static int getNetmask() {
-        return _netmask;
+        return primary().getNetmask();
     }
 
     public static int getLocalNetwork() {
-        return _localNetwork;
+        return primary().getNetwork();
+    }
+
+    private static IPInterface primary() {
+        return _interfaces[0];
     }
 
     static void setLocalAddress(int local) {
-        _localAddr = local;
+        configure(primary(), local, primary().getNetmask());
     }
 
     /**
      * Called by ProtocolStack every time the underlying network
-     * driver comes up.
+     * driver comes up, to configure the primary interface.
      *
      * @param        local        Our local IP address
      * @param        mask        Our Netmask. If zero, then one will be computed.
      */
     public static void init(int local, int mask) {
 
-        _localAddr = local;
         if (mask == 0) {
             mask = computeNetmask(local);
         }
-        _netmask = mask;
-
-        _netbits = ~mask;
-        _localNetwork = _localAddr & _netmask;
+        configure(primary(), local, mask);
         IPReass.init();
     }
 
 
     /**
-     * Utility routine to compute a netmask from an IP address
+     * Utility routine to compute a netmask from an IP address, by its class,
+     * for when no netmask is configured.
      * @param         addr        The IP address
      * @return        The netmask
      */
@@ -318,8 +423,8 @@ public class IP implements NetDevice.Handler {
             }
         }
 
-        // check if we need to do fragmentation
-        if (len > MAX_IP_LEN) {
+        // check if we need to do fragmentation, which the device does for us if the packet is to be segmented
+        if (len > MAX_IP_LEN && pkt.getGsoSize() == 0) {
             _ident++;
             ipOutRequests++;
             ipFragOKs++;
@@ -397,54 +502,66 @@ public class IP implements NetDevice.Handler {
         //
 
         // Check for loopback packets.
-        if (dst_ip == 0x7f000001 || (dst_ip == _localAddr && _localAddr != 0)) {
+        if (dst_ip == 0x7f000001 || isLocalAddress(dst_ip)) {
             _ip.input(pkt);
             return;
         }
 
+        IPInterface iface = primary();
+        int nextHop = dst_ip;
         if ((dst_ip & IP_CLASSD_MASK) == IP_CLASSD_ADDR) {
             //
             // Sending to a multicast (class D) address.
             // Note, the destination IP address remains the
-            // multicast; don't go through getRoute()
+            // multicast, it is sent on the interface of a route
+            // for it, or the primary interface.
             // Check to see if we should send it to ourselves.
             // We don't have to be a member of group to send to it.
             //
+            final RouteTable.Entry route = _routes.lookup(dst_ip);
+            if (route != null && route.getGateway() == 0) {
+                iface = route.getInterface();
+            }
             if (IGMP.activeGroup(dst_ip)) {
                 int off = pkt.getHeaderOffset();
                 IP.input(pkt);
                 pkt.setHeaderOffset(off);
             }
-        } else if ((dst_ip & _netbits) == _netbits) {
-            //
-            // Subnet broadcast
+        } else if (dst_ip != 0xffffffff) {
             //
-            dst_ip = 0xffffffff;
-        } else if ((dst_ip & _netmask) != _localNetwork) {
+            // Find the route with the longest matching prefix, which gives the
+            // interface and, if the destination is off its network, the gateway.
             //
-            // off our subnet, ask for help to determine next host
-            //
-            dst_ip = ProtocolStack.getRoute(dst_ip);
-        }
-
-        if (dst_ip == 0) {
-            ipOutNoRoutes++;
-            throw new NetworkException("No route to host");
+            final RouteTable.Entry route = _routes.lookup(dst_ip);
+            if (route == null) {
+                ipOutNoRoutes++;
+                throw new NetworkException("No route to host");
+            }
+            iface = route.getInterface();
+            if (route.getGateway() != 0) {
+                nextHop = route.getGateway();
+            } else if (iface.isBroadcast(dst_ip)) {
+                //
+                // Subnet broadcast
+                //
+                nextHop = 0xffffffff;
+            }
         }
 
         // output the packet to the network device
-        // network.output(pkt, dst_ip);
-        // check for a subnet broadcast address.
-        if (dst_ip == 0xffffffff) {
+        // check for a broadcast address.
+        if (nextHop == 0xffffffff) {
             // do an Ethernet broadcast of this packet
-            _ether.transmitBroadcast(pkt, ETHERTYPE_IP);
+            iface.getEther().transmitBroadcast(pkt, ETHERTYPE_IP);
             return;
         }
-        long dest = _arp.resolve(dst_ip);
+        // If the address is not yet known, ARP holds the packet and sends it once it is resolved,
+        // except for fragments, which share their buffer with the following fragments and so are dropped.
+        long dest = iface.getARP().nonBlockingResolve(nextHop, pkt.isFragment() ? null : pkt);
         if (dest != 0) {
-            _ether.transmit(dest, ETHERTYPE_IP, pkt);
+            iface.getEther().transmit(dest, ETHERTYPE_IP, pkt);
         } else {
-            dprint("could not resolve: " + IPAddress.toString(dst_ip));
+            dprint("resolving: " + IPAddress.toString(nextHop));
         }
     }
 
@@ -465,6 +582,24 @@ public class IP implements NetDevice.Handler {
 
     }
 
+    /**
+     * Returns the offload features of the network device, see {@link NetDevice#getFeatures}, that may be used
+     * for packets sent to the given address, which are those of the device of the interface that they are routed
+     * through. Packets that are looped back, or that are multicast or broadcast, may not use any.
+     *
+     * @param dst_ip the destination address
+     */
+    protected static int getRouteFeatures(int dst_ip) {
+        if (dst_ip == 0x7f000001 || (dst_ip & IP_CLASSD_MASK) == IP_CLASSD_ADDR || dst_ip == 0xffffffff || isLocalAddress(dst_ip)) {
+            return 0;
+        }
+        final RouteTable.Entry route = _routes.lookup(dst_ip);
+        if (route == null || (route.getGateway() == 0 && route.getInterface().isBroadcast(dst_ip))) {
+            return 0;
+        }
+        return route.getInterface().getFeatures();
+    }
+
     //----------------------------------------------------------------------
 
     public static void input(Packet pkt) {
@@ -613,7 +748,7 @@ public class IP implements NetDevice.Handler {
         case IPPROTO_TCP:
             // Don't accept TCP packets until we have an IP address and
             // filter out broadcasts and other packets not unicast to us
-            if (_localAddr != 0 && (dst_ip == _localAddr || dst_ip == 0x7f000001)) {
+            if (_localAddr != 0 && (dst_ip == 0x7f000001 || isLocalAddress(dst_ip))) {
                 TCP.input(pkt, src_ip);
                 ipInDelivers++;
             }
@@ -621,7 +756,7 @@ public class IP implements NetDevice.Handler {
 
         default: // unknown protocol
             dprint("unknown.input " + prot);
-            if (_localAddr != 0 && (dst_ip == _localAddr || dst_ip == 0x7f000001)) {
+            if (_localAddr != 0 && (dst_ip == 0x7f000001 || isLocalAddress(dst_ip))) {
                 ipInUnknownProtos++;
             }
         }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.net.ip;
+
+import com.sun.max.ve.net.arp.*;
+import com.sun.max.ve.net.device.*;
+import com.sun.max.ve.net.protocol.ether.*;
+
+/**
+ * A network device configured for IP, with its own address, netmask and ARP cache.
+ * The interfaces are created by {@link IP#getIP} and {@link IP#addInterface}, and
+ * routes in the {@link RouteTable} select the interface that a packet is sent on.
+ *
+ * @author Mick Jordan
+ */
+public final class IPInterface {
+    private final int _index;
+    private final Ether _ether;
+    private final ARP _arp;
+    private final int _features;
+
+    private volatile int _address;
+    private volatile int _netmask;
+    private volatile int _network;   // contains (address & netmask)
+    private volatile int _netbits;   // contains ~netmask
+
+    IPInterface(int index, Ether ether, ARP arp) {
+        _index = index;
+        _ether = ether;
+        _arp = arp;
+        _features = ether == null ? 0 : ether.getNetDevice().getFeatures();
+    }
+
+    void configure(int address, int netmask) {
+        _address = address;
+        _netmask = netmask;
+        _network = address & netmask;
+        _netbits = ~netmask;
+        if (_arp != null) {
+            _arp.setLocalAddress(address);
+        }
+    }
+
+    /**
+     * Returns the position of this interface in the order in which the interfaces were created.
+     */
+    public int getIndex() {
+        return _index;
+    }
+
+    public int getAddress() {
+        return _address;
+    }
+
+    public int getNetmask() {
+        return _netmask;
+    }
+
+    public int getNetwork() {
+        return _network;
+    }
+
+    public NetDevice getNetDevice() {
+        return _ether == null ? null : _ether.getNetDevice();
+    }
+
+    /**
+     * Returns the offload features of the device, see {@link NetDevice#getFeatures}.
+     */
+    public int getFeatures() {
+        return _features;
+    }
+
+    Ether getEther() {
+        return _ether;
+    }
+
+    ARP getARP() {
+        return _arp;
+    }
+
+    /**
+     * Returns true if the given address is the broadcast address of the network of this interface.
+     */
+    boolean isBroadcast(int addr) {
+        return (addr & _netbits) == _netbits && (addr & _netmask) == _network;
+    }
+
+    @Override
+    public String toString() {
+        return _index + ": " + IPAddress.toString(_address) + "/" + RouteTable.prefixLength(_netmask) +
+            (_ether == null ? "" : " " + _ether.getNetDevice().getNICName());
+    }
+}
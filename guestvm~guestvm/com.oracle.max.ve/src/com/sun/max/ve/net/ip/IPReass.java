@@ -28,19 +28,25 @@ package com.sun.max.ve.net.ip;
 
    notes
 
-   The algorithm to add fragments to the fragment list is very simple minded
-   and doesn't prune overlaps.  It rejects any packets that overlap.
-
-   Once initialized, there is no dynamic allocation in this code.  All
-   fragment and reassembler descriptors are preallocated in free lists
-   and are recycled after use.
-
-   When a new fragment comes in, and we don't have a free Fragment descriptor
-   or Reassembler descriptor, the oldest reassembler in the active
-   reassembly list is recycled.
+   Each fragment is copied, as it arrives, to its place in a buffer that
+   holds the whole datagram, which becomes the reassembled packet. The buffer
+   is sized exactly if the last fragment is the first to arrive, otherwise
+   it is large enough for a small datagram, and is replaced by one large
+   enough for any datagram when a fragment beyond its end arrives. Which parts of the datagram have arrived is
+   recorded in a bitmap of 8 byte blocks, so duplicate and overlapping
+   fragments are handled; the data of a later fragment replaces that of an
+   earlier one.
+
+   The active reassemblers are kept in a list in the order that they were
+   created, which, as they all have the same timeout, is also the order in
+   which they expire. A single timer task removes the expired reassemblers
+   from the head of the list once a second. The memory held by reassemblers
+   is limited, and when a fragment would exceed the limit, the oldest
+   reassemblers are discarded to make room for it.
 */
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import com.sun.max.ve.net.*;
 import com.sun.max.ve.net.debug.*;
@@ -56,14 +62,35 @@ import com.sun.max.ve.net.debug.*;
  */
 final class IPReass {
 
-    private static final long REASSEMBLY_TIMEOUT = 30000;
-    private static Map<FragmentId, IPReass> _reassemblers;
+    static final long REASSEMBLY_TIMEOUT = 30000;
+    private static final long TICK = 1000;
+    private static final String MEMORY_PROPERTY = "max.ve.net.ip.reass.memory";
+    private static final int DEFAULT_MEMORY = 4 * 1024 * 1024;
+    // the largest datagram payload that an IP header can describe
+    private static final int MAX_DATA = 65535 - IP.MIN_HEADER_LEN;
+    private static final int INITIAL_SIZE = 8192;
+
+    private static ConcurrentMap<FragmentId, IPReass> _reassemblers;
     private static Timer _timer;    // reassembly timer
+    private static int _maxMemory = DEFAULT_MEMORY;
+
+    // The active reassemblers, oldest first, and the memory they hold, guarded by the class lock.
+    private static IPReass _head;
+    private static IPReass _tail;
+    private static int _memory;
 
     static void init() {
         _debug = System.getProperty("max.ve.net.ip.reass.debug") != null;
-        _reassemblers = Collections.synchronizedMap(new HashMap<FragmentId, IPReass>());
+        final String memoryProperty = System.getProperty(MEMORY_PROPERTY);
+        if (memoryProperty != null) {
+            try {
+                _maxMemory = Integer.parseInt(memoryProperty);
+            } catch (NumberFormatException ex) {
+            }
+        }
+        _reassemblers = new ConcurrentHashMap<FragmentId, IPReass>();
         _timer = new Timer("IPReass", true);
+        _timer.schedule(new ExpiryTask(), TICK, TICK);
     }
 
     /**
@@ -92,183 +119,282 @@ final class IPReass {
 
         @Override
         public int hashCode() {
-            return _src_ip | _dst_ip | _ident |_prot;
-        }
-    }
-
-    static class Fragment {
-        int _start_offset;    // IP fragment offset
-        int _end_offset;
-        Packet _pkt;
-        Fragment _next;
-
-        Fragment(Packet pkt) {
-            _pkt = pkt;
+            return ((_src_ip * 31 + _dst_ip) * 31 + _prot) * 31 + _ident;
         }
     }
 
     private FragmentId _fragmentId;
-    private int _bytesQueued;  // number of bytes queued in fragment list
-    private int _totalBytes;   // total size of resulting packet
-
-    // A list of fragments which make up the reassembled packet.
-    Fragment _fragments;
+    private final long _expires;
+    private Packet _pkt;         // the datagram being reassembled, data at header offset 0
+    private long[] _blocks;      // a bit for each 8 byte block of _pkt that has arrived
+    private int _blocksQueued;   // number of bits set in _blocks
+    private int _totalBytes = -1;   // total size of resulting packet, -1 until the last fragment arrives
+    private int _endBytes;       // the end of the furthest fragment
+
+    // guarded by the class lock
+    private int _charge;         // memory charged for _pkt and _blocks
+    private boolean _retired;
+    private IPReass _next;
+    private IPReass _prev;
 
     private static int _ipReasmFails;
+    private static int _ipReasmTimeouts;
+    private static int _ipReasmEvictions;
+    private static int _ipReasmDuplicates;
 
     static int getipReasmFails(){
         return _ipReasmFails;
     }
 
-    private IPReass(FragmentId fragmentId) {
-        _fragmentId = fragmentId;
-        _reassemblers.put(_fragmentId, this);
-        _timer.schedule(new ReassemblerTimerTask(), REASSEMBLY_TIMEOUT);
+    static int getipReasmTimeouts() {
+        return _ipReasmTimeouts;
     }
 
-    /**
-     * Called when the timer task associated with this reassembler times out.
-     */
-    private void timeout() {
-        _reassemblers.remove(_fragmentId);
+    static int getipReasmEvictions() {
+        return _ipReasmEvictions;
+    }
+
+    static int getipReasmDuplicates() {
+        return _ipReasmDuplicates;
+    }
+
+    static int getMemory() {
+        return _memory;
+    }
+
+    private IPReass(FragmentId fragmentId) {
+        _fragmentId = fragmentId;
+        _expires = System.currentTimeMillis() + REASSEMBLY_TIMEOUT;
     }
 
     /** This method is the main entry point for reassembling a packet.
     * If the insertion of this fragment results in a completed IP packet,
     * the reassembled packet is returned.  Otherwise null is returned.
+    * The fragment is copied, so the caller keeps ownership of pkt.
     * */
     static Packet insertFragment(Packet pkt, int id, int src_ip, int dst_ip,
                                  int prot, int offset) {
-
-        // Allocate a new Fragment descriptor for this packet.  We need
-        // to copy() the packet because it will be held in the fragment list.
-        Fragment frag = new Fragment(pkt.copy());
-
-        if ( frag == null ) {
-            // can't insert more fragment -- not enough buffer
-          // return a pkt with length 0, will be discarded by upper layer
-          // Maybe should return an ICMP of some sort
-
-          // try {
-            dprint("no more fragments. ");
-          //Icmp.sendIcmpDstUnreachable(src_ip, Icmp.FRAG_REQUIRED,
-          //                        pkt);
-        //} catch (NetworkException ex) {
-        //    return pkt;
-        //  }
-          pkt.setLength(0);
-          return pkt;
-        }
-
-        FragmentId fragmentId = new FragmentId(id, src_ip, dst_ip, prot);
+        final FragmentId fragmentId = new FragmentId(id, src_ip, dst_ip, prot);
         IPReass reass = _reassemblers.get(fragmentId);
-
-        if (reass != null) {
-            pkt = reass.add(frag, offset);
-            if (pkt != null) {
+        if (reass == null) {
+            // We couldn't find a reassembler for this fragment, so let's
+            // start a new one.
+            reass = create(fragmentId);
+        }
+        synchronized (reass) {
+            final Packet result = reass.add(pkt, offset);
+            if (result != null) {
                 // the IP packet is successfully reassembled!
                 if (_debug) dprint("reassemble done id:" + id);
-                _reassemblers.remove(fragmentId);
+                if (!retire(reass)) {
+                    // it expired or was evicted while we were adding to it
+                    return null;
+                }
             }
-            return pkt;
+            return result;
         }
-
-        // We couldn't find a reassembler for this fragment, so let's
-        // start a new one.
-        reass = new IPReass(fragmentId);
-        return reass.add(frag, offset);
     }
 
-    private static final int IP_MF = 0x2000;   // more fragments bit
-
-    /** Combine all the packets in the fragment list into one large Packet.
-     *
-     * @return
-     */
-    private Packet combine() {
+    /** Add a fragment to the datagram.  If the addition of this
+    * fragment results in a completed packet, the packet is returned.
+    * Otherwise we return null.
+    * */
+    private Packet add(Packet pkt, int start_offset) {
 
-        // allocate a packet large enough for the IP header and
-        // total data bytes. need a full 20 byte IP header in case
-        // this is a UDP message and the port is unreachable because
-        // Udp.input() shifts the header -20 to get to the beginning
-        // of the IP header.
-        Packet pkt = Packet.get(IP.MIN_HEADER_LEN, _totalBytes);
+        // check for the Last Fragment bit in the offset
+        final boolean moreFragments = (start_offset & IP_MF) != 0;
 
-        // generate the IP header. assume default TOS and ignore TTL
-        // because this packet will not be going back up the stack.
-        pkt.shiftHeader(-IP.MIN_HEADER_LEN);
-        pkt.putByte((IP.IPVERSION << 4) | 5, IP.VERS_OFFSET);
-        pkt.putInt(_fragmentId._src_ip, IP.SRCIP_OFFSET);
-        pkt.putInt(_fragmentId._dst_ip, IP.DSTIP_OFFSET);
-        pkt.putByte(_fragmentId._prot & 0xff, IP.PROT_OFFSET);
-        pkt.putShort(_fragmentId._ident, IP.IDENT_OFFSET);
+        // get the total number of bytes in this fragment
+        final int len = pkt.dataLength();
+        final int start = (start_offset & 0x1fff) * 8;
+        final int end = start + len;
 
-        pkt.shiftHeader(IP.MIN_HEADER_LEN);
+        if (_debug) {
+            dprint("add start:" + start + " end:" + end + " len:" + len + " more:" + moreFragments);
+        }
 
-        // iterate over all the fragments and copy each of them into
-        // the large packet. they will be recycled when the reassembler
-        // gets recycled.
+        // all but the last fragment hold a multiple of 8 bytes, and none extends
+        // beyond the end of the datagram
+        if (end > MAX_DATA || (moreFragments && (len == 0 || (len & 7) != 0)) ||
+                        (_totalBytes >= 0 && (end > _totalBytes || (!moreFragments && end != _totalBytes))) ||
+                        (!moreFragments && end < _endBytes)) {
+            if (_debug) dprint("bad fragment start:" + start + " len:" + len);
+            fail();
+            return null;
+        }
 
-        Fragment f = _fragments;
-        while (f != null) {
+        if (!moreFragments) {
+            // this is the last fragment, now we know how large the
+            // reassembled packet is.
+            _totalBytes = end;
             if (_debug) {
-                dprint("combine offset:" + f._start_offset + " len:" + f._pkt.dataLength());
+                dprint("got last fragment, totalBytes:" + _totalBytes);
+            }
+        }
+
+        if (_pkt == null || end > _pkt.dataLength()) {
+            final int size = _totalBytes >= 0 ? _totalBytes : _pkt == null ? Math.max(INITIAL_SIZE, end) : MAX_DATA;
+            if (!resize(size)) {
+                return null;
+            }
+        }
+        _endBytes = Math.max(_endBytes, end);
+
+        _pkt.putBytes(pkt, 0, start, len);
+
+        // record the blocks that have arrived
+        final int lastBlock = (end + 7) >> 3;
+        for (int block = start >> 3; block < lastBlock; block++) {
+            final long bit = 1L << block;
+            if ((_blocks[block >> 6] & bit) == 0) {
+                _blocks[block >> 6] |= bit;
+                _blocksQueued++;
+            } else if (block == start >> 3) {
+                _ipReasmDuplicates++;
             }
-            pkt.putBytes(f._pkt, 0, f._start_offset*8, f._pkt.dataLength());
-            f = f._next;;
         }
 
-        return pkt;
+        if (_totalBytes >= 0 && _blocksQueued == (_totalBytes + 7) >> 3) {
+            _pkt.setDataLength(_totalBytes);
+            return _pkt;
+        }
+        return null;
     }
 
-    /** Add a fragment to the list of fragments.  If the addition of this
-    * fragment results in a completed packet, the fragments are combined
-    * and the completed packet is returned.  Otherwise we return null.
-    * */
-    Packet add(Fragment new_frag, int start_offset) {
+    /**
+     * Replace the datagram buffer with a larger one, copying what has arrived, and charge the memory that it uses.
+     * Returns false if this reassembler has been discarded.
+     */
+    private boolean resize(int size) {
+        if (!charge(this, size + ((size + 511) >> 9) * 8 - _charge)) {
+            return false;
+        }
 
-        // check for the Last Fragment bit in the offset
-        boolean moreFragments = true;
-        if ((start_offset & IP_MF) == 0) {
-            moreFragments = false;
+        // allocate a packet large enough for the IP header and
+        // total data bytes. need a full 20 byte IP header in case
+        // this is a UDP message and the port is unreachable because
+        // Udp.input() shifts the header -20 to get to the beginning
+        // of the IP header.
+        final Packet pkt = Packet.get(IP.MIN_HEADER_LEN, size);
+        final long[] blocks = new long[(size + 511) >> 9];
+        if (_pkt == null) {
+            // generate the IP header. assume default TOS and ignore TTL
+            // because this packet will not be going back up the stack.
+            pkt.shiftHeader(-IP.MIN_HEADER_LEN);
+            pkt.putByte((IP.IPVERSION << 4) | 5, IP.VERS_OFFSET);
+            pkt.putInt(_fragmentId._src_ip, IP.SRCIP_OFFSET);
+            pkt.putInt(_fragmentId._dst_ip, IP.DSTIP_OFFSET);
+            pkt.putByte(_fragmentId._prot & 0xff, IP.PROT_OFFSET);
+            pkt.putShort(_fragmentId._ident, IP.IDENT_OFFSET);
+            pkt.shiftHeader(IP.MIN_HEADER_LEN);
+        } else {
+            pkt.putBytes(_pkt, -IP.MIN_HEADER_LEN, -IP.MIN_HEADER_LEN, IP.MIN_HEADER_LEN + _endBytes);
+            System.arraycopy(_blocks, 0, blocks, 0, _blocks.length);
         }
+        _pkt = pkt;
+        _blocks = blocks;
+        return true;
+    }
 
-        // get the total number of bytes in this fragment
-        int len = new_frag._pkt.dataLength();
+    private static final int IP_MF = 0x2000;   // more fragments bit
 
-        // mask out the fragment start offset and compute the end offset
-        new_frag._start_offset = start_offset & 0x1fff;
-        new_frag._end_offset = new_frag._start_offset + (((len+7) >> 3) - 1);
+    /**
+     * Return the reassembler for a fragment id, creating and queueing it if there is none. The reassembler is
+     * published and queued under the class lock, so that it cannot be retired before it is on the list.
+     */
+    private static synchronized IPReass create(FragmentId fragmentId) {
+        IPReass reass = _reassemblers.get(fragmentId);
+        if (reass == null) {
+            reass = new IPReass(fragmentId);
+            _reassemblers.put(fragmentId, reass);
+            enqueue(reass);
+        }
+        return reass;
+    }
 
-        if (_debug) {
-            dprint("add start:" + new_frag._start_offset + " end:" + new_frag._end_offset + " len:" + len + " more:" + moreFragments);
+    private static synchronized void enqueue(IPReass reass) {
+        if (_tail == null) {
+            _head = reass;
+        } else {
+            _tail._next = reass;
+            reass._prev = _tail;
         }
+        _tail = reass;
+    }
 
-        // add the fragments in any order because combine() puts them
-        // into the right slot in the final packet. we do not do overlap
-        // detection.
-        if (_fragments == null) {
-            _fragments = new_frag;
+    /**
+     * Remove a reassembler, returning false if it had already been removed.
+     */
+    private static synchronized boolean retire(IPReass reass) {
+        if (reass._retired) {
+            return false;
+        }
+        reass._retired = true;
+        _reassemblers.remove(reass._fragmentId);
+        unlink(reass);
+        _memory -= reass._charge;
+        return true;
+    }
+
+    private static synchronized void unlink(IPReass reass) {
+        if (reass._prev == null) {
+            _head = reass._next;
         } else {
-            new_frag._next = _fragments;
-            _fragments = new_frag;
+            reass._prev._next = reass._next;
         }
+        if (reass._next == null) {
+            _tail = reass._prev;
+        } else {
+            reass._next._prev = reass._prev;
+        }
+        reass._next = null;
+        reass._prev = null;
+    }
 
-        if (moreFragments == false) {
-            // this is the last fragment, now we know how large the
-            // reassembled packet is.
-            _totalBytes = (new_frag._start_offset * 8) + len;
-            if (_debug) {
-                dprint("got last fragment, totalBytes:" + _totalBytes);
+    /**
+     * Charge additional memory to a reassembler, discarding the oldest others if that exceeds the limit.
+     * Returns false if the reassembler has been discarded, or is itself too large for the limit.
+     */
+    private static synchronized boolean charge(IPReass reass, int delta) {
+        if (reass._retired) {
+            return false;
+        }
+        while (_memory + delta > _maxMemory) {
+            final IPReass oldest = _head == reass ? reass._next : _head;
+            if (oldest == null) {
+                _ipReasmFails++;
+                retire(reass);
+                return false;
             }
+            if (_debug) dprint("evict id:" + oldest._fragmentId._ident);
+            _ipReasmEvictions++;
+            _ipReasmFails++;
+            retire(oldest);
         }
+        _memory += delta;
+        reass._charge += delta;
+        return true;
+    }
 
-        _bytesQueued += len;
-        if (_bytesQueued == _totalBytes) {
-            return combine();
-        }
+    private static synchronized void fail() {
+        _ipReasmFails++;
+    }
 
-        return null;
+    /**
+     * Remove the reassemblers that have expired, which are at the head of the list.
+     */
+    private static synchronized void expire() {
+        final long now = System.currentTimeMillis();
+        while (_head != null && _head._expires <= now) {
+            if (_debug) dprint("timeout id:" + _head._fragmentId._ident);
+            _ipReasmTimeouts++;
+            _ipReasmFails++;
+            final IPReass reass = _head;
+            if (!retire(reass)) {
+                // a retired reassembler should not be on the list, but must not stop the loop
+                unlink(reass);
+            }
+        }
     }
 
     private static boolean _debug;
@@ -278,13 +404,12 @@ final class IPReass {
             Debug.println("IPReass: " + s);
     }
 
-     class ReassemblerTimerTask extends TimerTask {
+    static class ExpiryTask extends TimerTask {
         @Override
         public void run() {
-            timeout();
+            expire();
         }
 
     }
 
 }
-
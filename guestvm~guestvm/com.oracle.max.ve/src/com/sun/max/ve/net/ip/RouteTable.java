@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.net.ip;
+
+import java.util.*;
+
+/**
+ * The IP routing table, which maps a destination address to the route with the longest matching prefix.
+ *
+ * The routes are held in a binary trie indexed by the bits of the prefix, most significant first, with a route
+ * at the node for the last bit of its prefix, so a lookup follows the bits of the destination for at most 32 steps,
+ * remembering the last route that it passes. Lookups, which are made for every packet sent, do not lock; changes,
+ * which are rare, are serialized and are seen by a lookup either completely or not at all.
+ *
+ * @author Mick Jordan
+ */
+public final class RouteTable {
+
+    /**
+     * A route to the addresses that match a prefix, through a gateway or, if the gateway is zero, directly
+     * on the network of the interface.
+     */
+    public static final class Entry {
+        private final int _prefix;
+        private final int _prefixLength;
+        private final int _gateway;
+        private final IPInterface _interface;
+
+        Entry(int prefix, int prefixLength, int gateway, IPInterface iface) {
+            _prefix = prefix & netmask(prefixLength);
+            _prefixLength = prefixLength;
+            _gateway = gateway;
+            _interface = iface;
+        }
+
+        public int getPrefix() {
+            return _prefix;
+        }
+
+        public int getPrefixLength() {
+            return _prefixLength;
+        }
+
+        public int getGateway() {
+            return _gateway;
+        }
+
+        public IPInterface getInterface() {
+            return _interface;
+        }
+
+        @Override
+        public String toString() {
+            return IPAddress.toString(_prefix) + "/" + _prefixLength + (_gateway == 0 ? "" : " via " + IPAddress.toString(_gateway)) +
+                (_interface == null ? "" : " dev " + _interface.getIndex());
+        }
+    }
+
+    private static final class Node {
+        volatile Node _zero;
+        volatile Node _one;
+        volatile Entry _entry;
+    }
+
+    private final Node _root = new Node();
+
+    /**
+     * Returns the netmask for a prefix of the given length.
+     */
+    public static int netmask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+    /**
+     * Returns the length of the prefix given by a netmask, which is assumed to be contiguous.
+     */
+    public static int prefixLength(int netmask) {
+        return Integer.bitCount(netmask);
+    }
+
+    /**
+     * Returns the route with the longest prefix that matches the given address, or null if there is none.
+     */
+    public Entry lookup(int address) {
+        Node node = _root;
+        Entry result = node._entry;
+        for (int bit = 31; bit >= 0; bit--) {
+            node = ((address >>> bit) & 1) == 0 ? node._zero : node._one;
+            if (node == null) {
+                break;
+            }
+            final Entry entry = node._entry;
+            if (entry != null) {
+                result = entry;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add a route, replacing any existing route for the same prefix.
+     * @return the route
+     */
+    public synchronized Entry add(int prefix, int prefixLength, int gateway, IPInterface iface) {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("prefix length " + prefixLength);
+        }
+        final Entry entry = new Entry(prefix, prefixLength, gateway, iface);
+        Node node = _root;
+        for (int i = 0; i < prefixLength; i++) {
+            // the child is complete before it is made visible to lookups
+            if (((prefix >>> (31 - i)) & 1) == 0) {
+                if (node._zero == null) {
+                    node._zero = new Node();
+                }
+                node = node._zero;
+            } else {
+                if (node._one == null) {
+                    node._one = new Node();
+                }
+                node = node._one;
+            }
+        }
+        node._entry = entry;
+        return entry;
+    }
+
+    /**
+     * Remove the route for the given prefix.
+     * @return the route that was removed, or null if there was none
+     */
+    public synchronized Entry remove(int prefix, int prefixLength) {
+        Node node = _root;
+        for (int i = 0; i < prefixLength && node != null; i++) {
+            node = ((prefix >>> (31 - i)) & 1) == 0 ? node._zero : node._one;
+        }
+        if (node == null) {
+            return null;
+        }
+        // empty nodes are left in place, there are few routes and they rarely change
+        final Entry result = node._entry;
+        node._entry = null;
+        return result;
+    }
+
+    /**
+     * Remove all the routes through the given interface.
+     */
+    public synchronized void remove(IPInterface iface) {
+        for (Entry entry : entries()) {
+            if (entry._interface == iface) {
+                remove(entry._prefix, entry._prefixLength);
+            }
+        }
+    }
+
+    /**
+     * Returns the routes, ordered by prefix.
+     */
+    public synchronized List<Entry> entries() {
+        final List<Entry> result = new ArrayList<Entry>();
+        addEntries(_root, result);
+        return result;
+    }
+
+    private static void addEntries(Node node, List<Entry> result) {
+        if (node != null) {
+            if (node._entry != null) {
+                result.add(node._entry);
+            }
+            addEntries(node._zero, result);
+            addEntries(node._one, result);
+        }
+    }
+}
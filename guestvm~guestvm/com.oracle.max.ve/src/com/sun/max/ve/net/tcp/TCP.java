@@ -59,6 +59,8 @@ import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import com.sun.max.ve.fs.ErrorDecoder;
@@ -66,6 +68,7 @@ import com.sun.max.ve.net.Endpoint;
 import com.sun.max.ve.net.NetworkException;
 import com.sun.max.ve.net.Packet;
 import com.sun.max.ve.net.Route;
+import com.sun.max.ve.net.device.NetDevice;
 import com.sun.max.ve.net.icmp.ICMP;
 import com.sun.max.ve.net.ip.IP;
 import com.sun.max.ve.net.ip.IPAddress;
@@ -84,7 +87,9 @@ import com.sun.max.ve.util.TimeLimitedProc;
  * The method output() handles packet formatting and output to the IP layer.
  *
  * TCPSendQueue manages bytes that are sent but not acknowledged. TCPRecvQueue manages bytes that are received but not
- * delivered to the application.
+ * delivered to the application. TCPReassemblyQueue holds bytes that are received out of order until the missing data
+ * arrives. While it is non-empty, every out of order segment is answered with an immediate duplicate ACK, carrying SACK
+ * blocks if the peer negotiated SACK, which allows the peer to fast retransmit just the missing data.
  *
  * There are at least four threads that access the state of a TCP instance:
  *
@@ -102,7 +107,16 @@ import com.sun.max.ve.util.TimeLimitedProc;
  *
  * The implementation supports blocking and non-blocking mode, the latter being needed for nio channels.
  *
- * The backlog queue for incoming connections is currently of length 1. This needs fixing.
+ * A listening instance has a SYN queue, a count of the connections that are still in the three way handshake, and an
+ * accept queue of established connections waiting for {@link #accept}, each bounded by the backlog passed to
+ * {@link #listen}. The accept queue is lock-free, so that several acceptor threads can dequeue connections without
+ * contending on the listener; only a thread that has to wait synchronizes on the listener. When the SYN queue is full,
+ * SYN cookies, if enabled, allow connections to be established without keeping any state until the final ACK arrives.
+ *
+ * Small writes are coalesced by Nagle's algorithm, unless disabled by TCP_NODELAY, and optionally by autocorking,
+ * which holds a partial segment for a short time, see {@link #pushData}. If the network device offers segmentation
+ * offload, data is passed down in packets of up to 64KB that the device splits into segments, and checksums are left
+ * to the device when it offers checksum offload.
  *
  * This version expects to its debug tracing using AspectJ {@link AJTrace} package, which requires a build using, e.g.,
  *  the AJTraceVENetTCP project. AJTrace has explicit support for tracing the entry and exit to a given set of methods,
@@ -128,16 +142,24 @@ public final class TCP extends IP {
 
     // The connection endpoint addresses. local_ip is assumed to be
     // the local host address, so we don't need to store it here.
-    // Not having local_ip here means we can't support more than one
-    // local IP address at a time (useful for multiple network interfaces).
-    // However, we do save the cost of storing and bookkeeping the value.
+    // The local IP address is that of the interface that the connection
+    // uses, which is not part of the connection's identity: connections
+    // are found by local port and remote address and port only.
+    private int _localIp;
     private int _localPort;
     private int _remotePort;
     private int _remoteIp;
 
-    // these two variables control the acceptance of incoming connections.
+    // these variables control the acceptance of incoming connections.
     private TCP _listener;
-    private TCP _incomingConnection;
+    private int _backlog;
+    private AtomicInteger _synQueueLength;
+    private ConcurrentLinkedQueue<TCP> _acceptQueue;
+    private AtomicInteger _acceptQueueLength;
+
+    // the backlog used when listen is given a non-positive count, as in java.net.ServerSocket
+    private static final int DEFAULT_BACKLOG = 50;
+    private static final int MAX_BACKLOG = 1024;
 
     // timer management
     private static final int DELAYED_ACK_MSEC = 50;
@@ -147,6 +169,10 @@ public final class TCP extends IP {
     private TCPTimerTask _delayedAckTask;
 
     private TCPRecvQueue _recvQueue;
+    private TCPReassemblyQueue _reassemblyQueue;
+
+    // true if SACK-permitted was (or, before the SYN is answered, is being) negotiated on this connection
+    private boolean _sackPermitted;
 
     // Used to cache the packet header size for outgoing packets
     // on a connection.
@@ -159,6 +185,12 @@ public final class TCP extends IP {
     private int _snd_wl1; // seq number used for last window update
     private int _sndWl2; // ack number used for last window update
     private int _iss; // initial send sequence number
+    private int _unsent; // bytes in the send queue, following _snd_max, not yet transmitted
+
+    // disables Nagle's algorithm (TCP_NODELAY)
+    private boolean _noDelay;
+    // non-null while a partial segment is being held by autocorking
+    private CorkTask _corkTask;
 
     private int rcv_wnd; // bytes unused in receive window
     private int rcv_nxt; // next expected receive sequence number
@@ -175,6 +207,11 @@ public final class TCP extends IP {
     // some random constants and variables
     private static int _startTime; // used to create initial sequence numbers
     private static final int MAXSEGSIZE = 1460; // maximum segment size
+    // The maximum data in a packet that the network device segments, a multiple of MAXSEGSIZE
+    // such that the packet, with maximal IP and TCP headers, does not exceed the limit.
+    private static final int MAX_GSO_DATA = ((NetDevice.MAX_GSO_LENGTH - 20 - 60) / MAXSEGSIZE) * MAXSEGSIZE;
+    // segmentation offload needs checksum offload as the device completes the checksum of each segment
+    private static final int TSO_FEATURES = NetDevice.FEATURE_TSO | NetDevice.FEATURE_CSUM_OFFLOAD;
     private static final int RECEIVE_WINDOW = 8760; // default recv window size
 
     // this scratch state is used for interactions when we don't
@@ -209,6 +246,16 @@ public final class TCP extends IP {
     private static final int WINDOW_OFFSET = 14;
     private static final int CKSUM_OFFSET = 16;
     private static final int MSS_OFFSET = 20;
+    private static final int OPTIONS_OFFSET = 20;
+
+    // TCP option kinds
+    private static final int OPT_EOL = 0;
+    private static final int OPT_NOP = 1;
+    private static final int OPT_SACK_PERMITTED = 4;
+    private static final int OPT_SACK = 5;
+
+    // the edges of the SACK blocks being output, scratch storage used while holding the instance lock
+    private final int[] _sackEdges = new int[2 * TCPReassemblyQueue.MAX_SACK_BLOCKS];
 
     // ----------------------------------------------------------------------
 
@@ -219,6 +266,7 @@ public final class TCP extends IP {
     private static int inp_wnd;
 
     private static int inp_len; // length of data portion of input segment
+    private static boolean inp_sack_ok; // SYN segment carried the SACK-permitted option
 
     // ----------------------------------------------------------------------
 
@@ -276,12 +324,55 @@ public final class TCP extends IP {
     private static long _nextDebugId = 1;
     private static final String DEBUG_PROPERTY = "max.ve.net.tcp.debug";
 
+    // the maximum number of out of order segments held per connection, zero disables reassembly
+    private static final String REASSEMBLY_PROPERTY = "max.ve.net.tcp.reassembly.segments";
+    private static final int DEFAULT_REASSEMBLY_SEGMENTS = 64;
+    private static int _reassemblySegments = DEFAULT_REASSEMBLY_SEGMENTS;
+    // set to false to disable SACK negotiation
+    private static final String SACK_PROPERTY = "max.ve.net.tcp.sack";
+    private static boolean _sackEnabled = true;
+    // set to true to answer SYNs with SYN cookies when a listener's SYN queue is full
+    private static final String SYNCOOKIES_PROPERTY = "max.ve.net.tcp.syncookies";
+    private static boolean _synCookies;
+    private static int _synCookieSecret;
+    // the cookie time counter advances every 2^SYNCOOKIE_TIME_SHIFT milliseconds (about a minute)
+    private static final int SYNCOOKIE_TIME_SHIFT = 16;
+    // the number of counter values for which a cookie is accepted
+    private static final int SYNCOOKIE_MAX_AGE = 2;
+    // if positive, the time in milliseconds for which a write that leaves a partial segment is held,
+    // in the expectation of further writes that will fill it
+    private static final String AUTOCORK_PROPERTY = "max.ve.net.tcp.autocork";
+    private static int _autocorkMsec;
+    private static Timer _corkTimer;
+
     /**
      * Initialization of the TCP universe.
      */
     public static void init() {
         _debug = System.getProperty(DEBUG_PROPERTY) != null;
+        final String reassemblyProperty = System.getProperty(REASSEMBLY_PROPERTY);
+        if (reassemblyProperty != null) {
+            try {
+                _reassemblySegments = Integer.parseInt(reassemblyProperty);
+            } catch (NumberFormatException e) {
+                // ignore
+            }
+        }
+        _sackEnabled = _reassemblySegments > 0 && !"false".equals(System.getProperty(SACK_PROPERTY));
         _random = new Random();
+        _synCookies = "true".equals(System.getProperty(SYNCOOKIES_PROPERTY));
+        _synCookieSecret = _random.nextInt();
+        final String autocorkProperty = System.getProperty(AUTOCORK_PROPERTY);
+        if (autocorkProperty != null) {
+            try {
+                _autocorkMsec = Integer.parseInt(autocorkProperty);
+            } catch (NumberFormatException e) {
+                // ignore
+            }
+        }
+        if (_autocorkMsec > 0) {
+            _corkTimer = new Timer("TCP Cork Timer", true);
+        }
         _startTime = (int) System.currentTimeMillis();
         rttTimer = new Timer("TCP Round Trip Timer", true);
         rttTimer.scheduleAtFixedRate(new RoundTripTask(), RTT_TICK_MSEC, RTT_TICK_MSEC);
@@ -315,6 +406,7 @@ public final class TCP extends IP {
         _retransmitTask = new RetransmitTask(_retransmitTimer, this);
         _delayedAckTask = new DelayedAckTask(_delayedAckTimer, this);
         _recvQueue = new TCPRecvQueue(RECEIVE_WINDOW);
+        _reassemblyQueue = new TCPReassemblyQueue(_reassemblySegments);
 
         rtx_timeout = RTX_TIMEOUT_INIT;
         rtt_start = 0;
@@ -361,6 +453,11 @@ public final class TCP extends IP {
     // uncluttered as possible. Any code you add here will likely
     // slow things down.
     private void output(Packet pkt, int flags, int seq, int ack) throws NetworkException {
+        outputSegment(pkt, flags, seq, ack, 0);
+    }
+
+    // As above, adding a SACK option with the first sackBlocks blocks in _sackEdges.
+    private void outputSegment(Packet pkt, int flags, int seq, int ack, int sackBlocks) throws NetworkException {
         tcpOutSegs++;
         if ((flags & ACK) != 0) {
             _delayedAckTimer.cancelTask();
@@ -374,8 +471,14 @@ public final class TCP extends IP {
         //
         if ((flags & SYN) != 0) {
 
-            pkt.shiftHeader(-24);
-            pkt.putByte(6 << 4, HLEN_OFFSET); // set header length
+            if (_sackPermitted) {
+                pkt.shiftHeader(-28);
+                pkt.putByte(7 << 4, HLEN_OFFSET); // set header length
+                pkt.putInt((OPT_NOP << 24) | (OPT_NOP << 16) | (OPT_SACK_PERMITTED << 8) | 2, MSS_OFFSET + 4);
+            } else {
+                pkt.shiftHeader(-24);
+                pkt.putByte(6 << 4, HLEN_OFFSET); // set header length
+            }
             pkt.putShort(0x0204, MSS_OFFSET);
 
             //
@@ -400,6 +503,16 @@ public final class TCP extends IP {
                 pkt.putShort(route_mss, 22);
             }
 
+        } else if (sackBlocks > 0) {
+            final int hlen = MIN_TCP_HEADER_SIZE + sackOptionLength(sackBlocks);
+            pkt.shiftHeader(-hlen);
+            pkt.putByte((hlen >> 2) << 4, HLEN_OFFSET); // set header length
+            pkt.putInt((OPT_NOP << 24) | (OPT_NOP << 16) | (OPT_SACK << 8) | (2 + 8 * sackBlocks), OPTIONS_OFFSET);
+            for (int i = 0; i < sackBlocks; i++) {
+                pkt.putInt(_sackEdges[2 * i], OPTIONS_OFFSET + 4 + 8 * i);
+                pkt.putInt(_sackEdges[2 * i + 1], OPTIONS_OFFSET + 8 + 8 * i);
+            }
+            tcpSackBlocksSent += sackBlocks;
         } else {
             pkt.shiftHeader(-20);
             pkt.putByte(5 << 4, HLEN_OFFSET); // set header length
@@ -419,12 +532,25 @@ public final class TCP extends IP {
 
         // Build the pseudo-header before computing checksum.
         pkt.putInt((IP.IPPROTO_TCP << 16) | length, -12);
-        pkt.putInt(IP.getLocalAddress(), -8);
+        pkt.putInt(_localIp != 0 ? _localIp : IP.getSourceAddress(_remoteIp), -8);
         pkt.putInt(_remoteIp, -4);
 
-        // compute packet checksum and stick it into the header
-        int cksum = pkt.cksum(-12, length + 12);
-        pkt.putShort(cksum, CKSUM_OFFSET);
+        if ((IP.getRouteFeatures(_remoteIp) & NetDevice.FEATURE_CSUM_OFFLOAD) != 0) {
+            // the device completes the checksum, given the pseudo-header sum in the checksum field
+            pkt.putShort(~pkt.cksum(-12, 12) & 0xFFFF, CKSUM_OFFSET);
+            pkt.setChecksumBlank(true);
+        } else {
+            // compute packet checksum and stick it into the header,
+            // using the sum of the data if it was computed when the data was copied in
+            final int dataSum = pkt.getDataSum();
+            int cksum;
+            if (dataSum == -1) {
+                cksum = pkt.cksum(-12, length + 12);
+            } else {
+                cksum = pkt.cksum(-12, 12 + ((pkt.getByte(HLEN_OFFSET) & 0xf0) >> 2), dataSum);
+            }
+            pkt.putShort(cksum, CKSUM_OFFSET);
+        }
 
         if (_debug) {
              thisdprint("output: flags:" + flagsToString(flags) + "; seq:" + seq + "; ack:" + toUnsigned(ack));
@@ -446,6 +572,7 @@ public final class TCP extends IP {
 
         tcpInSegs++;
 
+        TCPRecvQueue staged = null;
         try {
             TCP tcp = null;
             int src_port = 0;
@@ -453,19 +580,8 @@ public final class TCP extends IP {
 
             int length = pkt.dataLength();
 
-            // Compute the checksum for the pseudo-header and data before
-            // doing anything else. Create the pseudo header and do cksum().
-            pkt.putInt((IP.IPPROTO_TCP << 16) | length, -12);
-            if (pkt.cksum(-12, length + 12) != 0) {
-                if (_debug) {
-                    sdprint("bad checksum!");
-                }
-                tcpInErrs++;
-                return;
-            }
-
             // sanity check header length
-            int headerLength = (pkt.getByte(HLEN_OFFSET) & 0xf0) >> 2;
+            int headerLength = length < MIN_TCP_HEADER_SIZE ? 0 : (pkt.getByte(HLEN_OFFSET) & 0xf0) >> 2;
             if (headerLength < MIN_TCP_HEADER_SIZE || headerLength > length) {
                 if (_debug) {
                     sdprint("bad header length: " + headerLength);
@@ -477,6 +593,39 @@ public final class TCP extends IP {
             // get some fundamental fields from the header.
             src_port = pkt.getShort(SRCPORT_OFFSET);
             dst_port = pkt.getShort(DSTPORT_OFFSET);
+            // the destination address in the IP header
+            final int dst_ip = pkt.getInt(-4);
+
+            // find the connection object that belongs to this src/dest tuple.
+            tcp = find(dst_port, src_ip, src_port);
+
+            // Compute the checksum for the pseudo-header and data before
+            // doing anything else, unless the device has done so.
+            // Create the pseudo header and do cksum().
+            pkt.putInt((IP.IPPROTO_TCP << 16) | length, -12);
+            if (!pkt.isChecksumValidated()) {
+                int dataSum = -1;
+                if (tcp != null && length > headerLength) {
+                    // If this may be the next data expected, sum it as it is copied to the receive queue,
+                    // from where recvData will append it.
+                    synchronized (tcp) {
+                        if (tcp._recvQueue != null && pkt.getInt(SEQ_OFFSET) == tcp.rcv_nxt) {
+                            dataSum = tcp._recvQueue.stage(pkt, headerLength, length - headerLength);
+                            if (dataSum != -1) {
+                                staged = tcp._recvQueue;
+                            }
+                        }
+                    }
+                }
+                final int cksum = dataSum == -1 ? pkt.cksum(-12, length + 12) : pkt.cksum(-12, headerLength + 12, dataSum);
+                if (cksum != 0) {
+                    if (_debug) {
+                        sdprint("bad checksum!");
+                    }
+                    tcpInErrs++;
+                    return;
+                }
+            }
 
             inp_seq = pkt.getInt(SEQ_OFFSET);
             inp_ack = pkt.getInt(ACK_OFFSET);
@@ -485,6 +634,11 @@ public final class TCP extends IP {
 
             inp_len = length - headerLength;
 
+            inp_sack_ok = false;
+            if ((inp_flags & SYN) != 0 && headerLength > MIN_TCP_HEADER_SIZE) {
+                parseSynOptions(pkt, headerLength);
+            }
+
             // increment past TCP header, ignoring any options for now.
             pkt.shiftHeader(headerLength);
 
@@ -494,9 +648,6 @@ public final class TCP extends IP {
                                     "; wnd:" + inp_wnd + "; len:" + inp_len);
             }
 
-            // find the connection object that belongs to this src/dest tuple.
-            tcp = find(dst_port, src_ip, src_port);
-
             if (tcp == null) {
 
                 // There is no connection associated with this segment.
@@ -506,6 +657,7 @@ public final class TCP extends IP {
                 tcp = _scratchTCP;
 
                 synchronized (tcp) {
+                    tcp._localIp = dst_ip;
                     tcp._remoteIp = src_ip;
                     tcp._remotePort = src_port;
                     tcp._localPort = dst_port;
@@ -529,13 +681,15 @@ public final class TCP extends IP {
                         // it to zero afterwards (tcp is the listener connection).
                         tcp._remotePort = src_port;
                         tcp._remoteIp = src_ip;
+                        tcp._localIp = dst_ip;
                         try {
-                            tcp.doListen();
+                            tcp.doListen(pkt);
                         } catch (Exception ex) {
                             // finish setting up the connection state
                         }
                         tcp._remotePort = 0;
                         tcp._remoteIp = 0;
+                        tcp._localIp = 0;
                         break;
 
                     case SYN_SENT:
@@ -593,11 +747,48 @@ public final class TCP extends IP {
             ex.printStackTrace();
             // our callers don't really care
             return;
+        } finally {
+            // the packet may be reused for other data
+            if (staged != null) {
+                staged.unstage();
+            }
         }
     }
 
     // ----------------------------------------------------------------------
 
+    // Scan the options of a SYN segment. Only SACK-permitted is of interest.
+    private static void parseSynOptions(Packet pkt, int headerLength) {
+        int off = MIN_TCP_HEADER_SIZE;
+        while (off < headerLength) {
+            final int kind = pkt.getByte(off);
+            if (kind == OPT_EOL) {
+                break;
+            } else if (kind == OPT_NOP) {
+                off++;
+                continue;
+            }
+            if (off + 1 >= headerLength) {
+                break;
+            }
+            final int len = pkt.getByte(off + 1);
+            if (len < 2) {
+                break;
+            }
+            if (kind == OPT_SACK_PERMITTED) {
+                inp_sack_ok = true;
+            }
+            off += len;
+        }
+    }
+
+    private static int sackOptionLength(int sackBlocks) {
+        // two NOPs for alignment, kind, length, then the blocks
+        return 4 + 8 * sackBlocks;
+    }
+
+    // ----------------------------------------------------------------------
+
     // Transmit an RST segment in response to the current segment.
     private void outputRst() throws NetworkException {
 
@@ -634,9 +825,19 @@ public final class TCP extends IP {
     // Trim off segment data that falls before (duplicate) or
     // beyond our receive window.
     private boolean verifySeq(Packet pkt) throws NetworkException {
-        if (inp_seq > rcv_nxt) {
+        if (inp_seq - rcv_nxt > 0) {
             if (_debug) {
-                thisdprint("verifySeq: ignoring out of sequence");
+                thisdprint("verifySeq: out of sequence, expected " + toUnsigned(rcv_nxt));
+            }
+            if ((inp_flags & (SYN | RST)) == 0 && _reassemblySegments > 0) {
+                if (inp_len > 0 && _state == State.ESTABLISHED) {
+                    queueOutOfOrder(pkt);
+                }
+                // An immediate duplicate ACK tells the peer where the hole is,
+                // so that it can retransmit the missing data without waiting for a timeout.
+                // With reassembly disabled the segment is just ignored, as it always was.
+                send(ACK, _snd_max, rcv_nxt);
+                tcpDupAcksSent++;
             }
             return false;
         }
@@ -707,6 +908,24 @@ public final class TCP extends IP {
         return false;
     }
 
+    // Save the data of an out of sequence segment, trimmed to the receive window, in the reassembly queue.
+    private void queueOutOfOrder(Packet pkt) {
+        final int rightEdge = rcv_nxt + rcv_wnd;
+        int len = inp_len;
+        if (inp_seq - rightEdge >= 0) {
+            return;
+        }
+        if (inp_seq + len - rightEdge > 0) {
+            len = rightEdge - inp_seq;
+        }
+        if (_reassemblyQueue.insert(inp_seq, pkt, len)) {
+            tcpOutOfOrderSegs++;
+            tcpOutOfOrderBytes += len;
+        } else {
+            tcpOutOfOrderDrops++;
+        }
+    }
+
     // ----------------------------------------------------------------------
 
     // Initialize the timing of a segment for round-trip time calculations.
@@ -832,19 +1051,26 @@ public final class TCP extends IP {
     private void send(int flags, int seq, int ack) throws NetworkException {
 
         int len = _hdrLen;
+        int sackBlocks = 0;
         if ((flags & SYN) != 0) {
             len += 4; // add 4 for MSS option
+            if (_sackPermitted) {
+                len += 4; // and 4 for SACK-permitted
+            }
+        } else if (_sackPermitted && (flags & (ACK | RST)) == ACK && !_reassemblyQueue.isEmpty()) {
+            sackBlocks = _reassemblyQueue.sackBlocks(_sackEdges);
+            len += sackOptionLength(sackBlocks);
         }
 
         Packet pkt = Packet.getTx(_remoteIp, len, 0);
         if (pkt != null) {
-            output(pkt, flags, seq, ack);
+            outputSegment(pkt, flags, seq, ack, sackBlocks);
         }
     }
 
     // ----------------------------------------------------------------------
 
-    private void doListen() throws NetworkException {
+    private void doListen(Packet pkt) throws NetworkException {
 
         // ignore any RST packets
         if ((inp_flags & RST) != 0) {
@@ -852,7 +1078,9 @@ public final class TCP extends IP {
         }
 
         if ((inp_flags & ACK) != 0) {
-            outputRst();
+            if (!(_synCookies && (inp_flags & (SYN | FIN)) == 0 && acceptSynCookie(pkt))) {
+                outputRst();
+            }
             return;
         }
 
@@ -861,13 +1089,25 @@ public final class TCP extends IP {
             return;
         }
 
-        // Check if there is already a connection pending
-        // on the incoming connection queue.
-        if (_incomingConnection != null) {
-            // There is already a connection pending. Ignore this
-            // connection request for now (they will retransmit and
-            // hopefully then we will be ready for it).
-            thisdprint("Connection pending. Ignoring this");
+        // If the accept queue is full, the connection could not be accepted even if
+        // the handshake completed. Ignore the SYN; the peer will retransmit it.
+        if (_acceptQueueLength.get() >= _backlog) {
+            if (_debug) {
+                thisdprint("accept queue full, ignoring SYN");
+            }
+            tcpListenOverflows++;
+            return;
+        }
+
+        if (_synQueueLength.get() >= _backlog) {
+            if (_synCookies) {
+                sendSynCookie();
+            } else {
+                if (_debug) {
+                    thisdprint("SYN queue full, ignoring SYN");
+                }
+                tcpSynQueueDrops++;
+            }
             return;
         }
 
@@ -881,16 +1121,17 @@ public final class TCP extends IP {
             return;
         }
 
-        // insert the new incoming connection in our simple queue.
-        _incomingConnection = tcp;
+        // count the new connection in the SYN queue.
+        _synQueueLength.incrementAndGet();
         // Make a backpointer from the new connection to the listener
-        // so that when the new connection completes, the listener
-        // can be notified.
+        // so that when the new connection completes, it can be
+        // added to the accept queue.
         tcp._listener = this;
 
         // save the remote port number and address
         tcp._remotePort = _remotePort;
         tcp._remoteIp = _remoteIp;
+        tcp._localIp = _localIp;
         tcp._localPort = _localPort;
         inp_flags = inp_flags & ~SYN; // remove SYN and
         inp_seq++; // increment past it.
@@ -904,8 +1145,9 @@ public final class TCP extends IP {
         tcp._snd_max = tcp._iss + 1;
         tcp._snd_wnd = inp_wnd;
         tcp.rcv_wnd = RECEIVE_WINDOW;
+        tcp._sackPermitted = _sackEnabled && inp_sack_ok;
 
-        tcp.sendQueue = new TCPSendQueue(tcp, inp_wnd);
+        tcp.sendQueue = new TCPSendQueue(tcp, inp_wnd, tcp.tsoEnabled());
 
         tcp._state = State.SYN_RCVD;
         tcpPassiveOpens++;
@@ -918,6 +1160,138 @@ public final class TCP extends IP {
         TCP._retransmitTimer.scheduleTask(tcp.getRetransmitTask(), rtx_timeout);
     }
 
+    /*
+     * A SYN cookie is an initial sequence number from which the connection can be reconstructed when the final ACK
+     * of the handshake arrives, so that no state need be kept for it in the meantime. The top bits hold a coarse time
+     * counter and the rest a keyed hash of the connection identity, the peer's initial sequence number and the counter.
+     * Since the MSS we announce does not depend on the peer, it need not be encoded. Options, e.g., SACK-permitted,
+     * are not remembered, so are not used on such a connection.
+     */
+
+    private static final int SYNCOOKIE_COUNTER_SHIFT = 27;
+    private static final int SYNCOOKIE_HASH_MASK = (1 << SYNCOOKIE_COUNTER_SHIFT) - 1;
+    private static final int SYNCOOKIE_COUNTER_MASK = -1 >>> SYNCOOKIE_COUNTER_SHIFT;
+
+    // the time counter, truncated to the bits that are held in a cookie
+    private static int synCookieCounter() {
+        return (int) (System.currentTimeMillis() >>> SYNCOOKIE_TIME_SHIFT) & SYNCOOKIE_COUNTER_MASK;
+    }
+
+    private int synCookieHash(int peerIss, int counter) {
+        int h = _synCookieSecret;
+        h = mix(h ^ _remoteIp);
+        h = mix(h ^ ((_remotePort << 16) | _localPort));
+        h = mix(h ^ peerIss);
+        h = mix(h ^ counter);
+        return h & SYNCOOKIE_HASH_MASK;
+    }
+
+    private static int mix(int h) {
+        h *= 0xcc9e2d51;
+        h = (h << 15) | (h >>> 17);
+        h *= 0x1b873593;
+        return h ^ (h >>> 16);
+    }
+
+    // Answer the current SYN with a SYN-ACK whose sequence number is a cookie, without creating a connection.
+    private void sendSynCookie() throws NetworkException {
+        final int counter = synCookieCounter();
+        final int cookie = (counter << SYNCOOKIE_COUNTER_SHIFT) | synCookieHash(inp_seq, counter);
+        final TCP tcp = _scratchTCP;
+        synchronized (tcp) {
+            tcp._remoteIp = _remoteIp;
+            tcp._localIp = _localIp;
+            tcp._remotePort = _remotePort;
+            tcp._localPort = _localPort;
+            tcp.rcv_wnd = RECEIVE_WINDOW;
+            tcp._sackPermitted = false;
+            tcp.send(SYN | ACK, cookie, inp_seq + 1);
+        }
+        tcpSynCookiesSent++;
+    }
+
+    /**
+     * Check whether the current segment, an ACK to the listener, acknowledges a SYN cookie. If so, create the
+     * connection directly in the ESTABLISHED state, add it to the accept queue and process the rest of the segment.
+     *
+     * @return true if the segment carried a valid cookie
+     */
+    private boolean acceptSynCookie(Packet pkt) throws NetworkException {
+        final int cookie = inp_ack - 1;
+        final int peerIss = inp_seq - 1;
+        final int age = (synCookieCounter() - (cookie >>> SYNCOOKIE_COUNTER_SHIFT)) & SYNCOOKIE_COUNTER_MASK;
+        if (age >= SYNCOOKIE_MAX_AGE || (cookie & SYNCOOKIE_HASH_MASK) != synCookieHash(peerIss, cookie >>> SYNCOOKIE_COUNTER_SHIFT)) {
+            tcpSynCookiesFailed++;
+            return false;
+        }
+        tcpSynCookiesValid++;
+        if (_acceptQueueLength.get() >= _backlog) {
+            // Drop the ACK, the peer will retransmit.
+            tcpListenOverflows++;
+            return true;
+        }
+
+        final TCP tcp = get();
+        tcp._remotePort = _remotePort;
+        tcp._remoteIp = _remoteIp;
+        tcp._localIp = _localIp;
+        tcp._localPort = _localPort;
+        tcp._irs = peerIss;
+        tcp.rcv_nxt = inp_seq;
+        tcp._iss = cookie;
+        tcp._snd_una = inp_ack;
+        tcp._snd_max = inp_ack;
+        tcp._snd_wnd = inp_wnd;
+        tcp._snd_wl1 = inp_seq;
+        tcp._sndWl2 = inp_ack;
+        tcp.rcv_wnd = RECEIVE_WINDOW;
+        tcp.sendQueue = new TCPSendQueue(tcp, inp_wnd, tcp.tsoEnabled());
+        tcp._state = State.ESTABLISHED;
+        tcpPassiveOpens++;
+        addToConnections(tcp);
+        synchronized (tcp) {
+            // If the listener has been closed or its backlog filled in the meantime, the connection is not wanted.
+            if (!enqueueAccepted(tcp)) {
+                outputRst();
+                tcp.cleanup("Connection aborted");
+                return true;
+            }
+            tcp.doEstablished(pkt);
+        }
+        return true;
+    }
+
+    /**
+     * Add a newly established connection to this listener's accept queue, and wake any thread waiting to accept it.
+     *
+     * @return false if this listener is closed or its accept queue is full
+     */
+    private synchronized boolean enqueueAccepted(TCP tcp) {
+        if (_state != State.LISTEN || _acceptQueueLength.get() >= _backlog) {
+            return false;
+        }
+        _acceptQueueLength.incrementAndGet();
+        _acceptQueue.offer(tcp);
+        notifyAll();
+        return true;
+    }
+
+    private TCP pollAcceptQueue() {
+        final TCP tcp = _acceptQueue.poll();
+        if (tcp != null) {
+            _acceptQueueLength.decrementAndGet();
+        }
+        return tcp;
+    }
+
+    // Remove this connection, which is leaving the SYN_RCVD state, from its listener's SYN queue.
+    private void leaveSynQueue() {
+        if (_listener != null) {
+            _listener._synQueueLength.decrementAndGet();
+            _listener = null;
+        }
+    }
+
     private void doSynSent(Packet pkt) throws NetworkException {
 
         boolean got_ack = false;
@@ -957,13 +1331,14 @@ public final class TCP extends IP {
 
             rcv_nxt = inp_seq + 1;
             _irs = inp_seq;
+            _sackPermitted = _sackPermitted && inp_sack_ok;
 
             _snd_una = inp_ack;
             _snd_wnd = inp_wnd;
             _snd_wl1 = inp_seq;
             _sndWl2 = inp_ack;
 
-            sendQueue = new TCPSendQueue(this, _snd_wnd);
+            sendQueue = new TCPSendQueue(this, _snd_wnd, tsoEnabled());
 
             if (_snd_una > _iss) {
                 // our SYN has been ACKed
@@ -1028,6 +1403,16 @@ public final class TCP extends IP {
             return;
         }
 
+        // If the listener's accept queue is full, ignore the ACK and stay in SYN_RCVD.
+        // We will retransmit the SYN-ACK, by which time there may be room.
+        if (_listener != null && _listener._acceptQueueLength.get() >= _listener._backlog) {
+            if (_debug) {
+                thisdprint("SYN_RCVD accept queue full, ignoring ACK");
+            }
+            tcpListenOverflows++;
+            return;
+        }
+
         // update our notion of the sender's advertised window.
         _snd_wnd = inp_wnd;
         _snd_wl1 = inp_seq;
@@ -1040,12 +1425,18 @@ public final class TCP extends IP {
 
         _retransmitTimer.cancelTask();
 
-        // Tell any threads blocked on accept() or poll() that a new connection
-        // is available.
-        synchronized (_listener) {
-            _listener.notify();
+        if (_listener != null) {
+            final TCP listener = _listener;
+            leaveSynQueue(); // don't need listener after this point.
+            // Tell any threads blocked on accept() or poll() that a new connection
+            // is available. If the listener has been closed in the meantime, the
+            // connection is not wanted.
+            if (!listener.enqueueAccepted(this)) {
+                outputRst();
+                cleanup("Connection aborted");
+                return;
+            }
         }
-        _listener = null; // don't need listener after this point.
 
         // continue to do processing in the ESTABLISHED state.
         addToConnections(this);
@@ -1088,6 +1479,11 @@ public final class TCP extends IP {
             recvData(pkt);
         }
 
+        // The ACK may allow data held by Nagle's algorithm to be sent.
+        if (_unsent > 0) {
+            pushData(false);
+        }
+
         if ((inp_flags & FIN) != 0) {
 
             // advance rcv_nxt over the FIN and do a delayed
@@ -1124,6 +1520,10 @@ public final class TCP extends IP {
             return;
         }
 
+        if (_unsent > 0) {
+            pushData(false);
+        }
+
         if ((inp_flags & (URG | FIN)) != 0) {
             if (_debug)  {
                 thisdprint("CLOSE_WAIT ignoring " + flagsToString(inp_flags & (URG | FIN)));
@@ -1292,30 +1692,24 @@ public final class TCP extends IP {
 
         _reason = reason;
 
-        // If TCP was in LISTEN state, it might have received a
-        // connection that is still not accepted by the upper layer.
-        // Need to cleanup this connection too.
-        if (_state == State.LISTEN && _incomingConnection != null) {
-
-            // err("cleanup pending connection " +
-            // states[incomingConnection.state] + " port:" + local_port);
-
+        // If TCP was in LISTEN state, it might have received
+        // connections that are still not accepted by the upper layer.
+        // Need to cleanup these connections too.
+        if (_state == State.LISTEN) {
             // To cleanup pending incoming connections, the spec says
             // to send a FIN and go through the usual four way handshake.
             // We can't do that for pending connections in the SYN_RCVD
             // state because we don't have the logic to handle
             // SYN_RCVD --> FIN_WAIT_1 properly. (Can't reliably retransmit
-            // our SYN if it got lost.)
-            if (_incomingConnection._state == State.SYN_RCVD) {
-                // It would be nice to send RST here, but we don't know
-                // what ack or seq values to use. The peer will retransmit
-                // and then receive a RST.
-                _incomingConnection.cleanup("Connection closed");
-            } else {
+            // our SYN if it got lost.) Instead, those are reset if the handshake
+            // completes after we are closed, or else time out.
+            TCP tcp;
+            while ((tcp = pollAcceptQueue()) != null) {
                 // close the pending connection gracefully.
-                _incomingConnection.close(Endpoint.SHUT_RDWR);
+                tcp.close(Endpoint.SHUT_RDWR);
             }
-            _incomingConnection = null;
+        } else if (_state == State.SYN_RCVD) {
+            leaveSynQueue();
         }
 
         // Update some SNMP stats
@@ -1329,6 +1723,8 @@ public final class TCP extends IP {
 
         _retransmitTimer.cancelTask();
         _delayedAckTimer.cancelTask();
+        cancelCork();
+        _unsent = 0;
 
         if (sendQueue != null) {
             sendQueue.cleanup();
@@ -1336,6 +1732,7 @@ public final class TCP extends IP {
         if (_recvQueue != null) {
             _recvQueue.cleanup();
         }
+        _reassemblyQueue.cleanup();
 
         // make sure anyone blocked on read() or waitForConnection() gets woken up.
         notifyAll();
@@ -1474,6 +1871,7 @@ public final class TCP extends IP {
         // initialize the TCP state and send a SYN segment.
         _remotePort = p;
         _remoteIp = addr;
+        _localIp = IP.getSourceAddress(addr);
 
         _iss = chooseISS();
 
@@ -1481,6 +1879,7 @@ public final class TCP extends IP {
         _snd_max = _iss + 1;
         _snd_wnd = 0;
         rcv_wnd = RECEIVE_WINDOW;
+        _sackPermitted = _sackEnabled;
 
         _state = State.SYN_SENT;
         tcpActiveOpens++;
@@ -1529,7 +1928,8 @@ public final class TCP extends IP {
             return false;
         }
 
-        // send a FIN segment
+        // send any data still being held, then a FIN segment
+        flushData();
         send(FIN | ACK, _snd_max, rcv_nxt);
         rttStart(_snd_max);
 
@@ -1574,22 +1974,36 @@ public final class TCP extends IP {
         return b;
     }
 
-    // output bytes in the send queue between the two given sequence numbers
+    // true if the network device can segment (and checksum) large packets sent on this connection
+    private boolean tsoEnabled() {
+        return (IP.getRouteFeatures(_remoteIp) & TSO_FEATURES) == TSO_FEATURES;
+    }
+
+    // output bytes in the send queue between the two given sequence numbers,
+    // as packets of up to MAX_GSO_DATA bytes if the device will segment them.
     private void outputData(int from, int to) throws NetworkException {
 
         int numBytes = to - from;
         int snd_nxt = from;
+        final int features = IP.getRouteFeatures(_remoteIp);
+        final int maxData = (features & TSO_FEATURES) == TSO_FEATURES ? MAX_GSO_DATA : MAXSEGSIZE;
+        // unless the device completes the checksum, sum the data as it is copied into the packet
+        final boolean sum = (features & NetDevice.FEATURE_CSUM_OFFLOAD) == 0;
 
         while (numBytes > 0) {
 
-            int n = min(numBytes, MAXSEGSIZE);
+            int n = min(numBytes, maxData);
 
-            Packet pkt = sendQueue.getPacket(_remoteIp, snd_nxt - _snd_una, _hdrLen, n);
+            Packet pkt = sendQueue.getPacket(_remoteIp, snd_nxt - _snd_una, _hdrLen, n, sum);
             if (pkt == null) {
                 // No packets are available, so abort sending data for now.
                 // We will eventually retransmit.
                 return;
             }
+            if (n > MAXSEGSIZE) {
+                pkt.setGsoSize(MAXSEGSIZE);
+                tcpGsoSegs++;
+            }
 
             output(pkt, ACK | PSH, snd_nxt, rcv_nxt);
             rttStart(snd_nxt);
@@ -1599,6 +2013,81 @@ public final class TCP extends IP {
         }
     }
 
+    /**
+     * Transmit the unsent data in the send queue, except that a final partial segment may be held back. Nagle's
+     * algorithm holds it while any data that has been sent is unacknowledged, unless TCP_NODELAY is set; it is then
+     * sent when the ACK arrives. Otherwise, if {@code cork} is true and autocorking is enabled, it is held for up to
+     * {@link #_autocorkMsec}, so that small writes issued in quick succession are coalesced into full segments.
+     *
+     * @param cork true if called from {@link #write}
+     */
+    private void pushData(boolean cork) throws NetworkException {
+        int n = _unsent;
+        final int partial = n % MAXSEGSIZE;
+        if (partial != 0) {
+            if (!_noDelay && _snd_una != _snd_max) {
+                tcpNagleHolds++;
+                n -= partial;
+            } else if (cork && _autocorkMsec > 0) {
+                if (_corkTask == null) {
+                    _corkTask = new CorkTask(this);
+                    _corkTimer.schedule(_corkTask, _autocorkMsec);
+                    tcpAutocorks++;
+                }
+                n -= partial;
+            }
+        }
+        transmit(n);
+        if (_unsent == 0) {
+            cancelCork();
+        }
+    }
+
+    // Transmit all the unsent data, e.g., before sending a FIN.
+    private void flushData() throws NetworkException {
+        cancelCork();
+        transmit(_unsent);
+    }
+
+    // Transmit the first n bytes of unsent data.
+    private void transmit(int n) throws NetworkException {
+        if (n <= 0) {
+            return;
+        }
+        outputData(_snd_max, _snd_max + n);
+        tcpOutDataSegs += (n + MAXSEGSIZE - 1) / MAXSEGSIZE;
+        tcpOutDataBytes += n;
+
+        // start the retransmit timer if necessary.
+        _retransmitTimer.scheduleTask(getRetransmitTask(), rtx_timeout);
+
+        _snd_max += n;
+        _unsent -= n;
+    }
+
+    private void cancelCork() {
+        if (_corkTask != null) {
+            _corkTask.cancel();
+            _corkTask = null;
+        }
+    }
+
+    /**
+     * This is called (only) when the autocork timer goes off. Send the held partial segment, subject to Nagle's
+     * algorithm.
+     *
+     * @throws NetworkException
+     */
+    synchronized void corkExpired(CorkTask task) throws NetworkException {
+        if (_corkTask != task) {
+            return;
+        }
+        _corkTask = null;
+        if (_state == State.ESTABLISHED || _state == State.CLOSE_WAIT) {
+            pushData(false);
+        }
+    }
+
     /**
      * Write some data to the connection. Entry point, hence synchronized
      *
@@ -1625,12 +2114,9 @@ public final class TCP extends IP {
                 return bytesAppended;
             }
 
-            outputData(_snd_max, _snd_max + bytesAppended);
-
-            // start the retransmit timer if necessary.
-           _retransmitTimer.scheduleTask(getRetransmitTask(), rtx_timeout);
+            _unsent += bytesAppended;
+            pushData(true);
 
-            _snd_max += bytesAppended;
             off += bytesAppended;
             toDo -= bytesAppended;
         }
@@ -1647,6 +2133,16 @@ public final class TCP extends IP {
         rcv_nxt += inp_len; // advance next expected seq number.
         rcv_wnd -= inp_len; // decrement receive window size
 
+        // If this segment filled (part of) a hole, pass up the data that is now in sequence.
+        boolean filledHole = false;
+        if (!_reassemblyQueue.isEmpty()) {
+            final int reassembled = _reassemblyQueue.deliver(rcv_nxt, _recvQueue);
+            rcv_nxt += reassembled;
+            rcv_wnd -= reassembled;
+            tcpReassembledBytes += reassembled;
+            filledHole = true;
+        }
+
         if (rcv_wnd < MAXSEGSIZE) {
             _ack_after_read = true;
         }
@@ -1657,9 +2153,10 @@ public final class TCP extends IP {
 
         // Figure out if we need to ACK this segment or not. Various
         // specs say we should ACK every other segment in a stream of
-        // full size segments.
+        // full size segments. The ACK for a segment that fills a hole is
+        // not delayed, so that the peer learns of it as soon as possible.
         _ack_segment++;
-        if (_ack_segment >= ACK_SEGMENTS) {
+        if (filledHole || _ack_segment >= ACK_SEGMENTS) {
             send(ACK, _snd_max, rcv_nxt);
         } else {
            _delayedAckTimer.scheduleTask(getDelayedAckTask(), DELAYED_ACK_MSEC);
@@ -1751,9 +2248,7 @@ public final class TCP extends IP {
         if (_state == State.ESTABLISHED) {
             result = _recvQueue.bytesQueued > 0;
         } else if (_state == State.LISTEN) {
-            if (_incomingConnection != null) {
-                result = true;
-            }
+            result = !_acceptQueue.isEmpty();
         }
         return result;
     }
@@ -1772,7 +2267,7 @@ public final class TCP extends IP {
      * Set the state of a new connection to LISTEN. Entry point, hence synchronized
      *
      * @param count
-     *            currently ignored
+     *            the maximum length of the SYN and accept queues, or a default if not positive
      * @return true iff state was NEW and is now LISTEN
      */
     synchronized boolean listen(int count) {
@@ -1780,7 +2275,10 @@ public final class TCP extends IP {
             return false;
         }
 
-        _incomingConnection = null;
+        _backlog = count <= 0 ? DEFAULT_BACKLOG : min(count, MAX_BACKLOG);
+        _synQueueLength = new AtomicInteger();
+        _acceptQueue = new ConcurrentLinkedQueue<TCP>();
+        _acceptQueueLength = new AtomicInteger();
         _state = State.LISTEN;
 
         return true;
@@ -1795,32 +2293,37 @@ public final class TCP extends IP {
      * @throws InterruptedException
      * @throws InterruptedIOException
      */
-    synchronized TCP accept(int timeout) throws InterruptedException, InterruptedIOException {
-        if (_incomingConnection == null) {
-            if (!_blocking) {
+    TCP accept(int timeout) throws InterruptedException, InterruptedIOException {
+        // The common case of a connection being ready needs no lock.
+        final TCP t = _acceptQueue == null ? null : pollAcceptQueue();
+        if (t != null) {
+            return t;
+        }
+        synchronized (this) {
+            if (_state != State.LISTEN || !_blocking) {
                 return null;
             }
             final TCP tcp = this;
+            final TCP[] result = new TCP[1];
             final TimeLimitedProc timedProc = new TimeLimitedProc() {
 
                 @Override
                 protected int proc(long remaining) throws InterruptedException {
-                    tcp.wait(remaining);
-                    if (_incomingConnection != null || _state == State.CLOSED) {
+                    // another acceptor may take the connection we were notified about, so check first
+                    result[0] = pollAcceptQueue();
+                    if (result[0] != null || _state == State.CLOSED) {
                         return terminate(1);
                     }
+                    tcp.wait(remaining);
                     return 0;
                 }
             };
             timedProc.run(timeout);
-            if (_incomingConnection == null) {
+            if (result[0] == null) {
                 throw new InterruptedIOException("accept timeout");
             }
+            return result[0];
         }
-
-        TCP t = _incomingConnection;
-        _incomingConnection = null;
-        return t;
     }
 
     // simple method to find a connection with the given local port.
@@ -1908,8 +2411,21 @@ public final class TCP extends IP {
         return _remoteIp;
     }
 
-    void setNoDelay() {
-        // no-op as we don't currently implement Nagle's algorithm
+    /**
+     * Enable or disable Nagle's algorithm, which is enabled by default. Entry point, hence synchronized.
+     *
+     * @param on true to disable Nagle's algorithm, sending any data it is holding
+     * @throws NetworkException
+     */
+    synchronized void setNoDelay(boolean on) throws NetworkException {
+        _noDelay = on;
+        if (on && _unsent > 0 && (_state == State.ESTABLISHED || _state == State.CLOSE_WAIT)) {
+            pushData(false);
+        }
+    }
+
+    synchronized boolean getNoDelay() {
+        return _noDelay;
     }
 
 //    static TCP cache = null;
@@ -2019,8 +2535,8 @@ public final class TCP extends IP {
         if (_debugId == 0) {
             return "uninitialized";
         } else {
-            return "{" + _debugId + "; la:" + IPAddress.toString(IP.getLocalAddress()) + ":" + _localPort + "; ra:" + IPAddress.toString(_remoteIp) + ":" + _remotePort + "; swnd:" + _snd_wnd +
-                        "; rwnd:" + rcv_wnd + "; rbq:" + ((_recvQueue != null) ?_recvQueue.bytesQueued : null) + "; state " + _state  + "; ics:" + ((_incomingConnection != null) ? _incomingConnection._state : null) + "} ";
+            return "{" + _debugId + "; la:" + IPAddress.toString(_localIp) + ":" + _localPort + "; ra:" + IPAddress.toString(_remoteIp) + ":" + _remotePort + "; swnd:" + _snd_wnd +
+                        "; rwnd:" + rcv_wnd + "; rbq:" + ((_recvQueue != null) ?_recvQueue.bytesQueued : null) + "; oooq:" + _reassemblyQueue.bytesQueued + "; state " + _state  + ((_acceptQueue != null) ? "; synq:" + _synQueueLength + "; acceptq:" + _acceptQueueLength + "/" + _backlog : "") + "} ";
         }
     }
 
@@ -2102,6 +2618,26 @@ public final class TCP extends IP {
         }
     }
 
+    /**
+     * A {@link java.util.TimerTask} that ends an autocork period. A new instance is used for each period.
+     */
+    static class CorkTask extends TimerTask {
+        private final TCP _tcp;
+
+        CorkTask(TCP tcp) {
+            _tcp = tcp;
+        }
+
+        @Override
+        public void run() {
+            try {
+                _tcp.corkExpired(this);
+            } catch (NetworkException ex) {
+                return;
+            }
+        }
+    }
+
     /**
      * Configure the blocking state of this connection. Entry point, hence synchronized.
      *
@@ -2187,6 +2723,25 @@ public final class TCP extends IP {
     private static int tcpRetransSegs;
     private static int tcpInErrs;
     private static int tcpOutRsts;
+    // reassembly statistics, not part of the SNMP MIB
+    private static int tcpOutOfOrderSegs;    // out of order segments queued
+    private static long tcpOutOfOrderBytes;  // bytes in out of order segments queued
+    private static int tcpOutOfOrderDrops;   // out of order segments dropped because the queue was full
+    private static long tcpReassembledBytes; // queued bytes delivered when a hole was filled, i.e., not retransmitted
+    private static int tcpDupAcksSent;
+    private static int tcpSackBlocksSent;
+    // listen queue statistics, not part of the SNMP MIB
+    private static int tcpListenOverflows;  // SYNs or handshake ACKs ignored because the accept queue was full
+    private static int tcpSynQueueDrops;    // SYNs ignored because the SYN queue was full
+    private static int tcpSynCookiesSent;
+    private static int tcpSynCookiesValid;
+    private static int tcpSynCookiesFailed;
+
+    private static int tcpOutDataSegs;      // data segments sent, excluding retransmissions
+    private static long tcpOutDataBytes;    // data bytes sent, excluding retransmissions
+    private static int tcpNagleHolds;       // writes or ACKs after which Nagle's algorithm held a partial segment
+    private static int tcpAutocorks;        // autocork periods started
+    private static int tcpGsoSegs;          // packets larger than MAXSEGSIZE sent for segmentation by the device
 
     public static synchronized void report(java.io.PrintStream out) {
 
@@ -2199,6 +2754,13 @@ public final class TCP extends IP {
         for(TCP tcp:listenConnectionsMap.values()) {
             out.print(tcp.toString() + "\n");
         }
+        out.print("\nOut of order segments " + tcpOutOfOrderSegs + " (" + tcpOutOfOrderBytes + " bytes), dropped " + tcpOutOfOrderDrops +
+                        ", reassembled bytes " + tcpReassembledBytes + ", duplicate ACKs " + tcpDupAcksSent + ", SACK blocks " + tcpSackBlocksSent + "\n");
+        out.print("Listen overflows " + tcpListenOverflows + ", SYN queue drops " + tcpSynQueueDrops + ", SYN cookies sent " + tcpSynCookiesSent +
+                        ", valid " + tcpSynCookiesValid + ", failed " + tcpSynCookiesFailed + "\n");
+        out.print("Data segments sent " + tcpOutDataSegs + ", bytes " + tcpOutDataBytes +
+                        (tcpOutDataSegs > 0 ? " (" + tcpOutDataBytes / tcpOutDataSegs + " per segment)" : "") +
+                        ", Nagle holds " + tcpNagleHolds + ", autocorks " + tcpAutocorks + ", TSO packets " + tcpGsoSegs + "\n");
     }
 
     public static int getStatistic(int index) {
@@ -2253,7 +2815,7 @@ public final class TCP extends IP {
         Collection<TCP> connections = establishedConnectionsMap.values();
         connections.addAll(listenConnectionsMap.values());
         for (TCP tcp : connections) {
-            arr[i][0] = localIP;
+            arr[i][0] = tcp._localIp != 0 ? tcp._localIp : localIP;
             arr[i][1] = tcp._localPort;
             arr[i][2] = tcp._remoteIp;
             arr[i][3] = tcp._remotePort;
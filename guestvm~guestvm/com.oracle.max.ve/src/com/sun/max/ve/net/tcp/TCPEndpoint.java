@@ -222,8 +222,16 @@ public class TCPEndpoint implements Endpoint {
 
     }
 
-    public void setNoDelay() {
-        tcp.setNoDelay();
+    public void setNoDelay(boolean on) throws IOException {
+        try {
+            tcp.setNoDelay(on);
+        } catch (NetworkException e) {
+            throw new SocketException(e.getMessage());
+        }
+    }
+
+    public boolean getNoDelay() {
+        return tcp.getNoDelay();
     }
 
     public void configureBlocking(boolean blocking) {
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.net.tcp;
+
+/*
+ * There is no (additional) synchronization necessary in this class as all calls are made holding the
+ * lock on the associated TCP instance.
+ */
+
+import com.sun.max.ve.net.Packet;
+
+/**
+ * Holds data that arrived beyond the next expected sequence number, so that when the hole
+ * is filled it can be passed to the {@link TCPRecvQueue} rather than being retransmitted by the peer.
+ *
+ * Segments are kept in a list, sorted by sequence number, with overlaps trimmed on insertion. The TCP state machine
+ * only inserts data that lies within the receive window, so the queue is bounded by that window, and additionally
+ * by a maximum number of segments.
+ *
+ * @author Mick Jordan
+ *
+ */
+public class TCPReassemblyQueue {
+
+    /**
+     * The maximum number of SACK blocks generated, which is the number that fit in the TCP option space.
+     */
+    public static final int MAX_SACK_BLOCKS = 3;
+
+    private static class Segment {
+        final int seq;
+        final byte[] data;
+        Segment next;
+
+        Segment(int seq, int len) {
+            this.seq = seq;
+            this.data = new byte[len];
+        }
+
+        int end() {
+            return seq + data.length;
+        }
+    }
+
+    private final int maxSegments;
+    private Segment head;
+    private int segments;
+    int bytesQueued;
+
+    /**
+     * The sequence number of the most recently queued data, which must be reported in the first SACK block.
+     */
+    private int lastSeq;
+
+    public TCPReassemblyQueue(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    public boolean isEmpty() {
+        return head == null;
+    }
+
+    /**
+     * Queue the first {@code len} bytes of data in {@code pkt}, which start at sequence number {@code seq}.
+     * Data already in the queue is not replaced.
+     *
+     * @return false if the queue was full and the data was dropped
+     */
+    public boolean insert(int seq, Packet pkt, int len) {
+        int off = 0;
+        Segment prev = null;
+        Segment cur = head;
+        while (cur != null && seqLE(cur.seq, seq)) {
+            prev = cur;
+            cur = cur.next;
+        }
+        if (prev != null) {
+            final int overlap = prev.end() - seq;
+            if (overlap >= len) {
+                // nothing new
+                lastSeq = seq;
+                return true;
+            }
+            if (overlap > 0) {
+                off += overlap;
+                seq += overlap;
+                len -= overlap;
+            }
+        }
+        // discard any segments completely covered by the new data
+        final int end = seq + len;
+        while (cur != null && seqLE(cur.end(), end)) {
+            segments--;
+            bytesQueued -= cur.data.length;
+            cur = cur.next;
+        }
+        if (cur != null && seqGT(end, cur.seq)) {
+            len = cur.seq - seq;
+            if (len == 0) {
+                // the remaining data exactly fills the gap up to cur, which is already queued
+                lastSeq = seq;
+                return true;
+            }
+        }
+        if (segments >= maxSegments) {
+            if (prev == null) {
+                head = cur;
+            } else {
+                prev.next = cur;
+            }
+            return false;
+        }
+        final Segment segment = new Segment(seq, len);
+        pkt.getBytes(off, segment.data, 0, len);
+        segment.next = cur;
+        if (prev == null) {
+            head = segment;
+        } else {
+            prev.next = segment;
+        }
+        segments++;
+        bytesQueued += len;
+        lastSeq = seq;
+        return true;
+    }
+
+    /**
+     * Move the data that is now in sequence, given that the next expected sequence number is {@code rcvNxt},
+     * to {@code recvQueue}.
+     *
+     * @return the number of bytes moved
+     */
+    public int deliver(int rcvNxt, TCPRecvQueue recvQueue) {
+        int delivered = 0;
+        while (head != null && seqLE(head.seq, rcvNxt)) {
+            final Segment segment = head;
+            head = segment.next;
+            segments--;
+            bytesQueued -= segment.data.length;
+            final int skip = rcvNxt - segment.seq;
+            if (skip < segment.data.length) {
+                final int n = segment.data.length - skip;
+                recvQueue.append(segment.data, skip, n);
+                rcvNxt += n;
+                delivered += n;
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * Fill {@code edges} with the left and right edges of up to {@link #MAX_SACK_BLOCKS} blocks of contiguous
+     * queued data. As required by RFC 2018, the first block is the one containing the most recently queued data.
+     *
+     * @return the number of blocks
+     */
+    public int sackBlocks(int[] edges) {
+        int blocks = 0;
+        int first = -1;
+        Segment segment = head;
+        while (segment != null) {
+            final int left = segment.seq;
+            int right = segment.end();
+            boolean containsLast = seqLE(left, lastSeq) && seqLT(lastSeq, right);
+            segment = segment.next;
+            while (segment != null && segment.seq == right) {
+                containsLast |= seqLE(segment.seq, lastSeq) && seqLT(lastSeq, segment.end());
+                right = segment.end();
+                segment = segment.next;
+            }
+            if (blocks < MAX_SACK_BLOCKS || containsLast) {
+                // when out of space, the block containing the latest data replaces the last one
+                final int index = blocks < MAX_SACK_BLOCKS ? blocks : MAX_SACK_BLOCKS - 1;
+                edges[2 * index] = left;
+                edges[2 * index + 1] = right;
+                if (containsLast) {
+                    first = index;
+                }
+                if (blocks < MAX_SACK_BLOCKS) {
+                    blocks++;
+                }
+            }
+        }
+        if (first > 0) {
+            final int left = edges[2 * first];
+            final int right = edges[2 * first + 1];
+            System.arraycopy(edges, 0, edges, 2, 2 * first);
+            edges[0] = left;
+            edges[1] = right;
+        }
+        return blocks;
+    }
+
+    void cleanup() {
+        head = null;
+        segments = 0;
+        bytesQueued = 0;
+    }
+
+    private static boolean seqLT(int a, int b) {
+        return a - b < 0;
+    }
+
+    private static boolean seqLE(int a, int b) {
+        return a - b <= 0;
+    }
+
+    private static boolean seqGT(int a, int b) {
+        return a - b > 0;
+    }
+}
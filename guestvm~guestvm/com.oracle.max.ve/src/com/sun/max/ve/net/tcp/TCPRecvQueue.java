@@ -54,6 +54,11 @@ public class TCPRecvQueue {
 
     private byte buf[];
 
+    // data copied, but not yet appended, by stage
+    private Packet stagedPacket;
+    private int stagedOffset;
+    private int stagedLength;
+
     private static boolean checked;
 
     public TCPRecvQueue(int size) {
@@ -64,10 +69,54 @@ public class TCPRecvQueue {
         buf = new byte[size];
     }
 
+    /**
+     * Copy {@code len} bytes of data at {@code off} in {@code pkt} into the free space after the queued data,
+     * without queueing it, returning the sum of the data as {@link Packet#ocsum} would. This allows the checksum of an
+     * incoming segment to be verified as its data is copied. A subsequent {@link #append(Packet)} of the same data
+     * then need not copy it again.
+     *
+     * @return the sum, or -1 if the data does not fit
+     */
+    int stage(Packet pkt, int off, int len) {
+        if (buf == null || len > buf.length - bytesQueued) {
+            return -1;
+        }
+        int n = len;
+        if (n > buf.length - end) {
+            n = buf.length - end;
+        }
+        int sum = pkt.getBytesAndSum(off, buf, end, n);
+        if (len > n) {
+            sum = Packet.ocsumAppend(sum, n, pkt.getBytesAndSum(off + n, buf, 0, len - n));
+        }
+        stagedPacket = pkt;
+        stagedOffset = pkt.getHeaderOffset() + off;
+        stagedLength = len;
+        return sum;
+    }
+
+    /**
+     * Discard any staged data, which must be done before the packet is reused.
+     */
+    void unstage() {
+        stagedPacket = null;
+    }
+
     void append(Packet pkt) {
 
         int len = pkt.dataLength();
 
+        if (pkt == stagedPacket && pkt.getHeaderOffset() == stagedOffset && len == stagedLength) {
+            // already copied by stage
+            stagedPacket = null;
+            end += len;
+            if (end >= buf.length) {
+                end -= buf.length;
+            }
+            bytesQueued += len;
+            return;
+        }
+
         //dprint("append " + len + " bytes to queue of " + bytesQueued);
 
         int n = len;
@@ -90,7 +139,29 @@ public class TCPRecvQueue {
         bytesQueued += len;
     }
 
-    int read(byte dst[], int dst_off, int len) {
+    void append(byte src[], int src_off, int len) {
+
+        int n = len;
+        if (n > buf.length - end) {
+            n = buf.length - end;
+        }
+
+        System.arraycopy(src, src_off, buf, end, n);
+
+        if (len > n) {
+            end = len - n;
+            System.arraycopy(src, src_off + n, buf, 0, end);
+        } else {
+            end += len;
+            if (end >= buf.length) {
+                end = 0;
+            }
+        }
+
+        bytesQueued += len;
+    }
+
+    public int read(byte dst[], int dst_off, int len) {
 
         if (len > bytesQueued) {
             len = bytesQueued;
@@ -57,14 +57,18 @@ public class TCPSendQueue {
     private byte buf[];         // data storage area
 
     // Since we're not interested in high throughput write performance,
-    // we can make the send window really small and save memory.
+    // we can make the send window really small and save memory, unless
+    // the network device segments large packets, when the cost of sending
+    // a window's worth of data is small.
     private static final int maxBufSize = 8760;
+    private static final int maxOffloadBufSize = 65535;
 
 
-    TCPSendQueue(TCP tcp, int size) {
+    TCPSendQueue(TCP tcp, int size, boolean offload) {
 
-        if (size > maxBufSize) {
-            size = maxBufSize;
+        final int max = offload ? maxOffloadBufSize : maxBufSize;
+        if (size > max) {
+            size = max;
         }
 
         this.tcp = tcp;
@@ -146,7 +150,9 @@ public class TCPSendQueue {
         if (TCP._debug) TCP.tcpdprint(tcp, "drop() bytesFree:" + bytesFree + " start:" + start + " end:" + end);
     }
 
-    Packet getPacket(int dest_ip, int pos, int hlen, int dlen) {
+    // Returns a packet holding dlen bytes of data from pos. If sum is true the sum of the data
+    // is computed as it is copied, for the checksum, see Packet.getDataSum.
+    Packet getPacket(int dest_ip, int pos, int hlen, int dlen, boolean sum) {
 
         if (TCP._debug) TCP.tcpdprint(tcp, "getPacket() pos " + pos);
 
@@ -167,10 +173,18 @@ public class TCPSendQueue {
         }
 
         assert n >= 0;
-        pkt.putBytes(buf, pos, 0, n);
+        if (sum) {
+            int dataSum = pkt.putBytesAndSum(buf, pos, 0, n);
+            if (n < dlen) {
+                dataSum = Packet.ocsumAppend(dataSum, n, pkt.putBytesAndSum(buf, 0, n, dlen - n));
+            }
+            pkt.setDataSum(dataSum);
+        } else {
+            pkt.putBytes(buf, pos, 0, n);
 
-        if (n < dlen) {
-            pkt.putBytes(buf, 0, n, dlen - n);
+            if (n < dlen) {
+                pkt.putBytes(buf, 0, n, dlen - n);
+            }
         }
 
         return pkt;
@@ -109,7 +109,7 @@ public class UDP extends IP {
         // must create the UDP psuedo header.  Use the space
         // reserved for the IP header for this.
         pkt.putInt((IP.IPPROTO_UDP << 16) | length, -12);
-        pkt.putInt(IP.getLocalAddress(), -8);   // put local IP addr
+        pkt.putInt(IP.getSourceAddress(dst_ip), -8);   // put local IP addr
         pkt.putInt(dst_ip, -4);                 // put dest IP addr
 
         int cksum = pkt.cksum(-12, length+12);
@@ -164,7 +164,7 @@ public class UDP extends IP {
         // rest of the header and computing the checksum.
         UpcallLink link = find(dest_port);
         if (link == null) {
-            if (dst_ip == IP.getLocalAddress()) {
+            if (IP.isLocalAddress(dst_ip)) {
                 pkt.shiftHeader(-IP.MIN_HEADER_LEN);
                 try {
                     ICMP.sendICMPDstUnreachable(src_ip, ICMP.PORT_UNREACHABLE, pkt);
@@ -190,9 +190,9 @@ public class UDP extends IP {
         }
 
         // See if we need to compute the UDP checksum.  If the supplied
-        // checksum is 0, we don't need to compute it.
+        // checksum is 0, or the device has validated it, we don't need to compute it.
         int cksum = pkt.getShort(CKSUM_OFFSET);
-        if (cksum != 0) {
+        if (cksum != 0 && !pkt.isChecksumValidated()) {
 
             // Compute the UDP checksum.  To do this we need to create
             // a 12 byte UDP pseudo header.
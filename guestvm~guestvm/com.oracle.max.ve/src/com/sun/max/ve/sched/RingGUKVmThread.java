@@ -23,21 +23,23 @@
 package com.sun.max.ve.sched;
 
 import com.sun.max.annotate.INLINE;
+import com.sun.max.ve.sched.priority.BitmapPriorityRunQueueEntry;
 import com.sun.max.ve.sched.priority.PriorityRingRunQueueEntry;
 
 /**
- * A subclass of GUKVmThread that implements PriorityRingRunQueueEntry and can therefore be inserted into a RingRunQueue
- * or a PriorityRingRunQueue.
+ * A subclass of GUKVmThread that implements PriorityRingRunQueueEntry and can therefore be inserted into a RingRunQueue,
+ * a PriorityRingRunQueue or a BitmapPriorityRunQueue.
  *
  *
  * @author Harald Roeck
  * @author Mick Jordan
  *
  */
-public class RingGUKVmThread extends GUKVmThread implements PriorityRingRunQueueEntry {
+public class RingGUKVmThread extends GUKVmThread implements BitmapPriorityRunQueueEntry {
 
     private RingRunQueueEntry _next;
     private RingRunQueueEntry _prev;
+    private int _level;
 
     public RingGUKVmThread() {
         _next = this;
@@ -68,6 +70,18 @@ public class RingGUKVmThread extends GUKVmThread implements PriorityRingRunQueue
         this._prev = prev;
     }
 
+    @INLINE
+    @Override
+    public final int getLevel() {
+        return _level;
+    }
+
+    @INLINE
+    @Override
+    public final void setLevel(int level) {
+        _level = level;
+    }
+
     public int getPriority() {
         return javaThread().getPriority();
     }
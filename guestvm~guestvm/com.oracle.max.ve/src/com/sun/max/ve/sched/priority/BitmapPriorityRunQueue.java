@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.sched.priority;
+
+import java.util.*;
+
+import com.sun.max.ve.sched.RingRunQueueEntry;
+import com.sun.max.ve.sched.RunQueue;
+
+/**
+ * A priority run queue in which every operation is O(1).
+ * Each priority level is a ring of entries, as in {@link com.sun.max.ve.sched.RingRunQueue}, and a bitmap
+ * records the non-empty levels, so the highest priority level is found with a single bit scan rather than
+ * by searching the levels as {@link PriorityRingRunQueue} does. The size is maintained in a counter and, since
+ * each entry records the level it was queued at, removal needs no search either.
+ *
+ * There are at most 32 levels.
+ *
+ * @author Mick Jordan
+ *
+ * @param <T>
+ */
+
+public class BitmapPriorityRunQueue<T extends BitmapPriorityRunQueueEntry> extends RunQueue<T> {
+
+    private static final int MAX_LEVELS = 32;
+
+    private final int _min;
+    private final int _max;
+    private RingRunQueueEntry[] _heads; // head of each level
+    private int _bitmap;                // bit n set iff level n is non-empty
+    private int _entries;               // total number of entries
+
+    public BitmapPriorityRunQueue(int min, int max) {
+        assert max - min < MAX_LEVELS;
+        _min = min;
+        _max = max;
+    }
+
+    @Override
+    public void buildtimeInitialize() {
+        _heads = new RingRunQueueEntry[_max - _min + 1];
+    }
+
+    /**
+     * The highest non-empty level in a non-zero bitmap.
+     */
+    private static int topLevel(int bitmap) {
+        return 31 - Integer.numberOfLeadingZeros(bitmap);
+    }
+
+    @Override
+    public void insert(T entry) {
+        int p = entry.getPriority();
+        if (p < _min) {
+            p = _min;
+        } else if (p > _max) {
+            p = _max;
+        }
+        final int level = p - _min;
+        entry.setLevel(level);
+        final RingRunQueueEntry head = _heads[level];
+        if (head == null) {
+            _heads[level] = entry;
+            entry.setNext(entry);
+            entry.setPrev(entry);
+            _bitmap |= 1 << level;
+        } else {
+            final RingRunQueueEntry last = head.getPrev();
+            entry.setPrev(last);
+            entry.setNext(head);
+            last.setNext(entry);
+            head.setPrev(entry);
+        }
+        _entries++;
+    }
+
+    @Override
+    public void remove(T entry) {
+        final int level = entry.getLevel();
+        final RingRunQueueEntry next = entry.getNext();
+        if (next == entry) {
+            _heads[level] = null;
+            _bitmap &= ~(1 << level);
+        } else {
+            if (_heads[level] == entry) {
+                _heads[level] = next;
+            }
+            next.setPrev(entry.getPrev());
+            entry.getPrev().setNext(next);
+            entry.setNext(entry);
+            entry.setPrev(entry);
+        }
+        _entries--;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T head() {
+        if (_bitmap == 0) {
+            return null;
+        }
+        return (T) _heads[topLevel(_bitmap)];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T next() {
+        // this spans priorities
+        if (_bitmap == 0) {
+            return null;
+        }
+        final int level = topLevel(_bitmap);
+        final RingRunQueueEntry head = _heads[level];
+        final RingRunQueueEntry next = head.getNext();
+        if (next != head) {
+            return (T) next;
+        }
+        final int lower = _bitmap & ~(1 << level);
+        if (lower == 0) {
+            return null;
+        }
+        return (T) _heads[topLevel(lower)];
+    }
+
+    @Override
+    public void moveHeadToEnd() {
+        // only moves entries in the same priority level
+        if (_bitmap != 0) {
+            final int level = topLevel(_bitmap);
+            _heads[level] = _heads[level].getNext();
+        }
+    }
+
+    @Override
+    public int size() {
+        return _entries;
+    }
+
+    @Override
+    public boolean empty() {
+        return _entries == 0;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new QIterator();
+    }
+
+    class QIterator implements Iterator<T> {
+        private RingRunQueueEntry _next;
+        private int _levels; // levels not yet visited
+        private int _level;
+
+        QIterator() {
+            _levels = _bitmap;
+            nextLevel();
+        }
+
+        private void nextLevel() {
+            if (_levels == 0) {
+                _next = null;
+            } else {
+                _level = topLevel(_levels);
+                _levels &= ~(1 << _level);
+                _next = _heads[_level];
+            }
+        }
+
+        public boolean hasNext() {
+            return _next != null;
+        }
+
+        public T next() {
+            @SuppressWarnings("unchecked")
+            final T result = (T) _next;
+            _next = _next.getNext();
+            if (_next == _heads[_level]) {
+                // exhausted this level, look lower
+                nextLevel();
+            }
+            return result;
+        }
+
+        public void remove() {
+
+        }
+    }
+
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.sched.steal;
+
+import com.sun.max.annotate.*;
+import com.sun.max.*;
+import com.sun.max.unsafe.*;
+import com.sun.max.ve.guk.*;
+import com.sun.max.ve.sched.*;
+import com.sun.max.vm.*;
+import com.sun.max.vm.thread.*;
+
+import static com.sun.max.ve.guk.GUKTrace.*;
+
+/**
+ * A Java thread scheduler with per-CPU run queues and work stealing, as an alternative to
+ * the global rebalancing of the standard scheduler.
+ *
+ * Each CPU schedules round-robin from its own run queue, with the currently running Java thread,
+ * if any, at the head of the queue, as in the standard scheduler. There is no global operation.
+ * Instead, a CPU that finds its queue empty when it schedules steals half of the waiting threads
+ * (up to {@link #MAX_STEAL}) of the most loaded CPU. This holds at most two queue locks, which are
+ * always taken in CPU order, so stealing cannot deadlock with another stealer.
+ *
+ * The size of each queue is published in {@link #_load}, which is written with the queue lock held but
+ * read without it, so that picking a CPU for a new thread, choosing a victim, and the idle loop's
+ * {@link #runnableUpcall(int) runnable} check need no locks.
+ *
+ * A woken thread returns to the CPU it last ran on, for cache affinity, unless that CPU already has
+ * work and another CPU is idle, in which case it moves there. A thread is only ever moved when
+ * it is not running.
+ *
+ * Per-CPU statistics are kept for the scheduler benchmark.
+ *
+ * @author Mick Jordan
+ */
+
+public final class WorkStealingScheduler extends GUKUpcallHandler {
+    /**
+     * Maximum number of threads moved by one steal.
+     */
+    private static final int MAX_STEAL = 16;
+
+    private final RunQueue<GUKVmThread>[] _ready; // ready queue
+    private final GUKVmThread[] _current; // cache of currently running Java thread
+    /**
+     * Size of each ready queue, written with the queue lock held.
+     */
+    private final int[] _load;
+    /**
+     * Per-CPU buffer for threads in transit during a steal, to avoid allocation.
+     */
+    private final GUKVmThread[][] _stealBuffer;
+
+    /*
+     * Statistics, indexed by the CPU that did the operation.
+     */
+    private final long[] _schedules;
+    private final long[] _steals;
+    private final long[] _stolen;
+    private final long[] _affineWakes;
+    private final long[] _movedWakes;
+
+    /**
+     * N.B. This is called during image build time, at which point we do not know exactly how many CPUs will be available at run time.
+     */
+    @HOSTED_ONLY
+    WorkStealingScheduler() {
+        _ready = Utils.cast(new RunQueue[MAX_CPU]);
+        _current = new GUKVmThread[MAX_CPU];
+        _load = new int[MAX_CPU];
+        _stealBuffer = new GUKVmThread[MAX_CPU][MAX_STEAL];
+        _schedules = new long[MAX_CPU];
+        _steals = new long[MAX_CPU];
+        _stolen = new long[MAX_CPU];
+        _affineWakes = new long[MAX_CPU];
+        _movedWakes = new long[MAX_CPU];
+        for (int cpu = 0; cpu < MAX_CPU; cpu++) {
+            _ready[cpu] = RunQueueFactory.getInstance().createRunQueue();
+        }
+    }
+
+    /**
+     * Called at run time when we know how many CPUs we actually have.
+     */
+    @Override
+    public void initialize(MaxineVM.Phase phase) {
+        _numCpus = GUKScheduler.numCpus();
+        for (int cpu = 0; cpu < _numCpus; cpu++) {
+            _ready[cpu].runtimeInitialize();
+        }
+        super.initialize(phase);
+    }
+
+    @Override
+    public void starting() {
+    }
+
+    private static final byte[] BK = "BK".getBytes();
+    private static final byte[] WK = "WK".getBytes();
+
+    @Override
+    public void wake(GUKVmThread thread) {
+        if (GUKTrace.getTraceState(Name.SCHED)) {
+            GUKTrace.print1L(WK, thread.nativeId());
+        }
+        // the waking cpu is the one running the current thread, which may differ from the cpu of the thread being woken
+        doWake(thread, GUKVmThread.current().getCpu());
+    }
+
+    @Override
+    public void block(GUKVmThread thread) {
+        if (GUKTrace.getTraceState(Name.SCHED)) {
+            GUKTrace.print1L(BK, thread.nativeId());
+        }
+        doBlock(thread);
+    }
+
+    @Override
+    public Word scheduleUpcall(int cpu) {
+        Word retval = Word.zero();
+        _schedules[cpu]++;
+
+        final RunQueue<GUKVmThread> ready = _ready[cpu];
+        ready.lock();
+        final GUKVmThread current = getCurrent(cpu);
+
+        if (current != null && ready.size() == 1) {
+            // If current is the only thread runnable on this cpu, then no change
+            retval = current.nativeThread();
+        } else {
+            if (_numCpus > 1 && ready.empty()) {
+                // nothing of our own, so there is no current thread to expose if steal drops our lock
+                steal(cpu);
+            }
+            deschedCurrent(cpu);
+            final GUKVmThread head = ready.head();
+            if (head != null) {
+                head.setRunning(true);
+                retval = head.nativeThread();
+                setCurrent(head, cpu);
+            }
+        }
+        ready.unlock();
+        return retval;
+    }
+
+    @Override
+    public void descheduleUpcall(int cpu) {
+        final RunQueue<GUKVmThread> ready = _ready[cpu];
+        ready.lock();
+        deschedCurrent(cpu);
+        setCurrent(null, cpu);
+        ready.unlock();
+    }
+
+    private static final byte[] CPU_MISMATCH = "Attach CPU differs from assigned CPU".getBytes();
+
+    @Override
+    public void attachUpcall(int id, int cpu, int xcpu) {
+        final GUKVmThread sthread = (GUKVmThread) VmThreadMap.ACTIVE.getVmThreadForID(id);
+        sassert(cpu == xcpu, CPU_MISMATCH);
+        final RunQueue<GUKVmThread> ready = _ready[cpu];
+        ready.lock();
+        deschedCurrent(cpu);
+        sthread.setCpu(cpu);
+        sthread.setRunning(true);
+        ready.insert(sthread);
+        setCurrent(sthread, cpu);
+        _load[cpu] = ready.size();
+        ready.unlock();
+    }
+
+    @Override
+    public void detachUpcall(int id, int xcpu) {
+        final GUKVmThread sthread = getCurrent(xcpu);
+        final int cpu = sthread.getCpu();
+        sassert(cpu == xcpu, CPU_MISMATCH);
+        final RunQueue<GUKVmThread> ready = _ready[cpu];
+        ready.lock();
+        ready.remove(sthread);
+        setCurrent(null, cpu);
+        _load[cpu] = ready.size();
+        ready.unlock();
+    }
+
+    @Override
+    public void blockUpcall(int id, int xcpu) {
+        doBlock((GUKVmThread) VmThreadMap.ACTIVE.getVmThreadForID(id));
+    }
+
+    @Override
+    public void wakeUpcall(int id, int xcpu) {
+        doWake((GUKVmThread) VmThreadMap.ACTIVE.getVmThreadForID(id), xcpu);
+    }
+
+    /**
+     * Pick a cpu on which to run a newly created thread: a sleeping CPU if there is one, else
+     * the least loaded CPU. The loads are read without locking, so this is an approximation,
+     * which stealing will correct.
+     * @return cpu to be used
+     */
+    @Override
+    public int pickCpuUpcall() {
+        if (_numCpus == 1) {
+            return 0;
+        }
+        int scpu = 0;
+        int minLoad = Integer.MAX_VALUE;
+        for (int cpu = 0; cpu < _numCpus; cpu++) {
+            if (GUKScheduler.cpuState(cpu) == CpuState.SLEEPING.ordinal()) {
+                return cpu;
+            }
+            final int load = _load[cpu];
+            if (load < minLoad) {
+                minLoad = load;
+                scpu = cpu;
+            }
+        }
+        return scpu;
+    }
+
+    /**
+     * Any runnable threads for given cpu, either its own or ones it could steal?
+     * @param cpu
+     * @return 1 if runnable threads, 0 otherwise
+     */
+    @Override
+    public int runnableUpcall(int cpu) {
+        if (!_ready[cpu].lockedEmpty()) {
+            return 1;
+        }
+        return _numCpus > 1 && findVictim(cpu) >= 0 ? 1 : 0;
+    }
+
+    /*
+     * Statistics
+     */
+
+    public int numCpus() {
+        return _numCpus;
+    }
+
+    /**
+     * The number of threads queued on the given cpu, including the running thread.
+     */
+    public int getLoad(int cpu) {
+        return _load[cpu];
+    }
+
+    /**
+     * The number of schedule upcalls on the given cpu.
+     */
+    public long getSchedules(int cpu) {
+        return _schedules[cpu];
+    }
+
+    /**
+     * The number of successful steals by the given cpu.
+     */
+    public long getSteals(int cpu) {
+        return _steals[cpu];
+    }
+
+    /**
+     * The number of threads stolen by the given cpu.
+     */
+    public long getStolen(int cpu) {
+        return _stolen[cpu];
+    }
+
+    /**
+     * The number of wakes on the given cpu that left the thread on its previous cpu.
+     */
+    public long getAffineWakes(int cpu) {
+        return _affineWakes[cpu];
+    }
+
+    /**
+     * The number of wakes on the given cpu that moved the thread to an idle cpu.
+     */
+    public long getMovedWakes(int cpu) {
+        return _movedWakes[cpu];
+    }
+
+    /*
+     * Support methods
+     */
+
+    @INLINE
+    private static void sassert(boolean condition, byte[] msg) {
+        if (!condition) {
+            GUK.crash(msg);
+        }
+    }
+
+    /**
+     * Return the Java thread that is currently executing on the given cpu.
+     * See the corresponding comment in the standard scheduler.
+     *
+     * @param cpu
+     * @return
+     */
+    @INLINE
+    private GUKVmThread getCurrent(int cpu) {
+        return _current[cpu];
+    }
+
+    @INLINE
+    private void setCurrent(GUKVmThread thread, int cpu) {
+        _current[cpu] = thread;
+    }
+
+    /**
+     * Deschedule the currently running thread on given cpu
+     * and move it to the end of the run queue.
+     * Caller must hold lock.
+     *
+     * @param cpu
+     */
+    @INLINE
+    private void deschedCurrent(int cpu) {
+        final GUKVmThread current = getCurrent(cpu);
+        if (current != null) {
+            current.setRunning(false);
+            _ready[cpu].moveHeadToEnd();
+        }
+    }
+
+    /**
+     * Locks the ready queue of the cpu that the thread is assigned to. Since a steal may change
+     * the assignment until that lock is held, the assignment is checked again once it is.
+     * @return the cpu whose queue is locked
+     */
+    private int lockThreadCpu(GUKVmThread thread) {
+        while (true) {
+            final int cpu = thread.getCpu();
+            final RunQueue<GUKVmThread> ready = _ready[cpu];
+            ready.lock();
+            if (thread.getCpu() == cpu) {
+                return cpu;
+            }
+            ready.unlock();
+        }
+    }
+
+    private void doBlock(GUKVmThread thread) {
+        final int cpu = lockThreadCpu(thread);
+        final RunQueue<GUKVmThread> ready = _ready[cpu];
+        ready.remove(thread);
+        if (getCurrent(cpu) == thread) {
+            setCurrent(null, cpu);
+        }
+        _load[cpu] = ready.size();
+        ready.unlock();
+    }
+
+    /**
+     * Make a thread runnable, choosing its cpu. The thread is blocked, so it is in no queue and
+     * may be moved provided that it is not still running, i.e., has blocked but not yet switched out.
+     *
+     * @param thread
+     * @param xcpu the cpu on which the call is executing
+     */
+    private void doWake(GUKVmThread thread, int xcpu) {
+        final int cpu = thread.getCpu();
+        if (_numCpus > 1 && _load[cpu] > 0 && !thread.isRunning()) {
+            final int idleCpu = findIdleCpu(cpu, xcpu);
+            if (idleCpu >= 0) {
+                // the ukernel kicks the thread's cpu after the upcall
+                thread.setCpu(idleCpu);
+                _movedWakes[xcpu]++;
+            } else {
+                _affineWakes[xcpu]++;
+            }
+        } else {
+            _affineWakes[xcpu]++;
+        }
+        final int tcpu = lockThreadCpu(thread);
+        final RunQueue<GUKVmThread> ready = _ready[tcpu];
+        ready.insert(thread);
+        _load[tcpu] = ready.size();
+        ready.unlock();
+    }
+
+    /**
+     * Find an idle cpu other than {@code cpu}, preferring the waker's cpu.
+     * @return idle cpu or -1 if none
+     */
+    private int findIdleCpu(int cpu, int xcpu) {
+        if (xcpu != cpu && _load[xcpu] == 0) {
+            return xcpu;
+        }
+        for (int i = 1; i < _numCpus; i++) {
+            int icpu = cpu + i;
+            if (icpu >= _numCpus) {
+                icpu -= _numCpus;
+            }
+            if (_load[icpu] == 0) {
+                return icpu;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the cpu with the most waiting threads, if any has at least one thread waiting behind its head.
+     * @return victim cpu or -1
+     */
+    private int findVictim(int cpu) {
+        int victim = -1;
+        int maxLoad = 1;
+        for (int vcpu = 0; vcpu < _numCpus; vcpu++) {
+            final int load = _load[vcpu];
+            if (vcpu != cpu && load > maxLoad) {
+                maxLoad = load;
+                victim = vcpu;
+            }
+        }
+        return victim;
+    }
+
+    /*
+     * Thread stealing
+     */
+    private static final byte[] JST = "JST".getBytes();
+
+    /**
+     * Steal waiting threads from the most loaded cpu onto {@code cpu}.
+     * Caller holds the lock on {@code _ready[cpu]}, which may be dropped and retaken to
+     * preserve the lock order.
+     *
+     * @param cpu the stealing cpu
+     */
+    private void steal(int cpu) {
+        final int victim = findVictim(cpu);
+        if (victim < 0) {
+            return;
+        }
+        final RunQueue<GUKVmThread> ready = _ready[cpu];
+        final RunQueue<GUKVmThread> vready = _ready[victim];
+        if (victim < cpu) {
+            ready.unlock();
+            vready.lock();
+            ready.lock();
+        } else {
+            vready.lock();
+        }
+        // the head is running or about to run, so we take from those waiting behind it
+        int toSteal = vready.size() / 2;
+        if (toSteal > MAX_STEAL) {
+            toSteal = MAX_STEAL;
+        }
+        final GUKVmThread[] buffer = _stealBuffer[cpu];
+        int n = 0;
+        while (n < toSteal) {
+            final GUKVmThread thread = vready.next();
+            if (thread == null || thread.isRunning()) {
+                break;
+            }
+            vready.remove(thread);
+            thread.setCpu(cpu);
+            buffer[n++] = thread;
+        }
+        _load[victim] = vready.size();
+        vready.unlock();
+        for (int i = 0; i < n; i++) {
+            ready.insert(buffer[i]);
+            buffer[i] = null;
+        }
+        _load[cpu] = ready.size();
+        if (n > 0) {
+            _steals[cpu]++;
+            _stolen[cpu] += n;
+            if (GUKTrace.getTraceState(Name.SCHED)) {
+                GUKTrace.print3L(JST, cpu, victim, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.zip;
+
+import com.sun.max.annotate.*;
+
+/**
+ * An index of the entry names in a zip file central directory (CEN), used by {@link ZZipFile}
+ * and persisted by {@link ZipIndex}.
+ *
+ * {@code _entryCen[i]} is the index in {@code _cenBuf} of the header of entry i, {@code _entryHash[i]} the hash of its name.
+ * The hash table holds entry numbers + 1 (zero denotes an empty slot), probed linearly. Names in the CEN are bytes in
+ * the default encoding, which for the common case of an ASCII name are the same as its chars, so we can hash and
+ * compare a {@code String} without converting it.
+ *
+ * The hash table is built on the first {@link #lookup}, since the entries of a zip file opened from a {@link ZipIndex}
+ * record are normally found through the global table of the index instead. Building it has no other effect and
+ * publishes the complete table, so instances may be shared freely between threads.
+ *
+ * @author Mick Jordan
+ *
+ */
+final class CENIndex {
+
+    static final int CENHDR = 46;
+    static final int CENNAM = 28;
+
+    final byte[] _cenBuf;
+    final int[] _entryCen;
+    final int[] _entryHash;
+    private volatile int[] _hashTable;
+
+    CENIndex(byte[] cenBuf, int[] entryCen, int[] entryHash) {
+        _cenBuf = cenBuf;
+        _entryCen = entryCen;
+        _entryHash = entryHash;
+    }
+
+    private int[] hashTable() {
+        int[] hashTable = _hashTable;
+        if (hashTable == null) {
+            hashTable = new int[tableSize(_entryCen.length)];
+            final int mask = hashTable.length - 1;
+            for (int i = 0; i < _entryCen.length; i++) {
+                int slot = mix(_entryHash[i]) & mask;
+                while (hashTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashTable[slot] = i + 1;
+            }
+            _hashTable = hashTable;
+        }
+        return hashTable;
+    }
+
+    /**
+     * Returns the size of a hash table for {@code count} entries, a power of two that leaves at least half the slots empty.
+     */
+    static int tableSize(int count) {
+        int tableSize = 16;
+        while (tableSize < count * 2) {
+            tableSize <<= 1;
+        }
+        return tableSize;
+    }
+
+    int total() {
+        return _entryCen.length;
+    }
+
+    @INLINE
+    static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    static int hashBytes(byte[] buf, int off, int len) {
+        int hash = 0;
+        for (int i = 0; i < len; i++) {
+            hash = 31 * hash + (buf[off + i] & 0xFF);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the hash of {@code name}, with a trailing '/' if {@code addSlash}, as held in {@link #_entryHash}.
+     */
+    static int hash(String name, boolean addSlash) {
+        final int nameLen = name.length();
+        int hash = 0;
+        for (int i = 0; i < nameLen; i++) {
+            final char ch = name.charAt(i);
+            if (ch >= 0x80) {
+                final byte[] bytes = (addSlash ? name + "/" : name).getBytes();
+                return hashBytes(bytes, 0, bytes.length);
+            }
+            hash = 31 * hash + ch;
+        }
+        return addSlash ? 31 * hash + '/' : hash;
+    }
+
+    /**
+     * Determines whether entry {@code entry} is named {@code name}, with a trailing '/' if {@code addSlash}.
+     */
+    boolean hasName(int entry, String name, boolean addSlash) {
+        final int cenIndex = _entryCen[entry];
+        final int nameLen = name.length();
+        for (int i = 0; i < nameLen; i++) {
+            if (name.charAt(i) >= 0x80) {
+                final byte[] bytes = (addSlash ? name + "/" : name).getBytes();
+                return nameLength(cenIndex) == bytes.length && matchesBytes(cenIndex + CENHDR, bytes);
+            }
+        }
+        return nameLength(cenIndex) == (addSlash ? nameLen + 1 : nameLen) && matches(cenIndex + CENHDR, name, addSlash);
+    }
+
+    /**
+     * Returns the entry number for {@code name}, with a trailing '/' if {@code addSlash}, or -1 if not found.
+     */
+    int lookup(String name, boolean addSlash) {
+        final int nameLen = name.length();
+        int hash = 0;
+        for (int i = 0; i < nameLen; i++) {
+            final char ch = name.charAt(i);
+            if (ch >= 0x80) {
+                final byte[] bytes = (addSlash ? name + "/" : name).getBytes();
+                return lookupBytes(bytes, hashBytes(bytes, 0, bytes.length));
+            }
+            hash = 31 * hash + ch;
+        }
+        final int len = addSlash ? nameLen + 1 : nameLen;
+        if (addSlash) {
+            hash = 31 * hash + '/';
+        }
+        final int[] hashTable = hashTable();
+        final int mask = hashTable.length - 1;
+        for (int slot = mix(hash) & mask; hashTable[slot] != 0; slot = (slot + 1) & mask) {
+            final int entry = hashTable[slot] - 1;
+            if (_entryHash[entry] == hash) {
+                final int cenIndex = _entryCen[entry];
+                if (nameLength(cenIndex) == len && matches(cenIndex + CENHDR, name, addSlash)) {
+                    return entry;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int nameLength(int cenIndex) {
+        return _cenBuf[cenIndex + CENNAM] & 0xFF | ((_cenBuf[cenIndex + CENNAM + 1] & 0xFF) << 8);
+    }
+
+    private boolean matches(int nameIndex, String name, boolean addSlash) {
+        final int nameLen = name.length();
+        for (int i = 0; i < nameLen; i++) {
+            if (_cenBuf[nameIndex + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return !addSlash || _cenBuf[nameIndex + nameLen] == '/';
+    }
+
+    private boolean matchesBytes(int nameIndex, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (_cenBuf[nameIndex + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int lookupBytes(byte[] bytes, int hash) {
+        final int[] hashTable = hashTable();
+        final int mask = hashTable.length - 1;
+        for (int slot = mix(hash) & mask; hashTable[slot] != 0; slot = (slot + 1) & mask) {
+            final int entry = hashTable[slot] - 1;
+            if (_entryHash[entry] == hash) {
+                final int cenIndex = _entryCen[entry];
+                if (nameLength(cenIndex) == bytes.length && matchesBytes(cenIndex + CENHDR, bytes)) {
+                    return entry;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -28,6 +28,10 @@ import java.util.zip.*;
 
 import com.sun.max.program.ProgramError;
 import com.sun.max.annotate.*;
+import com.sun.max.memory.*;
+import com.sun.max.unsafe.*;
+import com.sun.max.ve.fs.*;
+import com.sun.max.ve.guk.*;
 import com.sun.max.vm.actor.holder.*;
 import com.sun.max.vm.actor.member.*;
 import com.sun.max.vm.classfile.constant.*;
@@ -35,6 +39,17 @@ import com.sun.max.vm.classfile.constant.*;
 /**
  * Represents a zip file. Use ZZipFile to avoid name clash with java.util.ZipFile.
  *
+ * Reads of entry data are positional reads directly on the {@link VirtualFileSystem} that exports the file,
+ * so they do not share a file pointer and need no lock; concurrent class loading from the same jar proceeds
+ * in parallel. The central directory (CEN) is read once into {@link #_cenBuf} and indexed by a {@link CENIndex},
+ * so no {@code String} or boxed offset is created per entry. If the property {@value ZipIndex#INDEX_PROPERTY} is set,
+ * the CEN and its index are taken from the persistent {@link ZipIndex} and the file's CEN is not parsed at all;
+ * entries are then looked up in the global name table of the index.
+ *
+ * The property {@value #CACHE_PROPERTY} selects an optional caching mode for the whole file:
+ * {@code heap} reads the file into a byte array, {@code map} reads it into pages from {@link GUKPagePool}, which
+ * keeps it out of the Java heap (as with {@code FileChannel.map}, the pages are never returned).
+ *
  * @author Mick Jordan
  *
  */
@@ -42,36 +57,67 @@ public final class ZZipFile {
     /*
      * For better or worse, java.util.ZipFile communicates with the "native" layer through
      * ids (which in Hotspot are actually C heap addresses). We simulate this
-     * with the following list, with the index as the communication vehicle.
+     * with the following table, with the index as the communication vehicle.
      * N.B. Id zero cannot be used as java.util.ZipFile treats this a "closed" value.
+     * The table is only modified while holding the ZZipFile class lock and is replaced
+     * (not modified in place) when it grows, so lookups in {@link #get} need no lock.
      *
      * ZipEntry uses a similar mechanism. In this case we do not preallocate an object
      * and map it to an id; instead we return the zipfile id and the file header offset as
      * a long, which eventually gets passed back to us in initEntryFields.
      */
-    private static List<ZZipFile> _idTable = new ArrayList<ZZipFile>();
+    private static volatile ZZipFile[] _idTable = new ZZipFile[16];
     private static Map<String, ZZipFile> _cache = new HashMap<String, ZZipFile>();
 
+    private static final String CACHE_PROPERTY = "max.ve.zip.cache";
+    private static final String CACHE_HEAP = "heap";
+    private static final String CACHE_MAP = "map";
+    private static String _cacheMode;
+
     private long _id;
     private String _name;
     private int _refs;
     private long _len;
     private long _lastModified;
-    private RandomAccessFile _fd;
+    private VirtualFileSystem _vfs;
+    private int _fd;
     private int _total;
     private long _locPos;
     private List<String> _metaNames = new ArrayList<String>();
-    private Map<String, Long> _entries;
     private long _cenPos;
     private byte[] _cenBuf;
-    // private int _lastEntry = 0;
-    private byte[] _locHdr = new byte[LOCHDR];
+    private CENIndex _cenIndex;
+    /*
+     * The index record the file was opened from, if any, in which case entries are looked up through the {@link ZipIndex}.
+     */
+    private ZipIndex.Record _record;
+    /*
+     * Cached from _cenIndex: _entryCen[i] is the index in _cenBuf of entry i.
+     */
+    private int[] _entryCen;
+    /*
+     * Cached file offset of the data of entry i, computed from the LOC header on first read; zero if not yet known.
+     */
+    private long[] _entryDataPos;
+    /*
+     * Non-null if the whole file is cached in the heap.
+     */
+    private byte[] _data;
+    /*
+     * Non-zero if the whole file is cached in page pool memory.
+     */
+    private Pointer _mapped = Pointer.zero();
+    /*
+     * The last modified time of the file according to the file system, used to validate {@link ZipIndex} records.
+     */
+    private long _fileTime;
 
-    private ZZipFile(String name, long lastModified, RandomAccessFile fd) throws IOException {
+    private ZZipFile(String name, long lastModified, VirtualFileSystem vfs, int fd) throws IOException {
         _name = name;
         _lastModified = lastModified;
+        _vfs = vfs;
         _fd = fd;
-        _len = fd.length();
+        _len = vfs.getLength(fd);
         _refs = 1;
         createId(this);
     }
@@ -83,9 +129,15 @@ public final class ZZipFile {
             zipFile._refs++;
         } else {
             try {
-                final RandomAccessFile fd = new RandomAccessFile(name, "r");
-                zipFile = new ZZipFile(name, lastModified, fd);
-                zipFile.readCEN(-1);
+                zipFile = open(name, lastModified);
+                zipFile.cacheContents();
+                final ZipIndex.Record record = ZipIndex.get(name, zipFile._len, zipFile._fileTime);
+                if (record != null) {
+                    zipFile.initFromRecord(record);
+                } else {
+                    zipFile.readCEN(-1);
+                    ZipIndex.put(zipFile.createRecord());
+                }
                 _cache.put(name, zipFile);
             } catch (FileNotFoundException ex) {
                 throwDefaultZipException(ex);
@@ -96,10 +148,74 @@ public final class ZZipFile {
         return zipFile;
     }
 
+    private static ZZipFile open(String name, long lastModified) throws IOException {
+        final String path = name.length() > 0 && name.charAt(0) != '/' ? new File(name).getAbsolutePath() : name;
+        final VirtualFileSystem vfs = FSTable.exports(path);
+        if (vfs == null) {
+            throw new FileNotFoundException(path + " (Unmounted or uninitialized file system)");
+        }
+        final int fd = vfs.open(path, VirtualFileSystem.O_RDONLY);
+        if (fd < 0) {
+            throw new FileNotFoundException(ErrorDecoder.getFileMessage(-fd, path));
+        }
+        final ZZipFile zipFile = new ZZipFile(name, lastModified, vfs, fd);
+        zipFile._fileTime = vfs.getLastModifiedTime(path);
+        return zipFile;
+    }
+
+    private void initFromRecord(ZipIndex.Record record) {
+        _record = record;
+        _cenPos = record._cenPos;
+        _locPos = record._locPos;
+        _cenIndex = record._cenIndex;
+        _cenBuf = _cenIndex._cenBuf;
+        _entryCen = _cenIndex._entryCen;
+        _total = _cenIndex.total();
+        _entryDataPos = new long[_total];
+        _metaNames.addAll(record._metaNames);
+    }
+
+    private ZipIndex.Record createRecord() {
+        return new ZipIndex.Record(_name, _len, _fileTime, _cenPos, _locPos, _cenIndex, _metaNames);
+    }
+
     private static void throwDefaultZipException(IOException ex) throws ZipException {
         throw new ZipException("error in opening zip file: " + ex.getMessage());
     }
 
+    private static String cacheMode() {
+        if (_cacheMode == null) {
+            final String mode = System.getProperty(CACHE_PROPERTY);
+            _cacheMode = mode == null ? "" : mode;
+        }
+        return _cacheMode;
+    }
+
+    /**
+     * Read the entire file into memory if requested by {@value #CACHE_PROPERTY}.
+     * Subsequent reads never touch the file system.
+     */
+    private void cacheContents() throws IOException {
+        final String mode = cacheMode();
+        if (_len > Integer.MAX_VALUE || !(mode.equals(CACHE_HEAP) || mode.equals(CACHE_MAP))) {
+            return;
+        }
+        final int len = (int) _len;
+        final byte[] data = new byte[len];
+        readFullyAt(data, 0, len, 0);
+        if (mode.equals(CACHE_HEAP)) {
+            _data = data;
+        } else {
+            final Pointer p = GUKPagePool.allocatePages(len / GUKPagePool.PAGE_SIZE + 1, VirtualMemory.Type.DATA);
+            if (p.isZero()) {
+                // out of pages, just use the file system
+                return;
+            }
+            Memory.writeBytes(data, 0, len, p);
+            _mapped = p;
+        }
+    }
+
     public long getId() {
         return _id;
     }
@@ -109,40 +225,26 @@ public final class ZZipFile {
     }
 
     public long getEntry(String name, boolean addSlash) {
-        long result = 0;
-        Long offset = _entries.get(name);
-        if (offset != null) {
-            result = offset;
-        } else {
-            if (addSlash) {
-                offset = _entries.get(name + "/");
-                if (offset != null) {
-                    result = offset;
-                }
-            }
+        int entry = lookup(name, false);
+        if (entry < 0 && addSlash) {
+            entry = lookup(name, true);
         }
-        // Encode zip file in top 16 bits
-        if (result != 0) {
-            result |= _id << 48;
+        if (entry < 0) {
+            return 0;
         }
-        return result;
+        // Encode zip file in top 16 bits
+        return createEntryId(_cenPos + _entryCen[entry]);
+    }
+
+    private int lookup(String name, boolean addSlash) {
+        return _record != null ? ZipIndex.lookup(_record, name, addSlash) : _cenIndex.lookup(name, addSlash);
     }
 
     public long getNextEntry(int entry) {
         if (entry < 0 || entry >= _total) {
             return 0;
         }
-        final long entryOffset = _cenPos + getEntryIndex(entry);
-        return createEntryId(entryOffset);
-    }
-
-    private int getEntryIndex(int entry) {
-        int cenIndex = 0;
-        for (int i = 0; i < entry; i++) {
-            cenIndex += CENHDR + getShort(_cenBuf, cenIndex + CENNAM) + getShort(_cenBuf, cenIndex + CENEXT) + getShort(_cenBuf, cenIndex + CENCOM);
-        }
-        // _lastEntry = entry;
-        return cenIndex;
+        return createEntryId(_cenPos + _entryCen[entry]);
     }
 
     public long getLen() {
@@ -157,17 +259,15 @@ public final class ZZipFile {
         return _total;
     }
 
-    public synchronized void close(long id) {
-        if (--_refs > 0) {
-            return;
-        }
-        try {
-            _fd.close();
-        } catch (IOException ex) {
-
+    public void close(long id) {
+        synchronized (ZZipFile.class) {
+            if (--_refs > 0) {
+                return;
+            }
+            _vfs.close0(_fd);
+            _cache.remove(_name);
+            _idTable[(int) id - 1] = null;
         }
-        _cache.remove(_name);
-        _idTable.set((int) id - 1, null);
     }
 
     /*
@@ -182,7 +282,7 @@ public final class ZZipFile {
 
     @INLINE
     private static long getCenOffset(long entryId) {
-        return entryId & 0xFFFFFFFF;
+        return entryId & 0xFFFFFFFFFFFFL;
     }
 
     @INLINE
@@ -198,7 +298,7 @@ public final class ZZipFile {
     public static int getMethod(long entryId) {
         final int zid = getZid(entryId);
         final long cenOffset = getCenOffset(entryId);
-        return _idTable.get(zid).getMethodV(cenOffset);
+        return _idTable[zid].getMethodV(cenOffset);
     }
 
     public int getMethodV(long cenOffset) {
@@ -209,7 +309,7 @@ public final class ZZipFile {
     public static int getCSize(long entryId) {
         final int zid = getZid(entryId);
         final long cenOffset = getCenOffset(entryId);
-        return _idTable.get(zid).getCSizeV(cenOffset);
+        return _idTable[zid].getCSizeV(cenOffset);
     }
 
     private int getCSizeV(long cenOffset) {
@@ -222,7 +322,7 @@ public final class ZZipFile {
     public static int getSize(long entryId) {
         final int zid = getZid(entryId);
         final long cenOffset = getCenOffset(entryId);
-        return _idTable.get(zid).getSizeV(cenOffset);
+        return _idTable[zid].getSizeV(cenOffset);
     }
 
     private int getSizeV(long cenOffset) {
@@ -234,7 +334,7 @@ public final class ZZipFile {
         return get(jzfile).readV(entryId, pos, b, off, len);
     }
 
-    public synchronized int readV(long entryId, long pos, byte[] b, int off, int len)  throws ZipException {
+    public int readV(long entryId, long pos, byte[] b, int off, int len)  throws ZipException {
         final int cenIndex = getCenIndex(getCenOffset(entryId));
         // It is not clear that these checks are required, since our only client is ZipFile which is making
         // calls based on data we passed back in earlier calls.
@@ -250,16 +350,8 @@ public final class ZZipFile {
             len = (int) (entrySize - pos);
             // CheckStyle: resume parameter assignment check"
         }
-        // This is the one place where not having a cache of the entry fields is a problem.
-        // The fix is to inject a new  field into ZipEntry
-        long entryPos = 0;
         try {
-            readFullyAt(_locHdr, 0, LOCHDR, _locPos + getInt(_cenBuf, cenIndex + CENOFF));
-            if (getInt(_locHdr, 0) != LOCSIG) {
-                throw new ZipException("invalid LOC header (bad signature)");
-            }
-            entryPos = _locPos + getInt(_cenBuf, cenIndex + CENOFF) + LOCHDR + getShort(_cenBuf, cenIndex + CENNAM) + getShort(_cenBuf, cenIndex + CENEXT);
-            entryPos += pos;
+            final long entryPos = getDataPos(cenIndex) + pos;
             if (entryPos + len > _len) {
                 throw new ZipException("ZIP_Read: corrupt zip file: invalid entry size");
             }
@@ -271,9 +363,29 @@ public final class ZZipFile {
         return -1;
     }
 
+    /**
+     * Returns the file offset of the data for the entry at {@code cenIndex}, reading and checking its LOC header
+     * the first time. Racing threads compute the same value, so the cache needs no lock.
+     */
+    private long getDataPos(int cenIndex) throws IOException {
+        final int entry = Arrays.binarySearch(_entryCen, cenIndex);
+        long dataPos = _entryDataPos[entry];
+        if (dataPos == 0) {
+            final byte[] locHdr = new byte[LOCHDR];
+            final long locOffset = _locPos + getInt(_cenBuf, cenIndex + CENOFF);
+            readFullyAt(locHdr, 0, LOCHDR, locOffset);
+            if (getInt(locHdr, 0) != LOCSIG) {
+                throw new ZipException("invalid LOC header (bad signature)");
+            }
+            dataPos = locOffset + LOCHDR + getShort(locHdr, LOCNAM) + getShort(locHdr, LOCEXT);
+            _entryDataPos[entry] = dataPos;
+        }
+        return dataPos;
+    }
+
     public static void initEntryFields(long entryId, Object zipEntryObj) {
         final int zid = getZid(entryId);
-        _idTable.get(zid).initEntryFieldsV(getCenOffset(entryId), (ZipEntry) zipEntryObj);
+        _idTable[zid].initEntryFieldsV(getCenOffset(entryId), (ZipEntry) zipEntryObj);
     }
 
     private void initEntryFieldsV(long cenOffset, ZipEntry zipEntry) {
@@ -334,27 +446,29 @@ public final class ZZipFile {
     }
 
     /*
-     * Support for mapping between ids and ZZipFiles
+     * Support for mapping between ids and ZZipFiles, called with the class lock held.
      */
 
-    private synchronized void createId(ZZipFile zipFile) {
+    private static void createId(ZZipFile zipFile) {
+        ZZipFile[] idTable = _idTable;
         int result = -1;
-        for (int i = 0; i < _idTable.size(); i++) {
-            if (_idTable.get(i) == null) {
-                _idTable.set(i, zipFile);
+        for (int i = 0; i < idTable.length; i++) {
+            if (idTable[i] == null) {
                 result = i;
                 break;
             }
         }
         if (result < 0) {
-            result = _idTable.size();
-            _idTable.add(zipFile);
+            result = idTable.length;
+            idTable = Arrays.copyOf(idTable, idTable.length * 2);
         }
+        idTable[result] = zipFile;
+        _idTable = idTable;
         zipFile._id = result + 1;
     }
 
     public static ZZipFile get(long id) {
-        return _idTable.get((int) id - 1);
+        return _idTable[(int) id - 1];
     }
 
     /*
@@ -388,6 +502,8 @@ public final class ZZipFile {
     //private static final long ENDSIG = 0x06054b50L;
 
     private static final int LOCHDR = 30;
+    private static final int LOCNAM = 26;
+    private static final int LOCEXT = 28;
     //private static final int EXTHDR = 16;
     private static final int CENHDR = 46;
     private static final int ENDHDR = 22; // Length of end of central directory header
@@ -417,6 +533,8 @@ public final class ZZipFile {
 
     private static final int BUFSIZE = 128;
 
+    private static final byte[] META_INF = {'M', 'E', 'T', 'A', '-', 'I', 'N', 'F', '/'};
+
     private void readCEN(int knownTotal) throws IOException, ZipException {
         final byte[] endBuf = new byte[ENDHDR];
         final long endPos = findEND(endBuf);
@@ -437,9 +555,14 @@ public final class ZZipFile {
         readFullyAt(_cenBuf, 0, cenLen, _cenPos);
 
         _total = getShort(endBuf, ENDTOT);
-        _entries = new HashMap<String, Long>(_total);
+        _entryCen = new int[_total];
+        _entryDataPos = new long[_total];
+        final int[] entryHash = new int[_total];
         int cenIndex = 0;
         for (int i = 0; i < _total; i++) {
+            if (cenIndex + CENHDR > cenLen) {
+                break;
+            }
             final int method = getShort(_cenBuf, cenIndex + CENHOW);
             final int nlen = getShort(_cenBuf, cenIndex + CENNAM);
             if (getInt(_cenBuf, cenIndex) != CENSIG) {
@@ -452,11 +575,12 @@ public final class ZZipFile {
                 throw new ZipException("invalid CEN header (bad compression method)");
             }
 
-            final String name = new String(_cenBuf, cenIndex + CENHDR, nlen);
-            if (name.toUpperCase().startsWith("META-INF/")) {
-                addMetaName(name);
+            final int nameIndex = cenIndex + CENHDR;
+            if (isMetaName(nameIndex, nlen)) {
+                addMetaName(new String(_cenBuf, nameIndex, nlen));
             }
-            _entries.put(name, _cenPos + cenIndex);
+            _entryCen[i] = cenIndex;
+            entryHash[i] = CENIndex.hashBytes(_cenBuf, nameIndex, nlen);
             cenIndex += CENHDR + nlen + getShort(_cenBuf, cenIndex + CENEXT) + getShort(_cenBuf, cenIndex + CENCOM);
         }
         if (cenIndex != cenLen) {
@@ -464,6 +588,26 @@ public final class ZZipFile {
             // in which case the total has to be figured out by brute force.
             ProgramError.unexpected("zip file has too many entries");
         }
+        _cenIndex = new CENIndex(_cenBuf, _entryCen, entryHash);
+    }
+
+    /**
+     * Case-insensitive check for a name starting with "META-INF/", without creating a {@code String}.
+     */
+    private boolean isMetaName(int nameIndex, int nlen) {
+        if (nlen < META_INF.length) {
+            return false;
+        }
+        for (int i = 0; i < META_INF.length; i++) {
+            int b = _cenBuf[nameIndex + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != META_INF[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private long findEND(byte[] endBuf) throws IOException {
@@ -511,8 +655,29 @@ public final class ZZipFile {
         return buf[off] & 0xFF | ((buf[off + 1] & 0xFF) << 8);
     }
 
-    private synchronized void readFullyAt(byte[] buf, int offset,  long len, long fileOffset) throws IOException {
-        _fd.seek(fileOffset);
-        _fd.readFully(buf, offset, (int) len);
+    /**
+     * Positional read of {@code len} bytes at {@code fileOffset}. There is no shared file pointer
+     * so this is safe to call concurrently.
+     */
+    private void readFullyAt(byte[] buf, int offset,  long len, long fileOffset) throws IOException {
+        final int length = (int) len;
+        if (_data != null) {
+            System.arraycopy(_data, (int) fileOffset, buf, offset, length);
+        } else if (!_mapped.isZero()) {
+            Memory.readBytes(_mapped.plus(fileOffset), length, buf, offset);
+        } else {
+            int n = 0;
+            while (n < length) {
+                final int result = _vfs.readBytes(_fd, buf, offset + n, length - n, fileOffset + n);
+                // -1 is EOF by the VirtualFileSystem convention, so cannot be told apart from -EPERM, which an open
+                // jar file should not produce. Some file systems return 0 at EOF, which would otherwise loop forever.
+                if (result == 0 || result == -1) {
+                    throw new EOFException();
+                } else if (result < 0) {
+                    throw new IOException("Read error: " + ErrorDecoder.getMessage(-result));
+                }
+                n += result;
+            }
+        }
     }
 }
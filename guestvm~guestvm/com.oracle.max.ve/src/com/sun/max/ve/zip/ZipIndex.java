@@ -0,0 +1,544 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.max.ve.zip;
+
+import java.io.*;
+import java.util.*;
+
+import com.sun.max.ve.fs.FSTable;
+import com.sun.max.ve.fs.VirtualFileSystem;
+import com.sun.max.ve.logging.Logger;
+
+/**
+ * A persistent index of the central directories of the zip/jar files opened by {@link ZZipFile}, typically
+ * those on the boot and application class path. The index is enabled by setting the property {@value #INDEX_PROPERTY}
+ * to the path of the index file, which should be on a writable (e.g. ext2) file system.
+ *
+ * On the first boot the index file does not exist; each jar is parsed as usual and its CEN and {@link CENIndex}
+ * are recorded here. The index is written when the VM terminates (see {@link #save}). On later boots
+ * {@link ZZipFile#create} takes the CEN and its index from the record, provided the length and modification time
+ * of the jar are unchanged, and so skips locating and parsing the central directory. A stale record
+ * is replaced and the index rewritten.
+ *
+ * The index also holds a global table of the entry names of all the jars, saved with the records, which maps a name
+ * to the jars that contain it and the offsets of its CEN and local headers (see {@link #locate}). A zip file opened
+ * from a record looks up its entries in this table, so it never builds a hash table of its own, and the class path
+ * lookup uses it (through {@code JDK_sun_misc_MetaIndex}) to pass over the jars that do not contain a class or resource
+ * without opening or probing them. The table loaded at startup covers only the records loaded with it; a record
+ * added or replaced during the run is covered from the next run.
+ *
+ * @author Mick Jordan
+ *
+ */
+public final class ZipIndex {
+
+    public static final String INDEX_PROPERTY = "max.ve.zip.index";
+    private static final int MAGIC = 0x4d565a49; // MVZI
+    private static final int VERSION = 2;
+    private static final long CENSIG = 0x02014b50L;
+    private static final int CENOFF = 42;
+
+    private static Logger _logger = Logger.getLogger(ZipIndex.class.getName());
+    private static String _indexPath;
+    private static boolean _loaded;
+    private static boolean _dirty;
+    private static List<Record> _records = new ArrayList<Record>();
+    private static Map<String, Record> _recordMap = new HashMap<String, Record>();
+    /*
+     * The global name table of the records loaded at startup, published once and thereafter only read.
+     */
+    private static volatile NameTable _nameTable;
+
+    /**
+     * The index data for one zip file.
+     */
+    static final class Record {
+        final String _path;
+        final long _length;
+        final long _lastModified;
+        final long _cenPos;
+        final long _locPos;
+        final CENIndex _cenIndex;
+        final List<String> _metaNames;
+        /*
+         * The position of the record in the index.
+         */
+        int _number;
+
+        Record(String path, long length, long lastModified, long cenPos, long locPos, CENIndex cenIndex, List<String> metaNames) {
+            _path = path;
+            _length = length;
+            _lastModified = lastModified;
+            _cenPos = cenPos;
+            _locPos = locPos;
+            _cenIndex = cenIndex;
+            _metaNames = metaNames;
+        }
+    }
+
+    /**
+     * An open addressing hash table of the names of the entries of a list of records, probed linearly.
+     * Slot i holds the number of a record + 1 in {@code _slotRecord[i]}, zero denoting an empty slot,
+     * and the number of the entry in that record and the hash of its name in {@code _slotEntry[i]} and {@code _slotHash[i]}.
+     */
+    static final class NameTable {
+        final Record[] _records;
+        final Map<String, Record> _pathMap = new HashMap<String, Record>();
+        final int[] _slotRecord;
+        final int[] _slotEntry;
+        final int[] _slotHash;
+
+        NameTable(Record[] records, int[] slotRecord, int[] slotEntry, int[] slotHash) {
+            _records = records;
+            for (Record record : records) {
+                _pathMap.put(record._path, record);
+            }
+            _slotRecord = slotRecord;
+            _slotEntry = slotEntry;
+            _slotHash = slotHash;
+        }
+
+        /**
+         * Returns the slot of the entry named {@code name}, with a trailing '/' if {@code addSlash}, in the lowest numbered
+         * record or, if {@code record} is not null, in that record, or -1 if there is no such entry.
+         */
+        int find(Record record, String name, boolean addSlash) {
+            final int hash = CENIndex.hash(name, addSlash);
+            final int mask = _slotRecord.length - 1;
+            int result = -1;
+            for (int slot = CENIndex.mix(hash) & mask; _slotRecord[slot] != 0; slot = (slot + 1) & mask) {
+                if (_slotHash[slot] == hash) {
+                    final Record candidate = _records[_slotRecord[slot] - 1];
+                    if ((record == null || record == candidate) && (result < 0 || _slotRecord[slot] < _slotRecord[result]) &&
+                                    candidate._cenIndex.hasName(_slotEntry[slot], name, addSlash)) {
+                        if (record != null) {
+                            return slot;
+                        }
+                        result = slot;
+                    }
+                }
+            }
+            return result;
+        }
+
+        boolean covers(Record record) {
+            return record._number < _records.length && _records[record._number] == record;
+        }
+    }
+
+    /**
+     * The location of an entry in an indexed zip file.
+     */
+    public static final class Location {
+        /**
+         * Path of the zip file.
+         */
+        public final String _path;
+        /**
+         * File offset of the entry's CEN header.
+         */
+        public final long _cenOffset;
+        /**
+         * File offset of the entry's local header.
+         */
+        public final long _locOffset;
+
+        private Location(String path, long cenOffset, long locOffset) {
+            _path = path;
+            _cenOffset = cenOffset;
+            _locOffset = locOffset;
+        }
+    }
+
+    private ZipIndex() {
+    }
+
+    /**
+     * Returns the record for the zip file at {@code path}, or {@code null} if there is none or it is stale.
+     */
+    static synchronized Record get(String path, long length, long lastModified) {
+        if (!enabled()) {
+            return null;
+        }
+        final Record record = _recordMap.get(path);
+        if (record == null || record._length != length || record._lastModified != lastModified) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Adds (or replaces) the record for a freshly parsed zip file.
+     */
+    static synchronized void put(Record record) {
+        if (!enabled()) {
+            return;
+        }
+        final Record old = _recordMap.put(record._path, record);
+        if (old == null) {
+            record._number = _records.size();
+            _records.add(record);
+        } else {
+            record._number = old._number;
+            _records.set(old._number, record);
+        }
+        _dirty = true;
+    }
+
+    /**
+     * Finds an entry of a zip file opened from {@code record}.
+     *
+     * @return the entry number for {@code name}, with a trailing '/' if {@code addSlash}, or -1 if not found
+     */
+    static int lookup(Record record, String name, boolean addSlash) {
+        final NameTable nameTable = _nameTable;
+        if (nameTable == null || !nameTable.covers(record)) {
+            return record._cenIndex.lookup(name, addSlash);
+        }
+        final int slot = nameTable.find(record, name, addSlash);
+        return slot < 0 ? -1 : nameTable._slotEntry[slot];
+    }
+
+    /**
+     * Finds {@code name} in the indexed zip files, without opening or probing any of them.
+     *
+     * @param path the path of the zip file to search or {@code null} to search them all, in the order they were first opened
+     * @param name class or resource name, e.g. {@code java/lang/Object.class}
+     * @return the location of the entry or {@code null} if no indexed zip file contains it
+     */
+    public static Location locate(String path, String name) {
+        final NameTable nameTable = nameTable();
+        if (nameTable == null) {
+            return null;
+        }
+        Record record = null;
+        if (path != null) {
+            record = nameTable._pathMap.get(path);
+            if (record == null) {
+                return null;
+            }
+        }
+        final int slot = nameTable.find(record, name, false);
+        if (slot < 0) {
+            return null;
+        }
+        record = nameTable._records[nameTable._slotRecord[slot] - 1];
+        final int cenIndex = record._cenIndex._entryCen[nameTable._slotEntry[slot]];
+        return new Location(record._path, record._cenPos + cenIndex, record._locPos + getInt(record._cenIndex._cenBuf, cenIndex + CENOFF));
+    }
+
+    /**
+     * Determines whether the zip file at {@code path} is covered by the global name table and is unchanged
+     * since it was indexed, so that {@link #mayContain} is exact for it. A jar with a {@code META-INF/INDEX.LIST}
+     * is excluded, as the class path lookup must open it to read its index of other jars.
+     */
+    public static synchronized boolean isIndexed(String path) {
+        final NameTable nameTable = nameTable();
+        if (nameTable == null) {
+            return false;
+        }
+        final Record record = nameTable._pathMap.get(path);
+        if (record == null || record != _recordMap.get(path)) {
+            return false;
+        }
+        for (String metaName : record._metaNames) {
+            if (metaName.equalsIgnoreCase("META-INF/INDEX.LIST")) {
+                return false;
+            }
+        }
+        final VirtualFileSystem vfs = FSTable.exports(path);
+        return vfs != null && vfs.getLength(path) == record._length && vfs.getLastModifiedTime(path) == record._lastModified;
+    }
+
+    /**
+     * Determines whether the indexed zip file at {@code path} may contain {@code name}, or the directory {@code name/},
+     * answering {@code true} if the file is not in the index.
+     */
+    public static boolean mayContain(String path, String name) {
+        final NameTable nameTable = _nameTable;
+        if (nameTable == null) {
+            return true;
+        }
+        final Record record = nameTable._pathMap.get(path);
+        return record == null || nameTable.find(record, name, false) >= 0 || nameTable.find(record, name, true) >= 0;
+    }
+
+    private static NameTable nameTable() {
+        synchronized (ZipIndex.class) {
+            if (!enabled()) {
+                return null;
+            }
+        }
+        return _nameTable;
+    }
+
+    private static NameTable buildNameTable(Record[] records) {
+        int total = 0;
+        for (Record record : records) {
+            total += record._cenIndex.total();
+        }
+        final int tableSize = CENIndex.tableSize(total);
+        final int[] slotRecord = new int[tableSize];
+        final int[] slotEntry = new int[tableSize];
+        final int[] slotHash = new int[tableSize];
+        final int mask = tableSize - 1;
+        for (int r = 0; r < records.length; r++) {
+            final int[] entryHash = records[r]._cenIndex._entryHash;
+            for (int i = 0; i < entryHash.length; i++) {
+                final int hash = entryHash[i];
+                int slot = CENIndex.mix(hash) & mask;
+                while (slotRecord[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slotRecord[slot] = r + 1;
+                slotEntry[slot] = i;
+                slotHash[slot] = hash;
+            }
+        }
+        return new NameTable(records, slotRecord, slotEntry, slotHash);
+    }
+
+    private static boolean enabled() {
+        if (!_loaded) {
+            _loaded = true;
+            _indexPath = System.getProperty(INDEX_PROPERTY);
+            if (_indexPath != null) {
+                load();
+            }
+        }
+        return _indexPath != null;
+    }
+
+    /**
+     * Reads the index, checking that the records are consistent with themselves and with the lengths of the jars
+     * they describe, that the name hashes match the names, and that the name table refers to them correctly, since the file may have been truncated or
+     * otherwise damaged. If it is not, all of it is discarded and the index is rebuilt as the jars are opened.
+     */
+    private static void load() {
+        final File file = new File(_indexPath);
+        if (!file.exists()) {
+            return;
+        }
+        final long fileLength = file.length();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logWarning("ignoring incompatible index " + _indexPath);
+                _dirty = true;
+                return;
+            }
+            final int count = in.readInt();
+            check(count >= 0 && count <= fileLength, "record count");
+            int entries = 0;
+            for (int r = 0; r < count; r++) {
+                final String path = in.readUTF();
+                check(!_recordMap.containsKey(path), "duplicate record");
+                final long length = in.readLong();
+                final long lastModified = in.readLong();
+                final long cenPos = in.readLong();
+                final long locPos = in.readLong();
+                final int cenLen = in.readInt();
+                check(cenLen >= 0 && cenLen <= fileLength && cenPos >= 0 && cenPos <= length - cenLen && locPos >= 0 && locPos <= cenPos, "CEN position");
+                final byte[] cenBuf = new byte[cenLen];
+                in.readFully(cenBuf);
+                final int total = in.readInt();
+                check(total >= 0 && total <= cenLen / CENIndex.CENHDR, "entry count");
+                final int[] entryCen = new int[total];
+                final int[] entryHash = new int[total];
+                for (int i = 0; i < total; i++) {
+                    entryCen[i] = in.readInt();
+                    checkEntry(cenBuf, entryCen, i, length - locPos);
+                }
+                for (int i = 0; i < total; i++) {
+                    entryHash[i] = in.readInt();
+                    check(entryHash[i] == CENIndex.hashBytes(cenBuf, entryCen[i] + CENIndex.CENHDR, nameLength(cenBuf, entryCen[i])), "entry hash");
+                }
+                final int metaCount = in.readInt();
+                check(metaCount >= 0 && metaCount <= total, "META-INF count");
+                final List<String> metaNames = new ArrayList<String>(metaCount);
+                for (int i = 0; i < metaCount; i++) {
+                    metaNames.add(in.readUTF());
+                }
+                final Record record = new Record(path, length, lastModified, cenPos, locPos, new CENIndex(cenBuf, entryCen, entryHash), metaNames);
+                record._number = r;
+                _records.add(record);
+                _recordMap.put(path, record);
+                entries += total;
+            }
+            final int tableSize = in.readInt();
+            check(tableSize == CENIndex.tableSize(entries), "name table size");
+            final int[] slotRecord = new int[tableSize];
+            final int[] slotEntry = new int[tableSize];
+            final int[] slotHash = new int[tableSize];
+            for (int i = 0; i < tableSize; i++) {
+                slotRecord[i] = in.readInt();
+                slotEntry[i] = in.readInt();
+                slotHash[i] = in.readInt();
+            }
+            check(in.read() < 0, "trailing data");
+            final NameTable nameTable = new NameTable(_records.toArray(new Record[count]), slotRecord, slotEntry, slotHash);
+            checkNameTable(nameTable, entries);
+            _nameTable = nameTable;
+        } catch (IOException ex) {
+            discard(ex);
+        } catch (RuntimeException ex) {
+            discard(ex);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that entry {@code i} is a CEN header wholly within {@code cenBuf}, after the header of the previous entry,
+     * and that its local header is within the {@code locLength} bytes of the jar that precede the central directory.
+     */
+    private static void checkEntry(byte[] cenBuf, int[] entryCen, int i, long locLength) throws IOException {
+        final int cenIndex = entryCen[i];
+        check(cenIndex >= (i == 0 ? 0 : entryCen[i - 1] + CENIndex.CENHDR) && cenIndex <= cenBuf.length - CENIndex.CENHDR, "entry position");
+        check(getInt(cenBuf, cenIndex) == CENSIG, "entry signature");
+        check(nameLength(cenBuf, cenIndex) <= cenBuf.length - CENIndex.CENHDR - cenIndex, "entry name");
+        check(getInt(cenBuf, cenIndex + CENOFF) < locLength, "local header position");
+    }
+
+    /**
+     * Checks that every entry of every record is in exactly one slot of the name table, with its hash,
+     * and that each slot can be reached by probing from the slot for its hash.
+     */
+    private static void checkNameTable(NameTable nameTable, int entries) throws IOException {
+        final Record[] records = nameTable._records;
+        final boolean[][] seen = new boolean[records.length][];
+        for (int r = 0; r < records.length; r++) {
+            seen[r] = new boolean[records[r]._cenIndex.total()];
+        }
+        final int mask = nameTable._slotRecord.length - 1;
+        int used = 0;
+        for (int slot = 0; slot < nameTable._slotRecord.length; slot++) {
+            final int recordRef = nameTable._slotRecord[slot];
+            if (recordRef == 0) {
+                continue;
+            }
+            check(recordRef > 0 && recordRef <= records.length, "name table record");
+            final CENIndex cenIndex = records[recordRef - 1]._cenIndex;
+            final int entry = nameTable._slotEntry[slot];
+            check(entry >= 0 && entry < cenIndex.total() && !seen[recordRef - 1][entry], "name table entry");
+            seen[recordRef - 1][entry] = true;
+            final int hash = nameTable._slotHash[slot];
+            check(hash == cenIndex._entryHash[entry], "name table hash");
+            for (int probe = CENIndex.mix(hash) & mask; probe != slot; probe = (probe + 1) & mask) {
+                check(nameTable._slotRecord[probe] != 0, "name table probe");
+            }
+            used++;
+        }
+        check(used == entries, "name table entries");
+    }
+
+    private static void check(boolean ok, String what) throws IOException {
+        if (!ok) {
+            throw new IOException("inconsistent " + what);
+        }
+    }
+
+    private static int nameLength(byte[] cenBuf, int cenIndex) {
+        return cenBuf[cenIndex + CENIndex.CENNAM] & 0xFF | (cenBuf[cenIndex + CENIndex.CENNAM + 1] & 0xFF) << 8;
+    }
+
+    private static long getInt(byte[] buf, int off) {
+        return buf[off] & 0xFFL | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16 | (buf[off + 3] & 0xFFL) << 24;
+    }
+
+    /**
+     * Drops everything loaded so far, so that the index is rebuilt from the jars and rewritten.
+     */
+    private static void discard(Exception ex) {
+        logWarning("discarding index " + _indexPath + ": " + ex);
+        _records.clear();
+        _recordMap.clear();
+        _nameTable = null;
+        _dirty = true;
+    }
+
+    /**
+     * Writes the index if any zip file was parsed (rather than found in the index) during this run.
+     * Called when the VM terminates.
+     */
+    public static synchronized void save() {
+        if (!_dirty) {
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_indexPath), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(_records.size());
+            for (Record record : _records) {
+                out.writeUTF(record._path);
+                out.writeLong(record._length);
+                out.writeLong(record._lastModified);
+                out.writeLong(record._cenPos);
+                out.writeLong(record._locPos);
+                final CENIndex cenIndex = record._cenIndex;
+                out.writeInt(cenIndex._cenBuf.length);
+                out.write(cenIndex._cenBuf);
+                out.writeInt(cenIndex.total());
+                for (int entryCen : cenIndex._entryCen) {
+                    out.writeInt(entryCen);
+                }
+                for (int entryHash : cenIndex._entryHash) {
+                    out.writeInt(entryHash);
+                }
+                out.writeInt(record._metaNames.size());
+                for (String metaName : record._metaNames) {
+                    out.writeUTF(metaName);
+                }
+            }
+            final NameTable nameTable = buildNameTable(_records.toArray(new Record[_records.size()]));
+            out.writeInt(nameTable._slotRecord.length);
+            for (int i = 0; i < nameTable._slotRecord.length; i++) {
+                out.writeInt(nameTable._slotRecord[i]);
+                out.writeInt(nameTable._slotEntry[i]);
+                out.writeInt(nameTable._slotHash[i]);
+            }
+            _dirty = false;
+        } catch (IOException ex) {
+            logWarning("error writing index " + _indexPath + ": " + ex);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    private static void logWarning(String msg) {
+        _logger.warning(msg);
+    }
+}
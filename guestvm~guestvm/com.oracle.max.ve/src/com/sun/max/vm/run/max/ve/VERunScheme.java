@@ -39,6 +39,7 @@ import com.sun.max.ve.memory.HeapPool;
 import com.sun.max.ve.net.guk.*;
 import com.sun.max.ve.profiler.*;
 import com.sun.max.ve.sched.*;
+import com.sun.max.ve.zip.ZipIndex;
 import com.sun.max.vm.heap.Heap;
 import com.sun.max.vm.run.java.JavaRunScheme;
 import com.sun.max.vm.*;
@@ -97,6 +98,7 @@ public class VERunScheme extends JavaRunScheme {
             checkGUKTrace();
             checkTickProfiler();
         } else if (phase == MaxineVM.Phase.TERMINATING) {
+            ZipIndex.save();
             FSTable.close();
         }
     }
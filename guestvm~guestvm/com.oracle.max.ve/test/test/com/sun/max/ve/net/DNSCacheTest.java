@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.com.sun.max.ve.net;
+
+/**
+ * Tests the caching in {@link DNS} against a stub name server on the loopback interface.
+ * Checks that answers are cached for their TTL, that a name that does not exist is cached for the negative TTL,
+ * that concurrent lookups of a name send a single query, that an entry used near its expiry is refreshed in the
+ * background, and that queries fail over to a second server when the first does not answer.
+ * Args:
+ * s address   a server that does not answer (default 192.0.2.1)
+ * t n         number of threads in the concurrent lookup (default 10)
+ *
+ * @author Mick Jordan
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import com.sun.max.ve.net.dns.*;
+import com.sun.max.ve.net.ip.*;
+
+public class DNSCacheTest {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_PTR = 12;
+    private static final int NAME_ERROR = 3;
+
+    private static int _failures;
+
+    public static void main(String[] args) throws Exception {
+        String deadServer = "192.0.2.1";
+        int threads = 10;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("s")) {
+                deadServer = args[++i];
+            } else if (arg.equals("t")) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+
+        final StubServer server = new StubServer();
+        server.addAddress("ttl.example", "10.0.0.1", 2);
+        server.addAddress("slow.example", "10.0.0.2", 60);
+        server.addAddress("prefetch.example", "10.0.0.3", 10);
+        server.addAddress("failover.example", "10.0.0.4", 60);
+        server.addAddress("other.example", "10.0.0.5", 60);
+        server.addName("1.0.0.10.in-addr.arpa", "ttl.example", 60);
+        server.setDelay("slow.example", 500);
+        server.start();
+
+        final IPAddress loopback = IPAddress.loopback();
+        final DNS dns = new DNS(new IPAddress[] {loopback}, server.port(), "test", 0);
+
+        // positive answers are cached for their TTL
+        check("ttl lookup", "10.0.0.1".equals(String.valueOf(dns.lookupOne("ttl.example"))));
+        dns.lookupOne("ttl.example");
+        check("ttl cached", server.queries("ttl.example") == 1);
+        Thread.sleep(2200);
+        dns.lookupOne("ttl.example");
+        check("ttl expired", server.queries("ttl.example") == 2);
+
+        // names that do not exist are cached for the SOA minimum
+        check("nxdomain lookup", dns.lookup("missing.example") == null);
+        check("nxdomain lookup again", dns.lookup("missing.example") == null);
+        check("nxdomain cached", server.queries("missing.example") == 1);
+        Thread.sleep(3200);
+        dns.lookup("missing.example");
+        check("nxdomain expired", server.queries("missing.example") == 2);
+
+        // reverse lookups
+        check("reverse lookup", "ttl.example".equals(dns.reverseLookup("10.0.0.1")));
+        dns.reverseLookup(new IPAddress(10, 0, 0, 1));
+        check("reverse cached", server.queries("1.0.0.10.in-addr.arpa") == 1);
+
+        // concurrent lookups of the same name share one query
+        final Thread[] lookups = new Thread[threads];
+        final IPAddress[] results = new IPAddress[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            lookups[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = dns.lookupOne("slow.example");
+                }
+            };
+            lookups[i].start();
+        }
+        boolean allFound = true;
+        for (int i = 0; i < threads; i++) {
+            lookups[i].join();
+            allFound &= "10.0.0.2".equals(String.valueOf(results[i]));
+        }
+        check("coalesced lookups", allFound);
+        check("coalesced query", server.queries("slow.example") == 1);
+
+        // use in the last tenth of the TTL refreshes the entry in the background
+        dns.lookupOne("prefetch.example");
+        Thread.sleep(9200);
+        final long start = System.currentTimeMillis();
+        check("prefetch lookup", "10.0.0.3".equals(String.valueOf(dns.lookupOne("prefetch.example"))));
+        check("prefetch served from cache", System.currentTimeMillis() - start < 100);
+        Thread.sleep(1500);
+        check("prefetch query", server.queries("prefetch.example") == 2);
+        dns.lookupOne("prefetch.example");
+        check("prefetch refreshed", server.queries("prefetch.example") == 2);
+
+        // a server that does not answer is skipped, and then avoided
+        final DNS failover = new DNS(new IPAddress[] {IPAddress.parse(deadServer), loopback}, server.port(), "test", 0);
+        check("failover lookup", "10.0.0.4".equals(String.valueOf(failover.lookupOne("failover.example"))));
+        final long failoverStart = System.currentTimeMillis();
+        check("failover preferred", "10.0.0.5".equals(String.valueOf(failover.lookupOne("other.example"))));
+        check("failover fast", System.currentTimeMillis() - failoverStart < 1000);
+
+        DNS.report(System.out);
+        server.close();
+        if (_failures == 0) {
+            System.out.println("PASSED");
+        } else {
+            System.out.println("FAILED " + _failures);
+            System.exit(1);
+        }
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println(name + ": " + (ok ? "ok" : "FAILED"));
+        if (!ok) {
+            _failures++;
+        }
+    }
+
+    /**
+     * A name server that answers A and PTR queries from a table, with NXDOMAIN for other names, counting the
+     * queries for each name.
+     */
+    static class StubServer extends Thread {
+        private final DatagramSocket _socket;
+        private final Map<String, Object> _records = new HashMap<String, Object>();
+        private final Map<String, Integer> _ttls = new HashMap<String, Integer>();
+        private final Map<String, Integer> _delays = new HashMap<String, Integer>();
+        private final Map<String, Integer> _queries = new HashMap<String, Integer>();
+
+        StubServer() throws IOException {
+            super("DNS Stub Server");
+            _socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        int port() {
+            return _socket.getLocalPort();
+        }
+
+        void addAddress(String name, String address, int ttl) {
+            _records.put(name, IPAddress.parse(address));
+            _ttls.put(name, ttl);
+        }
+
+        void addName(String name, String hostname, int ttl) {
+            _records.put(name, hostname);
+            _ttls.put(name, ttl);
+        }
+
+        void setDelay(String name, int delay) {
+            _delays.put(name, delay);
+        }
+
+        synchronized int queries(String name) {
+            final Integer count = _queries.get(name);
+            return count == null ? 0 : count;
+        }
+
+        void close() {
+            _socket.close();
+        }
+
+        @Override
+        public void run() {
+            final byte[] buf = new byte[512];
+            while (true) {
+                final DatagramPacket request = new DatagramPacket(buf, buf.length);
+                try {
+                    _socket.receive(request);
+                } catch (IOException ex) {
+                    return;
+                }
+                final byte[] query = Arrays.copyOf(buf, request.getLength());
+                final SocketAddress client = request.getSocketAddress();
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            answer(query, client);
+                        } catch (IOException ex) {
+                        }
+                    }
+                }.start();
+            }
+        }
+
+        private void answer(byte[] query, SocketAddress client) throws IOException {
+            // the name of the question, which starts after the header
+            final StringBuilder sb = new StringBuilder();
+            int offset = 12;
+            while (query[offset] != 0) {
+                if (sb.length() > 0) {
+                    sb.append('.');
+                }
+                sb.append(new String(query, offset + 1, query[offset], "US-ASCII"));
+                offset += query[offset] + 1;
+            }
+            offset++;
+            final String name = sb.toString();
+            final int type = ((query[offset] & 0xFF) << 8) | (query[offset + 1] & 0xFF);
+            offset += 4;
+            synchronized (this) {
+                _queries.put(name, queries(name) + 1);
+            }
+            final Integer delay = _delays.get(name);
+            if (delay != null) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ex) {
+                }
+            }
+
+            final ByteArrayOutputStream bs = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bs);
+            final Object record = _records.get(name);
+            final boolean found = record != null && (type == TYPE_A ? record instanceof IPAddress : record instanceof String);
+            out.write(query, 0, 2);
+            out.writeShort(0x8180 | (found ? 0 : NAME_ERROR));
+            out.writeShort(1);
+            out.writeShort(found ? 1 : 0);
+            out.writeShort(found ? 0 : 1);
+            out.writeShort(0);
+            out.write(query, 12, offset - 12);
+            if (found) {
+                out.writeShort(0xC00C);
+                out.writeShort(type);
+                out.writeShort(1);
+                out.writeInt(_ttls.get(name));
+                if (type == TYPE_A) {
+                    out.writeShort(4);
+                    out.writeInt(((IPAddress) record).addressAsInt());
+                } else {
+                    final byte[] encoded = encode((String) record);
+                    out.writeShort(encoded.length);
+                    out.write(encoded);
+                }
+            } else {
+                // the SOA TTL is larger than its minimum, which is the negative TTL
+                out.writeShort(0xC00C);
+                out.writeShort(TYPE_SOA);
+                out.writeShort(1);
+                out.writeInt(300);
+                out.writeShort(22);
+                out.writeByte(0);
+                out.writeByte(0);
+                out.writeInt(1);
+                out.writeInt(3600);
+                out.writeInt(600);
+                out.writeInt(86400);
+                out.writeInt(3);
+            }
+            final byte[] response = bs.toByteArray();
+            _socket.send(new DatagramPacket(response, response.length, client));
+        }
+
+        private static byte[] encode(String name) {
+            final ByteArrayOutputStream bs = new ByteArrayOutputStream();
+            for (String label : name.split("\\.")) {
+                bs.write(label.length());
+                bs.write(label.getBytes(), 0, label.length());
+            }
+            bs.write(0);
+            return bs.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.com.sun.max.ve.net;
+
+/**
+ * Opens and closes sockets repeatedly in several threads, each thread holding a few open at once,
+ * and checks that the endpoint table stays no larger than the peak number of open sockets.
+ * First checks that the fd of a closed channel, both the unique fd and the file system's fd, resolves
+ * to no endpoint and cannot close another once its slot has been reused.
+ * Args:
+ * t n         number of threads (default 4)
+ * n n         number of sockets opened by each thread (default 10000)
+ * h n         number of sockets held open by each thread (default 8)
+ *
+ * @author Mick Jordan
+ */
+
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import sun.nio.ch.SelChImpl;
+
+import com.sun.max.ve.fs.VirtualFileSystemId;
+import com.sun.max.ve.jdk.JavaNetUtil;
+
+public class EndpointTableTest implements Runnable {
+
+    private static int _count = 10000;
+    private static int _hold = 8;
+    private static volatile Exception _failure;
+
+    public static void main(String[] args) throws Exception {
+        int threads = 4;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("t")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("n")) {
+                _count = Integer.parseInt(args[++i]);
+            } else if (arg.equals("h")) {
+                _hold = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        checkStale();
+        final int open = JavaNetUtil.getOpenCount();
+        final int slots = JavaNetUtil.getSlotCount();
+        final Thread[] workers = new Thread[threads];
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new EndpointTableTest(), "EndpointTableTest-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.println(threads * _count + " sockets in " + (System.currentTimeMillis() - start) + "ms");
+        JavaNetUtil.report(System.out);
+        if (_failure != null) {
+            throw _failure;
+        }
+        if (JavaNetUtil.getOpenCount() != open) {
+            throw new Exception("open count " + JavaNetUtil.getOpenCount() + ", expected " + open);
+        }
+        if (JavaNetUtil.getSlotCount() > slots + threads * (_hold + 1)) {
+            throw new Exception("slot count " + JavaNetUtil.getSlotCount() + " exceeds " + (slots + threads * (_hold + 1)));
+        }
+    }
+
+    private static void checkStale() throws Exception {
+        final DatagramChannel first = DatagramChannel.open();
+        final int staleFd = ((SelChImpl) first).getFDVal();
+        check(JavaNetUtil.getFromVfsId(staleFd) != null, "open fd resolves");
+        first.close();
+        check(JavaNetUtil.getFromVfsId(staleFd) == null, "closed fd resolves to null");
+        check(JavaNetUtil.getFromFd(VirtualFileSystemId.getFd(staleFd)) == null, "closed file system fd resolves to null");
+        // the most recently freed slot is reused first
+        final DatagramChannel second = DatagramChannel.open();
+        final int fd = ((SelChImpl) second).getFDVal();
+        check(fd != staleFd, "reused slot gets a new fd");
+        check(JavaNetUtil.getFromVfsId(staleFd) == null, "stale fd resolves to null after reuse");
+        check(JavaNetUtil.getFromFd(VirtualFileSystemId.getFd(staleFd)) == null, "stale file system fd resolves to null after reuse");
+        JavaNetUtil.freeFd(VirtualFileSystemId.getFd(staleFd));
+        check(JavaNetUtil.getFromVfsId(fd) != null, "stale fd does not free the reused slot");
+        second.close();
+        check(JavaNetUtil.getFromVfsId(fd) == null, "second closed fd resolves to null");
+    }
+
+    private static void check(boolean ok, String what) throws Exception {
+        if (!ok) {
+            throw new Exception("failed: " + what);
+        }
+    }
+
+    public void run() {
+        final LinkedList<DatagramSocket> held = new LinkedList<DatagramSocket>();
+        try {
+            for (int i = 0; i < _count; i++) {
+                held.add(new DatagramSocket());
+                if (held.size() > _hold) {
+                    held.removeFirst().close();
+                }
+            }
+        } catch (Exception ex) {
+            _failure = ex;
+        } finally {
+            for (DatagramSocket socket : held) {
+                socket.close();
+            }
+        }
+    }
+}
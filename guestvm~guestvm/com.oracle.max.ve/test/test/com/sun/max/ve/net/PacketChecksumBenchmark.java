@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.com.sun.max.ve.net;
+
+import java.util.*;
+
+import com.sun.max.ve.net.*;
+
+/**
+ * Compares the Internet checksum in {@link Packet} with the previous two bytes per iteration loop, for a range of
+ * packet sizes. Each size is measured four ways: the previous loop, {@link Packet#ocsum}, copying the data into a packet
+ * followed by a {@link Packet#cksum} of the whole TCP segment, as TCP did, and the fused {@link Packet#putBytesAndSum}
+ * followed by a checksum of the pseudo-header and header only, as TCP now does. The results are compared to check that
+ * the implementations agree.
+ * Args:
+ * s n,n,...   packet sizes (default 20,64,576,1460,9000,65535)
+ * b n         bytes to checksum per measurement (default 64MB)
+ * i n         number of iterations (default 5), the first is treated as warm up
+ *
+ * @author Mick Jordan
+ *
+ */
+public class PacketChecksumBenchmark {
+
+    private static final int HEADER = 20;
+
+    public static void main(String[] args) {
+        int[] sizes = {20, 64, 576, 1460, 9000, 65535};
+        long bytes = 64 * 1024 * 1024;
+        int iterations = 5;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("s")) {
+                final String[] s = args[++i].split(",");
+                sizes = new int[s.length];
+                for (int j = 0; j < s.length; j++) {
+                    sizes[j] = Integer.parseInt(s[j]);
+                }
+            } else if (arg.equals("b")) {
+                bytes = Long.parseLong(args[++i]);
+            } else if (arg.equals("i")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        for (int size : sizes) {
+            final byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            final Packet pkt = Packet.get(12, HEADER + size);
+            pkt.putInt(0x00060000 | (HEADER + size), -12);
+            pkt.putInt(0x0a000001, -8);
+            pkt.putInt(0x0a000002, -4);
+            final int reps = (int) Math.max(1, bytes / size);
+            final String[] names = {"bytes", "ocsum", "copy+cksum", "fused"};
+            final double[] best = new double[names.length];
+            final int[] results = new int[names.length];
+            for (int iter = 0; iter < iterations; iter++) {
+                for (int m = 0; m < names.length; m++) {
+                    int result = 0;
+                    final long start = System.nanoTime();
+                    for (int r = 0; r < reps; r++) {
+                        result = measure(m, pkt, data);
+                    }
+                    final long time = System.nanoTime() - start;
+                    final double rate = ((double) reps * size / (1024 * 1024)) / (time / 1e9);
+                    if (iter > 0 || iterations == 1) {
+                        best[m] = Math.max(best[m], rate);
+                    }
+                    results[m] = result;
+                }
+            }
+            final StringBuilder sb = new StringBuilder("size " + size + ":");
+            for (int m = 0; m < names.length; m++) {
+                sb.append(" ").append(names[m]).append(" ").append(Math.round(best[m])).append(" MB/s");
+                // the first two give the sum of the data, the others the checksum of the packet
+                if (results[m] != results[m & ~1]) {
+                    sb.append(" (MISMATCH ").append(Integer.toHexString(results[m])).append(")");
+                }
+                sb.append(",");
+            }
+            sb.setLength(sb.length() - 1);
+            System.out.println(sb);
+        }
+    }
+
+    private static int measure(int m, Packet pkt, byte[] data) {
+        switch (m) {
+            case 0:
+                return bytesChecksum(data, 0, data.length);
+            case 1:
+                return Packet.ocsum(data, 0, data.length);
+            case 2:
+                pkt.putBytes(data, 0, HEADER, data.length);
+                return pkt.cksum(-12, 12 + HEADER + data.length);
+            default:
+                final int dataSum = pkt.putBytesAndSum(data, 0, HEADER, data.length);
+                return pkt.cksum(-12, 12 + HEADER, dataSum);
+        }
+    }
+
+    /**
+     * The previous implementation of {@link Packet#ocsum}.
+     */
+    private static int bytesChecksum(byte[] buf, int off, int len) {
+        int sum = 0;
+        int i = 0;
+        while (len > 1) {
+            final int incr = ((buf[i + off] << 8) & 0xFF00) + (buf[i + off + 1] & 0xFF);
+            sum += incr;
+            i += 2;
+            len -= 2;
+        }
+        if (len > 0) {
+            sum += (buf[i + off] << 8) & 0xFF00;
+        }
+        while ((sum >> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.com.sun.max.ve.net;
+
+/**
+ * Checks the longest prefix match of {@link RouteTable} against a linear search of the same routes,
+ * for random routes and addresses, and measures the time for a lookup.
+ * Args:
+ * r n         number of routes (default 200)
+ * l n         number of lookups (default 1000000)
+ * s n         random seed (default 1)
+ *
+ * @author Mick Jordan
+ */
+
+import java.util.*;
+
+import com.sun.max.ve.net.ip.*;
+
+public class RouteTableTest {
+
+    public static void main(String[] args) {
+        int routes = 200;
+        int lookups = 1000000;
+        long seed = 1;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("r")) {
+                routes = Integer.parseInt(args[++i]);
+            } else if (arg.equals("l")) {
+                lookups = Integer.parseInt(args[++i]);
+            } else if (arg.equals("s")) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        final Random random = new Random(seed);
+        final RouteTable table = new RouteTable();
+        final List<RouteTable.Entry> entries = new ArrayList<RouteTable.Entry>();
+        entries.add(table.add(0, 0, 1, null));
+        for (int i = 0; i < routes; i++) {
+            // nest some routes within others
+            final int prefix = i > 0 && random.nextBoolean() ? entries.get(random.nextInt(entries.size())).getPrefix() | (random.nextInt() >>> 8) : random.nextInt();
+            addEntry(entries, table.add(prefix, 8 + random.nextInt(25), i + 2, null));
+        }
+        // replace and remove some
+        for (int i = 0; i < routes / 10; i++) {
+            final RouteTable.Entry entry = entries.get(1 + random.nextInt(entries.size() - 1));
+            removeEntry(entries, entry.getPrefix(), entry.getPrefixLength());
+            if (random.nextBoolean()) {
+                table.remove(entry.getPrefix(), entry.getPrefixLength());
+            } else {
+                addEntry(entries, table.add(entry.getPrefix(), entry.getPrefixLength(), -i, null));
+            }
+        }
+        final int[] addresses = new int[1024];
+        for (int i = 0; i < addresses.length; i++) {
+            final RouteTable.Entry entry = entries.get(random.nextInt(entries.size()));
+            addresses[i] = random.nextBoolean() ? entry.getPrefix() | (random.nextInt() & ~RouteTable.netmask(entry.getPrefixLength())) : random.nextInt();
+        }
+
+        int mismatches = 0;
+        for (int address : addresses) {
+            final RouteTable.Entry expected = linearLookup(entries, address);
+            final RouteTable.Entry actual = table.lookup(address);
+            if (expected != actual) {
+                mismatches++;
+                System.out.println("mismatch for " + IPAddress.toString(address) + ": expected " + expected + ", got " + actual);
+            }
+        }
+        System.out.println(entries.size() + " routes, " + addresses.length + " addresses, " + mismatches + " mismatches");
+
+        int sum = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            sum += table.lookup(addresses[i & (addresses.length - 1)]).getGateway();
+        }
+        final long time = System.nanoTime() - start;
+        System.out.println(lookups + " lookups, " + (time / lookups) + "ns per lookup (" + sum + ")");
+        if (mismatches != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Adding an existing prefix to the table replaces the route, so do the same in the list.
+     */
+    private static void addEntry(List<RouteTable.Entry> entries, RouteTable.Entry entry) {
+        removeEntry(entries, entry.getPrefix(), entry.getPrefixLength());
+        entries.add(entry);
+    }
+
+    private static void removeEntry(List<RouteTable.Entry> entries, int prefix, int prefixLength) {
+        for (Iterator<RouteTable.Entry> iter = entries.iterator(); iter.hasNext();) {
+            final RouteTable.Entry entry = iter.next();
+            if (entry.getPrefix() == (prefix & RouteTable.netmask(prefixLength)) && entry.getPrefixLength() == prefixLength) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static RouteTable.Entry linearLookup(List<RouteTable.Entry> entries, int address) {
+        RouteTable.Entry result = null;
+        for (RouteTable.Entry entry : entries) {
+            if ((address & RouteTable.netmask(entry.getPrefixLength())) == entry.getPrefix() &&
+                            (result == null || entry.getPrefixLength() > result.getPrefixLength())) {
+                result = entry;
+            }
+        }
+        return result;
+    }
+}
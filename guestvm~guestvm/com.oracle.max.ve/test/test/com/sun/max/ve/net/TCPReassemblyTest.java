@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.com.sun.max.ve.net;
+
+/**
+ * Tests {@link TCPReassemblyQueue} by delivering a byte stream as overlapping segments in random order.
+ * Segments at or before the next expected sequence number are taken in order, as TCP does, and the rest are
+ * queued. Checks that the stream comes out intact, that after each insertion the SACK blocks are exactly the
+ * runs of queued data, with the block holding the latest data first, and that data that is already queued,
+ * including data that exactly fills the space between two queued segments, adds nothing. Sequence numbers
+ * start just below the wrap.
+ * Args:
+ * n n         stream length (default 100000)
+ * m n         maximum segment length (default 1460)
+ * r n         number of runs (default 100)
+ * s n         random seed (default 1)
+ *
+ * @author Mick Jordan
+ */
+
+import java.util.*;
+
+import com.sun.max.ve.net.Packet;
+import com.sun.max.ve.net.tcp.*;
+
+public class TCPReassemblyTest {
+
+    private static final int ISN = 0xFFFFF000;
+    private static int _failures;
+
+    public static void main(String[] args) {
+        int length = 100000;
+        int maxSegment = 1460;
+        int runs = 100;
+        long seed = 1;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("n")) {
+                length = Integer.parseInt(args[++i]);
+            } else if (arg.equals("m")) {
+                maxSegment = Integer.parseInt(args[++i]);
+            } else if (arg.equals("r")) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (arg.equals("s")) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        checkTrimming();
+        final Random random = new Random(seed);
+        for (int run = 0; run < runs; run++) {
+            checkStream(random, length, maxSegment);
+        }
+        System.out.println(_failures == 0 ? "passed" : "failed: " + _failures);
+    }
+
+    /**
+     * Overlaps with known outcomes.
+     */
+    private static void checkTrimming() {
+        final byte[] stream = new byte[100];
+        for (int i = 0; i < stream.length; i++) {
+            stream[i] = (byte) i;
+        }
+        // room for three segments, so that a segment wrongly added by an insertion makes a later one fail
+        final TCPReassemblyQueue queue = new TCPReassemblyQueue(3);
+        final int[] edges = new int[2 * TCPReassemblyQueue.MAX_SACK_BLOCKS];
+        insert(queue, stream, 10, 20);
+        insert(queue, stream, 20, 30);
+        check(queue.sackBlocks(edges) == 1 && edges[0] == ISN + 10 && edges[1] == ISN + 30, "adjacent segments form one block");
+        // lies within the two queued segments and exactly abuts the end of the first
+        insert(queue, stream, 15, 25);
+        // covers a queued segment and extends beyond it at both ends
+        insert(queue, stream, 40, 50);
+        insert(queue, stream, 35, 55);
+        check(queue.sackBlocks(edges) == 2 && edges[0] == ISN + 35 && edges[1] == ISN + 55 && edges[2] == ISN + 10 && edges[3] == ISN + 30,
+                        "blocks after trimming");
+        // lies entirely within a queued segment
+        insert(queue, stream, 42, 48);
+        check(queue.sackBlocks(edges) == 2 && edges[0] == ISN + 35 && edges[1] == ISN + 55, "latest block first");
+        final byte[] out = new byte[stream.length];
+        check(deliver(queue, ISN + 10, out, 10) == 20, "deliver the first block");
+        check(queue.sackBlocks(edges) == 1 && edges[0] == ISN + 35 && edges[1] == ISN + 55, "block left after delivery");
+        check(deliver(queue, ISN + 35, out, 35) == 20, "deliver the second block");
+        check(queue.isEmpty(), "queue empty after delivery");
+        for (int i = 10; i < 30; i++) {
+            check(out[i] == stream[i], "data at " + i);
+        }
+        for (int i = 35; i < 55; i++) {
+            check(out[i] == stream[i], "data at " + i);
+        }
+    }
+
+    private static void checkStream(Random random, int length, int maxSegment) {
+        final byte[] stream = new byte[length];
+        random.nextBytes(stream);
+        final List<int[]> segments = new ArrayList<int[]>();
+        // cover the stream, then add some overlapping duplicates
+        for (int start = 0; start < length;) {
+            final int end = Math.min(length, start + 1 + random.nextInt(maxSegment));
+            segments.add(new int[] {start, end});
+            start = end;
+        }
+        final int duplicates = segments.size() / 4;
+        for (int i = 0; i < duplicates; i++) {
+            final int start = random.nextInt(length);
+            segments.add(new int[] {start, Math.min(length, start + 1 + random.nextInt(maxSegment))});
+        }
+        // mostly in order, with some segments held back and some moved ahead
+        for (int i = 0; i < segments.size(); i++) {
+            if (random.nextInt(4) == 0) {
+                final int j = Math.min(segments.size() - 1, i + random.nextInt(64));
+                Collections.swap(segments, i, j);
+            }
+        }
+
+        final TCPReassemblyQueue queue = new TCPReassemblyQueue(Integer.MAX_VALUE);
+        final int[] edges = new int[2 * TCPReassemblyQueue.MAX_SACK_BLOCKS];
+        final boolean[] queued = new boolean[length];
+        final byte[] out = new byte[length];
+        int next = 0;
+        for (int[] segment : segments) {
+            final int start = segment[0];
+            final int end = segment[1];
+            if (end <= next) {
+                continue;
+            }
+            if (start <= next) {
+                System.arraycopy(stream, next, out, next, end - next);
+                Arrays.fill(queued, next, end, false);
+                next = end;
+                next += deliver(queue, ISN + next, out, next);
+                Arrays.fill(queued, 0, next, false);
+            } else {
+                insert(queue, stream, start, end);
+                Arrays.fill(queued, start, end, true);
+                checkSackBlocks(queue, edges, queued, next, start);
+            }
+            check(queue.isEmpty() == !contains(queued, next), "isEmpty at " + next);
+        }
+        check(next == length, "delivered " + next + " of " + length);
+        check(queue.isEmpty(), "queue empty at end of stream");
+        check(Arrays.equals(stream, out), "stream data");
+    }
+
+    /**
+     * Checks that the blocks are distinct maximal runs of queued data and that the first holds {@code latest}.
+     * When there are fewer runs than blocks, every run must be reported.
+     */
+    private static void checkSackBlocks(TCPReassemblyQueue queue, int[] edges, boolean[] queued, int next, int latest) {
+        final int blocks = queue.sackBlocks(edges);
+        int runs = 0;
+        for (int i = next; i < queued.length; i++) {
+            if (queued[i] && (i == 0 || !queued[i - 1])) {
+                runs++;
+            }
+        }
+        check(blocks == Math.min(runs, TCPReassemblyQueue.MAX_SACK_BLOCKS), "blocks " + blocks + ", runs " + runs);
+        for (int b = 0; b < blocks; b++) {
+            final int left = edges[2 * b] - ISN;
+            final int right = edges[2 * b + 1] - ISN;
+            final boolean valid = left > next && left < right && right <= queued.length && !queued[left - 1] && (right == queued.length || !queued[right]);
+            check(valid && !contains(queued, left, right, false), "block " + b + " [" + left + ", " + right + ")");
+            for (int c = 0; c < b; c++) {
+                check(edges[2 * c] != edges[2 * b], "duplicate block " + b);
+            }
+        }
+        check(blocks > 0 && edges[0] - ISN <= latest && latest < edges[1] - ISN, "first block holds the latest data at " + latest);
+    }
+
+    private static void insert(TCPReassemblyQueue queue, byte[] stream, int start, int end) {
+        final Packet pkt = Packet.get(end - start);
+        pkt.putBytes(stream, start, 0, end - start);
+        check(queue.insert(ISN + start, pkt, end - start), "insert [" + start + ", " + end + ")");
+    }
+
+    private static int deliver(TCPReassemblyQueue queue, int rcvNxt, byte[] out, int offset) {
+        final TCPRecvQueue recvQueue = new TCPRecvQueue(out.length);
+        final int n = queue.deliver(rcvNxt, recvQueue);
+        check(recvQueue.read(out, offset, n) == n, "read delivered data");
+        return n;
+    }
+
+    private static boolean contains(boolean[] queued, int from) {
+        return contains(queued, from, queued.length, true);
+    }
+
+    private static boolean contains(boolean[] queued, int from, int to, boolean value) {
+        for (int i = from; i < to; i++) {
+            if (queued[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            if (_failures++ < 10) {
+                System.out.println("FAILED: " + what);
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@ import com.sun.max.ve.sched.priority.*;
  * r n      run m test for n seconds
  * t n      use n threads in m test (default 2)
  * p       test PriorityRunRunQueue (default RingRunQueue)
+ * x       test BitmapPriorityRunQueue
  *
  * @author Mick Jordan
  *
@@ -52,6 +53,7 @@ public class QueueTest {
         int numThreads = 2;
         int multiRunTime = 5;
         boolean priority = false;
+        boolean bitmap = false;
 
         // Checkstyle: stop modified control variable check
         for (int i = 0; i < args.length; i++) {
@@ -66,14 +68,26 @@ public class QueueTest {
                 multiRunTime = Integer.parseInt(args[++i]);
             } else if (arg.equals("p")) {
                 priority = true;
+            } else if (arg.equals("x")) {
+                bitmap = true;
             }
         }
         // Checkstyle: resume modified control variable check
         if (doBasicTest) {
-            basicTest(priority ? new MyPQueue<ListStringEntry>(Thread.MIN_PRIORITY, Thread.MAX_PRIORITY) : new MyQueue<ListStringEntry>());
+            basicTest(createQueue(priority, bitmap));
         }
         if (doMultiTest) {
-            multiThreadTest(numThreads, multiRunTime, priority ? new MyPQueue<ListStringEntry>(Thread.MIN_PRIORITY, Thread.MAX_PRIORITY) : new MyQueue<ListStringEntry>());
+            multiThreadTest(numThreads, multiRunTime, createQueue(priority, bitmap));
+        }
+    }
+
+    private static RunQueue<ListStringEntry> createQueue(boolean priority, boolean bitmap) {
+        if (bitmap) {
+            return new MyBQueue<ListStringEntry>(Thread.MIN_PRIORITY, Thread.MAX_PRIORITY);
+        } else if (priority) {
+            return new MyPQueue<ListStringEntry>(Thread.MIN_PRIORITY, Thread.MAX_PRIORITY);
+        } else {
+            return new MyQueue<ListStringEntry>();
         }
     }
 
@@ -227,6 +241,15 @@ public class QueueTest {
         }
     }
 
+    static class MyBQueue<T extends BitmapPriorityRunQueueEntry> extends BitmapPriorityRunQueue<T>  {
+
+        MyBQueue(int min, int max) {
+            super(min, max);
+            buildtimeInitialize();
+            runtimeInitialize();
+        }
+    }
+
     static class StringEntry {
         String _id;
         int _priority;
@@ -245,9 +268,10 @@ public class QueueTest {
         }
     }
 
-    static class ListStringEntry extends StringEntry implements PriorityRingRunQueueEntry {
+    static class ListStringEntry extends StringEntry implements BitmapPriorityRunQueueEntry {
         private RingRunQueueEntry _next;
         private RingRunQueueEntry _prev;
+        private int _level;
 
         public ListStringEntry(String id, int value) {
             super(id, value);
@@ -284,6 +308,14 @@ public class QueueTest {
             return _priority;
         }
 
+        public int getLevel() {
+            return _level;
+        }
+
+        public void setLevel(int level) {
+            _level = level;
+        }
+
     }
 
 
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.com.sun.max.ve.sched;
+
+import java.util.*;
+
+import com.sun.max.ve.sched.*;
+import test.com.sun.max.ve.sched.QueueTest.*;
+
+/**
+ * Compares the cost of the scheduler's run queue operations for the RingRunQueue, PriorityRingRunQueue and
+ * BitmapPriorityRunQueue implementations with many runnable threads. Each step does what the scheduler does on a
+ * reschedule, block and wake: head, next, moveHeadToEnd, remove of a random entry, insert and size.
+ * Args:
+ * n n      number of queued entries (default 1000)
+ * s n      number of steps (default 1000000)
+ * i n      number of iterations (default 5)
+ *
+ * @author Mick Jordan
+ *
+ */
+public class RunQueueBenchmark {
+
+    public static void main(String[] args) {
+        int entries = 1000;
+        int steps = 1000000;
+        int iterations = 5;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("n")) {
+                entries = Integer.parseInt(args[++i]);
+            } else if (arg.equals("s")) {
+                steps = Integer.parseInt(args[++i]);
+            } else if (arg.equals("i")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        final Random rand = new Random(46737);
+        final ListStringEntry[] elements = new ListStringEntry[entries];
+        for (int i = 0; i < entries; i++) {
+            elements[i] = new ListStringEntry("thread" + i, rand.nextInt(Thread.MAX_PRIORITY) + 1);
+        }
+        for (int iter = 0; iter < iterations; iter++) {
+            run("ring", new MyQueue<ListStringEntry>(), elements, steps);
+            run("priority ring", new MyPQueue<ListStringEntry>(Thread.MIN_PRIORITY, Thread.MAX_PRIORITY), elements, steps);
+            run("bitmap", new MyBQueue<ListStringEntry>(Thread.MIN_PRIORITY, Thread.MAX_PRIORITY), elements, steps);
+        }
+    }
+
+    private static void run(String name, RunQueue<ListStringEntry> q, ListStringEntry[] elements, int steps) {
+        final Random rand = new Random(3672);
+        for (ListStringEntry e : elements) {
+            q.insert(e);
+        }
+        long sum = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            q.lock();
+            if (q.head() != null && q.next() != null) {
+                sum++;
+            }
+            q.moveHeadToEnd();
+            final ListStringEntry e = elements[rand.nextInt(elements.length)];
+            q.remove(e);
+            q.insert(e);
+            sum += q.size();
+            q.unlock();
+        }
+        final long time = System.nanoTime() - start;
+        int count = 0;
+        while (!q.empty()) {
+            q.remove(q.head());
+            count++;
+        }
+        if (count != elements.length || !q.empty()) {
+            System.out.println(name + ": queue has " + count + " entries, expected " + elements.length);
+        }
+        System.out.println(name + ": " + time / steps + " ns/step (" + sum + ")");
+    }
+}
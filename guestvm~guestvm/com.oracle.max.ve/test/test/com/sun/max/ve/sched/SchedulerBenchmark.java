@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.com.sun.max.ve.sched;
+
+import com.sun.max.ve.sched.*;
+import com.sun.max.ve.sched.steal.*;
+
+/**
+ * A scheduler benchmark that mixes compute-bound threads with pairs of threads that hand a token
+ * back and forth with {@code wait/notify}. It reports compute throughput, handoff rate and the
+ * latency from a notify to the notified thread running. If the image was built with the
+ * {@link WorkStealingScheduler}, its per-CPU statistics are also reported.
+ *
+ * To compare schedulers, run it in images built with and without
+ * {@code -Dmax.ve.scheduler.factory.class=com.sun.max.ve.sched.steal.WorkStealingSchedulerFactory},
+ * on guests with a range of vCPU counts.
+ *
+ * Args:
+ * <pre>
+ * c n      number of compute threads (default 2 * available processors)
+ * p n      number of handoff pairs (default available processors)
+ * w n      work units per compute iteration (default 10000)
+ * d n      duration in seconds (default 10)
+ * </pre>
+ *
+ * @author Mick Jordan
+ *
+ */
+public class SchedulerBenchmark {
+
+    private static volatile boolean _done;
+
+    public static void main(String[] args) throws Exception {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        int computeThreads = 2 * cpus;
+        int pairs = cpus;
+        int work = 10000;
+        int duration = 10;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("c")) {
+                computeThreads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("p")) {
+                pairs = Integer.parseInt(args[++i]);
+            } else if (arg.equals("w")) {
+                work = Integer.parseInt(args[++i]);
+            } else if (arg.equals("d")) {
+                duration = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+
+        final Compute[] computes = new Compute[computeThreads];
+        for (int i = 0; i < computeThreads; i++) {
+            computes[i] = new Compute(work);
+        }
+        final Pair[] pairArray = new Pair[pairs];
+        for (int i = 0; i < pairs; i++) {
+            pairArray[i] = new Pair();
+        }
+        final Thread[] threads = new Thread[computeThreads + 2 * pairs];
+        int t = 0;
+        for (Compute compute : computes) {
+            threads[t++] = new Thread(compute, "compute-" + t);
+        }
+        for (Pair pair : pairArray) {
+            threads[t++] = new Thread(pair.side(0), "ping-" + t);
+            threads[t++] = new Thread(pair.side(1), "pong-" + t);
+        }
+        final long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(duration * 1000L);
+        _done = true;
+        for (Pair pair : pairArray) {
+            pair.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        long iterations = 0;
+        for (Compute compute : computes) {
+            iterations += compute._iterations;
+        }
+        long handoffs = 0;
+        long latencyTotal = 0;
+        long latencyMax = 0;
+        for (Pair pair : pairArray) {
+            handoffs += pair._handoffs;
+            latencyTotal += pair._latencyTotal;
+            latencyMax = Math.max(latencyMax, pair._latencyMax);
+        }
+        System.out.println("cpus " + cpus + ", compute threads " + computeThreads + ", pairs " + pairs + ", " + String.format("%.1f", seconds) + " s");
+        System.out.println("compute iterations/s " + (long) (iterations / seconds));
+        System.out.println("handoffs/s " + (long) (handoffs / seconds));
+        if (handoffs > 0) {
+            System.out.println("wake latency avg " + latencyTotal / handoffs / 1000 + " us, max " + latencyMax / 1000 + " us");
+        }
+        printSchedulerStats();
+    }
+
+    private static void printSchedulerStats() {
+        final Scheduler scheduler = SchedulerFactory.scheduler();
+        if (scheduler instanceof WorkStealingScheduler) {
+            final WorkStealingScheduler ws = (WorkStealingScheduler) scheduler;
+            System.out.println("cpu  schedules  steals  stolen  affine-wakes  moved-wakes");
+            for (int cpu = 0; cpu < ws.numCpus(); cpu++) {
+                System.out.println(String.format("%3d %10d %7d %7d %13d %12d", cpu, ws.getSchedules(cpu), ws.getSteals(cpu),
+                                ws.getStolen(cpu), ws.getAffineWakes(cpu), ws.getMovedWakes(cpu)));
+            }
+        }
+    }
+
+    static class Compute implements Runnable {
+        private final int _work;
+        long _iterations;
+        long _result;
+
+        Compute(int work) {
+            _work = work;
+        }
+
+        public void run() {
+            long x = _iterations;
+            while (!_done) {
+                for (int i = 0; i < _work; i++) {
+                    x = x * 6364136223846793005L + 1442695040888963407L;
+                }
+                _iterations++;
+            }
+            _result = x;
+        }
+    }
+
+    /**
+     * Two threads that pass a token back and forth. The notifier records the time of the notify,
+     * which the woken thread uses to measure its wake latency.
+     */
+    static class Pair {
+        private int _turn;
+        private long _notifyTime;
+        private boolean _stopped;
+        long _handoffs;
+        long _latencyTotal;
+        long _latencyMax;
+
+        synchronized void stop() {
+            _stopped = true;
+            notifyAll();
+        }
+
+        Runnable side(final int side) {
+            return new Runnable() {
+                public void run() {
+                    handoff(side);
+                }
+            };
+        }
+
+        private synchronized void handoff(int side) {
+            while (!_stopped) {
+                while (_turn != side && !_stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (_stopped) {
+                    return;
+                }
+                if (_notifyTime != 0) {
+                    final long latency = System.nanoTime() - _notifyTime;
+                    _latencyTotal += latency;
+                    if (latency > _latencyMax) {
+                        _latencyMax = latency;
+                    }
+                    _handoffs++;
+                }
+                _turn = 1 - side;
+                _notifyTime = System.nanoTime();
+                notify();
+            }
+        }
+    }
+}
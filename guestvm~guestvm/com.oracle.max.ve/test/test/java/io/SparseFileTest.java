@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.java.io;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Tests large, sparse and concurrently written files, intended for the heap file system.
+ * A file is written at offsets either side of 2GB, the holes are checked to read as zero
+ * and the file is truncated and re-extended. Then a number of threads each write and verify
+ * their own file through a {@link FileChannel}, using direct or heap buffers.
+ *
+ * Args:
+ * <pre>
+ * root p   directory for the files (default /tmp)
+ * o n      offset of the high write in MB (default 3072)
+ * t n      number of writer threads (default 4)
+ * s n      size of each writer's file in KB (default 1024)
+ * b n      buffer size for writes in bytes (default 8192)
+ * h        use heap rather than direct buffers
+ * v        verbose output
+ * </pre>
+ *
+ * @author Mick Jordan
+ *
+ */
+public class SparseFileTest {
+
+    private static String _rootName = "/tmp";
+    private static long _highOffset = 3072L * 1024 * 1024;
+    private static int _fileSize = 1024 * 1024;
+    private static int _bufSize = 8192;
+    private static boolean _direct = true;
+    private static boolean _verbose;
+    private static int _errors;
+
+    public static void main(String[] args) throws Exception {
+        int numThreads = 4;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("root")) {
+                _rootName = args[++i];
+            } else if (arg.equals("o")) {
+                _highOffset = Long.parseLong(args[++i]) * 1024 * 1024;
+            } else if (arg.equals("t")) {
+                numThreads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("s")) {
+                _fileSize = Integer.parseInt(args[++i]) * 1024;
+            } else if (arg.equals("b")) {
+                _bufSize = Integer.parseInt(args[++i]);
+            } else if (arg.equals("h")) {
+                _direct = false;
+            } else if (arg.equals("v")) {
+                _verbose = true;
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+
+        sparseTest(new File(_rootName, "sparse"));
+
+        final Writer[] writers = new Writer[numThreads];
+        final long start = System.nanoTime();
+        for (int t = 0; t < numThreads; t++) {
+            writers[t] = new Writer(new File(_rootName, "writer" + t), t);
+            writers[t].start();
+        }
+        for (Writer writer : writers) {
+            writer.join();
+        }
+        final long time = (System.nanoTime() - start) / 1000000;
+        System.out.println(numThreads + " writers wrote and read " + ((long) numThreads * _fileSize / 1024) + "KB in " + time + "ms");
+        System.out.println(_errors == 0 ? "PASSED" : "FAILED: " + _errors + " errors");
+    }
+
+    private static synchronized void error(String msg) {
+        System.out.println("ERROR: " + msg);
+        _errors++;
+    }
+
+    private static void check(boolean ok, String msg) {
+        if (!ok) {
+            error(msg);
+        } else if (_verbose) {
+            System.out.println("ok: " + msg);
+        }
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        final byte[] result = new byte[length];
+        new Random(seed).nextBytes(result);
+        return result;
+    }
+
+    private static byte[] read(RandomAccessFile raf, long offset, int length) throws IOException {
+        final byte[] result = new byte[length];
+        raf.seek(offset);
+        raf.readFully(result);
+        return result;
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sparseTest(File file) throws IOException {
+        file.delete();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final byte[] low = pattern(5000, 1);
+            final byte[] high = pattern(70000, 2);
+            final long mid = Integer.MAX_VALUE - 100;
+            raf.seek(100);
+            raf.write(low);
+            raf.seek(mid);
+            raf.write(low);
+            raf.seek(_highOffset);
+            raf.write(high);
+            check(raf.length() == _highOffset + high.length, "length after high write " + raf.length());
+            check(Arrays.equals(read(raf, 100, low.length), low), "low data");
+            check(Arrays.equals(read(raf, mid, low.length), low), "data across 2GB");
+            check(Arrays.equals(read(raf, _highOffset, high.length), high), "high data");
+            check(isZero(read(raf, 0, 100)), "hole before low data");
+            check(isZero(read(raf, 1024 * 1024, 65536)), "hole after low data");
+            check(isZero(read(raf, _highOffset - 65536, 65536)), "hole before high data");
+            raf.seek(_highOffset + 17);
+            check(raf.read() == (high[17] & 0xFF), "single byte read");
+
+            // truncate into the middle of the low data, then extend again
+            raf.setLength(2000);
+            check(raf.length() == 2000, "length after truncate " + raf.length());
+            raf.setLength(_highOffset);
+            check(raf.length() == _highOffset, "length after extend " + raf.length());
+            final byte[] lowAgain = read(raf, 100, low.length);
+            check(Arrays.equals(Arrays.copyOf(lowAgain, 1900), Arrays.copyOf(low, 1900)), "low data after truncate");
+            check(isZero(Arrays.copyOfRange(lowAgain, 1900, low.length)), "truncated data reads as zero");
+            check(isZero(read(raf, mid, low.length)), "truncated data across 2GB reads as zero");
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    static class Writer extends Thread {
+        private final File _file;
+        private final int _seed;
+
+        Writer(File file, int seed) {
+            _file = file;
+            _seed = seed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                _file.delete();
+                final byte[] data = pattern(_fileSize, _seed);
+                final ByteBuffer bb = _direct ? ByteBuffer.allocateDirect(_bufSize) : ByteBuffer.allocate(_bufSize);
+                final FileOutputStream out = new FileOutputStream(_file);
+                final FileChannel wc = out.getChannel();
+                for (int offset = 0; offset < data.length; offset += _bufSize) {
+                    bb.clear();
+                    bb.put(data, offset, Math.min(_bufSize, data.length - offset));
+                    bb.flip();
+                    while (bb.hasRemaining()) {
+                        wc.write(bb);
+                    }
+                }
+                out.close();
+                check(_file.length() == data.length, _file + " length " + _file.length());
+
+                final FileInputStream in = new FileInputStream(_file);
+                final FileChannel rc = in.getChannel();
+                final byte[] readBack = new byte[data.length];
+                int offset = 0;
+                while (true) {
+                    bb.clear();
+                    final int n = rc.read(bb);
+                    if (n < 0) {
+                        break;
+                    }
+                    bb.flip();
+                    bb.get(readBack, offset, n);
+                    offset += n;
+                }
+                in.close();
+                check(offset == data.length && Arrays.equals(readBack, data), _file + " content");
+            } catch (IOException ex) {
+                error(_file + ": " + ex);
+            } finally {
+                _file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.java.nio;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Measures the throughput of an NIO {@link Pipe} between a writer and a reader thread and checks the
+ * data that arrives. The reader either blocks or uses a {@link Selector} on a non-blocking source.
+ *
+ * Args:
+ * <pre>
+ * m n      megabytes to transfer (default 64)
+ * w n      write size in bytes (default 8192)
+ * r n      read buffer size in bytes (default 8192)
+ * i n      number of iterations (default 1)
+ * s        reader uses a selector
+ * d        use direct buffers
+ * </pre>
+ *
+ * @author Mick Jordan
+ *
+ */
+public class PipeThroughputTest {
+
+    private static final int PATTERN_SIZE = 1 << 16;
+    private static final byte[] _pattern = new byte[PATTERN_SIZE];
+
+    private static int _writeSize = 8192;
+    private static int _readSize = 8192;
+    private static boolean _select;
+    private static boolean _direct;
+
+    public static void main(String[] args) throws Exception {
+        long total = 64 * 1024 * 1024;
+        int iterations = 1;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("m")) {
+                total = Long.parseLong(args[++i]) * 1024 * 1024;
+            } else if (arg.equals("w")) {
+                _writeSize = Integer.parseInt(args[++i]);
+            } else if (arg.equals("r")) {
+                _readSize = Integer.parseInt(args[++i]);
+            } else if (arg.equals("i")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (arg.equals("s")) {
+                _select = true;
+            } else if (arg.equals("d")) {
+                _direct = true;
+            } else {
+                System.out.println("unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        new Random(4637).nextBytes(_pattern);
+        boolean ok = true;
+        for (int i = 0; i < iterations; i++) {
+            ok &= transfer(total);
+        }
+        System.out.println(ok ? "PASSED" : "FAILED");
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return _direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static boolean transfer(final long total) throws Exception {
+        final Pipe pipe = Pipe.open();
+        final Reader reader = new Reader(pipe.source());
+        reader.start();
+        final long start = System.nanoTime();
+        final Pipe.SinkChannel sink = pipe.sink();
+        final ByteBuffer bb = allocate(_writeSize);
+        int patternIndex = 0;
+        long written = 0;
+        while (written < total) {
+            bb.clear();
+            final int n = (int) Math.min(_writeSize, total - written);
+            for (int i = 0; i < n; i++) {
+                bb.put(_pattern[patternIndex]);
+                patternIndex = (patternIndex + 1) & (PATTERN_SIZE - 1);
+            }
+            bb.flip();
+            while (bb.hasRemaining()) {
+                sink.write(bb);
+            }
+            written += n;
+        }
+        sink.close();
+        reader.join();
+        final long time = (System.nanoTime() - start) / 1000000;
+        final boolean ok = reader._read == total && reader._ok;
+        System.out.println("transferred " + reader._read + " bytes in " + time + "ms, " +
+                        (time == 0 ? 0 : total * 1000 / 1024 / 1024 / time) + " MB/s" + (ok ? "" : ", data mismatch"));
+        return ok;
+    }
+
+    static class Reader extends Thread {
+        private final Pipe.SourceChannel _source;
+        long _read;
+        boolean _ok = true;
+
+        Reader(Pipe.SourceChannel source) {
+            _source = source;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Selector selector = null;
+                if (_select) {
+                    _source.configureBlocking(false);
+                    selector = Selector.open();
+                    _source.register(selector, SelectionKey.OP_READ);
+                }
+                final ByteBuffer bb = allocate(_readSize);
+                int patternIndex = 0;
+                while (true) {
+                    if (selector != null) {
+                        selector.select();
+                        selector.selectedKeys().clear();
+                    }
+                    bb.clear();
+                    final int n = _source.read(bb);
+                    if (n < 0) {
+                        break;
+                    }
+                    bb.flip();
+                    while (bb.hasRemaining()) {
+                        if (bb.get() != _pattern[patternIndex]) {
+                            _ok = false;
+                        }
+                        patternIndex = (patternIndex + 1) & (PATTERN_SIZE - 1);
+                    }
+                    _read += n;
+                }
+                _source.close();
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (Exception ex) {
+                System.out.println(ex);
+                _ok = false;
+            }
+        }
+    }
+}
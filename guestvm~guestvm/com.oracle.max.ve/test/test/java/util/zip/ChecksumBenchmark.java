@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.java.util.zip;
+
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Measures the throughput of {@link CRC32} and {@link Adler32} per thread.
+ *
+ * Usage: [c crc|adler] [s buffer-size] [m megabytes] [t threads] [w warmup-iterations] [i iterations] [u] [v]
+ *
+ * Each thread checksums its own buffer until it has processed the given number of megabytes per iteration.
+ * "u" uses the single byte {@code update(int)} method instead of {@code update(byte[], int, int)}.
+ * The best and mean rates per thread are reported; with more threads than cores the per thread rate
+ * will drop accordingly, so compare runs with one thread per core.
+ *
+ */
+public class ChecksumBenchmark {
+
+    private static boolean _verbose;
+
+    public static void main(String[] args) throws Exception {
+        String checksum = "crc";
+        int size = 64 * 1024;
+        int megabytes = 64;
+        int threads = 1;
+        int warmup = 3;
+        int iterations = 5;
+        boolean singleByte = false;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("c")) {
+                checksum = args[++i];
+            } else if (arg.equals("s")) {
+                size = Integer.parseInt(args[++i]);
+            } else if (arg.equals("m")) {
+                megabytes = Integer.parseInt(args[++i]);
+            } else if (arg.equals("t")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("w")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (arg.equals("i")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (arg.equals("u")) {
+                singleByte = true;
+            } else if (arg.equals("v")) {
+                _verbose = true;
+            }
+        }
+        // Checkstyle: resume modified control variable check
+
+        final Worker[] workers = new Worker[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Worker(checksum, size, (long) megabytes * 1024 * 1024, warmup + iterations, singleByte);
+        }
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        double best = 0;
+        double total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            final double[] rates = workers[t]._rates;
+            for (int i = warmup; i < rates.length; i++) {
+                if (_verbose) {
+                    System.out.println("thread " + t + ", iteration " + (i - warmup) + ": " + format(rates[i]) + " MB/s");
+                }
+                best = Math.max(best, rates[i]);
+                total += rates[i];
+            }
+            if (workers[t]._value != workers[0]._value) {
+                System.out.println("thread " + t + ": checksum mismatch " + Long.toHexString(workers[t]._value));
+            }
+        }
+        System.out.println(checksum + (singleByte ? " update(int)" : " update(byte[])") + ", buffer " + size + ", threads " + threads +
+                        ": best " + format(best) + " MB/s, mean " + format(total / (threads * iterations)) + " MB/s per thread, checksum " +
+                        Long.toHexString(workers[0]._value));
+    }
+
+    private static String format(double rate) {
+        return Long.toString(Math.round(rate * 10) / 10) + "." + (Math.round(rate * 10) % 10);
+    }
+
+    static class Worker extends Thread {
+        private final Checksum _checksum;
+        private final byte[] _buffer;
+        private final long _bytes;
+        private final boolean _singleByte;
+        final double[] _rates;
+        long _value;
+
+        Worker(String checksum, int size, long bytes, int runs, boolean singleByte) {
+            _checksum = checksum.equals("adler") ? new Adler32() : new CRC32();
+            _buffer = new byte[size];
+            new Random(size).nextBytes(_buffer);
+            _bytes = bytes;
+            _singleByte = singleByte;
+            _rates = new double[runs];
+        }
+
+        @Override
+        public void run() {
+            for (int r = 0; r < _rates.length; r++) {
+                _checksum.reset();
+                final long start = System.nanoTime();
+                long done = 0;
+                while (done < _bytes) {
+                    if (_singleByte) {
+                        for (int i = 0; i < _buffer.length; i++) {
+                            _checksum.update(_buffer[i]);
+                        }
+                    } else {
+                        _checksum.update(_buffer, 0, _buffer.length);
+                    }
+                    done += _buffer.length;
+                }
+                final long elapsed = System.nanoTime() - start;
+                _rates[r] = (done / (1024.0 * 1024.0)) / (elapsed / 1e9);
+                _value = _checksum.getValue();
+            }
+        }
+    }
+}
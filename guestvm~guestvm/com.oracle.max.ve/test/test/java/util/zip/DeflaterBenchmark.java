@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.java.util.zip;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Measures deflate throughput and compression ratio over a corpus, comparing {@link gnu.java.util.zip.Deflater}
+ * with whatever implements {@link java.util.zip.Deflater} (the GNU version when running on Maxine VE, zlib on a host VM).
+ *
+ * Usage: [f file ...] [j jarfile ...] [l level ...] [w warmup-iterations] [i iterations] [r] [v]
+ *
+ * The corpus is the given files plus the contents of every entry of the given jar files, held in memory.
+ * Each iteration compresses every item once, at each of the given levels (default 1, 6 and 9).
+ * "r" reuses one deflater per level, calling reset() between items, rather than creating one per item.
+ * The output of the GNU deflater is checked by inflating it with {@link java.util.zip.Inflater}.
+ *
+ */
+public class DeflaterBenchmark {
+
+    private static boolean _verbose;
+
+    public static void main(String[] args) throws Exception {
+        final List<byte[]> corpus = new ArrayList<byte[]>();
+        final List<Integer> levels = new ArrayList<Integer>();
+        int warmup = 3;
+        int iterations = 5;
+        boolean reuse = false;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("f")) {
+                corpus.add(readFile(args[++i]));
+            } else if (arg.equals("j")) {
+                readJar(args[++i], corpus);
+            } else if (arg.equals("l")) {
+                levels.add(Integer.parseInt(args[++i]));
+            } else if (arg.equals("w")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (arg.equals("i")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (arg.equals("r")) {
+                reuse = true;
+            } else if (arg.equals("v")) {
+                _verbose = true;
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        if (corpus.isEmpty()) {
+            throw new IOException("usage: [f file ...] [j jarfile ...] [l level ...] [w warmup] [i iterations] [r] [v]");
+        }
+        if (levels.isEmpty()) {
+            levels.add(1);
+            levels.add(6);
+            levels.add(9);
+        }
+        long totalSize = 0;
+        for (byte[] item : corpus) {
+            totalSize += item.length;
+        }
+        System.out.println("corpus: " + corpus.size() + " items, " + totalSize + " bytes");
+
+        for (int level : levels) {
+            run("gnu", true, level, reuse, corpus, totalSize, warmup, iterations);
+            run("java.util.zip", false, level, reuse, corpus, totalSize, warmup, iterations);
+        }
+    }
+
+    private static byte[] readFile(String fileName) throws IOException {
+        final File file = new File(fileName);
+        final byte[] data = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void readJar(String fileName, List<byte[]> corpus) throws IOException {
+        final ZipFile zipFile = new ZipFile(fileName);
+        try {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry zipEntry = entries.nextElement();
+                if (zipEntry.isDirectory() || zipEntry.getSize() == 0) {
+                    continue;
+                }
+                final byte[] data = new byte[(int) zipEntry.getSize()];
+                final DataInputStream in = new DataInputStream(zipFile.getInputStream(zipEntry));
+                try {
+                    in.readFully(data);
+                } finally {
+                    in.close();
+                }
+                corpus.add(data);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static void run(String label, boolean gnu, int level, boolean reuse, List<byte[]> corpus, long totalSize, int warmup, int iterations) throws Exception {
+        final byte[] output = new byte[64 * 1024];
+        long compressedSize = 0;
+        for (int i = 0; i < warmup; i++) {
+            compressedSize = deflateAll(gnu, level, reuse, corpus, output, i == 0 && gnu);
+        }
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            compressedSize = deflateAll(gnu, level, reuse, corpus, output, false);
+            final long time = System.nanoTime() - start;
+            total += time;
+            if (time < best) {
+                best = time;
+            }
+            if (_verbose) {
+                System.out.println(label + " level " + level + " iteration " + i + ": " + time / 1000 + "us");
+            }
+        }
+        System.out.println(label + " level " + level + ": best " + mbs(totalSize, best) + " MB/s, mean " + mbs(totalSize, total / iterations) +
+                        " MB/s, ratio " + (compressedSize * 1000 / totalSize) / 10.0 + "%");
+    }
+
+    private static String mbs(long bytes, long nanos) {
+        return Long.toString(bytes * 1000 / (nanos / 1000 + 1) / (1024 * 1024 / 1000));
+    }
+
+    /**
+     * Compresses every item of the corpus, returning the total compressed size.
+     * If {@code check} is set the output is kept and inflated to check it.
+     */
+    private static long deflateAll(boolean gnu, int level, boolean reuse, List<byte[]> corpus, byte[] output, boolean check) throws Exception {
+        long compressedSize = 0;
+        gnu.java.util.zip.Deflater gnuDeflater = null;
+        Deflater deflater = null;
+        for (byte[] item : corpus) {
+            if (!reuse || (gnu ? gnuDeflater == null : deflater == null)) {
+                if (gnu) {
+                    gnuDeflater = new gnu.java.util.zip.Deflater(level);
+                } else {
+                    deflater = new Deflater(level);
+                }
+            }
+            final ByteArrayOutputStream checkOutput = check ? new ByteArrayOutputStream() : null;
+            if (gnu) {
+                gnuDeflater.setInput(item);
+                gnuDeflater.finish();
+                while (!gnuDeflater.finished()) {
+                    final int n = gnuDeflater.deflate(output);
+                    compressedSize += n;
+                    if (check) {
+                        checkOutput.write(output, 0, n);
+                    }
+                }
+            } else {
+                deflater.setInput(item);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressedSize += deflater.deflate(output);
+                }
+            }
+            if (reuse) {
+                if (gnu) {
+                    gnuDeflater.reset();
+                } else {
+                    deflater.reset();
+                }
+            } else {
+                if (gnu) {
+                    gnuDeflater.end();
+                } else {
+                    deflater.end();
+                }
+            }
+            if (check) {
+                checkInflate(item, checkOutput.toByteArray());
+            }
+        }
+        if (reuse) {
+            if (gnu) {
+                gnuDeflater.end();
+            } else {
+                deflater.end();
+            }
+        }
+        return compressedSize;
+    }
+
+    private static void checkInflate(byte[] item, byte[] compressed) throws Exception {
+        final Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        final byte[] result = new byte[item.length + 1];
+        int n = 0;
+        while (!inflater.finished()) {
+            final int r = inflater.inflate(result, n, result.length - n);
+            if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            n += r;
+        }
+        if (n != item.length || !inflater.finished() || !Arrays.equals(item, Arrays.copyOf(result, n))) {
+            throw new DataFormatException("deflated data does not inflate to the original " + item.length + " bytes");
+        }
+        inflater.end();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package test.java.util.zip;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Measures inflate throughput over the deflated entries of a corpus of jar files,
+ * comparing {@link gnu.java.util.zip.Inflater} with whatever implements {@link java.util.zip.Inflater}
+ * (the GNU version when running on Maxine VE, zlib on a host VM).
+ *
+ * Usage: f jarfile [f jarfile ...] [w warmup-iterations] [i iterations] [bb] [v]
+ *
+ * Each iteration inflates every entry once, from a byte array held in memory, so only the
+ * inflater is measured. "bb" uses the direct ByteBuffer path of the GNU inflater.
+ * Every result is checked against the entry size and CRC.
+ *
+ */
+public class InflaterBenchmark {
+
+    private static boolean _verbose;
+
+    private static class Entry {
+        final String _name;
+        final byte[] _compressed;
+        final int _size;
+        final long _crc;
+
+        Entry(String name, byte[] compressed, int size, long crc) {
+            _name = name;
+            _compressed = compressed;
+            _size = size;
+            _crc = crc;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final List<String> fileNames = new ArrayList<String>();
+        int warmup = 5;
+        int iterations = 10;
+        boolean byteBuffer = false;
+        // Checkstyle: stop modified control variable check
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("f")) {
+                fileNames.add(args[++i]);
+            } else if (arg.equals("w")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (arg.equals("i")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (arg.equals("bb")) {
+                byteBuffer = true;
+            } else if (arg.equals("v")) {
+                _verbose = true;
+            }
+        }
+        // Checkstyle: resume modified control variable check
+        if (fileNames.isEmpty()) {
+            throw new IOException("usage: f jarfile [f jarfile ...] [w warmup] [i iterations] [bb] [v]");
+        }
+
+        final List<Entry> corpus = new ArrayList<Entry>();
+        long totalSize = 0;
+        for (String fileName : fileNames) {
+            totalSize += readCorpus(fileName, corpus);
+        }
+        System.out.println("corpus: " + corpus.size() + " entries, " + totalSize + " bytes uncompressed");
+
+        run("gnu", corpus, totalSize, warmup, iterations, byteBuffer ? 2 : 1);
+        run("java.util.zip", corpus, totalSize, warmup, iterations, 0);
+    }
+
+    /**
+     * Reads the raw deflated data of each entry, by walking the local headers of the file.
+     */
+    private static long readCorpus(String fileName, List<Entry> corpus) throws IOException {
+        final ZipFile zipFile = new ZipFile(fileName);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        long totalSize = 0;
+        try {
+            while (Integer.reverseBytes(in.readInt()) == 0x04034b50) {
+                skip(in, 2);
+                final int flags = Short.reverseBytes(in.readShort());
+                final int method = Short.reverseBytes(in.readShort());
+                skip(in, 16);
+                final int nameLen = Short.reverseBytes(in.readShort()) & 0xFFFF;
+                final int extraLen = Short.reverseBytes(in.readShort()) & 0xFFFF;
+                final byte[] name = new byte[nameLen];
+                in.readFully(name);
+                skip(in, extraLen);
+                // the local header sizes may be deferred to a data descriptor, so use the central directory
+                final ZipEntry zipEntry = zipFile.getEntry(new String(name));
+                final byte[] compressed = new byte[(int) zipEntry.getCompressedSize()];
+                in.readFully(compressed);
+                if (method == ZipEntry.DEFLATED) {
+                    corpus.add(new Entry(zipEntry.getName(), compressed, (int) zipEntry.getSize(), zipEntry.getCrc()));
+                    totalSize += zipEntry.getSize();
+                }
+                if ((flags & 8) != 0) {
+                    in.mark(4);
+                    if (Integer.reverseBytes(in.readInt()) != 0x08074b50) {
+                        in.reset();
+                    }
+                    skip(in, 12);
+                }
+            }
+        } catch (EOFException ex) {
+        } finally {
+            in.close();
+            zipFile.close();
+        }
+        return totalSize;
+    }
+
+    private static void skip(DataInputStream in, int n) throws IOException {
+        in.readFully(new byte[n]);
+    }
+
+    private static void run(String label, List<Entry> corpus, long totalSize, int warmup, int iterations, int kind) throws Exception {
+        final byte[] output = new byte[64 * 1024];
+        final ByteBuffer directOutput = ByteBuffer.allocateDirect(64 * 1024);
+        for (int i = 0; i < warmup; i++) {
+            inflateAll(corpus, output, directOutput, kind);
+        }
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            inflateAll(corpus, output, directOutput, kind);
+            final long time = System.nanoTime() - start;
+            total += time;
+            if (time < best) {
+                best = time;
+            }
+            if (_verbose) {
+                System.out.println(label + " iteration " + i + ": " + time / 1000 + "us");
+            }
+        }
+        System.out.println(label + (kind == 2 ? " (ByteBuffer)" : "") + ": best " + mbs(totalSize, best) + " MB/s, mean " + mbs(totalSize, total / iterations) + " MB/s");
+    }
+
+    private static String mbs(long bytes, long nanos) {
+        return Long.toString(bytes * 1000 / (nanos / 1000 + 1) / (1024 * 1024 / 1000));
+    }
+
+    private static void inflateAll(List<Entry> corpus, byte[] output, ByteBuffer directOutput, int kind) throws Exception {
+        final CRC32 crc = new CRC32();
+        for (Entry entry : corpus) {
+            crc.reset();
+            int size = 0;
+            if (kind == 0) {
+                final Inflater inflater = new Inflater(true);
+                inflater.setInput(entry._compressed);
+                int n;
+                while ((n = inflater.inflate(output)) > 0 || !(inflater.finished() || inflater.needsInput())) {
+                    crc.update(output, 0, n);
+                    size += n;
+                }
+                inflater.end();
+            } else {
+                final gnu.java.util.zip.Inflater inflater = new gnu.java.util.zip.Inflater(true);
+                inflater.setInput(entry._compressed);
+                int n;
+                if (kind == 1) {
+                    while ((n = inflater.inflate(output)) > 0 || !(inflater.finished() || inflater.needsInput())) {
+                        crc.update(output, 0, n);
+                        size += n;
+                    }
+                } else {
+                    do {
+                        directOutput.clear();
+                        n = inflater.inflate(directOutput);
+                        directOutput.flip();
+                        directOutput.get(output, 0, n);
+                        crc.update(output, 0, n);
+                        size += n;
+                    } while (n > 0 || !(inflater.finished() || inflater.needsInput()));
+                }
+                inflater.end();
+            }
+            if (size != entry._size || crc.getValue() != entry._crc) {
+                throw new DataFormatException(entry._name + ": inflated " + size + " bytes, expected " + entry._size);
+            }
+        }
+    }
+}
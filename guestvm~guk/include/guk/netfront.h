@@ -26,4 +26,21 @@
 extern void guk_netfront_xmit(unsigned char *data, int len);
 #define netfront_xmit guk_netfront_xmit
 
+/* Features, returned by guk_netfront_features, that the backend supports for transmitted packets */
+#define GUK_NETFRONT_CSUM_OFFLOAD 1    /* the backend completes blank TCP/UDP checksums */
+#define GUK_NETFRONT_TSO          2    /* the backend segments TCP packets larger than the MTU */
+
+extern int guk_netfront_features(void);
+
+/*
+ * Transmit a packet of up to 64KB, that need not fit in a page. If csum_blank is non-zero the transport checksum
+ * field holds just the pseudo-header sum, and the backend completes it. If gso_size is non-zero the packet is a
+ * TCP segment that the backend splits into segments of gso_size data bytes.
+ * Returns zero on success, or -1 if the packet was dropped because the ring was full or the device is not ready.
+ */
+extern int guk_netfront_xmit_offload(unsigned char *data, int len, int csum_blank, int gso_size);
+
+/* flags passed to guk_netif_rx */
+#define GUK_NETIF_RX_CSUM_VALIDATED 1  /* the transport checksum has been validated, or is blank and need not be */
+
 #endif /* NETFRONT_H */
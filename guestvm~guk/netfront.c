@@ -24,7 +24,8 @@
  * Copyright (c) 2006-2007 Jacob Gorm Hansen, University of Copenhagen.
  * Based on netfront.c from Xen Linux.
  *
- * Does not handle fragments or extras.
+ * Does not handle fragments or extras on receive. On transmit, packets may span
+ * several pages and carry a GSO extra, see guk_netfront_xmit_offload.
  *
  * Modified: Grzegorz Milos
              Harald Roeck
@@ -43,6 +44,7 @@
 #include <guk/smp.h>
 #include <guk/trace.h>
 #include <guk/spinlock.h>
+#include <guk/netfront.h>
 
 #include <xen/io/netif.h>
 #include <errno.h>
@@ -55,6 +57,7 @@ static struct net_info {
     unsigned int evtchn, local_port;
     int rings;
     int device_id;
+    int features;       /* GUK_NETFRONT_xxx */
     int state;
 #define ST_UNKNOWN      0
 #define ST_READY        1
@@ -106,7 +109,7 @@ static inline unsigned short get_id_from_freelist(unsigned short* freelist)
     return id;
 }
 
-__attribute__((weak)) void guk_netif_rx(unsigned char* data,int len)
+__attribute__((weak)) void guk_netif_rx(unsigned char* data,int len, int flags)
 {
     struct thread *thread = current;
     printk("%d bytes incoming at %p, thread %s\n",len,data, thread->name);
@@ -158,7 +161,8 @@ moretodo:
         gnttab_end_access(buf->gref);
 
         if(rx->status > 0) {
-            guk_netif_rx(page+rx->offset,rx->status);
+            guk_netif_rx(page+rx->offset,rx->status,
+                         (rx->flags & (NETRXF_data_validated | NETRXF_csum_blank)) ? GUK_NETIF_RX_CSUM_VALIDATED : 0);
         }
 
         add_id_to_freelist(id,rx_freelist);
@@ -373,6 +377,25 @@ static void init_rx_buffers(void)
     np->rx.sring->rsp_event = np->rx.rsp_cons + 1;
 }
 
+/* Returns 1 if the backend has a non-zero value for the given feature key. */
+static int backend_feature(const char *feature)
+{
+    char nodename[MAX_PATH];
+    char *value;
+    char *msg;
+    int result;
+
+    snprintf(nodename, MAX_PATH, "%s/%s", backend, feature);
+    msg = xenbus_read(XBT_NIL, nodename, &value);
+    if (msg) {
+	free(msg);
+	return 0;
+    }
+    result = simple_strtol(value, NULL, 10) != 0;
+    free(value);
+    return result;
+}
+
 static char *nf_explore(void)
 {
     char *first;
@@ -518,6 +541,13 @@ done:
     if (trace_net()) tprintk("backend at %s\n",backend);
     if (trace_net()) tprintk("mac is %s\n",mac);
 
+    /* Checksum offload on transmit is always supported by the backend,
+       segmentation needs scatter-gather as a segment spans several pages. */
+    info->features = GUK_NETFRONT_CSUM_OFFLOAD;
+    if (backend_feature("feature-sg") && backend_feature("feature-gso-tcpv4"))
+        info->features |= GUK_NETFRONT_TSO;
+    if (trace_net()) tprintk("features %x\n", info->features);
+
     /* This seems to be Solaris xVM specific, so no error if it isn't found.
        It's mainly a debugging aid for snooping the vnic */
     snprintf(nodename, MAX_PATH, "%s/nic", backend);
@@ -572,36 +602,74 @@ out_err:
     return;
 }
 
-void guk_netfront_xmit(unsigned char* data,int len)
+int guk_netfront_features(void)
 {
-    int flags;
+    return net_info.state == ST_READY ? net_info.features : 0;
+}
+
+int guk_netfront_xmit_offload(unsigned char* data, int len, int csum_blank, int gso_size)
+{
+    long flags;
     struct net_info* info = &net_info;
     struct netif_tx_request *tx;
+    struct netif_tx_request *first_tx = NULL;
+    struct netif_extra_info *gso;
     RING_IDX i;
-    int notify;
-    int id = get_id_from_freelist(tx_freelist);
-    struct net_buffer* buf = &tx_buffers[id];
-    void* page = buf->page;
+    int notify, offset, size;
+    int slots = (len + PAGE_SIZE - 1) / PAGE_SIZE + (gso_size ? 1 : 0);
 
     spin_lock_irqsave(&net_info_lock, flags);
-    if (net_info.state != ST_READY) {
+    if (info->state != ST_READY || (gso_size && !(info->features & GUK_NETFRONT_TSO))) {
 	spin_unlock_irqrestore(&net_info_lock, flags);
-	return;
+	return -1;
     }
 
-    i  = info->tx.req_prod_pvt;
-    tx = RING_GET_REQUEST(&info->tx, i);
-
-    memcpy(page,data,len);
-
-    buf->gref =
-        tx->gref = gnttab_grant_access(0,virt_to_mfn(page),0);
+    if (RING_FREE_REQUESTS(&info->tx) < slots) {
+        network_tx_buf_gc();
+        if (RING_FREE_REQUESTS(&info->tx) < slots) {
+	    spin_unlock_irqrestore(&net_info_lock, flags);
+	    return -1;
+        }
+    }
 
-    tx->offset=0;
-    tx->size = len;
-    tx->flags=0;
-    tx->id = id;
-    info->tx.req_prod_pvt = i + 1;
+    /* Each page of the packet needs a request, and the first request gives the size of the whole packet.
+       A GSO extra info slot immediately follows the first request. */
+    i = info->tx.req_prod_pvt;
+    for (offset = 0; offset < len; offset += size) {
+        int id = get_id_from_freelist(tx_freelist);
+        struct net_buffer* buf = &tx_buffers[id];
+
+        size = len - offset;
+        if (size > PAGE_SIZE)
+            size = PAGE_SIZE;
+        memcpy(buf->page, data + offset, size);
+
+        tx = RING_GET_REQUEST(&info->tx, i++);
+        buf->gref = tx->gref = gnttab_grant_access(0,virt_to_mfn(buf->page),0);
+        tx->offset = 0;
+        tx->id = id;
+        if (first_tx == NULL) {
+            first_tx = tx;
+            tx->size = len;
+            tx->flags = csum_blank ? (NETTXF_csum_blank | NETTXF_data_validated) : 0;
+            if (gso_size) {
+                tx->flags |= NETTXF_extra_info;
+                gso = (struct netif_extra_info *) RING_GET_REQUEST(&info->tx, i++);
+                gso->type = XEN_NETIF_EXTRA_TYPE_GSO;
+                gso->flags = 0;
+                gso->u.gso.size = gso_size;
+                gso->u.gso.type = XEN_NETIF_GSO_TYPE_TCPV4;
+                gso->u.gso.pad = 0;
+                gso->u.gso.features = 0;
+            }
+        } else {
+            tx->size = size;
+            tx->flags = 0;
+        }
+        if (offset + size < len)
+            tx->flags |= NETTXF_more_data;
+    }
+    info->tx.req_prod_pvt = i;
 
     wmb();
     RING_PUSH_REQUESTS_AND_CHECK_NOTIFY(&info->tx, notify);
@@ -609,9 +677,13 @@ void guk_netfront_xmit(unsigned char* data,int len)
     if(notify) 
 	notify_remote_via_evtchn(info->evtchn);
 
-    //network_tx_buf_gc();
-
     spin_unlock_irqrestore(&net_info_lock, flags);
+    return 0;
+}
+
+void guk_netfront_xmit(unsigned char* data,int len)
+{
+    guk_netfront_xmit_offload(data, len, 0, 0);
 }
 
 static int netfront_shutdown(void)